@@ -0,0 +1,96 @@
+package com.sonatype.sshjgit.core.gitcommand;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.UploadPack;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.sonatype.sshjgit.core.repository.RepositoryCache;
+import com.sonatype.sshjgit.testsupport.TestUtils;
+import com.sonatype.sshjgit.testsupport.load.SyntheticRepositories;
+
+/**
+ * <p>Answering a full clone of a synthetic repository with one small file per commit: by running
+ * {@code UploadPack}, which walks all commits and trees, and from the response which {@link ClonePackWarmer} put
+ * in the {@link PackCache} after the last push.</p>
+ *
+ * <p>Creating the repository with 100000 commits takes a while, and is done once per trial.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ClonePackBenchmark {
+    private static final List<String> CAPABILITIES = Arrays.asList("ofs-delta", "side-band-64k", "thin-pack");
+
+    @Param({"1000", "100000"})
+    public int commits;
+
+    private File reposRootDirectory;
+    private File packCacheDirectory;
+    private RepositoryCache repositoryCache;
+    private PackCache packCache;
+    private Repository repository;
+    private byte[] request;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        reposRootDirectory = TestUtils.createNewTempDirectory();
+        packCacheDirectory = TestUtils.createNewTempDirectory();
+        new SyntheticRepositories(1, 256, 42).create(new File(reposRootDirectory, "synthetic"), commits).close();
+        repositoryCache = new RepositoryCache(reposRootDirectory);
+        packCache = new PackCache(packCacheDirectory);
+        repository = repositoryCache.open("synthetic");
+
+        final List<String> wants = new ArrayList<String>(ClonePackWarmer.getCloneWants(repository));
+        request = ClonePackWarmer.createCloneRequest(wants, CAPABILITIES);
+        final ClonePackWarmer warmer = new ClonePackWarmer(packCache, repositoryCache);
+        warmer.observe(repository, wants, new ArrayList<String>(), new ArrayList<String>(CAPABILITIES));
+        warmer.warm(repository.getDirectory());
+        warmer.shutdown();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        repositoryCache.release(repository);
+        repositoryCache.clear();
+        FileUtils.deleteQuietly(reposRootDirectory);
+        FileUtils.deleteQuietly(packCacheDirectory);
+    }
+
+    @Benchmark
+    public void cloneWithUploadPack() throws IOException {
+        new UploadPack(repository).upload(new ByteArrayInputStream(request), new NullOutputStream(), new NullOutputStream());
+    }
+
+    @Benchmark
+    public void cloneFromWarmedPack() throws IOException {
+        final PackCachingStreams streams = new PackCachingStreams(packCache, repository.getDirectory(),
+                new ByteArrayInputStream(request), new NullOutputStream());
+        try {
+            new UploadPack(repository).upload(streams.getInputStream(), streams.getOutputStream(), new NullOutputStream());
+            throw new IllegalStateException("the clone pack was not warmed");
+        } catch(PackCachingStreams.CachedResponseSent sent) {
+            // expected
+        } finally {
+            streams.abort();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.sonatype.sshjgit.core.gitcommand;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.sshd.server.Command;
+import org.eclipse.jgit.lib.Repository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.sonatype.sshjgit.core.repository.RepositoryCache;
+import com.sonatype.sshjgit.testsupport.TestUtils;
+
+/**
+ * <p>What happens for every ssh exec request before any git protocol is spoken: parsing the command line into a
+ * command and its arguments, validating the project name, and opening the repository.</p>
+ *
+ * <p>In this package, to reach the package private parts of {@link AbstractGitCommand}.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class GitCommandFactoryBenchmark {
+    private File reposRootDirectory;
+    private GitCommandFactory factory;
+    private RepositoryCache repositoryCache;
+
+    @Setup
+    public void setUp() throws IOException {
+        reposRootDirectory = TestUtils.createNewTempDirectory();
+        new Repository(new File(reposRootDirectory, "subdir/project1")).create();
+        repositoryCache = new RepositoryCache(reposRootDirectory);
+        factory = new GitCommandFactory(repositoryCache, new ThreadPoolCommandExecutor());
+    }
+
+    @TearDown
+    public void tearDown() {
+        repositoryCache.clear();
+        FileUtils.deleteQuietly(reposRootDirectory);
+    }
+
+    @Benchmark
+    public Command createUploadCommand() {
+        return factory.createCommand("git-upload-pack '/subdir/project1.git'");
+    }
+
+    @Benchmark
+    public Command createNewStyleReceiveCommand() {
+        return factory.createCommand("git receive-pack '/subdir/project1.git'");
+    }
+
+    @Benchmark
+    public String validateProjectName() throws AbstractCommand.Failure {
+        return AbstractGitCommand.toProjectName("/subdir/project1.git");
+    }
+
+    @Benchmark
+    public File openCachedRepository() throws IOException {
+        final Repository repository = repositoryCache.open("subdir/project1");
+        try {
+            return repository.getDirectory();
+        } finally {
+            repositoryCache.release(repository);
+        }
+    }
+
+    @Benchmark
+    public File openUncachedRepository() throws IOException {
+        final Repository repository = new Repository(new File(reposRootDirectory, "subdir/project1"));
+        try {
+            return repository.getDirectory();
+        } finally {
+            repository.close();
+        }
+    }
+}
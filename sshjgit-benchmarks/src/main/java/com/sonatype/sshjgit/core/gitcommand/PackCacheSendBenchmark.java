@@ -0,0 +1,129 @@
+package com.sonatype.sshjgit.core.gitcommand;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.sonatype.sshjgit.testsupport.TestUtils;
+
+/**
+ * <p>Sending a cached response of {@code megabytes} to a stream which buffers like sshd's channel stream: everything
+ * written is kept until it's flushed, and then copied into packets. Compares copying the whole file before flushing,
+ * as {@link PackCache} used to, with {@link PackCache#sendChunked}. Run with {@code -prof gc} to see the allocation
+ * rate per operation.</p>
+ *
+ * <p>The 1024 MB variant of {@link #copyThenFlush()} needs several gigabytes of heap.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class PackCacheSendBenchmark {
+    @Param({"64", "1024"})
+    public int megabytes;
+
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = TestUtils.createNewTempFile("benchmark-pack");
+        final byte[] block = new byte[1024 * 1024];
+        new Random(42).nextBytes(block);
+        final RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            for (int i = 0; i < megabytes; i++) {
+                out.write(block);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        FileUtils.deleteQuietly(file);
+    }
+
+    @Benchmark
+    public long copyThenFlush() throws IOException {
+        final ChannelLikeOutputStream out = new ChannelLikeOutputStream();
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            IOUtils.copyLarge(in, out);
+            out.flush();
+        } finally {
+            in.close();
+        }
+        return out.packets;
+    }
+
+    @Benchmark
+    public long sendChunked() throws IOException {
+        final ChannelLikeOutputStream out = new ChannelLikeOutputStream();
+        final FileInputStream in = new FileInputStream(file);
+        final byte[] buffer = BufferPool.SHARED.acquire();
+        try {
+            PackCache.sendChunked(in.getChannel(), buffer, out);
+        } finally {
+            BufferPool.SHARED.release(buffer);
+            in.close();
+        }
+        return out.packets;
+    }
+
+    /**
+     * Keeps everything until flushed, then copies it into a new array per packet, like sshd 0.3's
+     * {@code ChannelOutputStream}.
+     */
+    static class ChannelLikeOutputStream extends OutputStream {
+        private byte[] pending = new byte[256];
+        private int length;
+        long packets;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{ (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (length + len > pending.length) {
+                final byte[] grown = new byte[Math.max(pending.length * 2, length + len)];
+                System.arraycopy(pending, 0, grown, 0, length);
+                pending = grown;
+            }
+            System.arraycopy(b, off, pending, length, len);
+            length += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            for (int sent = 0; sent < length; sent += BufferPool.PACKET_SIZE) {
+                final int size = Math.min(BufferPool.PACKET_SIZE, length - sent);
+                final byte[] packet = new byte[size + 64];
+                System.arraycopy(pending, sent, packet, 9, size);
+                packets++;
+            }
+            pending = new byte[256];
+            length = 0;
+        }
+    }
+}
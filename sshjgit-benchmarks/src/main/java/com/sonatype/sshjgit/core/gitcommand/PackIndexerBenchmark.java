@@ -0,0 +1,216 @@
+package com.sonatype.sshjgit.core.gitcommand;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.IndexPack;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.sonatype.sshjgit.testsupport.TestUtils;
+
+/**
+ * <p>Indexing a pushed pack of {@code objects} blobs of about 4 KB, in delta chains of ten: with JGit's
+ * {@code IndexPack}, as {@code ReceivePack} does, and with a {@link PackIndexer} of {@code threads} threads. Both
+ * check the objects, as {@link Receive} asks for.</p>
+ *
+ * <p>The pack is written once per trial, and each invocation indexes it into a new, empty repository.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PackIndexerBenchmark {
+    private static final int CHAIN_LENGTH = 10;
+
+    @Param({"100000"})
+    public int objects;
+
+    @Param({"1", "4", "16"})
+    public int threads;
+
+    private File packFile;
+    private PackIndexer indexer;
+    private File repositoryDirectory;
+    private Repository repository;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        packFile = TestUtils.createNewTempFile("benchmark-push");
+        writePack(packFile, objects, new Random(42));
+        indexer = new PackIndexer(threads);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        indexer.shutdown();
+        FileUtils.deleteQuietly(packFile);
+    }
+
+    @Setup(Level.Invocation)
+    public void createRepository() throws IOException {
+        repositoryDirectory = TestUtils.createNewTempDirectory();
+        repository = new Repository(repositoryDirectory);
+        repository.create(true);
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteRepository() {
+        repository.close();
+        FileUtils.deleteQuietly(repositoryDirectory);
+    }
+
+    @Benchmark
+    public void indexPack() throws IOException {
+        final InputStream in = new BufferedInputStream(new FileInputStream(packFile));
+        try {
+            final IndexPack indexPack = IndexPack.create(repository, in);
+            indexPack.setFixThin(true);
+            indexPack.setObjectChecking(true);
+            indexPack.index(NullProgressMonitor.INSTANCE);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Benchmark
+    public void packIndexer() throws IOException {
+        final PushbackInputStream in = new PushbackInputStream(new FileInputStream(packFile), PackIndexer.BUFFER_SIZE);
+        try {
+            indexer.index(repository, in, true);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes chains of blobs, each of which is the one before with a line appended, as deltas against it.
+     */
+    static void writePack(File file, int objects, Random random) throws IOException {
+        final OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        long offset = 12;
+        try {
+            out.write(new byte[]{'P', 'A', 'C', 'K', 0, 0, 0, 2});
+            writeInt(out, objects);
+            byte[] base = null;
+            long baseOffset = 0;
+            for (int i = 0; i < objects; i++) {
+                final byte[] data;
+                final byte[] entry;
+                if (i % CHAIN_LENGTH == 0) {
+                    data = randomText(random, 4096);
+                    entry = entry(Constants.OBJ_BLOB, new byte[0], data);
+                } else {
+                    final byte[] line = randomText(random, 64);
+                    data = new byte[base.length + line.length];
+                    System.arraycopy(base, 0, data, 0, base.length);
+                    System.arraycopy(line, 0, data, base.length, line.length);
+                    entry = entry(6, ofsDeltaDistance(offset - baseOffset), appendDelta(base, line));
+                }
+                out.write(entry);
+                base = data;
+                baseOffset = offset;
+                offset += entry.length;
+            }
+        } finally {
+            out.close();
+        }
+
+        final MessageDigest digest = Constants.newMessageDigest();
+        final RandomAccessFile pack = new RandomAccessFile(file, "rw");
+        try {
+            final byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = pack.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+            pack.write(digest.digest());
+        } finally {
+            pack.close();
+        }
+    }
+
+    private static byte[] entry(int type, byte[] base, byte[] data) throws IOException {
+        final ByteArrayOutputStream entry = new ByteArrayOutputStream();
+        entry.write(PackIndexer.entryHeader(type, data.length));
+        entry.write(base);
+        final DeflaterOutputStream deflate = new DeflaterOutputStream(entry);
+        deflate.write(data);
+        deflate.finish();
+        return entry.toByteArray();
+    }
+
+    private static byte[] appendDelta(byte[] base, byte[] line) {
+        final ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        writeVarint(delta, base.length);
+        writeVarint(delta, base.length + line.length);
+        // copy the whole base, with a three byte size
+        delta.write(0x80 | 0x10 | 0x20 | 0x40);
+        delta.write(base.length & 0xff);
+        delta.write((base.length >>> 8) & 0xff);
+        delta.write((base.length >>> 16) & 0xff);
+        delta.write(line.length);
+        delta.write(line, 0, line.length);
+        return delta.toByteArray();
+    }
+
+    private static byte[] ofsDeltaDistance(long distance) {
+        final byte[] buffer = new byte[10];
+        int position = buffer.length - 1;
+        buffer[position] = (byte) (distance & 0x7f);
+        while ((distance >>>= 7) != 0) {
+            buffer[--position] = (byte) (0x80 | (--distance & 0x7f));
+        }
+        final byte[] encoded = new byte[buffer.length - position];
+        System.arraycopy(buffer, position, encoded, 0, encoded.length);
+        return encoded;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while (value >= 0x80) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static byte[] randomText(Random random, int length) {
+        final byte[] text = new byte[length];
+        for (int i = 0; i < length - 1; i++) {
+            text[i] = (byte) ('a' + random.nextInt(26));
+        }
+        text[length - 1] = '\n';
+        return text;
+    }
+}
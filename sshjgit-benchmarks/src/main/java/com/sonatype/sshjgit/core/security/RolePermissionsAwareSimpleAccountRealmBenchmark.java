@@ -0,0 +1,96 @@
+package com.sonatype.sshjgit.core.security;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.shiro.authc.SimpleAccount;
+import org.apache.shiro.authz.AuthorizationInfo;
+import org.apache.shiro.authz.Permission;
+import org.apache.shiro.authz.SimpleRole;
+import org.apache.shiro.authz.permission.WildcardPermission;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * <p>Flattening an account's role and own permissions, and checking a permission against them, for accounts with a
+ * growing number of grants.</p>
+ *
+ * <p>In this package, to reach the protected {@code doGetAuthorizationInfo}.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RolePermissionsAwareSimpleAccountRealmBenchmark {
+    private static final String REALM_NAME = "benchmarkRealm";
+    private static final String USERNAME = "username";
+    private static final int ROLES = 10;
+
+    @Param({"10", "100", "1000"})
+    public int grantsPerRole;
+
+    private RolePermissionsAwareSimpleAccountRealm realm;
+    private SimplePrincipalCollection principals;
+    private Set<Permission> allPermissions;
+    private PermissionIndex index;
+    private Permission permitted;
+    private Permission notPermitted;
+
+    @Setup
+    public void setUp() {
+        realm = new RolePermissionsAwareSimpleAccountRealm(REALM_NAME);
+        realm.init();
+        allPermissions = new HashSet<Permission>();
+        final Set<String> roleNames = new HashSet<String>();
+        for (int r = 0; r < ROLES; r++) {
+            final Set<Permission> permissions = new HashSet<Permission>();
+            for (int g = 0; g < grantsPerRole; g++) {
+                permissions.add(new WildcardPermission("gitrepo:fetch,push:team" + r + ":project" + g));
+            }
+            realm.add(new SimpleRole("role" + r, permissions));
+            roleNames.add("role" + r);
+            allPermissions.addAll(permissions);
+        }
+        final SimpleAccount account = new SimpleAccount(USERNAME, "password", REALM_NAME, roleNames, new HashSet<Permission>());
+        account.addStringPermission("gitrepo:fetch:users:" + USERNAME);
+        realm.add(account);
+        principals = new SimplePrincipalCollection(USERNAME, REALM_NAME);
+        index = new PermissionIndex(allPermissions);
+        permitted = new WildcardPermission("gitrepo:push:team" + (ROLES - 1) + ":project" + (grantsPerRole - 1));
+        notPermitted = new WildcardPermission("gitrepo:push:team" + ROLES + ":project0");
+    }
+
+    @Benchmark
+    public AuthorizationInfo doGetAuthorizationInfo() {
+        return realm.doGetAuthorizationInfo(principals);
+    }
+
+    @Benchmark
+    public boolean isPermittedIndexed() {
+        return index.implies(permitted) & index.implies(notPermitted);
+    }
+
+    /**
+     * What Shiro does without the index: asks each held permission in turn.
+     */
+    @Benchmark
+    public boolean isPermittedLinear() {
+        return impliesLinearly(permitted) & impliesLinearly(notPermitted);
+    }
+
+    private boolean impliesLinearly(Permission permission) {
+        for (Permission held : allPermissions) {
+            if (held.implies(permission)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
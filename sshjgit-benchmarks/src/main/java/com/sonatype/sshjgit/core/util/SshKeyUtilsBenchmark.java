@@ -0,0 +1,52 @@
+package com.sonatype.sshjgit.core.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.sonatype.sshjgit.testsupport.TestUtils;
+
+/**
+ * Parsing {@code id_rsa.pub} lines into keys, and fingerprinting keys, with the keys from sshjgit-testsupport.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SshKeyUtilsBenchmark {
+    private String line;
+    private PublicKey key;
+
+    @Setup
+    public void setUp() throws IOException, NoSuchAlgorithmException, InvalidKeySpecException, NoSuchProviderException {
+        final InputStream in = TestUtils.class.getResourceAsStream("/id_rsa.pub");
+        try {
+            line = IOUtils.toString(in, "UTF-8").trim();
+        } finally {
+            in.close();
+        }
+        key = TestUtils.loadPublicKey("/id_rsa.pub");
+    }
+
+    @Benchmark
+    public PublicKey toPublicKey() throws NoSuchAlgorithmException, InvalidKeySpecException, NoSuchProviderException {
+        return SshKeyUtils.toPublicKey(line);
+    }
+
+    @Benchmark
+    public String getFingerprint() {
+        return SshKeyUtils.getFingerprint(key);
+    }
+}
@@ -0,0 +1,94 @@
+package com.sonatype.sshjgit.xstream;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.sonatype.sshjgit.testsupport.TestUtils;
+
+/**
+ * <p>Adding a key to, and loading, key files which already hold many keys: the keys from sshjgit-testsupport,
+ * given to {@code keys} users in turn.</p>
+ *
+ * <p>The {@link JournalFilePublicKeyRepository} variants are there to compare against.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PublicKeyRepositoryBenchmark {
+    @Param({"1000", "10000"})
+    public int keys;
+
+    private PublicKey[] fixtureKeys;
+    private File xstreamFile;
+    private File journalFile;
+    private XStreamFilePublicKeyRepository xstreamRepository;
+    private JournalFilePublicKeyRepository journalRepository;
+    private int added;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, NoSuchAlgorithmException, InvalidKeySpecException, NoSuchProviderException {
+        fixtureKeys = new PublicKey[]{
+                TestUtils.loadPublicKey("/id_rsa.pub"),
+                TestUtils.loadPublicKey("/id_rsa2.pub"),
+                TestUtils.loadPublicKey("/id_rsa3.pub") };
+        xstreamFile = TestUtils.createNewTempFile("benchmark-xstream");
+        journalFile = TestUtils.createNewTempFile("benchmark-journal");
+        FileUtils.deleteQuietly(journalFile);
+        xstreamRepository = new XStreamFilePublicKeyRepository(xstreamFile);
+        journalRepository = new JournalFilePublicKeyRepository(journalFile);
+        journalRepository.setSyncWrites(false);
+        for (int i = 0; i < keys; i++) {
+            xstreamRepository.addPublicKey("user" + i, fixtureKeys[i % fixtureKeys.length]);
+            journalRepository.addPublicKey("user" + i, fixtureKeys[i % fixtureKeys.length]);
+        }
+        journalRepository.compact();
+        journalRepository.setSyncWrites(true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        journalRepository.close();
+        FileUtils.deleteQuietly(xstreamFile);
+        FileUtils.deleteQuietly(journalFile);
+        FileUtils.deleteQuietly(new File(journalFile.getPath() + ".journal"));
+    }
+
+    @Benchmark
+    public void addToXStreamFile() {
+        xstreamRepository.addPublicKey("added" + added++, fixtureKeys[0]);
+    }
+
+    @Benchmark
+    public XStreamFilePublicKeyRepository loadXStreamFile() {
+        return new XStreamFilePublicKeyRepository(xstreamFile);
+    }
+
+    @Benchmark
+    public void addToJournal() {
+        journalRepository.addPublicKey("added" + added++, fixtureKeys[0]);
+    }
+
+    @Benchmark
+    public JournalFilePublicKeyRepository loadJournal() {
+        final JournalFilePublicKeyRepository loaded = new JournalFilePublicKeyRepository(journalFile);
+        loaded.close();
+        return loaded;
+    }
+}
@@ -1,6 +1,21 @@
 package com.sonatype.sshjgit.core;
 
+import com.sonatype.sshjgit.core.event.PostReceiveEventBus;
+import com.sonatype.sshjgit.core.gitcommand.ClonePackWarmer;
+import com.sonatype.sshjgit.core.gitcommand.CommandExecutor;
 import com.sonatype.sshjgit.core.gitcommand.GitCommandFactory;
+import com.sonatype.sshjgit.core.gitcommand.PackCache;
+import com.sonatype.sshjgit.core.gitcommand.PackIndexer;
+import com.sonatype.sshjgit.core.gitcommand.RefAdvertisementCache;
+import com.sonatype.sshjgit.core.gitcommand.ThreadPoolCommandExecutor;
+import com.sonatype.sshjgit.core.metrics.NoServerMetrics;
+import com.sonatype.sshjgit.core.metrics.ServerMetrics;
+import com.sonatype.sshjgit.core.quota.QuotaManager;
+import com.sonatype.sshjgit.core.replica.ReadReplica;
+import com.sonatype.sshjgit.core.repository.RepositoryCache;
+import com.sonatype.sshjgit.core.repository.RepositoryLockManager;
+import com.sonatype.sshjgit.core.repository.RepositoryMaintenance;
+import com.sonatype.sshjgit.core.security.FingerprintPublicKeyRepository;
 import com.sonatype.sshjgit.core.security.ShiroAwareSshServerSessionFactory;
 import com.sonatype.sshjgit.core.security.ShiroPublickeyAuthenticator;
 import com.sonatype.sshjgit.core.security.ShiroUserAuthPassword;
@@ -8,13 +23,13 @@ import org.apache.shiro.mgt.SecurityManager;
 import org.apache.sshd.SshServer;
 import org.apache.sshd.common.KeyPairProvider;
 import org.apache.sshd.common.NamedFactory;
-import org.apache.sshd.server.PublickeyAuthenticator;
 import org.apache.sshd.server.UserAuth;
 import org.apache.sshd.server.auth.UserAuthPublicKey;
 import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
 
 import java.io.File;
 import java.util.Arrays;
+import java.util.Map;
 
 /**
  * Factory for constructing {@link SshServer}s which serve Git repositories.
@@ -23,6 +38,169 @@ import java.util.Arrays;
  * @author hugo@josefson.org
  */
 public class ServerFactory {
+    private CommandExecutor commandExecutor;
+    private RepositoryCache repositoryCache;
+    private PackCache packCache;
+    private boolean warmClonePacks;
+    private RefAdvertisementCache refAdvertisementCache;
+    private boolean protocolV2;
+    private RepositoryLockManager repositoryLockManager;
+    private RepositoryMaintenance repositoryMaintenance;
+    private PackIndexer packIndexer;
+    private PostReceiveEventBus postReceiveEventBus;
+    private QuotaManager quotaManager;
+    private ReadReplica readReplica;
+    private FingerprintPublicKeyRepository publicKeyRepository;
+    private ServerMetrics metrics;
+
+    /**
+     * Sets what will run the git commands of servers created by this factory. If not set, each server gets its own
+     * {@link ThreadPoolCommandExecutor} with default settings.
+     *
+     * @param commandExecutor the executor to use, or {@code null} for the default.
+     */
+    public void setCommandExecutor( CommandExecutor commandExecutor ) {
+        this.commandExecutor = commandExecutor;
+    }
+
+    /**
+     * Sets the cache which servers created by this factory open their repositories through. Its root directory is
+     * used instead of the {@code reposRootDirectory} passed to {@code createDefaultServer}. If not set, each server
+     * gets its own {@link RepositoryCache} with default settings.
+     *
+     * @param repositoryCache the cache to use, or {@code null} for the default.
+     */
+    public void setRepositoryCache( RepositoryCache repositoryCache ) {
+        this.repositoryCache = repositoryCache;
+    }
+
+    /**
+     * Enables reuse of packs generated for identical fetch requests, in servers created by this factory.
+     *
+     * @param packCache the cache to use, or {@code null} to disable it (which is the default).
+     */
+    public void setPackCache( PackCache packCache ) {
+        this.packCache = packCache;
+    }
+
+    /**
+     * Enables reuse of ref advertisements, so that fetches which find nothing new, and pushes of nothing, are
+     * answered without listing the refs, in servers created by this factory.
+     *
+     * @param refAdvertisementCache the cache to use, or {@code null} to disable it (which is the default).
+     */
+    public void setRefAdvertisementCache( RefAdvertisementCache refAdvertisementCache ) {
+        this.refAdvertisementCache = refAdvertisementCache;
+    }
+
+    /**
+     * Lets servers created by this factory speak git wire protocol version 2 to clients which ask for it, so that
+     * fetches only list the refs they need. The client must send {@code GIT_PROTOCOL}, which git does since
+     * version 2.18 when configured with {@code protocol.version=2}.
+     *
+     * @param protocolV2 {@code true} to enable it. Disabled by default.
+     */
+    public void setProtocolV2( boolean protocolV2 ) {
+        this.protocolV2 = protocolV2;
+    }
+
+    /**
+     * Makes servers created by this factory keep the responses to full clones ready in the pack cache, by
+     * generating them in the background after each push, with a {@link ClonePackWarmer}. Only has an effect if a
+     * {@link #setPackCache pack cache} is set.
+     *
+     * @param warmClonePacks {@code true} to enable it. Disabled by default.
+     */
+    public void setWarmClonePacks( boolean warmClonePacks ) {
+        this.warmClonePacks = warmClonePacks;
+    }
+
+    /**
+     * Sets what serializes the ref updates of pushes to the same repository, in servers created by this factory. If
+     * not set, each server gets its own {@link RepositoryLockManager} with default settings.
+     *
+     * @param repositoryLockManager the lock manager to use, or {@code null} for the default.
+     */
+    public void setRepositoryLockManager( RepositoryLockManager repositoryLockManager ) {
+        this.repositoryLockManager = repositoryLockManager;
+    }
+
+    /**
+     * Lets pushes to servers created by this factory trigger background repacking of repositories with too many
+     * packs. The maintenance must be {@link RepositoryMaintenance#start() started} and shut down by the caller.
+     *
+     * @param repositoryMaintenance the maintenance to use, or {@code null} for none (which is the default).
+     */
+    public void setRepositoryMaintenance( RepositoryMaintenance repositoryMaintenance ) {
+        this.repositoryMaintenance = repositoryMaintenance;
+    }
+
+    /**
+     * Makes servers created by this factory index the packs of pushes on several threads, which matters for large
+     * pushes. The indexer must be {@link PackIndexer#shutdown() shut down} by the caller.
+     *
+     * @param packIndexer the indexer to use, or {@code null} to index on the command's thread (which is the
+     * default).
+     */
+    public void setPackIndexer( PackIndexer packIndexer ) {
+        this.packIndexer = packIndexer;
+    }
+
+    /**
+     * Lets listeners of the bus know about the refs which pushes to servers created by this factory update, without
+     * holding up the pushes. The bus must be {@link PostReceiveEventBus#start() started} and shut down by the
+     * caller.
+     *
+     * @param postReceiveEventBus the bus to publish to, or {@code null} for none (which is the default).
+     */
+    public void setPostReceiveEventBus( PostReceiveEventBus postReceiveEventBus ) {
+        this.postReceiveEventBus = postReceiveEventBus;
+    }
+
+    /**
+     * Limits how many git commands each user, repository and client address may start on servers created by this
+     * factory, and may run at the same time. The same manager can be shared by several servers, so that the limits
+     * hold for all of them together.
+     *
+     * @param quotaManager the limits to keep, or {@code null} for none (which is the default).
+     */
+    public void setQuotaManager( QuotaManager quotaManager ) {
+        this.quotaManager = quotaManager;
+    }
+
+    /**
+     * Makes servers created by this factory read replicas of a primary server: fetches are served from mirrors of
+     * the primary's repositories, and pushes are forwarded to the primary. The replica's mirrors should be the
+     * repositories root directory of the servers. The caches and metrics of this factory are set on it, and it must be
+     * {@link ReadReplica#start() started} and shut down by the caller.
+     *
+     * @param readReplica the replica, or {@code null} for a server of its own repositories (which is the default).
+     */
+    public void setReadReplica( ReadReplica readReplica ) {
+        this.readReplica = readReplica;
+    }
+
+    /**
+     * Lets servers created by this factory turn away public keys which are not registered for the user, without
+     * logging in through Shiro. Only set this if the Shiro realm which authenticates public keys uses the same
+     * repository.
+     *
+     * @param publicKeyRepository the repository, or {@code null} to always ask Shiro (which is the default).
+     */
+    public void setPublicKeyRepository( FingerprintPublicKeyRepository publicKeyRepository ) {
+        this.publicKeyRepository = publicKeyRepository;
+    }
+
+    /**
+     * Sets what receives measurements of sessions, commands, logins and permission checks from servers created by
+     * this factory, such as a {@link com.sonatype.sshjgit.core.metrics.JmxServerMetrics}.
+     *
+     * @param metrics the metrics to record into, or {@code null} to record nothing (which is the default).
+     */
+    public void setMetrics( ServerMetrics metrics ) {
+        this.metrics = metrics;
+    }
+
     /**
      * Constructs a default configured {@link SshServer} for serving up Git repositories.
      *
@@ -38,15 +216,40 @@ public class ServerFactory {
         server.setPort( port );
         server.setKeyPairProvider( hostKeyProvider );
         server.setShellFactory( new NoShell() );
-        server.setCommandFactory( new GitCommandFactory( reposRootDirectory ) );
+        final ServerMetrics metrics = createMetrics();
+        final RepositoryCache repositoryCache = createRepositoryCache( reposRootDirectory );
+        final GitCommandFactory commandFactory = new GitCommandFactory( repositoryCache, createCommandExecutor() );
+        commandFactory.setPackCache( packCache );
+        if ( packCache != null && warmClonePacks ){
+            commandFactory.setClonePackWarmer( new ClonePackWarmer( packCache, repositoryCache ) );
+        }
+        commandFactory.setRefAdvertisementCache( refAdvertisementCache );
+        commandFactory.setProtocolV2( protocolV2 );
+        commandFactory.setMetrics( metrics );
+        if ( repositoryLockManager != null ){
+            commandFactory.setRepositoryLockManager( repositoryLockManager );
+        }
+        commandFactory.setRepositoryMaintenance( repositoryMaintenance );
+        commandFactory.setPackIndexer( packIndexer );
+        commandFactory.setPostReceiveEventBus( postReceiveEventBus );
+        commandFactory.setQuotaManager( quotaManager );
+        if ( readReplica != null ) {
+            // fetched mirrors make cached responses stale, as pushes do
+            readReplica.setPackCache( packCache );
+            readReplica.setRefAdvertisementCache( refAdvertisementCache );
+            readReplica.setMetrics( metrics );
+            commandFactory.setReadReplica( readReplica );
+        }
+        server.setCommandFactory( commandFactory );
         server.setUserAuthFactories( Arrays.<NamedFactory<UserAuth>>asList(
                 new UserAuthPublicKey.Factory( ),
-                new ShiroUserAuthPassword.Factory( )
+                new ShiroUserAuthPassword.Factory( metrics )
         ) );
 
-        server.setSessionFactory( new ShiroAwareSshServerSessionFactory( securityManager, server ) );
+        server.setSessionFactory( new ShiroAwareSshServerSessionFactory( securityManager, server, metrics ) );
 
-        final PublickeyAuthenticator publickeyAuthenticator = new ShiroPublickeyAuthenticator( );
+        final ShiroPublickeyAuthenticator publickeyAuthenticator = new ShiroPublickeyAuthenticator( publicKeyRepository );
+        publickeyAuthenticator.setMetrics( metrics );
         server.setPublickeyAuthenticator( publickeyAuthenticator );
 
         return server;
@@ -66,6 +269,46 @@ public class ServerFactory {
         return createDefaultServer(port, reposRootDirectory, securityManager, hostKeyProvider);
     }
 
+    /**
+     * Loads or generates the host keys of a server created by this factory, initializes the crypto it offers, and
+     * loads the key and permission stores, so that its first connections are as fast as later ones. See
+     * {@link ServerWarmUp} for the phases. Call it before {@link SshServer#start()}, which opens the listening socket.
+     *
+     * @param server the server, as created by {@code createDefaultServer}.
+     * @param securityManager the Shiro {@code SecurityManager} which the server was created with.
+     * @return how many milliseconds each phase took, by phase name, which are also logged.
+     */
+    public Map<String, Long> warmUp(SshServer server, SecurityManager securityManager) {
+        final ServerWarmUp warmUp = new ServerWarmUp( server );
+        warmUp.setSecurityManager( securityManager );
+        warmUp.setPublicKeyRepository( publicKeyRepository );
+        return warmUp.run();
+    }
+
+    private CommandExecutor createCommandExecutor() {
+        if ( commandExecutor == null ){
+            return new ThreadPoolCommandExecutor();
+        }else{
+            return commandExecutor;
+        }
+    }
+
+    private ServerMetrics createMetrics() {
+        if ( metrics == null ){
+            return new NoServerMetrics();
+        }else{
+            return metrics;
+        }
+    }
+
+    private RepositoryCache createRepositoryCache( File reposRootDirectory ) {
+        if ( repositoryCache == null ){
+            return new RepositoryCache( reposRootDirectory );
+        }else{
+            return repositoryCache;
+        }
+    }
+
     private SimpleGeneratorHostKeyProvider createHostKeyProvider( String configDir ) {
         if ( configDir == null ){
             return new SimpleGeneratorHostKeyProvider( null );
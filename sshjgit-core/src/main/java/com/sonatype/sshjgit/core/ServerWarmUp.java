@@ -0,0 +1,370 @@
+package com.sonatype.sshjgit.core;
+
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.interfaces.DSAPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.shiro.mgt.RealmSecurityManager;
+import org.apache.shiro.mgt.SecurityManager;
+import org.apache.shiro.realm.Realm;
+import org.apache.sshd.SshServer;
+import org.apache.sshd.common.Cipher;
+import org.apache.sshd.common.KeyExchange;
+import org.apache.sshd.common.KeyPairProvider;
+import org.apache.sshd.common.Mac;
+import org.apache.sshd.common.NamedFactory;
+import org.apache.sshd.common.Signature;
+import org.apache.sshd.common.kex.DH;
+import org.apache.sshd.common.kex.DHGroupData;
+import org.apache.sshd.common.util.Buffer;
+import org.apache.sshd.common.util.SecurityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sonatype.sshjgit.core.security.FingerprintPublicKeyRepository;
+import com.sonatype.sshjgit.core.security.RolePermissionsAwareSimpleAccountRealm;
+import com.sonatype.sshjgit.core.util.SshKeyUtils;
+
+/**
+ * <p>Does what the first connections to a server would otherwise do, before it listens: loads or generates the
+ * host keys, initializes the JCE providers and classes behind each cipher, MAC, key exchange and signature the server
+ * offers, parses public keys, and loads the key and permission stores. Run it after the server has been configured,
+ * and before {@link SshServer#start()}.</p>
+ *
+ * <p>The host keys are loaded first, since signing needs them. The other phases are independent of each other, and
+ * run in parallel. A phase which fails is logged and does not stop the others, since the server can still start;
+ * its first connections are only slower. The phases which failed are listed by {@link #getFailedPhases()}.</p>
+ */
+public class ServerWarmUp {
+    private static final Logger log = LoggerFactory.getLogger( ServerWarmUp.class );
+
+    public static final String HOST_KEYS   = "host keys";
+    public static final String RANDOM      = "random";
+    public static final String CIPHERS     = "ciphers";
+    public static final String MACS        = "macs";
+    public static final String KEX         = "key exchange";
+    public static final String SIGNATURES  = "signatures";
+    public static final String PUBLIC_KEYS = "public keys";
+    public static final String KEY_STORE   = "key store";
+    public static final String PERMISSIONS = "permissions";
+    public static final String TOTAL       = "total";
+
+    /** big enough for the keys, IVs and blocks of every cipher and MAC, which cut them to their own sizes. */
+    private static final int MAX_KEY_BYTES = 64;
+
+    private final SshServer server;
+    private SecurityManager securityManager;
+    private FingerprintPublicKeyRepository publicKeyRepository;
+    private int threads = Math.max( 1, Runtime.getRuntime().availableProcessors() );
+    private final List<String> failedPhases = Collections.synchronizedList( new ArrayList<String>() );
+
+    /**
+     * @param server the configured server, whose host key provider and algorithms are warmed up.
+     */
+    public ServerWarmUp( SshServer server ) {
+        this.server = server;
+    }
+
+    /**
+     * @param securityManager whose {@link RolePermissionsAwareSimpleAccountRealm}s have their permissions flattened,
+     * or {@code null} for none.
+     */
+    public void setSecurityManager( SecurityManager securityManager ) {
+        this.securityManager = securityManager;
+    }
+
+    /**
+     * @param publicKeyRepository the key store to load, or {@code null} for none.
+     */
+    public void setPublicKeyRepository( FingerprintPublicKeyRepository publicKeyRepository ) {
+        this.publicKeyRepository = publicKeyRepository;
+    }
+
+    /**
+     * @param threads how many phases run at the same time. Defaults to the number of processors.
+     */
+    public void setThreads( int threads ) {
+        this.threads = Math.max( 1, threads );
+    }
+
+    /**
+     * Runs all phases, and logs how long each took.
+     * @return the milliseconds each phase took, by phase name such as {@link #HOST_KEYS}, in the order they were
+     * started, followed by the {@link #TOTAL}.
+     */
+    public Map<String, Long> run() {
+        final long started = System.currentTimeMillis();
+        failedPhases.clear();
+        final Map<String, Long> timings = new LinkedHashMap<String, Long>();
+        final List<KeyPair> hostKeys = new ArrayList<KeyPair>();
+        timings.put( HOST_KEYS, time( HOST_KEYS, new Phase() {
+            @Override
+            public void run() throws Exception {
+                hostKeys.addAll( loadHostKeys() );
+            }
+        } ) );
+
+        final Map<String, Phase> phases = new LinkedHashMap<String, Phase>();
+        phases.put( RANDOM, new Phase() {
+            @Override
+            public void run() {
+                server.getRandomFactory().create().fill( new byte[MAX_KEY_BYTES], 0, MAX_KEY_BYTES );
+            }
+        } );
+        phases.put( CIPHERS, new Phase() {
+            @Override
+            public void run() throws Exception {
+                warmCiphers();
+            }
+        } );
+        phases.put( MACS, new Phase() {
+            @Override
+            public void run() throws Exception {
+                warmMacs();
+            }
+        } );
+        phases.put( KEX, new Phase() {
+            @Override
+            public void run() throws Exception {
+                warmKeyExchanges();
+            }
+        } );
+        phases.put( SIGNATURES, new Phase() {
+            @Override
+            public void run() throws Exception {
+                warmSignatures( hostKeys );
+            }
+        } );
+        phases.put( PUBLIC_KEYS, new Phase() {
+            @Override
+            public void run() throws Exception {
+                warmPublicKeys( hostKeys );
+            }
+        } );
+        phases.put( KEY_STORE, new Phase() {
+            @Override
+            public void run() {
+                if ( publicKeyRepository != null ) {
+                    publicKeyRepository.getKeyCount();
+                }
+            }
+        } );
+        phases.put( PERMISSIONS, new Phase() {
+            @Override
+            public void run() {
+                warmPermissions();
+            }
+        } );
+        runInParallel( phases, timings );
+
+        timings.put( TOTAL, System.currentTimeMillis() - started );
+        log.info( "Warmed up in " + timings.get( TOTAL ) + " ms: " + timings );
+        return timings;
+    }
+
+    /**
+     * @return the names of the phases which failed in the last {@link #run()}, in the order they failed, or an empty
+     * list if all succeeded.
+     */
+    public List<String> getFailedPhases() {
+        synchronized ( failedPhases ) {
+            return new ArrayList<String>( failedPhases );
+        }
+    }
+
+    private void runInParallel( Map<String, Phase> phases, Map<String, Long> timings ) {
+        final ExecutorService executor = Executors.newFixedThreadPool( Math.min( threads, phases.size() ),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread( Runnable r ) {
+                        final Thread thread = new Thread( r, "sshjgit-warm-up" );
+                        thread.setDaemon( true );
+                        return thread;
+                    }
+                } );
+        try {
+            final Map<String, Future<Long>> futures = new LinkedHashMap<String, Future<Long>>();
+            for ( final Map.Entry<String, Phase> phase : phases.entrySet() ) {
+                futures.put( phase.getKey(), executor.submit( new Callable<Long>() {
+                    @Override
+                    public Long call() {
+                        return time( phase.getKey(), phase.getValue() );
+                    }
+                } ) );
+            }
+            for ( Map.Entry<String, Future<Long>> future : futures.entrySet() ) {
+                try {
+                    timings.put( future.getKey(), future.getValue().get() );
+                } catch( ExecutionException e ) {
+                    failedPhases.add( future.getKey() );
+                    log.warn( "Could not warm up " + future.getKey(), e.getCause() );
+                }
+            }
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return how long the phase took, in milliseconds.
+     */
+    private long time( String name, Phase phase ) {
+        final long started = System.currentTimeMillis();
+        try {
+            phase.run();
+        } catch( Exception e ) {
+            failedPhases.add( name );
+            log.warn( "Could not warm up " + name, e );
+        }
+        return System.currentTimeMillis() - started;
+    }
+
+    private List<KeyPair> loadHostKeys() {
+        final KeyPairProvider provider = server.getKeyPairProvider();
+        if ( provider == null ) {
+            return Collections.emptyList();
+        }
+        final List<KeyPair> keys = new ArrayList<KeyPair>();
+        // the first call reads the keys from their file, or generates and writes them
+        final String keyTypes = provider.getKeyTypes();
+        if ( keyTypes != null ) {
+            for ( String keyType : keyTypes.split( "," ) ) {
+                final KeyPair key = provider.loadKey( keyType );
+                if ( key != null ) {
+                    keys.add( key );
+                }
+            }
+        }
+        return keys;
+    }
+
+    private void warmCiphers() throws Exception {
+        final byte[] key = new byte[MAX_KEY_BYTES];
+        final byte[] block = new byte[MAX_KEY_BYTES];
+        for ( NamedFactory<Cipher> factory : server.getCipherFactories() ) {
+            for ( Cipher.Mode mode : Cipher.Mode.values() ) {
+                final Cipher cipher = factory.create();
+                cipher.init( mode, key, key );
+                cipher.update( block, 0, block.length );
+            }
+        }
+    }
+
+    private void warmMacs() throws Exception {
+        final byte[] key = new byte[MAX_KEY_BYTES];
+        for ( NamedFactory<Mac> factory : server.getMacFactories() ) {
+            final Mac mac = factory.create();
+            mac.init( key );
+            mac.updateUInt( 0 );
+            mac.update( key, 0, key.length );
+            mac.doFinal( new byte[MAX_KEY_BYTES], 0 );
+        }
+    }
+
+    /**
+     * Runs both sides of the Diffie-Hellman agreement of each offered group. The key exchanges themselves need a
+     * session, so only their classes are loaded.
+     */
+    private void warmKeyExchanges() throws Exception {
+        for ( NamedFactory<KeyExchange> factory : server.getKeyExchangeFactories() ) {
+            factory.create();
+            final byte[] p;
+            if ( factory.getName().startsWith( "diffie-hellman-group1-" ) ) {
+                p = DHGroupData.getP1();
+            } else if ( factory.getName().startsWith( "diffie-hellman-group14-" ) ) {
+                p = DHGroupData.getP14();
+            } else {
+                continue;
+            }
+            final DH clientSide = new DH();
+            clientSide.setP( p );
+            clientSide.setG( DHGroupData.getG() );
+            final DH serverSide = new DH();
+            serverSide.setP( p );
+            serverSide.setG( DHGroupData.getG() );
+            serverSide.setF( clientSide.getE() );
+            clientSide.setF( serverSide.getE() );
+            clientSide.getK();
+            serverSide.getK();
+        }
+        SecurityUtils.getMessageDigest( "SHA-1" ).digest();
+    }
+
+    /**
+     * Signs with each host key, as in the key exchange, and verifies the signature, as for a client's public key.
+     */
+    private void warmSignatures( List<KeyPair> hostKeys ) throws Exception {
+        final Map<String, KeyPair> keysByType = new LinkedHashMap<String, KeyPair>();
+        for ( KeyPair key : hostKeys ) {
+            if ( key.getPublic() instanceof RSAPublicKey ) {
+                keysByType.put( KeyPairProvider.SSH_RSA, key );
+            } else if ( key.getPublic() instanceof DSAPublicKey ) {
+                keysByType.put( KeyPairProvider.SSH_DSS, key );
+            }
+        }
+        final byte[] data = new byte[MAX_KEY_BYTES];
+        for ( NamedFactory<Signature> factory : server.getSignatureFactories() ) {
+            final KeyPair key = keysByType.get( factory.getName() );
+            if ( key == null ) {
+                factory.create();
+                continue;
+            }
+            final Signature signer = factory.create();
+            signer.init( null, key.getPrivate() );
+            signer.update( data, 0, data.length );
+            final byte[] signature = signer.sign();
+            final Signature verifier = factory.create();
+            verifier.init( key.getPublic(), null );
+            verifier.update( data, 0, data.length );
+            verifier.verify( signature );
+        }
+    }
+
+    /**
+     * Parses the host keys as public keys from clients are parsed, which initializes the {@code KeyFactory}s of
+     * {@link Buffer#getPublicKey()} and {@link SshKeyUtils}, and the fingerprint digest.
+     */
+    private void warmPublicKeys( List<KeyPair> hostKeys ) throws Exception {
+        MessageDigest.getInstance( "SHA-256" );
+        for ( KeyPair key : hostKeys ) {
+            final Buffer buffer = new Buffer();
+            buffer.putPublicKey( key.getPublic() );
+            new Buffer( buffer.getCompactData() ).getPublicKey();
+            SshKeyUtils.getFingerprint( key.getPublic() );
+        }
+    }
+
+    private void warmPermissions() {
+        if ( !( securityManager instanceof RealmSecurityManager ) ) {
+            return;
+        }
+        final Collection<Realm> realms = ( (RealmSecurityManager) securityManager ).getRealms();
+        if ( realms == null ) {
+            return;
+        }
+        for ( Realm realm : realms ) {
+            if ( realm instanceof RolePermissionsAwareSimpleAccountRealm ) {
+                ( (RolePermissionsAwareSimpleAccountRealm) realm ).warmPermissionCaches();
+            }
+        }
+    }
+
+    private interface Phase {
+        void run() throws Exception;
+    }
+}
@@ -14,8 +14,17 @@ import org.apache.sshd.common.NamedFactory;
 import org.apache.sshd.server.UserAuth;
 import org.apache.sshd.server.auth.UserAuthPublicKey;
 import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import com.sonatype.sshjgit.core.gitcommand.CommandExecutor;
 import com.sonatype.sshjgit.core.gitcommand.GitCommandFactory;
+import com.sonatype.sshjgit.core.gitcommand.PackCache;
+import com.sonatype.sshjgit.core.gitcommand.ThreadPoolCommandExecutor;
+import com.sonatype.sshjgit.core.replica.ReadReplica;
+import com.sonatype.sshjgit.core.repository.RepositoryCache;
+import com.sonatype.sshjgit.core.repository.RepositoryLockManager;
+import com.sonatype.sshjgit.core.repository.RepositoryMaintenance;
 import com.sonatype.sshjgit.core.security.ShiroAwareSshServerSessionFactory;
 import com.sonatype.sshjgit.core.security.ShiroPublickeyAuthenticator;
 import com.sonatype.sshjgit.core.security.ShiroUserAuthPassword;
@@ -26,7 +35,10 @@ import com.sonatype.sshjgit.core.security.ShiroUserAuthPassword;
 @Singleton
 @Named("sshd")
 public class SshdGitServer {
-    
+    private static final Logger log = LoggerFactory.getLogger( SshdGitServer.class );
+
+    public static final long DEFAULT_DRAIN_TIMEOUT_MILLIS = 5 * 60 * 1000L;
+
     @Inject
     private SecurityManager securityManager;
     
@@ -37,6 +49,33 @@ public class SshdGitServer {
     private int port;
     
     private SshServer server;
+
+    private CommandExecutor commandExecutor = new ThreadPoolCommandExecutor();
+
+    private RepositoryCache repositoryCache;
+
+    private PackCache packCache;
+
+    private RepositoryLockManager repositoryLockManager = new RepositoryLockManager();
+
+    private RepositoryMaintenance repositoryMaintenance;
+
+    private ReadReplica readReplica;
+
+    private GitCommandFactory commandFactory;
+
+    private ShiroAwareSshServerSessionFactory sessionFactory;
+
+    private File hotRepositoriesFile;
+
+    private long drainTimeoutMillis = DEFAULT_DRAIN_TIMEOUT_MILLIS;
+
+    private Thread shutdownHook;
+
+    private boolean stopped;
+
+    /** what {@link #stop(long)} returned, for the calls after the first. */
+    private boolean drainedOnStop;
     
     @Inject
     public SshdGitServer( int port, File configDir, File repositoriesDirectory, SecurityManager securityManager ) {
@@ -44,16 +83,73 @@ public class SshdGitServer {
         this.configDir = configDir;
         this.repositoriesDirectory = repositoriesDirectory;
         this.securityManager = securityManager;
+        this.repositoryCache = new RepositoryCache( repositoriesDirectory );
+        this.repositoryMaintenance = new RepositoryMaintenance( repositoriesDirectory );
+        if ( configDir != null ) {
+            this.hotRepositoriesFile = new File( configDir, "sshjgit.hot-repositories" );
+        }
+    }
+
+    /**
+     * Replaces the default {@link ThreadPoolCommandExecutor}. Must be called before {@link #createDefaultServer()}.
+     * @param commandExecutor runs the git commands of this server.
+     */
+    public void setCommandExecutor( CommandExecutor commandExecutor ) {
+        this.commandExecutor = commandExecutor;
+    }
+
+    /**
+     * Enables reuse of packs generated for identical fetch requests. Must be called before
+     * {@link #createDefaultServer()}.
+     * @param packCache the cache to use, or {@code null} to disable it (which is the default).
+     */
+    public void setPackCache( PackCache packCache ) {
+        this.packCache = packCache;
     }
 
     /**
-     * Constructs a default configured {@link SshServer} for serving up Git repositories.
+     * Replaces the default {@link RepositoryMaintenance}, which repacks repositories with too many packs in the
+     * background while the server runs. Must be called before {@link #createDefaultServer()}.
+     * @param repositoryMaintenance the maintenance to use, or {@code null} to disable it.
+     */
+    public void setRepositoryMaintenance( RepositoryMaintenance repositoryMaintenance ) {
+        this.repositoryMaintenance = repositoryMaintenance;
+    }
+
+    /**
+     * Makes this server a read replica of a primary server: the replica keeps the repositories directory a mirror of
+     * the primary's, which fetches are served from, and pushes are forwarded to the primary. Must be called before
+     * {@link #createDefaultServer()}.
+     * @param readReplica the replica, whose mirrors are {@link #getRepositoryCache()}, or {@code null} to serve the
+     * repositories as this server's own (which is the default).
+     */
+    public void setReadReplica( ReadReplica readReplica ) {
+        this.readReplica = readReplica;
+    }
+
+    /**
+     * Sets where the most recently used repositories are written to on {@link #stop()}, and read from on
+     * {@link #start()}, to open them again before the first commands ask for them. Defaults to
+     * {@code sshjgit.hot-repositories} in the config directory.
+     * @param hotRepositoriesFile the file, or {@code null} to start with no repositories open.
+     */
+    public void setHotRepositoriesFile( File hotRepositoriesFile ) {
+        this.hotRepositoriesFile = hotRepositoriesFile;
+    }
+
+    /**
+     * @param drainTimeoutMillis how long {@link #stop()} waits for running commands to finish, before it closes
+     * their sessions.
+     */
+    public void setDrainTimeoutMillis( long drainTimeoutMillis ) {
+        this.drainTimeoutMillis = drainTimeoutMillis;
+    }
+
+    /**
+     * Constructs a default configured {@link SshServer} for serving up Git repositories. It is the server which
+     * {@link #start()} starts, which also constructs it if this has not been called.
      *
-     * @param port which port the ssh server should bind to.
-     * @param reposRootDirectory where the git repositories are stored
-     * @param securityManager the Shiro {@code SecurityManager} which you have preconfigured for authenticating users.
-     * @param hostKeyProvider provider of this server's ssh host keys
-     * @return an {@code SshServer}, ready for you to {@link org.apache.sshd.SshServer#start()}. Please {@link org.apache.sshd.SshServer#stop()} it when it's time for your application to shut down.
+     * @return the {@code SshServer}, which {@link #start()} starts and {@link #stop()} stops.
      */
     public SshServer createDefaultServer() {
 
@@ -65,13 +161,22 @@ public class SshdGitServer {
             hostKeyProvider = new SimpleGeneratorHostKeyProvider( configDir + "/sshjgit.hostkeys" );
         }
         
-        SshServer server = SshServer.setUpDefaultServer();
+        server = SshServer.setUpDefaultServer();
         server.setPort( port );
         server.setKeyPairProvider( hostKeyProvider );
         server.setShellFactory( new NoShell() );
-        server.setCommandFactory( new GitCommandFactory( repositoriesDirectory ) );
+        commandFactory = new GitCommandFactory( repositoryCache, commandExecutor );
+        commandFactory.setPackCache( packCache );
+        commandFactory.setRepositoryLockManager( repositoryLockManager );
+        commandFactory.setRepositoryMaintenance( repositoryMaintenance );
+        if ( readReplica != null ) {
+            readReplica.setPackCache( packCache );
+            commandFactory.setReadReplica( readReplica );
+        }
+        server.setCommandFactory( commandFactory );
         server.setUserAuthFactories( Arrays.<NamedFactory<UserAuth>>asList( new UserAuthPublicKey.Factory(), new ShiroUserAuthPassword.Factory()) );
-        server.setSessionFactory( new ShiroAwareSshServerSessionFactory( securityManager, server ) );
+        sessionFactory = new ShiroAwareSshServerSessionFactory( securityManager, server );
+        server.setSessionFactory( sessionFactory );
         server.setPublickeyAuthenticator( new ShiroPublickeyAuthenticator());        
         return server;
     }
@@ -79,21 +184,175 @@ public class SshdGitServer {
     //
     // Lifecycle
     //
-    public void start() throws IOException {
-        
+
+    /**
+     * Opens the most recently used repositories of the last run, and runs a {@link ServerWarmUp}, which loads the
+     * host keys and flattens the permissions of the accounts among others, then starts listening. {@link #stop()}
+     * is called on JVM shutdown.
+     * @throws IllegalStateException if the server has been stopped, as a stopped server can not be started again.
+     */
+    public synchronized void start() throws IOException {
+        if ( stopped ) {
+            throw new IllegalStateException( "server has been stopped, and can not be started again." );
+        }
+        if ( server == null ) {
+            createDefaultServer();
+        }
+        warmCaches();
         server.start();
+        if ( repositoryMaintenance != null ) {
+            repositoryMaintenance.start();
+        }
+        if ( readReplica != null ) {
+            readReplica.start();
+        }
 
-        Runtime.getRuntime().addShutdownHook( new Thread() {
+        shutdownHook = new Thread() {
             @Override
             public void run() {
-                try {
-                    server.stop();
-                } catch (InterruptedException ignore) {
-                }
+                SshdGitServer.this.stop();
             }
-        } );
+        };
+        Runtime.getRuntime().addShutdownHook( shutdownHook );
+    }
+
+    private void warmCaches() {
+        final long started = System.currentTimeMillis();
+        int repositories = 0;
+        if ( hotRepositoriesFile != null ) {
+            try {
+                repositories = repositoryCache.warm( hotRepositoriesFile );
+            } catch( IOException e ) {
+                log.warn( "Could not read " + hotRepositoriesFile + ": " + e );
+            }
+        }
+        log.info( "Opened " + repositories + " repositories in " + ( System.currentTimeMillis() - started ) + " ms." );
+        final ServerWarmUp warmUp = new ServerWarmUp( server );
+        warmUp.setSecurityManager( securityManager );
+        warmUp.run();
+    }
+
+    /**
+     * Stops accepting sessions and commands, and waits for the running commands to finish. Sessions which are open
+     * stay open, but their new commands are rejected with a message which tells the client to try again, so that it
+     * reconnects to another server, or to this one after a restart.
+     *
+     * <p>The listening socket stays bound, so new connections are still accepted, and then closed right away by
+     * {@link ShiroAwareSshServerSessionFactory#sessionCreated}. Clients and load balancers see them reset, not
+     * refused.</p>
+     * @param timeoutMillis how long to wait at most.
+     * @return whether all commands have finished, {@code false} if the time ran out first.
+     */
+    public boolean drain( long timeoutMillis ) throws InterruptedException {
+        if ( commandFactory == null ) {
+            return true;
+        }
+        sessionFactory.setDraining( true );
+        commandFactory.drain();
+        log.info( "Draining, waiting for " + commandFactory.getInFlightCount() + " commands to finish." );
+        return commandFactory.awaitInFlight( timeoutMillis );
+    }
+
+    /**
+     * @return how many git commands are running or queued.
+     */
+    public int getInFlightCommandCount() {
+        return commandFactory == null ? 0 : commandFactory.getInFlightCount();
     }
     
-    public void stop() {        
+    /**
+     * @return the cache of open repositories, for inspecting its hit/miss/eviction counters.
+     */
+    public RepositoryCache getRepositoryCache() {
+        return repositoryCache;
+    }
+
+    /**
+     * @return what serializes the ref updates of pushes, for inspecting how long pushes wait for each other.
+     */
+    public RepositoryLockManager getRepositoryLockManager() {
+        return repositoryLockManager;
+    }
+
+    /**
+     * @return the replica which keeps the repositories a mirror of the primary's, for inspecting its replication lag,
+     * or {@code null} if this server is not a replica.
+     */
+    public ReadReplica getReadReplica() {
+        return readReplica;
+    }
+
+    /**
+     * @return what repacks repositories in the background, for inspecting its queue and per repository stats, or
+     * {@code null} if it is disabled.
+     */
+    public RepositoryMaintenance getRepositoryMaintenance() {
+        return repositoryMaintenance;
+    }
+
+    /**
+     * Stops the server, after waiting for its running commands for the {@link #setDrainTimeoutMillis drain timeout}.
+     */
+    public void stop() {
+        stop( drainTimeoutMillis );
+    }
+
+    /**
+     * Stops the server: {@link #drain(long) drains} it, closes the sessions which are left, shuts down the
+     * background work and writes the most recently used repositories for the next run. Only the first call has an
+     * effect, and the server can not be {@link #start() started} again afterwards.
+     * @param drainTimeoutMillis how long to wait for running commands to finish.
+     * @return whether all commands had finished, {@code false} if some were cut off.
+     */
+    public synchronized boolean stop( long drainTimeoutMillis ) {
+        if ( stopped ) {
+            return drainedOnStop;
+        }
+        boolean drained = false;
+        boolean interrupted = false;
+        try {
+            drained = drain( drainTimeoutMillis );
+            if ( !drained ) {
+                log.warn( "Stopping with " + getInFlightCommandCount() + " commands still running." );
+            }
+        } catch( InterruptedException e ) {
+            interrupted = true;
+        }
+        // stopped even when interrupted while draining, as the server can't be stopped again after this
+        try {
+            if ( server != null ) {
+                server.stop( true );
+            }
+        } catch( InterruptedException e ) {
+            interrupted = true;
+        }
+        if ( interrupted ) {
+            Thread.currentThread().interrupt();
+        }
+        stopped = true;
+        drainedOnStop = drained;
+        if ( shutdownHook != null && Thread.currentThread() != shutdownHook ) {
+            try {
+                Runtime.getRuntime().removeShutdownHook( shutdownHook );
+            } catch( IllegalStateException ignored ) {
+                // already shutting down
+            }
+        }
+        if ( repositoryMaintenance != null ) {
+            repositoryMaintenance.shutdown();
+        }
+        if ( readReplica != null ) {
+            readReplica.shutdown();
+        }
+        commandExecutor.shutdown();
+        if ( hotRepositoriesFile != null ) {
+            try {
+                repositoryCache.writeRecentlyUsed( hotRepositoriesFile );
+            } catch( IOException e ) {
+                log.warn( "Could not write " + hotRepositoriesFile + ": " + e );
+            }
+        }
+        repositoryCache.clear();
+        return drained;
     }
 }
@@ -0,0 +1,446 @@
+package com.sonatype.sshjgit.core.event;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Tells {@link RefUpdateListener}s about the refs which pushes have updated, on a thread of its own, so that
+ * pushes don't wait for them.</p>
+ *
+ * <p>Events are kept in a bounded queue. Once it's full, events are appended to a spill file instead, and all events
+ * after them too, until the listeners have caught up with the file, so that they still see the events in order, and
+ * pushes never wait for the listeners. The queue is drained in batches: once an event arrives, more are collected
+ * for a short while, and then the updates of each ref are merged into one, per repository.</p>
+ *
+ * <p>Events which were not delivered when the bus is {@link #shutdown() shut down} are written to the spill file,
+ * and delivered after the next {@link #start()}, by this or another bus with the same file. Delivery is at most
+ * once: events are not delivered again to listeners which failed on them.</p>
+ */
+public class PostReceiveEventBus {
+    private static final Logger log = LoggerFactory.getLogger( PostReceiveEventBus.class );
+
+    public static final int  DEFAULT_QUEUE_CAPACITY     = 10000;
+    public static final int  DEFAULT_MAX_BATCH_SIZE     = 1000;
+    public static final long DEFAULT_BATCH_DELAY_MILLIS = 1000L;
+
+    /** how much of the spill file is read at a time. */
+    private static final int SPILL_READ_SIZE = 256 * 1024;
+
+    private final File spillFile;
+    private final BlockingQueue<RefUpdateEvent> queue;
+    private final List<RefUpdateListener> listeners = new CopyOnWriteArrayList<RefUpdateListener>();
+
+    private volatile int  maxBatchSize     = DEFAULT_MAX_BATCH_SIZE;
+    private volatile long batchDelayMillis = DEFAULT_BATCH_DELAY_MILLIS;
+
+    private Thread dispatcher;
+    private volatile boolean running;
+
+    /** guards the spill file, {@link #spilling} and {@link #spillReadOffset}. */
+    private final Object spillLock = new Object();
+    /** whether new events go to the spill file, because it has events the listeners have not seen yet. */
+    private boolean spilling;
+    private long spillReadOffset;
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong spilled   = new AtomicLong();
+    private final AtomicLong dropped   = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong failures  = new AtomicLong();
+
+    public PostReceiveEventBus( File spillFile ) {
+        this( spillFile, DEFAULT_QUEUE_CAPACITY );
+    }
+
+    /**
+     * @param spillFile where events go once the queue is full. Events found in it are delivered after
+     * {@link #start()}.
+     * @param queueCapacity how many events are kept in memory.
+     */
+    public PostReceiveEventBus( File spillFile, int queueCapacity ) {
+        this.spillFile = spillFile;
+        this.queue = new ArrayBlockingQueue<RefUpdateEvent>( queueCapacity );
+    }
+
+    /**
+     * @param maxBatchSize how many events are taken from the queue at most, before telling the listeners.
+     */
+    public void setMaxBatchSize( int maxBatchSize ) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * @param batchDelayMillis how long to wait for more events after one arrives, before telling the listeners.
+     */
+    public void setBatchDelayMillis( long batchDelayMillis ) {
+        this.batchDelayMillis = batchDelayMillis;
+    }
+
+    public void addListener( RefUpdateListener listener ) {
+        listeners.add( listener );
+    }
+
+    public void removeListener( RefUpdateListener listener ) {
+        listeners.remove( listener );
+    }
+
+    /**
+     * Starts delivering events, beginning with those left in the spill file.
+     */
+    public synchronized void start() {
+        if ( dispatcher != null ) {
+            return;
+        }
+        synchronized ( spillLock ) {
+            spilling = spillFile.length() > 0;
+            spillReadOffset = 0;
+        }
+        running = true;
+        dispatcher = new Thread( new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        }, "sshjgit-post-receive-events" );
+        dispatcher.setDaemon( true );
+        dispatcher.start();
+    }
+
+    /**
+     * Stops delivering events, once the listeners are done with the current batch, and writes the events which were
+     * not delivered to the spill file. Events published afterwards go to the spill file too.
+     */
+    public void shutdown() {
+        final Thread thread;
+        synchronized ( this ) {
+            thread = dispatcher;
+            dispatcher = null;
+            running = false;
+        }
+        if ( thread != null ) {
+            try {
+                thread.join();
+            } catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized ( spillLock ) {
+            try {
+                persistPending();
+            } catch( IOException e ) {
+                log.error( "Could not keep " + queue.size() + " undelivered ref updates in " + spillFile, e );
+            }
+        }
+    }
+
+    /**
+     * Queues an event for the listeners. Never waits for them.
+     */
+    public void publish( RefUpdateEvent event ) {
+        published.incrementAndGet();
+        synchronized ( spillLock ) {
+            if ( !spilling && queue.offer( event ) ) {
+                return;
+            }
+            spilling = true;
+            try {
+                final OutputStream out = new FileOutputStream( spillFile, true );
+                try {
+                    out.write( encode( event ).getBytes( "US-ASCII" ) );
+                } finally {
+                    out.close();
+                }
+                spilled.incrementAndGet();
+            } catch( IOException e ) {
+                dropped.incrementAndGet();
+                log.error( "Could not spill ref update " + event + " to " + spillFile + ", dropping it", e );
+            }
+        }
+    }
+
+    private void dispatch() {
+        while ( running ) {
+            try {
+                final List<RefUpdateEvent> batch = nextBatch();
+                if ( !batch.isEmpty() ) {
+                    deliver( batch );
+                }
+            } catch( InterruptedException e ) {
+                return;
+            } catch( IOException e ) {
+                log.error( "Could not read ref updates from " + spillFile + ", retrying", e );
+                try {
+                    Thread.sleep( batchDelayMillis );
+                } catch( InterruptedException interrupted ) {
+                    return;
+                }
+            } catch( RuntimeException e ) {
+                log.error( "Could not deliver ref updates", e );
+            }
+        }
+    }
+
+    /**
+     * Takes events from the queue, or once it's empty, from the spill file.
+     */
+    private List<RefUpdateEvent> nextBatch() throws InterruptedException, IOException {
+        final List<RefUpdateEvent> batch = new ArrayList<RefUpdateEvent>();
+        RefUpdateEvent first = queue.poll();
+        if ( first == null ) {
+            // while the spill file has events, new ones go there too, so the queue stays empty
+            readSpilled( batch );
+            if ( !batch.isEmpty() ) {
+                return batch;
+            }
+            first = queue.poll( batchDelayMillis, TimeUnit.MILLISECONDS );
+            if ( first == null ) {
+                return batch;
+            }
+        }
+        batch.add( first );
+        // let more pushes arrive, so that their updates are merged
+        final long deadline = System.currentTimeMillis() + batchDelayMillis;
+        long remaining;
+        while ( running && batch.size() < maxBatchSize
+                && ( remaining = deadline - System.currentTimeMillis() ) > 0 ) {
+            final RefUpdateEvent next = queue.poll( remaining, TimeUnit.MILLISECONDS );
+            if ( next == null ) {
+                break;
+            }
+            batch.add( next );
+            queue.drainTo( batch, maxBatchSize - batch.size() );
+        }
+        return batch;
+    }
+
+    private void readSpilled( List<RefUpdateEvent> batch ) throws IOException {
+        synchronized ( spillLock ) {
+            if ( !spilling ) {
+                return;
+            }
+            final RandomAccessFile file = new RandomAccessFile( spillFile, "rw" );
+            try {
+                final byte[] buffer = new byte[(int) Math.min( SPILL_READ_SIZE, file.length() - spillReadOffset )];
+                file.seek( spillReadOffset );
+                file.readFully( buffer );
+                int start = 0;
+                for ( int i = 0; i < buffer.length && batch.size() < maxBatchSize; i++ ) {
+                    if ( buffer[i] == '\n' ) {
+                        final RefUpdateEvent event = decode( new String( buffer, start, i - start, "US-ASCII" ) );
+                        if ( event != null ) {
+                            batch.add( event );
+                        }
+                        start = i + 1;
+                    }
+                }
+                spillReadOffset += start;
+                if ( spillReadOffset >= file.length() ) {
+                    // caught up, new events can go to the queue again
+                    file.setLength( 0 );
+                    spillReadOffset = 0;
+                    spilling = false;
+                }
+            } finally {
+                file.close();
+            }
+        }
+    }
+
+    /**
+     * Merges the updates of each ref, and tells the listeners about each repository's updates.
+     */
+    private void deliver( List<RefUpdateEvent> batch ) {
+        final Map<String, LinkedHashMap<String, RefUpdateEvent>> byRepository =
+                new LinkedHashMap<String, LinkedHashMap<String, RefUpdateEvent>>();
+        for ( RefUpdateEvent event : batch ) {
+            LinkedHashMap<String, RefUpdateEvent> refs = byRepository.get( event.getRepository() );
+            if ( refs == null ) {
+                refs = new LinkedHashMap<String, RefUpdateEvent>();
+                byRepository.put( event.getRepository(), refs );
+            }
+            final RefUpdateEvent previous = refs.get( event.getRefName() );
+            if ( previous == null ) {
+                refs.put( event.getRefName(), event );
+            } else {
+                refs.put( event.getRefName(), new RefUpdateEvent( event.getRepository(), event.getRefName(),
+                        previous.getOldId(), event.getNewId(), event.getPrincipal(), event.getTimeMillis() ) );
+            }
+        }
+        for ( Map.Entry<String, LinkedHashMap<String, RefUpdateEvent>> entry : byRepository.entrySet() ) {
+            final List<RefUpdateEvent> updates = new ArrayList<RefUpdateEvent>();
+            for ( RefUpdateEvent update : entry.getValue().values() ) {
+                if ( !update.getOldId().equals( update.getNewId() ) ) {
+                    updates.add( update );
+                }
+            }
+            if ( updates.isEmpty() ) {
+                // moved back to where they were
+                continue;
+            }
+            for ( RefUpdateListener listener : listeners ) {
+                try {
+                    listener.refsUpdated( entry.getKey(), Collections.unmodifiableList( updates ) );
+                } catch( RuntimeException e ) {
+                    failures.incrementAndGet();
+                    log.warn( "Listener " + listener + " failed on updates of " + entry.getKey(), e );
+                }
+            }
+            delivered.addAndGet( updates.size() );
+        }
+    }
+
+    /**
+     * Puts the events in the queue and the unread part of the spill file into a new spill file, in that order.
+     * Must hold {@link #spillLock}.
+     */
+    private void persistPending() throws IOException {
+        final List<RefUpdateEvent> pending = new ArrayList<RefUpdateEvent>();
+        queue.drainTo( pending );
+        spilling = true;
+        if ( pending.isEmpty() && spillReadOffset == 0 ) {
+            return;
+        }
+        final File temporary = new File( spillFile.getPath() + ".tmp" );
+        final OutputStream out = new FileOutputStream( temporary );
+        try {
+            for ( RefUpdateEvent event : pending ) {
+                out.write( encode( event ).getBytes( "US-ASCII" ) );
+            }
+            if ( spillFile.exists() ) {
+                final RandomAccessFile file = new RandomAccessFile( spillFile, "r" );
+                try {
+                    file.seek( spillReadOffset );
+                    final byte[] buffer = new byte[SPILL_READ_SIZE];
+                    int read;
+                    while ( ( read = file.read( buffer ) ) > 0 ) {
+                        out.write( buffer, 0, read );
+                    }
+                } finally {
+                    file.close();
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if ( !spillFile.delete() && spillFile.exists() || !temporary.renameTo( spillFile ) ) {
+            throw new IOException( "could not replace " + spillFile );
+        }
+        spillReadOffset = 0;
+    }
+
+    /**
+     * @return one line, with the fields separated by tabs, and everything but printable ASCII escaped.
+     */
+    static String encode( RefUpdateEvent event ) {
+        final StringBuilder line = new StringBuilder();
+        for ( String field : new String[]{ event.getRepository(), event.getRefName(), event.getOldId(),
+                                           event.getNewId(), event.getPrincipal(),
+                                           Long.toString( event.getTimeMillis() ) } ) {
+            if ( line.length() > 0 ) {
+                line.append( '\t' );
+            }
+            final String value = field == null ? "" : field;
+            for ( int i = 0; i < value.length(); i++ ) {
+                final char c = value.charAt( i );
+                if ( c == '\\' ) {
+                    line.append( "\\\\" );
+                } else if ( c < 0x20 || c > 0x7e ) {
+                    line.append( String.format( "\\u%04x", (int) c ) );
+                } else {
+                    line.append( c );
+                }
+            }
+        }
+        return line.append( '\n' ).toString();
+    }
+
+    /**
+     * @return the event, or {@code null} if the line is not one, which is logged and skipped.
+     */
+    static RefUpdateEvent decode( String line ) {
+        final String[] fields = line.split( "\t", -1 );
+        if ( fields.length != 6 ) {
+            log.warn( "Skipping invalid ref update in spill file: " + line );
+            return null;
+        }
+        try {
+            for ( int i = 0; i < fields.length; i++ ) {
+                fields[i] = unescape( fields[i] );
+            }
+            return new RefUpdateEvent( fields[0], fields[1], fields[2], fields[3], fields[4],
+                    Long.parseLong( fields[5] ) );
+        } catch( RuntimeException e ) {
+            log.warn( "Skipping invalid ref update in spill file: " + line );
+            return null;
+        }
+    }
+
+    private static String unescape( String value ) {
+        if ( value.indexOf( '\\' ) < 0 ) {
+            return value;
+        }
+        final StringBuilder result = new StringBuilder( value.length() );
+        for ( int i = 0; i < value.length(); i++ ) {
+            final char c = value.charAt( i );
+            if ( c != '\\' ) {
+                result.append( c );
+            } else if ( value.charAt( i + 1 ) == '\\' ) {
+                result.append( '\\' );
+                i++;
+            } else {
+                result.append( (char) Integer.parseInt( value.substring( i + 2, i + 6 ), 16 ) );
+                i += 5;
+            }
+        }
+        return result.toString();
+    }
+
+    public long getPublishedCount() {
+        return published.get();
+    }
+
+    /**
+     * @return how many events went to the spill file, because the queue was full.
+     */
+    public long getSpilledCount() {
+        return spilled.get();
+    }
+
+    /**
+     * @return how many events were lost, because they could not be written to the spill file.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return how many updates the listeners were told about, after merging.
+     */
+    public long getDeliveredCount() {
+        return delivered.get();
+    }
+
+    public long getListenerFailureCount() {
+        return failures.get();
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+}
@@ -0,0 +1,71 @@
+package com.sonatype.sshjgit.core.event;
+
+/**
+ * A ref which a push has moved, created or deleted.
+ */
+public class RefUpdateEvent {
+    /** the id of a ref which does not exist. */
+    public static final String ZERO_ID = "0000000000000000000000000000000000000000";
+
+    private final String repository;
+    private final String refName;
+    private final String oldId;
+    private final String newId;
+    private final String principal;
+    private final long   timeMillis;
+
+    /**
+     * @param repository the project name, relative to the repositories root, such as {@code "subdir/project2"}.
+     * @param refName the full name of the ref, such as {@code "refs/heads/master"}.
+     * @param oldId the id the ref had before the push, or {@link #ZERO_ID} if it was created.
+     * @param newId the id the ref has after the push, or {@link #ZERO_ID} if it was deleted.
+     * @param principal the user who pushed.
+     * @param timeMillis when the ref was updated.
+     */
+    public RefUpdateEvent( String repository, String refName, String oldId, String newId, String principal,
+                           long timeMillis ) {
+        this.repository = repository;
+        this.refName = refName;
+        this.oldId = oldId;
+        this.newId = newId;
+        this.principal = principal;
+        this.timeMillis = timeMillis;
+    }
+
+    public String getRepository() {
+        return repository;
+    }
+
+    public String getRefName() {
+        return refName;
+    }
+
+    public String getOldId() {
+        return oldId;
+    }
+
+    public String getNewId() {
+        return newId;
+    }
+
+    public String getPrincipal() {
+        return principal;
+    }
+
+    public long getTimeMillis() {
+        return timeMillis;
+    }
+
+    public boolean isCreate() {
+        return ZERO_ID.equals( oldId );
+    }
+
+    public boolean isDelete() {
+        return ZERO_ID.equals( newId );
+    }
+
+    @Override
+    public String toString() {
+        return repository + " " + refName + " " + oldId + ".." + newId + " by " + principal;
+    }
+}
@@ -0,0 +1,19 @@
+package com.sonatype.sshjgit.core.event;
+
+import java.util.List;
+
+/**
+ * Is told about the refs which pushes have updated, for example to start a build, update a mirror, or reindex a
+ * repository. Registered with a {@link PostReceiveEventBus}.
+ */
+public interface RefUpdateListener {
+    /**
+     * Called on the bus's thread, some time after the pushes, so it may take a while, but it holds up the events for
+     * other listeners meanwhile.
+     * @param repository the project name of the repository which was pushed to.
+     * @param updates the refs updated since the last call for this repository, each ref once, from its id before
+     * the first of the pushes to its id after the last one, with the principal and time of the last one, in the
+     * order they were first updated.
+     */
+    void refsUpdated( String repository, List<RefUpdateEvent> updates );
+}
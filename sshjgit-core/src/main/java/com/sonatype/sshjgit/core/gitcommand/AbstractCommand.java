@@ -18,8 +18,17 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.shiro.SecurityUtils;
+import org.apache.shiro.subject.Subject;
+import org.apache.shiro.subject.support.SubjectThreadState;
+import org.apache.shiro.util.ThreadState;
 import org.apache.sshd.server.Command;
 import org.apache.sshd.server.Environment;
 import org.apache.sshd.server.ExitCallback;
@@ -28,6 +37,10 @@ import org.apache.sshd.server.session.ServerSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.sonatype.sshjgit.core.metrics.NoServerMetrics;
+import com.sonatype.sshjgit.core.metrics.ServerMetrics;
+import com.sonatype.sshjgit.core.quota.QuotaManager;
+
 /** Basic command implementation invoked by {@link GitCommandFactory}. */
 abstract class AbstractCommand implements Command, SessionAware {
     private static final Logger log =
@@ -38,6 +51,11 @@ abstract class AbstractCommand implements Command, SessionAware {
     protected OutputStream err;
     protected ExitCallback exit;
     protected ServerSession session;
+    private CommandExecutor executor;
+    private ServerMetrics metrics = new NoServerMetrics();
+    private QuotaManager quotaManager;
+    private InFlightCommands inFlight = new InFlightCommands();
+    private Map<String, String> environment = Collections.emptyMap();
     private String name;
     private String[] args;
 
@@ -66,10 +84,46 @@ abstract class AbstractCommand implements Command, SessionAware {
         this.session = session;
     }
 
+    void setCommandExecutor( CommandExecutor executor ) {
+        this.executor = executor;
+    }
+
+    void setMetrics( ServerMetrics metrics ) {
+        this.metrics = metrics;
+    }
+
+    protected ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    void setQuotaManager( QuotaManager quotaManager ) {
+        this.quotaManager = quotaManager;
+    }
+
+    /**
+     * @return the quotas to keep, or {@code null} if there are none.
+     */
+    protected QuotaManager getQuotaManager() {
+        return quotaManager;
+    }
+
+    void setInFlightCommands( InFlightCommands inFlight ) {
+        this.inFlight = inFlight;
+    }
+
     protected String getName() {
         return name;
     }
 
+    /**
+     * @param variable the name of an environment variable which the client has set for the command, such as
+     * {@code GIT_PROTOCOL}.
+     * @return its value, or {@code null} if it is not set.
+     */
+    protected String getEnvironmentVariable( String variable ) {
+        return environment.get( variable );
+    }
+
     void parseArguments( String cmdName, String line ) {
         List<String> list = new ArrayList<String>();
         boolean inquote = false;
@@ -110,15 +164,76 @@ abstract class AbstractCommand implements Command, SessionAware {
     @Override
     public void start(Environment env) {
         final String who = session.getUsername();
-        new Thread( "Execute " + getName() + " [" + who + "]" ) {
-            @Override
-            public void run() {
-                runImp();
-            }
-        }.start();
+        if ( env.getEnv() != null ) {
+            environment = env.getEnv();
+        }
+        if ( !inFlight.enter() ) {
+            log.info( "Rejected " + getName() + " [" + who + "], draining for shutdown." );
+            reject( "server is shutting down, please try again later" );
+            return;
+        }
+        // the pooled thread does not inherit the session's Subject, so carry it over explicitly
+        final Subject subject = SecurityUtils.getSubject();
+        metrics.commandQueued( getName() );
+        try {
+            executor.execute( getName(), "Execute " + getName() + " [" + who + "]", new Runnable() {
+                @Override
+                public void run() {
+                    metrics.commandDequeued( getName() );
+                    ThreadState threadState = new SubjectThreadState( subject );
+                    threadState.bind();
+                    try {
+                        runImp();
+                    } finally {
+                        threadState.clear();
+                    }
+                }
+            } );
+        } catch( RejectedExecutionException e ) {
+            metrics.commandDequeued( getName() );
+            log.warn( "Rejected " + getName() + " [" + who + "], too many commands queued." );
+            reject( "server is busy, please try again later" );
+            inFlight.exit();
+        }
+    }
+
+    /**
+     * Tells the client that the command will not be run, in a way which git
+     * clients display to the user, and then ends the command.
+     * @param message reason for the rejection.
+     */
+    private void reject( String message ) {
+        try {
+            writeRemoteError( message );
+            err.write( ( "fatal: " + message + '\n' ).getBytes( "UTF-8" ) );
+            err.flush();
+        } catch( IOException ignored ) {
+        }
+        exit.onExit( 128 );
+    }
+
+    /**
+     * Writes an "ERR" pkt-line, which git shows as "remote error: <message>". Only for before the command has
+     * written anything else.
+     * @param message what went wrong.
+     */
+    protected void writeRemoteError( String message ) throws IOException {
+        final byte[] payload = ( "ERR " + message + '\n' ).getBytes( "UTF-8" );
+        final String length = Integer.toHexString( payload.length + 4 );
+        out.write( ( "0000".substring( length.length() ) + length ).getBytes( "UTF-8" ) );
+        out.write( payload );
+        out.flush();
     }
 
     private void runImp() {
+        final long start = System.nanoTime();
+        final CountingInputStream countingIn = new CountingInputStream( in );
+        final CountingOutputStream countingOut = new CountingOutputStream( out );
+        final CoalescingOutputStream coalescingOut = new CoalescingOutputStream( countingOut );
+        final CoalescingOutputStream coalescingErr = new CoalescingOutputStream( err );
+        in = countingIn;
+        out = coalescingOut;
+        err = coalescingErr;
         int rc = 0;
         try {
             try {
@@ -163,16 +278,21 @@ abstract class AbstractCommand implements Command, SessionAware {
             }
         } finally {
             try {
-                out.flush();
+                coalescingOut.release();
             } catch( IOException ignored ) {
             }
 
             try {
-                err.flush();
+                coalescingErr.release();
             } catch( IOException ignored ) {
             }
 
+            metrics.commandCompleted( name, System.nanoTime() - start,
+                                      countingIn.getByteCount(), countingOut.getByteCount(), rc != 0 );
+            metrics.outputSent( name, coalescingOut.getWriteCount() + coalescingErr.getWriteCount(),
+                                coalescingOut.getPacketCount() + coalescingErr.getPacketCount() );
             exit.onExit( rc );
+            inFlight.exit();
         }
     }
 
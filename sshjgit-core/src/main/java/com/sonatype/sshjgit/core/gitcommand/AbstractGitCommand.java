@@ -14,22 +14,34 @@
 
 package com.sonatype.sshjgit.core.gitcommand;
 
+import com.sonatype.sshjgit.core.quota.QuotaExceededException;
+import com.sonatype.sshjgit.core.quota.QuotaManager;
+import com.sonatype.sshjgit.core.repository.RepositoryCache;
 import org.apache.shiro.SecurityUtils;
+import org.apache.shiro.authz.AuthorizationException;
+import org.apache.shiro.subject.Subject;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.RepositoryConfig;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.regex.Pattern;
 
 abstract class AbstractGitCommand extends AbstractCommand {
     protected final File reposRootDir;
     protected final String reposRootDirPath;
+    protected final RepositoryCache repositoryCache;
     protected Repository repo;
-    private static final String VALID_PROJECTNAME_REGEX =
-            "[a-zA-Z0-9_][a-zA-Z0-9_.-]*(/[a-zA-Z0-9_][a-zA-Z0-9_.-]*)*";
+    /** the repository's path relative to the repo root, without {@code .git}. */
+    protected String projectName;
+    private static final Pattern VALID_PROJECTNAME = Pattern.compile(
+            "[a-zA-Z0-9_][a-zA-Z0-9_.-]*(/[a-zA-Z0-9_][a-zA-Z0-9_.-]*)*" );
 
-    public AbstractGitCommand(File reposRootDir) {
-        this.reposRootDir = reposRootDir;
+    public AbstractGitCommand(RepositoryCache repositoryCache) {
+        this.repositoryCache = repositoryCache;
+        this.reposRootDir = repositoryCache.getReposRootDir();
         this.reposRootDirPath = reposRootDir.getAbsolutePath();
     }
 
@@ -51,7 +63,93 @@ abstract class AbstractGitCommand extends AbstractCommand {
 
     @Override
     protected final void run( String[] args ) throws IOException, Failure {
-        String projectName = parseCommandLine( args );
+        projectName = toProjectName( parseCommandLine( args ) );
+
+        final QuotaManager.Permit permit = acquirePermit();
+        try {
+            runInRepository();
+        } finally {
+            if ( permit != null ) {
+                permit.release();
+            }
+        }
+    }
+
+    private void runInRepository() throws IOException, Failure {
+        // Any number of clients may work with the same repo at the same time.
+        // Fetches only read, and JGit copes with objects and refs changing
+        // underneath them. Pushes receive their packs in parallel too, but
+        // Receive serializes their ref updates per repo.
+        repo = repositoryCache.open( projectName );
+        try {
+            final RepositoryConfig repositoryConfig = repo.getConfig();
+            if (!repositoryConfig.getFile().exists()) {
+                // TODO: Check so any of the parent directories in the path leading up to this location, doesn't already contain a repo.
+                checkPermission(SecurityUtils.getSubject(), "gitrepo:new:" + getRepoNameAsPermissionParts(repo));
+                repo.create();
+            }
+
+            runImpl();
+        } finally {
+            repositoryCache.release( repo );
+        }
+    }
+
+    /**
+     * Checks the quotas of the user, the repository and the client's address, before the repository is opened.
+     * @return the permit to release once the command ends, or {@code null} if there are no quotas.
+     * @throws Failure if a quota is exceeded, after telling the client why.
+     */
+    private QuotaManager.Permit acquirePermit() throws IOException, Failure {
+        final QuotaManager quotaManager = getQuotaManager();
+        if ( quotaManager == null ) {
+            return null;
+        }
+        String address = null;
+        final SocketAddress remoteAddress = session.getIoSession().getRemoteAddress();
+        if ( remoteAddress instanceof InetSocketAddress
+             && ( (InetSocketAddress) remoteAddress ).getAddress() != null ) {
+            address = ( (InetSocketAddress) remoteAddress ).getAddress().getHostAddress();
+        }
+        try {
+            return quotaManager.acquire( session.getUsername(), projectName.replace( '/', ':' ), address );
+        } catch( QuotaExceededException e ) {
+            writeRemoteError( e.getMessage() );
+            throw new UnloggedFailure( 128, "fatal: " + e.getMessage() );
+        }
+    }
+
+    /**
+     * Like {@link Subject#checkPermission(String)}, and reports how long the check took to the metrics.
+     */
+    protected void checkPermission(Subject subject, String permission) throws AuthorizationException {
+        final long start = System.nanoTime();
+        boolean permitted = false;
+        try {
+            subject.checkPermission(permission);
+            permitted = true;
+        } finally {
+            getMetrics().permissionChecked(System.nanoTime() - start, permitted);
+        }
+    }
+
+    /**
+     * Like {@link Subject#isPermitted(String)}, and reports how long the check took to the metrics.
+     */
+    protected boolean isPermitted(Subject subject, String permission) {
+        final long start = System.nanoTime();
+        final boolean permitted = subject.isPermitted(permission);
+        getMetrics().permissionChecked(System.nanoTime() - start, permitted);
+        return permitted;
+    }
+
+    /**
+     * Turns the repository path which the client asked for into a project name, relative to the repo root.
+     * @param projectName the path from the command line.
+     * @return the project name, without leading {@code /} or trailing {@code .git}.
+     * @throws Failure if the name is not allowed.
+     */
+    static String toProjectName( String projectName ) throws Failure {
         if ( projectName.endsWith( ".git" ) ) {
             // Be nice and drop the trailing ".git" suffix, which we never keep
             // in our database, but clients might mistakenly provide anyway.
@@ -66,7 +164,7 @@ abstract class AbstractGitCommand extends AbstractCommand {
             //
             projectName = projectName.substring( 1 );
         }
-        if (!projectName.matches(VALID_PROJECTNAME_REGEX)){
+        if (!VALID_PROJECTNAME.matcher(projectName).matches()){
             // Disallow dangerous project names which for example attempt to
             // traverse directories backwards with ../../
             // Unicode attacks is another example of things we filter out.
@@ -76,21 +174,7 @@ abstract class AbstractGitCommand extends AbstractCommand {
                     "names are for example 'project1', 'subdir/project2' and " +
                     "'subdir/subsubdir/project3'.");
         }
-
-        // TODO: Should we have a locking mechanism, so no two clients can work with the same repo at the same time? Is it handled by JGit internally already?
-        repo = new Repository( new File( projectName ) );
-        final RepositoryConfig repositoryConfig = repo.getConfig();
-        if (!repositoryConfig.getFile().exists()) {
-            // TODO: Check so any of the parent directories in the path leading up to this location, doesn't already contain a repo.
-            SecurityUtils.getSubject().checkPermission("gitrepo:new:" + getRepoNameAsPermissionParts(repo));
-            repo.create();
-        }
-
-        try {
-            runImpl();
-        } finally {
-            repo.close();
-        }
+        return projectName;
     }
 
     protected abstract void runImpl() throws IOException, Failure;
@@ -0,0 +1,73 @@
+package com.sonatype.sshjgit.core.gitcommand;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Hands out byte arrays of one fixed size, and takes them back for reuse, so that streaming many gigabytes to
+ * clients does not allocate a new array for every command or every copy.</p>
+ *
+ * <p>At most a configured number of arrays are kept while not in use. When the pool is empty, a new array is
+ * allocated, and when it's full, returned arrays are left to the garbage collector.</p>
+ */
+class BufferPool {
+    /**
+     * The largest payload which OpenSSH clients accept in one channel data packet, so that each buffer sent and
+     * flushed becomes exactly one packet.
+     */
+    static final int PACKET_SIZE = 32 * 1024;
+
+    /** shared by all commands. */
+    static final BufferPool SHARED = new BufferPool( PACKET_SIZE, 256 );
+
+    private final int bufferSize;
+    private final BlockingQueue<byte[]> free;
+
+    private final AtomicLong allocations = new AtomicLong();
+    private final AtomicLong reuses      = new AtomicLong();
+
+    /**
+     * @param bufferSize size of each array.
+     * @param maxFree how many arrays are kept while not in use.
+     */
+    BufferPool( int bufferSize, int maxFree ) {
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<byte[]>( maxFree );
+    }
+
+    /**
+     * @return an array of {@link #getBufferSize()} bytes, with undefined content. Hand it back with
+     * {@link #release(byte[])} once done with it.
+     */
+    byte[] acquire() {
+        final byte[] buffer = free.poll();
+        if ( buffer != null ) {
+            reuses.incrementAndGet();
+            return buffer;
+        }
+        allocations.incrementAndGet();
+        return new byte[bufferSize];
+    }
+
+    /**
+     * @param buffer an array obtained from {@link #acquire()}, which the caller must not use afterwards.
+     */
+    void release( byte[] buffer ) {
+        if ( buffer.length == bufferSize ) {
+            free.offer( buffer );
+        }
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    long getAllocationCount() {
+        return allocations.get();
+    }
+
+    long getReuseCount() {
+        return reuses.get();
+    }
+}
@@ -0,0 +1,299 @@
+package com.sonatype.sshjgit.core.gitcommand;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.UploadPack;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sonatype.sshjgit.core.repository.RepositoryCache;
+
+/**
+ * <p>Keeps the response to a full clone of each repository ready in the {@link PackCache}, so that clones are
+ * answered by copying a file, instead of walking all commits and trees to find the objects to send.</p>
+ *
+ * <p>Clients ask for the same objects when cloning the same refs, but with the capabilities of their git version.
+ * So the capabilities of recent clones of each repository are remembered, and after each push, once the cache has
+ * dropped the repository's responses, a clone with each of those capabilities is run in the background, against
+ * the new refs, and recorded in the cache. Pushes arriving meanwhile make the cache drop that recording, and
+ * schedule another one.</p>
+ */
+public class ClonePackWarmer {
+    private static final Logger log = LoggerFactory.getLogger( ClonePackWarmer.class );
+
+    public static final int DEFAULT_MAX_PROFILES_PER_REPOSITORY = 4;
+
+    private final PackCache          packCache;
+    private final RepositoryCache    repositoryCache;
+    private final int                maxProfilesPerRepository;
+    private final ThreadPoolExecutor executor;
+
+    /** capabilities of recent clones, per repository directory, oldest first. guarded by itself. */
+    private final Map<File, LinkedHashSet<List<String>>> profiles = new HashMap<File, LinkedHashSet<List<String>>>();
+    /** repositories which are scheduled to be warmed, but have not started yet. guarded by {@link #profiles}. */
+    private final Set<File> pending = new HashSet<File>();
+
+    private final AtomicLong warmed   = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public ClonePackWarmer( PackCache packCache, RepositoryCache repositoryCache ) {
+        this( packCache, repositoryCache, 1, DEFAULT_MAX_PROFILES_PER_REPOSITORY );
+    }
+
+    /**
+     * @param packCache where the responses are recorded.
+     * @param repositoryCache opens the repositories to clone. Must be the one the commands use.
+     * @param threads how many repositories may be warmed at the same time.
+     * @param maxProfilesPerRepository how many different sets of capabilities are remembered per repository.
+     */
+    public ClonePackWarmer( PackCache packCache, RepositoryCache repositoryCache, int threads, int maxProfilesPerRepository ) {
+        this.packCache = packCache;
+        this.repositoryCache = repositoryCache;
+        this.maxProfilesPerRepository = maxProfilesPerRepository;
+        this.executor = new ThreadPoolExecutor( threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread( Runnable r ) {
+                        final Thread thread = new Thread( r, "sshjgit-clone-pack-warmer" );
+                        thread.setDaemon( true );
+                        thread.setPriority( Thread.MIN_PRIORITY );
+                        return thread;
+                    }
+                } );
+        executor.allowCoreThreadTimeOut( true );
+    }
+
+    /**
+     * Called by {@link Upload} for each request, to remember the capabilities of full clones.
+     */
+    void observe( Repository repository, List<String> wants, List<String> haves, List<String> other ) {
+        if ( !haves.isEmpty() ) {
+            return;
+        }
+        for ( String line : other ) {
+            if ( line.startsWith( "shallow " ) || line.startsWith( "deepen" ) ) {
+                return;
+            }
+        }
+        if ( !new TreeSet<String>( wants ).equals( getCloneWants( repository ) ) ) {
+            // only some of the branches, which other clients are unlikely to ask for in the same way
+            return;
+        }
+        final List<String> capabilities = Collections.unmodifiableList( new ArrayList<String>( other ) );
+        synchronized ( profiles ) {
+            LinkedHashSet<List<String>> known = profiles.get( repository.getDirectory() );
+            if ( known == null ) {
+                known = new LinkedHashSet<List<String>>();
+                profiles.put( repository.getDirectory(), known );
+            }
+            // re-insert, so that the most recently seen capabilities are kept longest
+            known.remove( capabilities );
+            known.add( capabilities );
+            for ( Iterator<List<String>> it = known.iterator(); known.size() > maxProfilesPerRepository; ) {
+                it.next();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Called by {@link Receive} after a push, once the repository's responses have been dropped from the cache.
+     * Schedules the repository to be warmed, if it has been cloned before.
+     */
+    void repositoryChanged( File repositoryDirectory ) {
+        synchronized ( profiles ) {
+            if ( !profiles.containsKey( repositoryDirectory ) || !pending.add( repositoryDirectory ) ) {
+                return;
+            }
+        }
+        schedule( repositoryDirectory );
+    }
+
+    /**
+     * Schedules all repositories which have been cloned before to be warmed, for example after their responses may
+     * have been evicted from the cache. Responses which are still cached are not generated again.
+     */
+    public void warmAll() {
+        final List<File> scheduled = new ArrayList<File>();
+        synchronized ( profiles ) {
+            for ( File repositoryDirectory : profiles.keySet() ) {
+                if ( pending.add( repositoryDirectory ) ) {
+                    scheduled.add( repositoryDirectory );
+                }
+            }
+        }
+        for ( File repositoryDirectory : scheduled ) {
+            schedule( repositoryDirectory );
+        }
+    }
+
+    /**
+     * Stops warming. Repositories which are scheduled, but not started yet, are not warmed.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return how many clone responses were generated in the background.
+     */
+    public long getWarmedCount() {
+        return warmed.get();
+    }
+
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    private void schedule( final File repositoryDirectory ) {
+        executor.execute( new Runnable() {
+            @Override
+            public void run() {
+                synchronized ( profiles ) {
+                    pending.remove( repositoryDirectory );
+                }
+                try {
+                    warm( repositoryDirectory );
+                } catch( IOException e ) {
+                    failures.incrementAndGet();
+                    log.warn( "Could not warm the clone pack of " + repositoryDirectory + ": " + e.getMessage() );
+                } catch( RuntimeException e ) {
+                    failures.incrementAndGet();
+                    log.warn( "Could not warm the clone pack of " + repositoryDirectory, e );
+                }
+            }
+        } );
+    }
+
+    /**
+     * Generates and caches the clone responses of a repository, for each remembered set of capabilities.
+     */
+    void warm( File repositoryDirectory ) throws IOException {
+        final List<List<String>> known;
+        synchronized ( profiles ) {
+            final LinkedHashSet<List<String>> profilesOfRepository = profiles.get( repositoryDirectory );
+            if ( profilesOfRepository == null ) {
+                return;
+            }
+            known = new ArrayList<List<String>>( profilesOfRepository );
+        }
+        final String root = repositoryCache.getReposRootDir().getAbsolutePath();
+        final String path = repositoryDirectory.getAbsolutePath();
+        if ( !path.startsWith( root + File.separator ) ) {
+            return;
+        }
+        final Repository repository = repositoryCache.open( path.substring( root.length() + 1 ) );
+        try {
+            final List<String> wants = new ArrayList<String>( getCloneWants( repository ) );
+            if ( wants.isEmpty() ) {
+                return;
+            }
+            for ( List<String> capabilities : known ) {
+                final String key = PackCache.createKey( repository.getDirectory(), new ArrayList<String>( wants ),
+                        new ArrayList<String>(), new ArrayList<String>( capabilities ) );
+                if ( !packCache.contains( key ) ) {
+                    clone( repository, wants, capabilities );
+                }
+            }
+        } finally {
+            repositoryCache.release( repository );
+        }
+    }
+
+    /**
+     * Runs {@code UploadPack} with the request a client would send to clone the repository, and records the
+     * response in the cache.
+     */
+    private void clone( Repository repository, List<String> wants, List<String> capabilities ) throws IOException {
+        final PackCachingStreams streams = new PackCachingStreams( packCache, repository.getDirectory(),
+                new ByteArrayInputStream( createCloneRequest( wants, capabilities ) ), new NullOutputStream() );
+        try {
+            upload( repository, streams.getInputStream(), streams.getOutputStream() );
+            streams.complete();
+            warmed.incrementAndGet();
+        } catch( PackCachingStreams.CachedResponseSent sent ) {
+            // a client cloned it in the meantime
+        } finally {
+            streams.abort();
+        }
+    }
+
+    /**
+     * Answers a request as {@code UploadPack} answers a client.
+     */
+    void upload( Repository repository, InputStream in, OutputStream out ) throws IOException {
+        new UploadPack( repository ).upload( in, out, new NullOutputStream() );
+    }
+
+    /**
+     * @return the pkt-lines a client sends to clone, after the refs have been advertised.
+     */
+    static byte[] createCloneRequest( List<String> wants, List<String> capabilities ) throws IOException {
+        return createFetchRequest( wants, capabilities, Collections.<String>emptyList() );
+    }
+
+    /**
+     * @return the pkt-lines a client sends to fetch, after the refs have been advertised, when it names all the
+     * objects it has in common with the server at once.
+     */
+    static byte[] createFetchRequest( List<String> wants, List<String> capabilities, List<String> haves ) throws IOException {
+        final StringBuilder request = new StringBuilder();
+        for ( int i = 0; i < wants.size(); i++ ) {
+            final StringBuilder line = new StringBuilder( "want " ).append( wants.get( i ) );
+            if ( i == 0 ) {
+                for ( String capability : capabilities ) {
+                    line.append( ' ' ).append( capability );
+                }
+            }
+            line.append( '\n' );
+            appendPktLine( request, line );
+        }
+        request.append( "0000" );
+        for ( String have : haves ) {
+            appendPktLine( request, "have " + have + '\n' );
+        }
+        appendPktLine( request, "done\n" );
+        return request.toString().getBytes( "UTF-8" );
+    }
+
+    private static void appendPktLine( StringBuilder request, CharSequence payload ) {
+        final String length = Integer.toHexString( payload.length() + 4 );
+        request.append( "0000".substring( length.length() ) ).append( length ).append( payload );
+    }
+
+    /**
+     * @return the distinct object ids of the branches and tags, which is what a clone asks for.
+     */
+    static Set<String> getCloneWants( Repository repository ) {
+        final Set<String> wants = new TreeSet<String>();
+        for ( Ref ref : repository.getAllRefs().values() ) {
+            if ( ( ref.getName().startsWith( "refs/heads/" ) || ref.getName().startsWith( "refs/tags/" ) )
+                 && ref.getObjectId() != null ) {
+                wants.add( ref.getObjectId().name() );
+            }
+        }
+        return wants;
+    }
+}
@@ -0,0 +1,119 @@
+package com.sonatype.sshjgit.core.gitcommand;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * <p>Collects the small writes of a command, such as the pkt-lines of a ref advertisement or of side band progress,
+ * in a buffer from a {@link BufferPool}, and hands them to the ssh channel as one packet when the buffer is full or
+ * when the command flushes. Commands flush at the end of each protocol step, where the client waits for an answer,
+ * so those flushes are passed on right away.</p>
+ *
+ * <p>Every time data is handed to the channel, it is flushed, so that sshd sends it as packets instead of
+ * collecting the whole response on the heap.</p>
+ *
+ * <p>Not thread safe: each command writes to its streams from one thread. Call {@link #release()} when done, to
+ * hand the buffer back to the pool.</p>
+ */
+class CoalescingOutputStream extends OutputStream {
+    private final OutputStream out;
+    private final BufferPool   pool;
+
+    private byte[] buffer;
+    private int    count;
+
+    private long writes;
+    private long packets;
+
+    CoalescingOutputStream( OutputStream out ) {
+        this( out, BufferPool.SHARED );
+    }
+
+    CoalescingOutputStream( OutputStream out, BufferPool pool ) {
+        this.out = out;
+        this.pool = pool;
+    }
+
+    @Override
+    public void write( int b ) throws IOException {
+        writes++;
+        if ( buffer == null ) {
+            buffer = pool.acquire();
+        } else if ( count == buffer.length ) {
+            drain();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write( byte[] b, int off, int len ) throws IOException {
+        if ( len == 0 ) {
+            return;
+        }
+        writes++;
+        if ( buffer == null ) {
+            buffer = pool.acquire();
+        }
+        if ( len >= buffer.length ) {
+            // too large to coalesce, copying it would only cost time
+            drain();
+            send( b, off, len );
+            return;
+        }
+        if ( len > buffer.length - count ) {
+            drain();
+        }
+        System.arraycopy( b, off, buffer, count, len );
+        count += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+    }
+
+    /**
+     * Sends what is buffered, and hands the buffer back to the pool. The stream can still be written to afterwards,
+     * it takes another buffer then.
+     */
+    void release() throws IOException {
+        try {
+            drain();
+        } finally {
+            if ( buffer != null ) {
+                pool.release( buffer );
+                buffer = null;
+                count = 0;
+            }
+        }
+    }
+
+    /**
+     * @return how many times the command wrote to this stream.
+     */
+    long getWriteCount() {
+        return writes;
+    }
+
+    /**
+     * @return how many ssh channel packets the writes were sent as, assuming packets of
+     * {@link BufferPool#PACKET_SIZE}.
+     */
+    long getPacketCount() {
+        return packets;
+    }
+
+    private void drain() throws IOException {
+        if ( count > 0 ) {
+            final int length = count;
+            count = 0;
+            send( buffer, 0, length );
+        }
+    }
+
+    private void send( byte[] b, int off, int len ) throws IOException {
+        out.write( b, off, len );
+        out.flush();
+        packets += ( len + BufferPool.PACKET_SIZE - 1 ) / BufferPool.PACKET_SIZE;
+    }
+}
@@ -0,0 +1,29 @@
+package com.sonatype.sshjgit.core.gitcommand;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs git commands once their ssh channel has been started. Implementations
+ * decide which thread a command runs on, and how many commands may be running
+ * or waiting at the same time.
+ *
+ * @see ThreadPoolCommandExecutor
+ * @see GitCommandFactory#GitCommandFactory(java.io.File, CommandExecutor)
+ */
+public interface CommandExecutor {
+    /**
+     * Schedules a command for execution.
+     *
+     * @param commandName the name of the git command, such as {@code "git-upload-pack"}.
+     * @param threadName descriptive name for the thread while it runs the command.
+     * @param command what to run.
+     * @throws RejectedExecutionException if the command can not be accepted right now, for example because too many
+     * commands are already queued.
+     */
+    void execute( String commandName, String threadName, Runnable command ) throws RejectedExecutionException;
+
+    /**
+     * Stops accepting new commands. Commands which are already running or queued are allowed to finish.
+     */
+    void shutdown();
+}
@@ -0,0 +1,302 @@
+package com.sonatype.sshjgit.core.gitcommand;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PackWriter;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.ObjectWalk;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevTag;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.treewalk.TreeWalk;
+
+/**
+ * <p>Chooses the objects for a shallow or partial fetch, which JGit's {@code UploadPack} can't, and writes them as a
+ * pack.</p>
+ *
+ * <p>Without a depth, the objects are found like {@code UploadPack} does: everything reachable from the wants, but
+ * not from the haves. With a depth, only the commits that many generations from the wants are sent, with their
+ * complete trees, because the client can't have the trees of commits it doesn't have. The haves are not used then,
+ * so deepening an existing shallow clone sends some objects the client already has.</p>
+ *
+ * <p>The {@link ObjectFilter} leaves out blobs, or trees and blobs, unless the client asked for them by id, as it
+ * does when fetching what an earlier filtered fetch left out. With {@code tree:0}, trees are not even read.</p>
+ */
+class FilteredPackWriter {
+    private final Repository   repository;
+    private final ObjectWalk   walk;
+    private final ObjectFilter filter;
+    private final int          depth;
+
+    private final List<RevObject> objects = new ArrayList<RevObject>();
+    /** objects which are in {@link #objects} or were left out. */
+    private final Set<ObjectId> seen = new HashSet<ObjectId>();
+    private final Set<ObjectId> wanted = new HashSet<ObjectId>();
+
+    private final List<String> shallow = new ArrayList<String>();
+    private final List<String> unshallow = new ArrayList<String>();
+
+    private long omittedObjects;
+    private long omittedBytes;
+
+    /**
+     * @param repository the repository to fetch from.
+     * @param filter which objects to leave out.
+     * @param depth how many generations of commits to send, or {@code 0} for all.
+     */
+    FilteredPackWriter( Repository repository, ObjectFilter filter, int depth ) {
+        this.repository = repository;
+        this.walk = new ObjectWalk( repository );
+        this.filter = filter;
+        this.depth = depth;
+    }
+
+    /**
+     * Chooses the objects to send.
+     * @param wants object ids the client wants.
+     * @param haves object ids the client has.
+     * @param clientShallow commits the client has without their parents.
+     * @param includeTag whether to add the annotated tags which point at commits being sent.
+     */
+    void prepare( Collection<String> wants, Collection<String> haves, Collection<String> clientShallow,
+                  boolean includeTag ) throws IOException {
+        final List<RevCommit> starts = new ArrayList<RevCommit>();
+        for ( String want : wants ) {
+            final ObjectId id = ObjectId.fromString( want );
+            wanted.add( id );
+            RevObject object = walk.parseAny( id );
+            while ( object instanceof RevTag ) {
+                add( object );
+                object = walk.parseAny( ( (RevTag) object ).getObject() );
+            }
+            if ( object instanceof RevCommit ) {
+                starts.add( (RevCommit) object );
+            } else if ( object instanceof RevTree ) {
+                addTree( (RevTree) object );
+            } else {
+                add( object );
+            }
+        }
+
+        final List<RevCommit> commits;
+        if ( depth > 0 ) {
+            commits = walkShallow( starts, clientShallow );
+            if ( !filter.omitsTrees() ) {
+                for ( RevCommit commit : commits ) {
+                    addTree( commit.getTree() );
+                }
+            }
+        } else {
+            commits = walkFull( starts, haves );
+        }
+        if ( includeTag ) {
+            addTags( commits );
+        }
+    }
+
+    private List<RevCommit> walkFull( List<RevCommit> starts, Collection<String> haves ) throws IOException {
+        for ( RevCommit start : starts ) {
+            walk.markStart( start );
+        }
+        for ( String have : haves ) {
+            final ObjectId id = ObjectId.fromString( have );
+            if ( repository.hasObject( id ) ) {
+                final RevObject object = peel( walk.parseAny( id ) );
+                if ( object instanceof RevCommit ) {
+                    walk.markUninteresting( (RevCommit) object );
+                }
+            }
+        }
+        final List<RevCommit> commits = new ArrayList<RevCommit>();
+        RevCommit commit;
+        while ( ( commit = walk.next() ) != null ) {
+            add( commit );
+            commits.add( commit );
+        }
+        if ( !filter.omitsTrees() ) {
+            // the trees and blobs of the new commits, without those the haves have too
+            RevObject object;
+            while ( ( object = walk.nextObject() ) != null ) {
+                if ( object.getType() != Constants.OBJ_BLOB ) {
+                    add( object );
+                } else if ( seen.add( object ) ) {
+                    addBlob( object );
+                }
+            }
+        }
+        return commits;
+    }
+
+    /**
+     * Takes the commits up to {@link #depth} generations from the wants, breadth first, so that each commit gets the
+     * shortest distance it has to any want.
+     */
+    private List<RevCommit> walkShallow( List<RevCommit> starts, Collection<String> clientShallow ) throws IOException {
+        final Map<RevCommit, Integer> depths = new HashMap<RevCommit, Integer>();
+        final Deque<RevCommit> queue = new ArrayDeque<RevCommit>();
+        for ( RevCommit start : starts ) {
+            if ( !depths.containsKey( start ) ) {
+                depths.put( start, 1 );
+                queue.add( start );
+            }
+        }
+        final List<RevCommit> commits = new ArrayList<RevCommit>();
+        while ( !queue.isEmpty() ) {
+            final RevCommit commit = queue.remove();
+            final int generation = depths.get( commit );
+            add( commit );
+            commits.add( commit );
+            if ( generation >= depth ) {
+                if ( commit.getParentCount() > 0 ) {
+                    shallow.add( commit.name() );
+                }
+                continue;
+            }
+            for ( RevCommit parent : commit.getParents() ) {
+                if ( !depths.containsKey( parent ) ) {
+                    walk.parseCommit( parent );
+                    depths.put( parent, generation + 1 );
+                    queue.add( parent );
+                }
+            }
+        }
+        for ( String id : clientShallow ) {
+            final RevCommit commit = walk.lookupCommit( ObjectId.fromString( id ) );
+            final Integer generation = depths.get( commit );
+            if ( generation != null && generation < depth ) {
+                // its parents are being sent
+                unshallow.add( id );
+            }
+        }
+        return commits;
+    }
+
+    private void addTree( RevTree root ) throws IOException {
+        if ( !seen.add( root ) ) {
+            return;
+        }
+        objects.add( root );
+        final TreeWalk treeWalk = new TreeWalk( repository );
+        treeWalk.addTree( root );
+        treeWalk.setRecursive( false );
+        while ( treeWalk.next() ) {
+            final ObjectId id = treeWalk.getObjectId( 0 );
+            final int type = treeWalk.getRawMode( 0 ) & FileMode.TYPE_MASK;
+            if ( type == FileMode.TYPE_TREE ) {
+                if ( seen.add( id ) ) {
+                    objects.add( walk.lookupTree( id ) );
+                    treeWalk.enterSubtree();
+                }
+            } else if ( type != FileMode.TYPE_GITLINK && seen.add( id ) ) {
+                addBlob( id );
+            }
+        }
+    }
+
+    /**
+     * Adds a blob which has not been {@link #seen} before, unless the filter leaves it out.
+     */
+    private void addBlob( ObjectId id ) throws IOException {
+        if ( !wanted.contains( id ) && filter.omitsAllBlobs() ) {
+            // not even opened, as that would inflate it, or resolve its delta chain, only to count its size
+            omittedObjects++;
+            return;
+        }
+        if ( !wanted.contains( id ) && !filter.isNone() ) {
+            final long size = repository.openObject( id ).getSize();
+            if ( filter.omitsBlob( size ) ) {
+                omittedObjects++;
+                omittedBytes += size;
+                return;
+            }
+        }
+        objects.add( walk.lookupBlob( id ) );
+    }
+
+    private void addTags( List<RevCommit> commits ) throws IOException {
+        final Set<RevCommit> sent = new HashSet<RevCommit>( commits );
+        for ( Ref ref : repository.getTags().values() ) {
+            if ( ref.getObjectId() == null ) {
+                continue;
+            }
+            final RevObject object = walk.parseAny( ref.getObjectId() );
+            if ( object instanceof RevTag && sent.contains( peel( object ) ) ) {
+                add( object );
+            }
+        }
+    }
+
+    private RevObject peel( RevObject object ) throws IOException {
+        while ( object instanceof RevTag ) {
+            object = walk.parseAny( ( (RevTag) object ).getObject() );
+        }
+        return object;
+    }
+
+    private void add( RevObject object ) {
+        if ( seen.add( object ) ) {
+            objects.add( object );
+        }
+    }
+
+    /**
+     * Writes the chosen objects as a pack, without deltas against objects which are not in it.
+     */
+    void writePack( OutputStream out, boolean ofsDelta ) throws IOException {
+        final PackWriter writer = new PackWriter( repository, NullProgressMonitor.INSTANCE );
+        writer.setDeltaBaseAsOffset( ofsDelta );
+        writer.setThin( false );
+        writer.preparePack( objects.iterator() );
+        writer.writePack( out );
+    }
+
+    /**
+     * @return commits being sent without their parents.
+     */
+    List<String> getShallow() {
+        return shallow;
+    }
+
+    /**
+     * @return commits the client had without their parents, whose parents are being sent.
+     */
+    List<String> getUnshallow() {
+        return unshallow;
+    }
+
+    int getObjectCount() {
+        return objects.size();
+    }
+
+    /**
+     * @return how many blobs the filter left out. Trees left out by {@code tree:0} are not counted, as they are
+     * never read.
+     */
+    long getOmittedObjectCount() {
+        return omittedObjects;
+    }
+
+    /**
+     * @return the uncompressed size of the blobs {@code blob:limit} left out. Blobs left out by {@code blob:none}
+     * are not counted, as they are never read.
+     */
+    long getOmittedBytes() {
+        return omittedBytes;
+    }
+}
@@ -20,27 +20,197 @@ import java.util.HashMap;
 import org.apache.sshd.server.Command;
 import org.apache.sshd.server.CommandFactory;
 
+import com.sonatype.sshjgit.core.event.PostReceiveEventBus;
+import com.sonatype.sshjgit.core.quota.QuotaManager;
+import com.sonatype.sshjgit.core.replica.ReadReplica;
+import com.sonatype.sshjgit.core.repository.RepositoryCache;
+import com.sonatype.sshjgit.core.metrics.NoServerMetrics;
+import com.sonatype.sshjgit.core.metrics.ServerMetrics;
+import com.sonatype.sshjgit.core.repository.RepositoryLockManager;
+import com.sonatype.sshjgit.core.repository.RepositoryMaintenance;
+
 /** Creates a command implementation based on the client input. */
 public class GitCommandFactory implements CommandFactory {
     private final HashMap<String, Factory> commands;
+    private final CommandExecutor executor;
+    private PackCache packCache;
+    private ClonePackWarmer clonePackWarmer;
+    private RefAdvertisementCache advertisementCache;
+    private boolean protocolV2;
+    private RepositoryLockManager lockManager = new RepositoryLockManager();
+    private RepositoryMaintenance maintenance;
+    private PackIndexer packIndexer;
+    private PostReceiveEventBus eventBus;
+    private QuotaManager quotaManager;
+    private ReadReplica replica;
+    private final InFlightCommands inFlight = new InFlightCommands();
+    private ServerMetrics metrics = new NoServerMetrics();
 
     public GitCommandFactory(final File reposRootDirectory) {
+        this( reposRootDirectory, new ThreadPoolCommandExecutor() );
+    }
+
+    /**
+     * @param reposRootDirectory where the git repositories are stored
+     * @param executor runs the commands created by this factory
+     */
+    public GitCommandFactory(final File reposRootDirectory, CommandExecutor executor) {
+        this( new RepositoryCache( reposRootDirectory ), executor );
+    }
+
+    /**
+     * @param repositoryCache opens the git repositories, which are stored in its root directory
+     * @param executor runs the commands created by this factory
+     */
+    public GitCommandFactory(final RepositoryCache repositoryCache, CommandExecutor executor) {
+        this.executor = executor;
         commands = new HashMap<String, Factory>();
 
         commands.put( "git-receive-pack", new Factory() {
             @Override
             public AbstractCommand create() {
-                return new Receive(reposRootDirectory);
+                return new Receive(repositoryCache, packCache, clonePackWarmer, lockManager, maintenance, advertisementCache,
+                        packIndexer, eventBus, replica);
             }
         } );
         commands.put( "git-upload-pack", new Factory() {
             @Override
             public AbstractCommand create() {
-                return new Upload(reposRootDirectory);
+                return new Upload(repositoryCache, packCache, clonePackWarmer, advertisementCache, protocolV2);
             }
         } );
     }
 
+    /**
+     * Enables reuse of {@code git-upload-pack} responses for identical requests.
+     * @param packCache the cache to use, or {@code null} to disable it (which is the default).
+     */
+    public void setPackCache( PackCache packCache ) {
+        this.packCache = packCache;
+    }
+
+    /**
+     * Keeps full clone responses ready in the pack cache, by generating them in the background after pushes. Only
+     * has an effect if a {@link #setPackCache pack cache} is set too, and it must be the same one.
+     * @param clonePackWarmer the warmer to use, or {@code null} to disable it (which is the default).
+     */
+    public void setClonePackWarmer( ClonePackWarmer clonePackWarmer ) {
+        this.clonePackWarmer = clonePackWarmer;
+    }
+
+    /**
+     * Enables reuse of the ref advertisements which {@code git-upload-pack} and {@code git-receive-pack} start with.
+     * @param advertisementCache the cache to use, or {@code null} to disable it (which is the default).
+     */
+    public void setRefAdvertisementCache( RefAdvertisementCache advertisementCache ) {
+        this.advertisementCache = advertisementCache;
+    }
+
+    /**
+     * Lets {@code git-upload-pack} speak git wire protocol version 2 with clients which ask for it, through the
+     * {@code GIT_PROTOCOL} environment variable. Clients then only list the refs they are interested in, instead of
+     * receiving all refs first. Version 2 also serves shallow fetches and partial clone filters.
+     * @param protocolV2 {@code true} to enable it. Disabled by default.
+     */
+    public void setProtocolV2( boolean protocolV2 ) {
+        this.protocolV2 = protocolV2;
+    }
+
+    /**
+     * Replaces the default {@link RepositoryLockManager}, for example to share it with other components or to
+     * configure its timeout.
+     * @param lockManager serializes the ref updates of pushes to the same repository.
+     */
+    public void setRepositoryLockManager( RepositoryLockManager lockManager ) {
+        this.lockManager = lockManager;
+    }
+
+    /**
+     * Lets pushes tell the maintenance when they start and end, so that it repacks repositories which have
+     * collected too many packs, but not while they are being pushed to.
+     * @param maintenance the maintenance to tell, or {@code null} for none (which is the default).
+     */
+    public void setRepositoryMaintenance( RepositoryMaintenance maintenance ) {
+        this.maintenance = maintenance;
+    }
+
+    /**
+     * Lets pushes index the received pack on several threads, instead of on the command's thread.
+     * @param packIndexer the indexer to use, or {@code null} to leave it to JGit (which is the default).
+     */
+    public void setPackIndexer( PackIndexer packIndexer ) {
+        this.packIndexer = packIndexer;
+    }
+
+    /**
+     * Tells the event bus about the refs each push has updated, once they are updated.
+     * @param eventBus the bus to tell, or {@code null} for none (which is the default).
+     */
+    public void setPostReceiveEventBus( PostReceiveEventBus eventBus ) {
+        this.eventBus = eventBus;
+    }
+
+    /**
+     * Limits how many commands each user, repository and client address may start, and may run at the same time.
+     * Commands over a limit are rejected before their repository is opened.
+     * @param quotaManager the limits to keep, or {@code null} for none (which is the default).
+     */
+    public void setQuotaManager( QuotaManager quotaManager ) {
+        this.quotaManager = quotaManager;
+    }
+
+    /**
+     * Makes the repositories mirrors of a primary's, which pushes are forwarded to.
+     * @param replica keeps the mirrors up to date, and forwards pushes, or {@code null} if the repositories are
+     * this server's own (which is the default).
+     */
+    public void setReadReplica( ReadReplica replica ) {
+        this.replica = replica;
+    }
+
+    /**
+     * Stops starting commands, so that the server can shut down once those which have started have exited. Commands
+     * asked for from now on are rejected, with a message which tells the client to try again.
+     */
+    public void drain() {
+        inFlight.drain();
+    }
+
+    public boolean isDraining() {
+        return inFlight.isDraining();
+    }
+
+    /**
+     * @return how many commands have started and not exited yet.
+     */
+    public int getInFlightCount() {
+        return inFlight.getCount();
+    }
+
+    /**
+     * Waits for the commands which have started to exit, usually after {@link #drain()}.
+     * @param timeoutMillis how long to wait at most.
+     * @return whether all commands have exited, {@code false} if the time ran out first.
+     */
+    public boolean awaitInFlight( long timeoutMillis ) throws InterruptedException {
+        return inFlight.awaitIdle( timeoutMillis );
+    }
+
+    /**
+     * @return what serializes the ref updates of pushes, for inspecting its contention statistics.
+     */
+    public RepositoryLockManager getRepositoryLockManager() {
+        return lockManager;
+    }
+
+    /**
+     * @param metrics receives the durations, byte counts and permission checks of the commands created by this
+     * factory.
+     */
+    public void setMetrics( ServerMetrics metrics ) {
+        this.metrics = metrics;
+    }
+
     @Override
     public Command createCommand( String commandLine ) {
         int sp1 = commandLine.indexOf( ' ' );
@@ -71,6 +241,10 @@ public class GitCommandFactory implements CommandFactory {
 
         AbstractCommand command = create( cmd );
         command.parseArguments( cmd, args );
+        command.setCommandExecutor( executor );
+        command.setMetrics( metrics );
+        command.setQuotaManager( quotaManager );
+        command.setInFlightCommands( inFlight );
         return command;
     }
 
@@ -0,0 +1,54 @@
+package com.sonatype.sshjgit.core.gitcommand;
+
+/**
+ * Counts the commands of a {@link GitCommandFactory} which have started and not exited yet, and turns new commands
+ * away once it is draining, so that a server can wait for its commands before it shuts down.
+ */
+class InFlightCommands {
+    private int count;
+    private boolean draining;
+
+    /**
+     * @return whether the command may run. If so, it must call {@link #exit()} once it has exited.
+     */
+    synchronized boolean enter() {
+        if ( draining ) {
+            return false;
+        }
+        count++;
+        return true;
+    }
+
+    synchronized void exit() {
+        if ( --count == 0 ) {
+            notifyAll();
+        }
+    }
+
+    synchronized void drain() {
+        draining = true;
+    }
+
+    synchronized boolean isDraining() {
+        return draining;
+    }
+
+    synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * @return whether all commands have exited, {@code false} if the time ran out first.
+     */
+    synchronized boolean awaitIdle( long timeoutMillis ) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        while ( count > 0 ) {
+            final long remaining = deadline - System.currentTimeMillis();
+            if ( remaining <= 0 ) {
+                return false;
+            }
+            wait( remaining );
+        }
+        return true;
+    }
+}
@@ -0,0 +1,90 @@
+package com.sonatype.sshjgit.core.gitcommand;
+
+/**
+ * <p>A partial clone filter, as clients send it with {@code filter <spec>}: which objects to leave out of the pack.
+ * The client fetches what it left out later, when it needs it.</p>
+ *
+ * <p>Supported are {@code blob:none}, {@code blob:limit=<n>[kmg]}, which leaves out blobs of at least that many
+ * bytes, and {@code tree:0}, which leaves out all trees and blobs.</p>
+ */
+class ObjectFilter {
+    /** sends all objects. */
+    static final ObjectFilter NONE = new ObjectFilter( "", Long.MAX_VALUE, false );
+
+    private final String  spec;
+    private final long    blobLimit;
+    private final boolean omitTrees;
+
+    private ObjectFilter( String spec, long blobLimit, boolean omitTrees ) {
+        this.spec = spec;
+        this.blobLimit = blobLimit;
+        this.omitTrees = omitTrees;
+    }
+
+    /**
+     * @param spec what the client sent after {@code filter }.
+     * @return the filter.
+     * @throws IllegalArgumentException if the filter is not supported.
+     */
+    static ObjectFilter parse( String spec ) {
+        if ( spec.equals( "blob:none" ) ) {
+            return new ObjectFilter( spec, 0, false );
+        }
+        if ( spec.equals( "tree:0" ) ) {
+            return new ObjectFilter( spec, 0, true );
+        }
+        if ( spec.startsWith( "blob:limit=" ) ) {
+            String limit = spec.substring( "blob:limit=".length() ).toLowerCase();
+            long unit = 1;
+            if ( limit.endsWith( "k" ) ) {
+                unit = 1024;
+            } else if ( limit.endsWith( "m" ) ) {
+                unit = 1024 * 1024;
+            } else if ( limit.endsWith( "g" ) ) {
+                unit = 1024 * 1024 * 1024;
+            }
+            if ( unit != 1 ) {
+                limit = limit.substring( 0, limit.length() - 1 );
+            }
+            try {
+                return new ObjectFilter( spec, Long.parseLong( limit ) * unit, false );
+            } catch( NumberFormatException e ) {
+                throw new IllegalArgumentException( "invalid filter: " + spec );
+            }
+        }
+        throw new IllegalArgumentException( "unsupported filter: " + spec );
+    }
+
+    boolean isNone() {
+        return this == NONE;
+    }
+
+    /**
+     * @return whether trees, and so all blobs, are left out.
+     */
+    boolean omitsTrees() {
+        return omitTrees;
+    }
+
+    /**
+     * @return whether all blobs are left out, whatever their size.
+     */
+    boolean omitsAllBlobs() {
+        return omitTrees || blobLimit == 0;
+    }
+
+    /**
+     * @param size the size of a blob, in bytes.
+     * @return whether the blob is left out.
+     */
+    boolean omitsBlob( long size ) {
+        return size >= blobLimit;
+    }
+
+    /**
+     * @return what the client sent, such as {@code "blob:none"}.
+     */
+    String getSpec() {
+        return spec;
+    }
+}
@@ -0,0 +1,382 @@
+package com.sonatype.sshjgit.core.gitcommand;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Remembers what {@code git-upload-pack} sent after the client said {@code done}, so that an identical request to
+ * the same repository can be answered by copying those bytes instead of counting, delta searching and compressing
+ * all over again.</p>
+ *
+ * <p>A request is identified by the repository, the sorted {@code want}s and {@code have}s, and the capabilities the
+ * client asked for. Responses are stored as files in a directory of their own, which is bounded in total size.
+ * When it grows beyond that, the least recently used responses are deleted. Responses larger than a configured
+ * maximum are never stored.</p>
+ *
+ * <p>Entries for a repository are dropped by {@link #invalidate(File)}, which {@link Receive} calls after every
+ * push.</p>
+ */
+public class PackCache {
+    private static final Logger log = LoggerFactory.getLogger( PackCache.class );
+
+    public static final long DEFAULT_MAX_BYTES       = 4L * 1024 * 1024 * 1024;
+    public static final long DEFAULT_MAX_ENTRY_BYTES = 512L * 1024 * 1024;
+
+    private static final Pattern CACHE_FILE_NAME = Pattern.compile( "[0-9a-f]{40}-[0-9]+\\.pack" );
+
+    private final File directory;
+    private final long maxBytes;
+    private final long maxEntryBytes;
+
+    /** access ordered, so iteration starts with the least recently used entry. guarded by itself. */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>( 16, 0.75f, true );
+    /** guarded by {@link #entries}. */
+    private long totalBytes;
+    /** how many times each repository has been invalidated, so responses recorded across a push are not added. guarded by {@link #entries}. */
+    private final Map<String, Integer> invalidations = new HashMap<String, Integer>();
+
+    private final AtomicLong hits      = new AtomicLong();
+    private final AtomicLong misses    = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public PackCache( File directory ) {
+        this( directory, DEFAULT_MAX_BYTES, DEFAULT_MAX_ENTRY_BYTES );
+    }
+
+    /**
+     * @param directory where cached responses are stored. Responses left in it by a previous run are deleted.
+     * @param maxBytes how many bytes all cached responses may use together.
+     * @param maxEntryBytes responses larger than this are not cached.
+     */
+    public PackCache( File directory, long maxBytes, long maxEntryBytes ) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min( maxEntryBytes, maxBytes );
+        if ( directory.exists() && !directory.isDirectory() ) {
+            throw new IllegalArgumentException( "pack cache directory must be a directory." );
+        }
+        try {
+            FileUtils.forceMkdir( directory );
+        } catch( IOException e ) {
+            throw new IllegalArgumentException( "pack cache directory could not be created: " + directory, e );
+        }
+        // whatever was left behind by a previous run is not indexed, so it can't be served anyway
+        for ( File stale : directory.listFiles() ) {
+            if ( CACHE_FILE_NAME.matcher( stale.getName() ).matches() ) {
+                stale.delete();
+            }
+        }
+    }
+
+    /**
+     * Builds the key for a request. The lists are sorted in place.
+     *
+     * @param repositoryDirectory the repository's directory.
+     * @param wants object ids the client wants.
+     * @param haves object ids the client has.
+     * @param other capabilities, and any other request line which is neither a {@code want} nor a {@code have}.
+     * @return the key.
+     */
+    static String createKey( File repositoryDirectory, List<String> wants, List<String> haves, List<String> other ) {
+        Collections.sort( wants );
+        Collections.sort( haves );
+        Collections.sort( other );
+        final StringBuilder key = new StringBuilder( repositoryDirectory.getAbsolutePath() );
+        key.append( "\nwant" );
+        for ( String want : wants ) {
+            key.append( ' ' ).append( want );
+        }
+        key.append( "\nhave" );
+        for ( String have : haves ) {
+            key.append( ' ' ).append( have );
+        }
+        key.append( "\nother" );
+        for ( String line : other ) {
+            key.append( ' ' ).append( line );
+        }
+        return key.toString();
+    }
+
+    /**
+     * Writes a cached response, if there is one.
+     *
+     * @param key identifies the request, see {@link #createKey}.
+     * @param out where to write the response.
+     * @return {@code true} if the response was written, {@code false} if nothing is cached for the key.
+     * @throws IOException if writing fails.
+     */
+    boolean send( String key, OutputStream out ) throws IOException {
+        final Entry entry;
+        synchronized ( entries ) {
+            entry = entries.get( key );
+            if ( entry != null ) {
+                entry.readers++;
+            }
+        }
+        if ( entry == null ) {
+            misses.incrementAndGet();
+            return false;
+        }
+        hits.incrementAndGet();
+        final FileInputStream cached = new FileInputStream( entry.file );
+        final byte[] buffer = BufferPool.SHARED.acquire();
+        try {
+            sendChunked( cached.getChannel(), buffer, out );
+        } finally {
+            BufferPool.SHARED.release( buffer );
+            IOUtils.closeQuietly( cached );
+            synchronized ( entries ) {
+                if ( --entry.readers == 0 && entry.evicted ) {
+                    entry.file.delete();
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param key identifies the request, see {@link #createKey}.
+     * @return whether a response is cached for the key. Does not count as a hit or a miss.
+     */
+    boolean contains( String key ) {
+        synchronized ( entries ) {
+            return entries.containsKey( key );
+        }
+    }
+
+    /**
+     * Copies a file to the client, flushing after every buffer. The ssh channel's stream collects everything
+     * written until it's flushed, so without the flushes the whole response would end up on the heap, once more.
+     * Each flushed buffer is sent as one packet instead.
+     */
+    static void sendChunked( FileChannel file, byte[] buffer, OutputStream out ) throws IOException {
+        final ByteBuffer wrapped = ByteBuffer.wrap( buffer );
+        while ( true ) {
+            wrapped.clear();
+            while ( wrapped.hasRemaining() && file.read( wrapped ) >= 0 ) {
+                // fill the whole buffer, so that packets are full
+            }
+            if ( wrapped.position() == 0 ) {
+                break;
+            }
+            out.write( buffer, 0, wrapped.position() );
+            out.flush();
+        }
+    }
+
+    /**
+     * Starts recording a response which is not cached yet.
+     *
+     * @param key identifies the request, see {@link #createKey}.
+     * @param repositoryDirectory the repository's directory, for {@link #invalidate(File)}.
+     * @return where to write a copy of the response; call {@link Recorder#commit()} when it is complete.
+     * @throws IOException if the file to record to could not be created.
+     */
+    Recorder record( String key, File repositoryDirectory ) throws IOException {
+        return new Recorder( key, repositoryDirectory.getAbsolutePath() );
+    }
+
+    /**
+     * Drops all cached responses for a repository.
+     * @param repositoryDirectory the repository's directory.
+     */
+    public void invalidate( File repositoryDirectory ) {
+        final String path = repositoryDirectory.getAbsolutePath();
+        synchronized ( entries ) {
+            invalidations.put( path, invalidationCount( path ) + 1 );
+            for ( Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+                final Entry entry = it.next();
+                if ( entry.repositoryPath.equals( path ) ) {
+                    it.remove();
+                    evict( entry );
+                }
+            }
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * @return how many bytes the cached responses currently use.
+     */
+    public long getSize() {
+        synchronized ( entries ) {
+            return totalBytes;
+        }
+    }
+
+    /** must hold the lock on {@link #entries}. */
+    private int invalidationCount( String repositoryPath ) {
+        final Integer count = invalidations.get( repositoryPath );
+        return count == null ? 0 : count;
+    }
+
+    private void add( Entry added, int invalidationCountAtStart ) {
+        synchronized ( entries ) {
+            if ( invalidationCount( added.repositoryPath ) != invalidationCountAtStart ) {
+                // the repository changed while the response was recorded
+                added.file.delete();
+                return;
+            }
+            final Entry replaced = entries.put( added.key, added );
+            if ( replaced != null ) {
+                evict( replaced );
+            }
+            totalBytes += added.size;
+            for ( Iterator<Entry> it = entries.values().iterator(); totalBytes > maxBytes && it.hasNext(); ) {
+                final Entry entry = it.next();
+                it.remove();
+                evict( entry );
+            }
+        }
+    }
+
+    /** must hold the lock on {@link #entries}. */
+    private void evict( Entry entry ) {
+        evictions.incrementAndGet();
+        totalBytes -= entry.size;
+        entry.evicted = true;
+        if ( entry.readers == 0 ) {
+            entry.file.delete();
+        }
+    }
+
+    private static String sha1( String key ) {
+        try {
+            final byte[] digest = MessageDigest.getInstance( "SHA-1" ).digest( key.getBytes( "UTF-8" ) );
+            final StringBuilder hex = new StringBuilder();
+            for ( byte b : digest ) {
+                hex.append( Character.forDigit( ( b >> 4 ) & 0xf, 16 ) ).append( Character.forDigit( b & 0xf, 16 ) );
+            }
+            return hex.toString();
+        } catch( NoSuchAlgorithmException e ) {
+            throw new IllegalStateException( e );
+        } catch( UnsupportedEncodingException e ) {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    /**
+     * Receives a copy of a response while it is being sent. It is only added to the cache if it's complete and not
+     * larger than the maximum entry size.
+     */
+    class Recorder extends OutputStream {
+        private final String       key;
+        private final String       repositoryPath;
+        private final File         file;
+        private final OutputStream fileOut;
+        private final int          invalidationCountAtStart;
+        private long               size;
+        private boolean            overflowed;
+        private boolean            done;
+
+        Recorder( String key, String repositoryPath ) throws IOException {
+            this.key = key;
+            this.repositoryPath = repositoryPath;
+            synchronized ( entries ) {
+                this.invalidationCountAtStart = invalidationCount( repositoryPath );
+            }
+            this.file = File.createTempFile( sha1( key ) + "-", ".pack", directory );
+            this.fileOut = new FileOutputStream( file );
+        }
+
+        @Override
+        public void write( int b ) throws IOException {
+            write( new byte[]{ (byte) b }, 0, 1 );
+        }
+
+        @Override
+        public void write( byte[] b, int off, int len ) throws IOException {
+            if ( overflowed || done ) {
+                return;
+            }
+            size += len;
+            if ( size > maxEntryBytes ) {
+                overflowed = true;
+                return;
+            }
+            try {
+                fileOut.write( b, off, len );
+            } catch( IOException e ) {
+                // the cache must never break the fetch itself
+                log.warn( "Could not write to pack cache file " + file + ": " + e.getMessage() );
+                overflowed = true;
+            }
+        }
+
+        /**
+         * Adds the recorded response to the cache.
+         */
+        void commit() {
+            if ( done ) {
+                return;
+            }
+            done = true;
+            IOUtils.closeQuietly( fileOut );
+            if ( overflowed ) {
+                file.delete();
+            } else {
+                add( new Entry( key, repositoryPath, file, size ), invalidationCountAtStart );
+            }
+        }
+
+        /**
+         * Throws away what has been recorded. Does nothing after {@link #commit()}.
+         */
+        void abort() {
+            if ( done ) {
+                return;
+            }
+            done = true;
+            IOUtils.closeQuietly( fileOut );
+            file.delete();
+        }
+    }
+
+    private static class Entry {
+        final String key;
+        final String repositoryPath;
+        final File   file;
+        final long   size;
+        int          readers;
+        boolean      evicted;
+
+        Entry( String key, String repositoryPath, File file, long size ) {
+            this.key = key;
+            this.repositoryPath = repositoryPath;
+            this.file = file;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.sonatype.sshjgit.core.gitcommand;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Sits between {@code UploadPack} and the client, and follows the pkt-lines of the client's request as
+ * {@code UploadPack} reads them. Once the client says {@code done}, the request is complete:</p>
+ * <ul>
+ * <li>if the {@link PackCache} has a response for it, that response is written to the client, and
+ * {@link CachedResponseSent} is thrown so that {@code UploadPack} stops before it starts packing;</li>
+ * <li>otherwise, everything {@code UploadPack} writes from then on is recorded, and added to the cache on
+ * {@link #complete()}.</li>
+ * </ul>
+ * <p>Requests which don't end with {@code done}, or which can't be parsed, are passed through untouched.</p>
+ */
+class PackCachingStreams {
+    private final PackCache    cache;
+    private final File         repositoryDirectory;
+    private final InputStream  in;
+    private final OutputStream out;
+
+    private final List<String> wants = new ArrayList<String>();
+    private final List<String> haves = new ArrayList<String>();
+    private final List<String> other = new ArrayList<String>();
+
+    private PackCache.Recorder recorder;
+    private RequestListener requestListener;
+
+    PackCachingStreams( PackCache cache, File repositoryDirectory, InputStream in, OutputStream out ) {
+        this.cache = cache;
+        this.repositoryDirectory = repositoryDirectory;
+        this.in = in;
+        this.out = out;
+    }
+
+    /**
+     * @param requestListener is told about the request once it has been read, or {@code null}.
+     */
+    void setRequestListener( RequestListener requestListener ) {
+        this.requestListener = requestListener;
+    }
+
+    InputStream getInputStream() {
+        return new RequestInputStream( in );
+    }
+
+    OutputStream getOutputStream() {
+        return new FilterOutputStream( out ) {
+            @Override
+            public void write( int b ) throws IOException {
+                out.write( b );
+                if ( recorder != null ) {
+                    recorder.write( b );
+                }
+            }
+
+            @Override
+            public void write( byte[] b, int off, int len ) throws IOException {
+                out.write( b, off, len );
+                if ( recorder != null ) {
+                    recorder.write( b, off, len );
+                }
+            }
+        };
+    }
+
+    /**
+     * Call when {@code UploadPack} has finished successfully, to add the recorded response to the cache.
+     */
+    void complete() {
+        if ( recorder != null ) {
+            recorder.commit();
+        }
+    }
+
+    /**
+     * Call when {@code UploadPack} did not finish successfully. Does nothing after {@link #complete()}.
+     */
+    void abort() {
+        if ( recorder != null ) {
+            recorder.abort();
+        }
+    }
+
+    /**
+     * Called when the request has been read completely.
+     * @throws CachedResponseSent if the response was sent from the cache.
+     */
+    private void requestComplete() throws IOException {
+        final String key = PackCache.createKey( repositoryDirectory, wants, haves, other );
+        if ( requestListener != null ) {
+            requestListener.requestComplete( wants, haves, other );
+        }
+        if ( cache.send( key, out ) ) {
+            throw new CachedResponseSent();
+        }
+        recorder = cache.record( key, repositoryDirectory );
+    }
+
+    /**
+     * Is told about each request which ends with {@code done}, before its response is looked up in the cache.
+     */
+    interface RequestListener {
+        /**
+         * @param wants object ids the client wants, sorted.
+         * @param haves object ids the client has, sorted.
+         * @param other capabilities and other request lines, sorted.
+         */
+        void requestComplete( List<String> wants, List<String> haves, List<String> other );
+    }
+
+    /**
+     * Thrown through {@code UploadPack} once the whole response has been sent from the cache.
+     */
+    static class CachedResponseSent extends IOException {
+        CachedResponseSent() {
+            super( "response was sent from the pack cache" );
+        }
+    }
+
+    private class RequestInputStream extends FilterInputStream {
+        /** whether the request is still being followed. */
+        private boolean parsing = true;
+        /** bytes of the pkt-line currently being read, including its 4 byte length header. */
+        private final StringBuilder line = new StringBuilder();
+        private int lineLength = -1;
+
+        RequestInputStream( InputStream in ) {
+            super( in );
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = in.read();
+            if ( b >= 0 && parsing ) {
+                parse( (byte) b );
+            }
+            return b;
+        }
+
+        @Override
+        public int read( byte[] b, int off, int len ) throws IOException {
+            final int n = in.read( b, off, len );
+            for ( int i = off; parsing && i < off + n; i++ ) {
+                parse( b[i] );
+            }
+            return n;
+        }
+
+        private void parse( byte b ) throws IOException {
+            line.append( (char) ( b & 0xff ) );
+            if ( lineLength < 0 ) {
+                if ( line.length() < 4 ) {
+                    return;
+                }
+                try {
+                    lineLength = Integer.parseInt( line.toString(), 16 );
+                } catch( NumberFormatException e ) {
+                    parsing = false;
+                    return;
+                }
+                if ( lineLength == 0 ) {
+                    // flush-pkt, between wants and haves
+                    line.setLength( 0 );
+                    lineLength = -1;
+                    return;
+                }
+                if ( lineLength < 4 ) {
+                    parsing = false;
+                    return;
+                }
+            }
+            if ( line.length() < lineLength ) {
+                return;
+            }
+            String payload = line.substring( 4 );
+            line.setLength( 0 );
+            lineLength = -1;
+            if ( payload.endsWith( "\n" ) ) {
+                payload = payload.substring( 0, payload.length() - 1 );
+            }
+            if ( payload.equals( "done" ) ) {
+                parsing = false;
+                requestComplete();
+            } else if ( payload.startsWith( "want " ) ) {
+                final String[] parts = payload.split( " " );
+                wants.add( parts[1] );
+                for ( int i = 2; i < parts.length; i++ ) {
+                    other.add( parts[i] );
+                }
+            } else if ( payload.startsWith( "have " ) ) {
+                haves.add( payload.substring( 5 ) );
+            } else {
+                other.add( payload );
+            }
+        }
+    }
+}
@@ -0,0 +1,959 @@
+package com.sonatype.sshjgit.core.gitcommand;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+import org.eclipse.jgit.errors.CorruptObjectException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectChecker;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.Repository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Indexes the packs which pushes send on several threads, instead of leaving it to JGit's {@code IndexPack}, which
+ * inflates, hashes and resolves every object on the command's thread.</p>
+ *
+ * <p>Reading the pack from the client can't be split up, because the end of each object is only found by inflating
+ * it. So the pack is first copied to a temporary file, remembering where each object starts. Then the whole objects
+ * are inflated, hashed and checked in parallel, and each delta is resolved by the thread which resolved its base,
+ * so that every delta chain is walked once, while different chains are walked at the same time. Bases which a thin
+ * pack leaves out are read from the repository and appended to the pack, like {@code git index-pack --fix-thin}
+ * does.</p>
+ *
+ * <p>Objects are held in memory while they are hashed, so objects larger than 2 GB can't be indexed.</p>
+ */
+public class PackIndexer {
+    private static final Logger log = LoggerFactory.getLogger( PackIndexer.class );
+
+    public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+
+    /** bytes read from the client at a time, and at most pushed back after the pack. */
+    static final int BUFFER_SIZE = 64 * 1024;
+    /** whole objects per task, so that packs of millions of small objects don't need as many tasks. */
+    static final int BATCH_SIZE = 256;
+
+    private static final int OBJ_OFS_DELTA = 6;
+    private static final int OBJ_REF_DELTA = 7;
+
+    private final int                threads;
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicLong packs   = new AtomicLong();
+    private final AtomicLong objects = new AtomicLong();
+    private final AtomicLong deltas  = new AtomicLong();
+
+    public PackIndexer() {
+        this( DEFAULT_THREADS );
+    }
+
+    /**
+     * @param threads how many objects may be inflated and hashed at the same time, shared by all pushes.
+     */
+    public PackIndexer( int threads ) {
+        this.threads = threads;
+        this.executor = new ThreadPoolExecutor( threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread( Runnable r ) {
+                        final Thread thread = new Thread( r, "sshjgit-pack-indexer" );
+                        thread.setDaemon( true );
+                        return thread;
+                    }
+                } );
+        executor.allowCoreThreadTimeOut( true );
+    }
+
+    /**
+     * Reads a pack, indexes it, and adds it to the repository.
+     * @param repository the repository being pushed to.
+     * @param in the client's input, positioned at the start of the pack. Bytes read past the end of the pack are
+     * pushed back, so it must be able to take {@link #BUFFER_SIZE} bytes.
+     * @param checkObjects whether to check that each object is well formed, and not different from an object with
+     * the same id which the repository already has.
+     * @return the pack added, or {@code null} if the pack was empty.
+     * @throws IOException if the pack could not be read, or is not valid. Nothing is added to the repository then.
+     */
+    IndexedPack index( Repository repository, PushbackInputStream in, boolean checkObjects ) throws IOException {
+        final long start = System.currentTimeMillis();
+        final File packDirectory = new File( repository.getObjectsDirectory(), "pack" );
+        packDirectory.mkdirs();
+        final File temporaryPack = File.createTempFile( "incoming_", ".pack", packDirectory );
+        final File temporaryIndex = new File( packDirectory, temporaryPack.getName().replace( ".pack", ".idx" ) );
+        boolean installed = false;
+        try {
+            final Pack pack = new Pack( repository, checkObjects );
+            final byte[] checksum = pack.receive( in, temporaryPack );
+            if ( pack.entries.isEmpty() ) {
+                return null;
+            }
+            final RandomAccessFile file = new RandomAccessFile( temporaryPack, "rw" );
+            final byte[] packChecksum;
+            try {
+                pack.channel = file.getChannel();
+                pack.resolve();
+                packChecksum = pack.appendThinBases( file, checksum );
+            } finally {
+                file.close();
+            }
+
+            final List<Entry> sorted = pack.sortById();
+            final String name = ObjectId.fromRaw( nameOf( sorted ) ).name();
+            final File packFile = new File( packDirectory, "pack-" + name + ".pack" );
+            final File indexFile = new File( packDirectory, "pack-" + name + ".idx" );
+            final List<ObjectId> ids = new ArrayList<ObjectId>( sorted.size() );
+            for ( Entry entry : sorted ) {
+                ids.add( entry.id );
+            }
+            final IndexedPack indexed = new IndexedPack( packFile, indexFile, ids, pack.deltaCount,
+                    pack.thinBases.size() );
+            if ( packFile.exists() && indexFile.exists() ) {
+                // the same objects were pushed before
+                return indexed;
+            }
+            writeIndex( temporaryIndex, sorted, packChecksum );
+            // the index last, so that the pack is never found without its objects
+            if ( !temporaryPack.renameTo( packFile ) ) {
+                throw new IOException( "could not add " + packFile );
+            }
+            if ( !temporaryIndex.renameTo( indexFile ) ) {
+                packFile.delete();
+                throw new IOException( "could not add " + indexFile );
+            }
+            installed = true;
+            repository.openPack( packFile, indexFile );
+
+            packs.incrementAndGet();
+            objects.addAndGet( sorted.size() );
+            deltas.addAndGet( pack.deltaCount );
+            log.debug( "indexed " + sorted.size() + " objects of " + packFile + " on " + threads + " threads in "
+                       + ( System.currentTimeMillis() - start ) + " ms" );
+            return indexed;
+        } finally {
+            if ( !installed ) {
+                temporaryPack.delete();
+                temporaryIndex.delete();
+            }
+        }
+    }
+
+    /**
+     * Stops the threads. Indexing fails afterwards.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public long getIndexedPackCount() {
+        return packs.get();
+    }
+
+    public long getIndexedObjectCount() {
+        return objects.get();
+    }
+
+    public long getResolvedDeltaCount() {
+        return deltas.get();
+    }
+
+    /**
+     * The objects of a pack, and what was found out about them.
+     */
+    private class Pack {
+        final Repository repository;
+        final boolean    checkObjects;
+
+        final List<Entry> entries = new ArrayList<Entry>();
+        /** entries which are not deltas. */
+        final List<Entry> wholeEntries = new ArrayList<Entry>();
+        /** {@code REF_DELTA} entries by base id, removed once their base is found. */
+        final Map<ObjectId, List<Entry>> refDeltas = new ConcurrentHashMap<ObjectId, List<Entry>>();
+        /** bases read from the repository, appended to the pack. */
+        final List<Entry> thinBases = new ArrayList<Entry>();
+        int deltaCount;
+
+        FileChannel channel;
+
+        Pack( Repository repository, boolean checkObjects ) {
+            this.repository = repository;
+            this.checkObjects = checkObjects;
+        }
+
+        /**
+         * Copies the pack to the file, remembering where each object is.
+         * @return the checksum at the end of the pack.
+         */
+        byte[] receive( PushbackInputStream in, File file ) throws IOException {
+            final PackInput input = new PackInput( in, new BufferedOutputStream( new FileOutputStream( file ) ) );
+            try {
+                final byte[] header = input.read( 12 );
+                if ( header[0] != 'P' || header[1] != 'A' || header[2] != 'C' || header[3] != 'K' ) {
+                    throw new IOException( "not a pack" );
+                }
+                final int version = readInt( header, 4 );
+                if ( version != 2 && version != 3 ) {
+                    throw new IOException( "unsupported pack version " + version );
+                }
+                final long count = readInt( header, 8 ) & 0xffffffffL;
+                final Map<Long, Entry> byOffset = new HashMap<Long, Entry>();
+                for ( long i = 0; i < count; i++ ) {
+                    final Entry entry = readEntry( input, byOffset );
+                    byOffset.put( entry.offset, entry );
+                    entries.add( entry );
+                }
+                final byte[] expected = input.digest();
+                if ( !Arrays.equals( expected, input.readTrailer() ) ) {
+                    throw new IOException( "pack checksum mismatch" );
+                }
+                input.output.write( expected );
+                input.pushBack();
+                return expected;
+            } finally {
+                input.output.close();
+            }
+        }
+
+        private Entry readEntry( PackInput input, Map<Long, Entry> byOffset ) throws IOException {
+            final Entry entry = new Entry();
+            entry.offset = input.position;
+            input.crc.reset();
+            int c = input.read();
+            entry.packType = ( c >> 4 ) & 7;
+            long size = c & 15;
+            for ( int shift = 4; ( c & 0x80 ) != 0; shift += 7 ) {
+                c = input.read();
+                size += (long) ( c & 0x7f ) << shift;
+            }
+            if ( size > Integer.MAX_VALUE ) {
+                throw new IOException( "object at offset " + entry.offset + " is too large" );
+            }
+            entry.size = (int) size;
+
+            switch ( entry.packType ) {
+            case Constants.OBJ_COMMIT:
+            case Constants.OBJ_TREE:
+            case Constants.OBJ_BLOB:
+            case Constants.OBJ_TAG:
+                entry.type = entry.packType;
+                wholeEntries.add( entry );
+                break;
+            case OBJ_OFS_DELTA:
+                c = input.read();
+                long distance = c & 0x7f;
+                while ( ( c & 0x80 ) != 0 ) {
+                    c = input.read();
+                    distance = ( ( distance + 1 ) << 7 ) + ( c & 0x7f );
+                }
+                final Entry base = byOffset.get( entry.offset - distance );
+                if ( base == null ) {
+                    throw new IOException( "delta at offset " + entry.offset + " has no base" );
+                }
+                base.addChild( entry );
+                deltaCount++;
+                break;
+            case OBJ_REF_DELTA:
+                final ObjectId baseId = ObjectId.fromRaw( input.read( Constants.OBJECT_ID_LENGTH ) );
+                List<Entry> children = refDeltas.get( baseId );
+                if ( children == null ) {
+                    children = new ArrayList<Entry>();
+                    refDeltas.put( baseId, children );
+                }
+                children.add( entry );
+                deltaCount++;
+                break;
+            default:
+                throw new IOException( "unknown object type " + entry.packType + " at offset " + entry.offset );
+            }
+
+            entry.dataOffset = input.position;
+            final long compressed = input.skipCompressed( entry.size );
+            if ( compressed > Integer.MAX_VALUE ) {
+                throw new IOException( "object at offset " + entry.offset + " is too large" );
+            }
+            entry.compressedLength = (int) compressed;
+            entry.crc = (int) input.crc.getValue();
+            return entry;
+        }
+
+        /**
+         * Finds the ids of all objects: those of the whole objects first, with the deltas based on them, and then
+         * those of the deltas whose bases are only in the repository.
+         */
+        void resolve() throws IOException {
+            final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for ( int from = 0; from < wholeEntries.size(); from += BATCH_SIZE ) {
+                final List<Entry> batch = wholeEntries.subList( from, Math.min( from + BATCH_SIZE, wholeEntries.size() ) );
+                tasks.add( new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        final Resolver resolver = new Resolver( Pack.this );
+                        try {
+                            for ( Entry entry : batch ) {
+                                resolver.resolve( entry, resolver.inflate( entry ) );
+                            }
+                        } finally {
+                            resolver.release();
+                        }
+                        return null;
+                    }
+                } );
+            }
+            run( tasks );
+
+            // a base which is not in the repository may still be a delta in the pack on one which is, so the
+            // bases in the repository are taken in rounds, until only those neither have found are left
+            while ( !refDeltas.isEmpty() ) {
+                tasks.clear();
+                for ( ObjectId baseId : new ArrayList<ObjectId>( refDeltas.keySet() ) ) {
+                    if ( repository.hasObject( baseId ) ) {
+                        tasks.add( resolveThinBase( baseId ) );
+                    }
+                }
+                if ( tasks.isEmpty() ) {
+                    throw new IOException( "missing delta base " + refDeltas.keySet().iterator().next().name() );
+                }
+                run( tasks );
+            }
+            dropThinBasesInPack();
+        }
+
+        /**
+         * Reads a base from the repository, to be appended to the pack.
+         * @return the task which finds the ids of the deltas based on it.
+         */
+        private Callable<Void> resolveThinBase( ObjectId baseId ) throws IOException {
+            final ObjectLoader loader = repository.openObject( baseId );
+            final Entry base = new Entry();
+            base.id = baseId;
+            base.type = loader.getType();
+            base.packType = base.type;
+            final byte[] data = loader.getCachedBytes();
+            base.size = data.length;
+            base.data = data;
+            thinBases.add( base );
+            return new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    final Resolver resolver = new Resolver( Pack.this );
+                    try {
+                        resolver.resolveChildren( base, data );
+                    } finally {
+                        resolver.release();
+                    }
+                    return null;
+                }
+            };
+        }
+
+        /**
+         * Drops the bases read from the repository which turned out to be in the pack too, as deltas on other bases.
+         */
+        private void dropThinBasesInPack() {
+            if ( thinBases.isEmpty() ) {
+                return;
+            }
+            final Set<ObjectId> inPack = new HashSet<ObjectId>();
+            for ( Entry entry : entries ) {
+                inPack.add( entry.id );
+            }
+            for ( Iterator<Entry> it = thinBases.iterator(); it.hasNext(); ) {
+                if ( inPack.contains( it.next().id ) ) {
+                    it.remove();
+                }
+            }
+        }
+
+        private void run( List<Callable<Void>> tasks ) throws IOException {
+            if ( tasks.isEmpty() ) {
+                return;
+            }
+            final List<Future<Void>> futures;
+            try {
+                futures = executor.invokeAll( tasks );
+            } catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new IOException( "interrupted while indexing pack" );
+            }
+            for ( Future<Void> future : futures ) {
+                try {
+                    future.get();
+                } catch( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException( "interrupted while indexing pack" );
+                } catch( ExecutionException e ) {
+                    if ( e.getCause() instanceof IOException ) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new RuntimeException( e.getCause() );
+                }
+            }
+        }
+
+        /**
+         * Appends the bases read from the repository, so that the pack does not depend on other packs.
+         * @return the checksum of the pack, as it is now.
+         */
+        byte[] appendThinBases( RandomAccessFile file, byte[] checksum ) throws IOException {
+            if ( thinBases.isEmpty() ) {
+                return checksum;
+            }
+            long position = file.length() - checksum.length;
+            file.setLength( position );
+            file.seek( position );
+            for ( Entry base : thinBases ) {
+                base.offset = position;
+                final CRC32 crc = new CRC32();
+                final byte[] header = entryHeader( base.type, base.size );
+                final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                final Deflater deflater = new Deflater();
+                try {
+                    final DeflaterOutputStream deflate = new DeflaterOutputStream( compressed, deflater );
+                    deflate.write( base.data );
+                    deflate.finish();
+                } finally {
+                    deflater.end();
+                }
+                crc.update( header );
+                crc.update( compressed.toByteArray() );
+                file.write( header );
+                file.write( compressed.toByteArray() );
+                base.crc = (int) crc.getValue();
+                base.data = null;
+                position = file.getFilePointer();
+                entries.add( base );
+            }
+            file.seek( 8 );
+            file.writeInt( entries.size() );
+
+            final MessageDigest digest = Constants.newMessageDigest();
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            file.seek( 0 );
+            int read;
+            while ( ( read = file.read( buffer ) ) > 0 ) {
+                digest.update( buffer, 0, read );
+            }
+            final byte[] newChecksum = digest.digest();
+            file.write( newChecksum );
+            return newChecksum;
+        }
+
+        List<Entry> sortById() throws IOException {
+            final List<Entry> sorted = new ArrayList<Entry>( entries );
+            Collections.sort( sorted, new Comparator<Entry>() {
+                @Override
+                public int compare( Entry a, Entry b ) {
+                    return a.id.compareTo( b.id );
+                }
+            } );
+            for ( int i = 1; i < sorted.size(); i++ ) {
+                if ( sorted.get( i - 1 ).id.equals( sorted.get( i ).id ) ) {
+                    throw new IOException( "pack contains " + sorted.get( i ).id.name() + " twice" );
+                }
+            }
+            return sorted;
+        }
+    }
+
+    /**
+     * Inflates, hashes and checks objects, on one thread.
+     */
+    private static class Resolver {
+        private final Pack          pack;
+        private final Inflater      inflater = new Inflater();
+        private final MessageDigest digest   = Constants.newMessageDigest();
+        private final ObjectChecker checker  = new ObjectChecker();
+
+        Resolver( Pack pack ) {
+            this.pack = pack;
+        }
+
+        /**
+         * Finds the id of an object whose type is known, and then those of the deltas based on it.
+         */
+        void resolve( Entry entry, byte[] data ) throws IOException {
+            identify( entry, data );
+            resolveChildren( entry, data );
+        }
+
+        /**
+         * Finds the ids of the deltas based on an object whose id is known, of the deltas based on those, and so on.
+         * The chains are walked with a stack of the bases which still have deltas to apply, instead of by recursion,
+         * so that a long chain can't overflow the thread's stack, and a base is dropped as soon as its last delta
+         * has been applied.
+         */
+        void resolveChildren( Entry base, byte[] data ) throws IOException {
+            final ArrayDeque<Base> stack = new ArrayDeque<Base>();
+            pushIfBase( stack, base, data );
+            while ( !stack.isEmpty() ) {
+                final Base top = stack.peek();
+                final Entry child = top.children.next();
+                if ( !top.children.hasNext() ) {
+                    stack.pop();
+                }
+                child.type = top.type;
+                final byte[] childData = applyDelta( top.data, inflate( child ) );
+                identify( child, childData );
+                pushIfBase( stack, child, childData );
+            }
+        }
+
+        private void pushIfBase( ArrayDeque<Base> stack, Entry entry, byte[] data ) {
+            // whoever finds the base first takes its deltas, in case the pack has it twice
+            final List<Entry> refChildren = pack.refDeltas.remove( entry.id );
+            final List<Entry> children;
+            if ( refChildren == null ) {
+                children = entry.children;
+            } else if ( entry.children == null ) {
+                children = refChildren;
+            } else {
+                children = new ArrayList<Entry>( entry.children );
+                children.addAll( refChildren );
+            }
+            if ( children != null && !children.isEmpty() ) {
+                stack.push( new Base( entry.type, data, children.iterator() ) );
+            }
+        }
+
+        private void identify( Entry entry, byte[] data ) throws IOException {
+            digest.reset();
+            digest.update( Constants.encodedTypeString( entry.type ) );
+            digest.update( (byte) ' ' );
+            digest.update( Constants.encodeASCII( data.length ) );
+            digest.update( (byte) 0 );
+            digest.update( data );
+            entry.id = ObjectId.fromRaw( digest.digest() );
+            if ( pack.checkObjects ) {
+                check( entry, data );
+            }
+        }
+
+        private void check( Entry entry, byte[] data ) throws IOException {
+            try {
+                checker.check( entry.type, data );
+            } catch( CorruptObjectException e ) {
+                throw new IOException( "invalid object " + entry.id.name() + ": " + e.getMessage() );
+            }
+            if ( pack.repository.hasObject( entry.id ) ) {
+                final ObjectLoader existing = pack.repository.openObject( entry.id );
+                if ( existing.getType() != entry.type || !Arrays.equals( existing.getCachedBytes(), data ) ) {
+                    throw new IOException( "object " + entry.id.name() + " differs from the existing one" );
+                }
+            }
+        }
+
+        byte[] inflate( Entry entry ) throws IOException {
+            final byte[] compressed = new byte[entry.compressedLength];
+            final ByteBuffer buffer = ByteBuffer.wrap( compressed );
+            while ( buffer.hasRemaining() ) {
+                if ( pack.channel.read( buffer, entry.dataOffset + buffer.position() ) < 0 ) {
+                    throw new EOFException( "pack truncated at offset " + entry.offset );
+                }
+            }
+            final byte[] data = new byte[entry.size];
+            inflater.reset();
+            inflater.setInput( compressed );
+            try {
+                int length = 0;
+                while ( length < data.length ) {
+                    final int n = inflater.inflate( data, length, data.length - length );
+                    if ( n == 0 && ( inflater.needsInput() || inflater.finished() ) ) {
+                        break;
+                    }
+                    length += n;
+                }
+                if ( length != data.length || ( data.length > 0 && inflater.inflate( new byte[1] ) != 0 ) ) {
+                    throw new IOException( "object at offset " + entry.offset + " has the wrong size" );
+                }
+            } catch( DataFormatException e ) {
+                throw new IOException( "object at offset " + entry.offset + " is corrupt: " + e.getMessage() );
+            }
+            return data;
+        }
+
+        void release() {
+            inflater.end();
+        }
+    }
+
+    /**
+     * An object whose deltas are being resolved, with those still to do.
+     */
+    private static class Base {
+        final int             type;
+        final byte[]          data;
+        final Iterator<Entry> children;
+
+        Base( int type, byte[] data, Iterator<Entry> children ) {
+            this.type = type;
+            this.data = data;
+            this.children = children;
+        }
+    }
+
+    /**
+     * Applies a git delta.
+     */
+    static byte[] applyDelta( byte[] base, byte[] delta ) throws IOException {
+        int p = 0;
+        long baseSize = 0;
+        int c;
+        int shift = 0;
+        do {
+            c = delta[p++] & 0xff;
+            baseSize |= (long) ( c & 0x7f ) << shift;
+            shift += 7;
+        } while ( ( c & 0x80 ) != 0 );
+        if ( baseSize != base.length ) {
+            throw new IOException( "delta base has the wrong size" );
+        }
+        long resultSize = 0;
+        shift = 0;
+        do {
+            c = delta[p++] & 0xff;
+            resultSize |= (long) ( c & 0x7f ) << shift;
+            shift += 7;
+        } while ( ( c & 0x80 ) != 0 );
+        if ( resultSize > Integer.MAX_VALUE ) {
+            throw new IOException( "delta result is too large" );
+        }
+
+        final byte[] result = new byte[(int) resultSize];
+        int r = 0;
+        while ( p < delta.length ) {
+            final int cmd = delta[p++] & 0xff;
+            if ( ( cmd & 0x80 ) != 0 ) {
+                long offset = 0;
+                int size = 0;
+                if ( ( cmd & 0x01 ) != 0 ) offset = delta[p++] & 0xff;
+                if ( ( cmd & 0x02 ) != 0 ) offset |= ( delta[p++] & 0xff ) << 8;
+                if ( ( cmd & 0x04 ) != 0 ) offset |= ( delta[p++] & 0xff ) << 16;
+                if ( ( cmd & 0x08 ) != 0 ) offset |= (long) ( delta[p++] & 0xff ) << 24;
+                if ( ( cmd & 0x10 ) != 0 ) size = delta[p++] & 0xff;
+                if ( ( cmd & 0x20 ) != 0 ) size |= ( delta[p++] & 0xff ) << 8;
+                if ( ( cmd & 0x40 ) != 0 ) size |= ( delta[p++] & 0xff ) << 16;
+                if ( size == 0 ) {
+                    size = 0x10000;
+                }
+                if ( offset + size > base.length || r + size > result.length ) {
+                    throw new IOException( "delta copies outside of its base" );
+                }
+                System.arraycopy( base, (int) offset, result, r, size );
+                r += size;
+            } else if ( cmd != 0 ) {
+                if ( p + cmd > delta.length || r + cmd > result.length ) {
+                    throw new IOException( "delta is corrupt" );
+                }
+                System.arraycopy( delta, p, result, r, cmd );
+                p += cmd;
+                r += cmd;
+            } else {
+                throw new IOException( "delta is corrupt" );
+            }
+        }
+        if ( r != result.length ) {
+            throw new IOException( "delta result has the wrong size" );
+        }
+        return result;
+    }
+
+    static byte[] entryHeader( int type, long size ) {
+        final byte[] header = new byte[10];
+        int n = 0;
+        int c = ( type << 4 ) | (int) ( size & 15 );
+        size >>>= 4;
+        while ( size != 0 ) {
+            header[n++] = (byte) ( c | 0x80 );
+            c = (int) ( size & 0x7f );
+            size >>>= 7;
+        }
+        header[n++] = (byte) c;
+        return Arrays.copyOf( header, n );
+    }
+
+    /**
+     * Writes a version 2 pack index, as JGit and git read it.
+     */
+    private static void writeIndex( File file, List<Entry> sorted, byte[] packChecksum ) throws IOException {
+        final MessageDigest digest = Constants.newMessageDigest();
+        final OutputStream stream = new BufferedOutputStream( new FileOutputStream( file ) );
+        try {
+            final DataOutputStream out = new DataOutputStream( new DigestOutputStream( stream, digest ) );
+            out.write( new byte[]{ (byte) 0xff, 't', 'O', 'c' } );
+            out.writeInt( 2 );
+            final int[] fanout = new int[256];
+            for ( Entry entry : sorted ) {
+                fanout[entry.id.getFirstByte()]++;
+            }
+            int total = 0;
+            for ( int count : fanout ) {
+                total += count;
+                out.writeInt( total );
+            }
+            final byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+            for ( Entry entry : sorted ) {
+                entry.id.copyRawTo( raw, 0 );
+                out.write( raw );
+            }
+            for ( Entry entry : sorted ) {
+                out.writeInt( entry.crc );
+            }
+            final List<Long> largeOffsets = new ArrayList<Long>();
+            for ( Entry entry : sorted ) {
+                if ( entry.offset > Integer.MAX_VALUE ) {
+                    out.writeInt( 0x80000000 | largeOffsets.size() );
+                    largeOffsets.add( entry.offset );
+                } else {
+                    out.writeInt( (int) entry.offset );
+                }
+            }
+            for ( long offset : largeOffsets ) {
+                out.writeLong( offset );
+            }
+            out.write( packChecksum );
+            out.flush();
+            stream.write( digest.digest() );
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * @return the name JGit gives a pack: the SHA-1 of the ids of its objects, in order.
+     */
+    private static byte[] nameOf( List<Entry> sorted ) {
+        final MessageDigest digest = Constants.newMessageDigest();
+        final byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+        for ( Entry entry : sorted ) {
+            entry.id.copyRawTo( raw, 0 );
+            digest.update( raw );
+        }
+        return digest.digest();
+    }
+
+    private static int readInt( byte[] b, int offset ) {
+        return ( b[offset] & 0xff ) << 24 | ( b[offset + 1] & 0xff ) << 16 | ( b[offset + 2] & 0xff ) << 8
+               | ( b[offset + 3] & 0xff );
+    }
+
+    private static class Entry {
+        long offset;
+        int packType;
+        /** the type of the object, or of the delta's base, once resolved. */
+        int type;
+        /** the size of the data, which for deltas is the size of the delta. */
+        int size;
+        long dataOffset;
+        int compressedLength;
+        int crc;
+        /** {@code OFS_DELTA} entries based on this one. */
+        List<Entry> children;
+        ObjectId id;
+        /** the content of a thin base, until it's appended. */
+        byte[] data;
+
+        void addChild( Entry child ) {
+            if ( children == null ) {
+                children = new ArrayList<Entry>( 2 );
+            }
+            children.add( child );
+        }
+    }
+
+    /**
+     * Reads from the client, copying every byte to the file and into the pack's checksum, and the current entry's
+     * CRC.
+     */
+    private static class PackInput {
+        final PushbackInputStream in;
+        final OutputStream output;
+        final MessageDigest digest = Constants.newMessageDigest();
+        final CRC32 crc = new CRC32();
+        final Inflater inflater = new Inflater();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        final byte[] scratch = new byte[BUFFER_SIZE];
+        int bufferPosition;
+        int bufferLength;
+        long position;
+
+        PackInput( PushbackInputStream in, OutputStream output ) {
+            this.in = in;
+            this.output = output;
+        }
+
+        private void fill() throws IOException {
+            if ( bufferPosition == bufferLength ) {
+                bufferLength = in.read( buffer, 0, buffer.length );
+                bufferPosition = 0;
+                if ( bufferLength <= 0 ) {
+                    bufferLength = 0;
+                    throw new EOFException( "pack truncated at offset " + position );
+                }
+            }
+        }
+
+        private void use( int n ) throws IOException {
+            output.write( buffer, bufferPosition, n );
+            digest.update( buffer, bufferPosition, n );
+            crc.update( buffer, bufferPosition, n );
+            bufferPosition += n;
+            position += n;
+        }
+
+        int read() throws IOException {
+            fill();
+            final int b = buffer[bufferPosition] & 0xff;
+            use( 1 );
+            return b;
+        }
+
+        byte[] read( int n ) throws IOException {
+            final byte[] b = new byte[n];
+            for ( int i = 0; i < n; i++ ) {
+                b[i] = (byte) read();
+            }
+            return b;
+        }
+
+        /**
+         * Reads a zlib stream, only to find where it ends.
+         * @return its compressed length.
+         */
+        long skipCompressed( int size ) throws IOException {
+            final long start = position;
+            long inflated = 0;
+            inflater.reset();
+            try {
+                while ( !inflater.finished() ) {
+                    fill();
+                    final int available = bufferLength - bufferPosition;
+                    inflater.setInput( buffer, bufferPosition, available );
+                    int n;
+                    while ( ( n = inflater.inflate( scratch ) ) > 0 ) {
+                        inflated += n;
+                    }
+                    if ( inflater.needsDictionary() ) {
+                        throw new IOException( "object at offset " + start + " is corrupt" );
+                    }
+                    use( available - inflater.getRemaining() );
+                }
+            } catch( DataFormatException e ) {
+                throw new IOException( "object at offset " + start + " is corrupt: " + e.getMessage() );
+            }
+            if ( inflated != size ) {
+                throw new IOException( "object at offset " + start + " has the wrong size" );
+            }
+            return position - start;
+        }
+
+        byte[] digest() {
+            return digest.digest();
+        }
+
+        byte[] readTrailer() throws IOException {
+            final byte[] trailer = new byte[Constants.OBJECT_ID_LENGTH];
+            for ( int i = 0; i < trailer.length; i++ ) {
+                fill();
+                trailer[i] = buffer[bufferPosition++];
+            }
+            return trailer;
+        }
+
+        /**
+         * Gives back what was read past the end of the pack.
+         */
+        void pushBack() throws IOException {
+            inflater.end();
+            if ( bufferPosition < bufferLength ) {
+                in.unread( buffer, bufferPosition, bufferLength - bufferPosition );
+            }
+        }
+    }
+
+    /**
+     * A pack which was added to the repository.
+     */
+    static class IndexedPack {
+        private final File           packFile;
+        private final File           indexFile;
+        private final List<ObjectId> objectIds;
+        private final int            deltaCount;
+        private final int            thinBaseCount;
+
+        IndexedPack( File packFile, File indexFile, List<ObjectId> objectIds, int deltaCount, int thinBaseCount ) {
+            this.packFile = packFile;
+            this.indexFile = indexFile;
+            this.objectIds = objectIds;
+            this.deltaCount = deltaCount;
+            this.thinBaseCount = thinBaseCount;
+        }
+
+        File getPackFile() {
+            return packFile;
+        }
+
+        File getIndexFile() {
+            return indexFile;
+        }
+
+        /**
+         * @return the ids of the objects in the pack, in order.
+         */
+        List<ObjectId> getObjectIds() {
+            return objectIds;
+        }
+
+        int getDeltaCount() {
+            return deltaCount;
+        }
+
+        /**
+         * @return how many delta bases the client left out, and were appended from the repository.
+         */
+        int getThinBaseCount() {
+            return thinBaseCount;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.sonatype.sshjgit.core.gitcommand;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * <p>Hands the pack of a push to a {@link PackIndexer}, and JGit's {@code ReceivePack} an empty pack instead, so that
+ * it only checks that the new refs are connected, and updates them.</p>
+ *
+ * <p>The commands before the pack are passed through, and tell whether a pack follows: it does unless every command
+ * deletes a ref. If indexing fails, reading fails with its message, which {@code ReceivePack} reports to the client
+ * as the reason it could not unpack.</p>
+ */
+class PackIndexingInputStream extends InputStream {
+    /** a pack without objects, as JGit's {@code IndexPack} reads it. */
+    static final byte[] EMPTY_PACK = createEmptyPack();
+
+    private final PushbackInputStream in;
+    private final PackIndexer         indexer;
+    private final Repository          repository;
+    private final boolean             checkObjects;
+
+    /** a pkt-line, or the empty pack, not yet read by JGit. */
+    private byte[] pending = new byte[0];
+    private int pendingPosition;
+    private boolean commandsRead;
+    private boolean packExpected;
+    private boolean packRead;
+    private PackIndexer.IndexedPack indexedPack;
+
+    /**
+     * @param in the client's input, after the ref advertisement.
+     * @param checkObjects whether to check the objects as {@code ReceivePack.setCheckReceivedObjects} does.
+     */
+    PackIndexingInputStream( InputStream in, PackIndexer indexer, Repository repository, boolean checkObjects ) {
+        this.in = new PushbackInputStream( in, PackIndexer.BUFFER_SIZE );
+        this.indexer = indexer;
+        this.repository = repository;
+        this.checkObjects = checkObjects;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] b = new byte[1];
+        return read( b, 0, 1 ) == 1 ? b[0] & 0xff : -1;
+    }
+
+    @Override
+    public int read( byte[] b, int off, int len ) throws IOException {
+        if ( len == 0 ) {
+            return 0;
+        }
+        if ( pendingPosition == pending.length ) {
+            if ( !commandsRead ) {
+                if ( !readCommand() ) {
+                    return in.read( b, off, len );
+                }
+            } else if ( packExpected && !packRead ) {
+                packRead = true;
+                indexedPack = indexer.index( repository, in, checkObjects );
+                pending = EMPTY_PACK;
+                pendingPosition = 0;
+            } else {
+                return in.read( b, off, len );
+            }
+        }
+        final int n = Math.min( len, pending.length - pendingPosition );
+        System.arraycopy( pending, pendingPosition, b, off, n );
+        pendingPosition += n;
+        return n;
+    }
+
+    /**
+     * Reads the next pkt-line of the commands into {@link #pending}.
+     * @return {@code false} if it's not a pkt-line, so that it's left to JGit to complain about.
+     */
+    private boolean readCommand() throws IOException {
+        final byte[] header = new byte[4];
+        int length = 0;
+        while ( length < header.length ) {
+            final int n = in.read( header, length, header.length - length );
+            if ( n < 0 ) {
+                break;
+            }
+            length += n;
+        }
+        final int size;
+        try {
+            size = length == header.length ? Integer.parseInt( new String( header, "UTF-8" ), 16 ) : -1;
+        } catch( NumberFormatException e ) {
+            in.unread( header, 0, length );
+            commandsRead = true;
+            return false;
+        }
+        if ( size != 0 && size < 4 ) {
+            in.unread( header, 0, length );
+            commandsRead = true;
+            return false;
+        }
+        pending = new byte[Math.max( size, 4 )];
+        System.arraycopy( header, 0, pending, 0, 4 );
+        pendingPosition = 0;
+        for ( int read = 4; read < pending.length; ) {
+            final int n = in.read( pending, read, pending.length - read );
+            if ( n < 0 ) {
+                // truncated, JGit will say so
+                pending = Arrays.copyOf( pending, read );
+                commandsRead = true;
+                return true;
+            }
+            read += n;
+        }
+        if ( size == 0 ) {
+            commandsRead = true;
+        } else if ( !isDelete( new String( pending, 4, pending.length - 4, "UTF-8" ) ) ) {
+            packExpected = true;
+        }
+        return true;
+    }
+
+    /**
+     * @param command {@code <old id> <new id> <ref name>}, maybe followed by capabilities.
+     */
+    private static boolean isDelete( String command ) {
+        final int idLength = Constants.OBJECT_ID_LENGTH * 2;
+        return command.length() >= 2 * idLength + 1
+               && command.substring( idLength + 1, 2 * idLength + 1 ).equals( ObjectId.zeroId().name() );
+    }
+
+    /**
+     * @return the pack which was added to the repository, or {@code null} if none was.
+     */
+    PackIndexer.IndexedPack getIndexedPack() {
+        return indexedPack;
+    }
+
+    private static byte[] createEmptyPack() {
+        final byte[] pack = new byte[12 + Constants.OBJECT_ID_LENGTH];
+        pack[0] = 'P';
+        pack[1] = 'A';
+        pack[2] = 'C';
+        pack[3] = 'K';
+        pack[7] = 2;
+        final MessageDigest digest = Constants.newMessageDigest();
+        digest.update( pack, 0, 12 );
+        System.arraycopy( digest.digest(), 0, pack, 12, Constants.OBJECT_ID_LENGTH );
+        return pack;
+    }
+}
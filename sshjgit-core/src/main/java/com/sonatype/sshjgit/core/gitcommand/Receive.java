@@ -13,31 +13,85 @@
 // limitations under the License.
 package com.sonatype.sshjgit.core.gitcommand;
 
+import com.sonatype.sshjgit.core.event.PostReceiveEventBus;
+import com.sonatype.sshjgit.core.event.RefUpdateEvent;
+import com.sonatype.sshjgit.core.replica.ReadReplica;
+import com.sonatype.sshjgit.core.repository.RepositoryCache;
+import com.sonatype.sshjgit.core.repository.RepositoryLockManager;
+import com.sonatype.sshjgit.core.repository.RepositoryMaintenance;
 import org.apache.shiro.SecurityUtils;
 import org.apache.shiro.subject.Subject;
 import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.transport.PostReceiveHook;
+import org.eclipse.jgit.transport.PreReceiveHook;
+import org.eclipse.jgit.transport.ReceiveCommand;
 import org.eclipse.jgit.transport.ReceivePack;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
 import java.io.IOException;
+import java.util.Collection;
 
 /** Receives change upload over SSH using the Git receive-pack protocol. */
 class Receive extends AbstractGitCommand {
     private static final Logger log = LoggerFactory.getLogger( Receive.class );
 
-    Receive(File reposRootDir) {
-        super(reposRootDir);
+    private final PackCache packCache;
+    private final ClonePackWarmer clonePackWarmer;
+    private final RepositoryLockManager lockManager;
+    private final RepositoryMaintenance maintenance;
+    private final RefAdvertisementCache advertisementCache;
+    private final PackIndexer packIndexer;
+    private final PostReceiveEventBus eventBus;
+    private final ReadReplica replica;
+    private RepositoryLockManager.RefUpdateLock refUpdateLock;
+
+    /**
+     * @param repositoryCache opens the repository.
+     * @param packCache responses to invalidate after the push, or {@code null} if there is no cache.
+     * @param clonePackWarmer generates the clone responses again after the push, or {@code null}.
+     * @param lockManager serializes the ref updates of pushes to the same repository.
+     * @param maintenance is told when the push starts and ends, or {@code null}.
+     * @param advertisementCache ref advertisements to reuse and to drop after the push, or {@code null}.
+     * @param packIndexer indexes the pushed pack instead of JGit, or {@code null}.
+     * @param eventBus is told about the updated refs, or {@code null}.
+     * @param replica forwards the ref updates to the primary, instead of updating them here, or {@code null}.
+     */
+    Receive(RepositoryCache repositoryCache, PackCache packCache, ClonePackWarmer clonePackWarmer, RepositoryLockManager lockManager,
+            RepositoryMaintenance maintenance, RefAdvertisementCache advertisementCache, PackIndexer packIndexer,
+            PostReceiveEventBus eventBus, ReadReplica replica) {
+        super(repositoryCache);
+        this.packCache = packCache;
+        this.clonePackWarmer = clonePackWarmer;
+        this.lockManager = lockManager;
+        this.maintenance = maintenance;
+        this.advertisementCache = advertisementCache;
+        this.packIndexer = packIndexer;
+        this.eventBus = eventBus;
+        this.replica = replica;
     }
 
     @Override
     protected void runImpl() throws IOException, Failure {
         final Subject subject = SecurityUtils.getSubject();
-        subject.checkPermission("gitrepo:push:" + getRepoNameAsPermissionParts(repo));
+        checkPermission(subject, "gitrepo:push:" + getRepoNameAsPermissionParts(repo));
+        if ( advertisementCache != null ) {
+            final RefAdvertisementStreams advertisement = new RefAdvertisementStreams( advertisementCache,
+                    repo.getDirectory(), "git-receive-pack", in, out );
+            if ( advertisement.sendCached() ) {
+                // nothing to push
+                return;
+            }
+            in = advertisement.getInputStream();
+            out = advertisement.getOutputStream();
+        }
+        if ( packIndexer != null ) {
+            // JGit gets an empty pack, and only checks connectivity, which still finds the objects not reachable
+            in = new PackIndexingInputStream( in, packIndexer, repo, true );
+        }
         ReceivePack rp = new ReceivePack( repo );
         rp.setAllowCreates( true );
-        final boolean mayNonFastForward = subject.isPermitted("gitrepo:non-fast-forward:" + getRepoNameAsPermissionParts(repo));
+        final boolean mayNonFastForward = isPermitted(subject, "gitrepo:non-fast-forward:" + getRepoNameAsPermissionParts(repo));
         rp.setAllowDeletes( mayNonFastForward );
         rp.setAllowNonFastForwards( mayNonFastForward );
         rp.setCheckReceivedObjects( true );
@@ -52,7 +106,93 @@ class Receive extends AbstractGitCommand {
         }
         log.info("setting LogIdent to " + name);
         rp.setRefLogIdent( new PersonIdent(name, name + "@example.com" ) );
-        rp.receive( in, out, err );
+
+        if ( replica != null ) {
+            // the commands get the primary's results, so JGit leaves the mirror's refs alone, and they are fetched
+            rp.setPreReceiveHook( new PreReceiveHook() {
+                @Override
+                public void onPreReceive( ReceivePack rp, Collection<ReceiveCommand> commands ) {
+                    replica.forwardPush( repo, projectName, commands );
+                }
+            } );
+        } else {
+            // the pack is received and checked without any lock, only updating the refs is serialized per repository
+            rp.setPreReceiveHook( new PreReceiveHook() {
+                @Override
+                public void onPreReceive( ReceivePack rp, Collection<ReceiveCommand> commands ) {
+                    lockRefUpdates( commands );
+                }
+            } );
+            rp.setPostReceiveHook( new PostReceiveHook() {
+                @Override
+                public void onPostReceive( ReceivePack rp, Collection<ReceiveCommand> commands ) {
+                    if ( advertisementCache != null ) {
+                        advertisementCache.refsUpdated( repo.getDirectory() );
+                    }
+                    unlockRefUpdates();
+                    if ( eventBus != null ) {
+                        publish( commands, name );
+                    }
+                }
+            } );
+        }
+        if ( maintenance != null ) {
+            maintenance.receiveStarted( repo.getDirectory() );
+        }
+        try {
+            rp.receive( in, out, err );
+        } catch( RefAdvertisementStreams.AdvertisementChanged e ) {
+            writeRemoteError( e.getMessage() );
+            throw new UnloggedFailure( 128, "fatal: " + e.getMessage() );
+        } finally {
+            unlockRefUpdates();
+            if ( maintenance != null ) {
+                maintenance.receiveFinished( repo.getDirectory() );
+            }
+            if ( packCache != null ) {
+                // refs may have moved, and the objects clients claim to have may now exist here
+                packCache.invalidate( repo.getDirectory() );
+                if ( clonePackWarmer != null ) {
+                    clonePackWarmer.repositoryChanged( repo.getDirectory() );
+                }
+            }
+        }
+    }
+
+    private void publish( Collection<ReceiveCommand> commands, String principal ) {
+        final long now = System.currentTimeMillis();
+        for ( ReceiveCommand command : commands ) {
+            if ( command.getResult() == ReceiveCommand.Result.OK ) {
+                eventBus.publish( new RefUpdateEvent( projectName, command.getRefName(), command.getOldId().name(),
+                        command.getNewId().name(), principal, now ) );
+            }
+        }
+    }
+
+    private void lockRefUpdates( Collection<ReceiveCommand> commands ) {
+        String failure = null;
+        try {
+            refUpdateLock = lockManager.lockRefUpdates( repo.getDirectory() );
+            if ( refUpdateLock == null ) {
+                failure = "timed out waiting for other pushes to this repository";
+            }
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            failure = "interrupted while waiting for other pushes to this repository";
+        }
+        if ( failure != null ) {
+            log.warn( failure + ": " + repo.getDirectory() );
+            for ( ReceiveCommand command : commands ) {
+                command.setResult( ReceiveCommand.Result.REJECTED_OTHER_REASON, failure );
+            }
+        }
+    }
+
+    private void unlockRefUpdates() {
+        if ( refUpdateLock != null ) {
+            refUpdateLock.release();
+            refUpdateLock = null;
+        }
     }
 
     @Override
@@ -0,0 +1,220 @@
+package com.sonatype.sshjgit.core.gitcommand;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Keeps the ref advertisements which {@code git-upload-pack} and {@code git-receive-pack} start with, as the
+ * bytes which were sent, per repository. Building one means listing {@code refs/} and {@code packed-refs} and
+ * peeling every annotated tag, which takes long for repositories with many tags, while most fetches of busy
+ * repositories, such as polling by build servers, find nothing new and end right after it.</p>
+ *
+ * <p>An advertisement is used as long as {@code packed-refs} has the same modification time and length as when it
+ * was recorded, and no push has updated the repository's refs since. {@link Receive} reports its ref updates with
+ * {@link #refsUpdated(File)}; refs changed on disk by other programs, without rewriting {@code packed-refs}, are not
+ * noticed.</p>
+ */
+public class RefAdvertisementCache {
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    private final long maxBytes;
+
+    /** access ordered, so iteration starts with the least recently used entry. guarded by itself. */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>( 16, 0.75f, true );
+    /** guarded by {@link #entries}. */
+    private long totalBytes;
+    /** how many times the refs of each repository have been updated. guarded by {@link #entries}. */
+    private final Map<String, Long> generations = new HashMap<String, Long>();
+
+    private final AtomicLong hits      = new AtomicLong();
+    private final AtomicLong misses    = new AtomicLong();
+    private final AtomicLong skipped   = new AtomicLong();
+
+    public RefAdvertisementCache() {
+        this( DEFAULT_MAX_BYTES );
+    }
+
+    /**
+     * @param maxBytes how many bytes all cached advertisements may use together.
+     */
+    public RefAdvertisementCache( long maxBytes ) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param repositoryDirectory the repository's directory.
+     * @param service {@code "git-upload-pack"} or {@code "git-receive-pack"}.
+     * @return the advertisement to send, or {@code null} if none is cached or the refs have changed since.
+     */
+    byte[] get( File repositoryDirectory, String service ) {
+        final String path = repositoryDirectory.getAbsolutePath();
+        final PackedRefs packedRefs = new PackedRefs( repositoryDirectory );
+        synchronized ( entries ) {
+            final Entry entry = entries.get( key( path, service ) );
+            if ( entry != null && entry.generation == generation( path ) && entry.packedRefs.equals( packedRefs ) ) {
+                hits.incrementAndGet();
+                return entry.advertisement;
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Call before the advertisement is built, and hand the result to {@link #put}, so that an advertisement built
+     * while a push updated the refs is not kept.
+     * @param repositoryDirectory the repository's directory.
+     * @return the state of the repository's refs, as far as this cache can tell.
+     */
+    Stamp stamp( File repositoryDirectory ) {
+        final String path = repositoryDirectory.getAbsolutePath();
+        final PackedRefs packedRefs = new PackedRefs( repositoryDirectory );
+        synchronized ( entries ) {
+            return new Stamp( path, generation( path ), packedRefs );
+        }
+    }
+
+    /**
+     * @param stamp the state of the refs before the advertisement was built.
+     * @param service {@code "git-upload-pack"} or {@code "git-receive-pack"}.
+     * @param advertisement the advertisement, including its closing flush-pkt. Must not be changed afterwards.
+     */
+    void put( Stamp stamp, String service, byte[] advertisement ) {
+        if ( advertisement.length > maxBytes ) {
+            return;
+        }
+        synchronized ( entries ) {
+            if ( generation( stamp.path ) != stamp.generation ) {
+                // a push updated the refs while it was built
+                return;
+            }
+            final Entry replaced = entries.put( key( stamp.path, service ), new Entry( stamp, advertisement ) );
+            if ( replaced != null ) {
+                totalBytes -= replaced.advertisement.length;
+            }
+            totalBytes += advertisement.length;
+            for ( Iterator<Entry> it = entries.values().iterator(); totalBytes > maxBytes && it.hasNext(); ) {
+                totalBytes -= it.next().advertisement.length;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops the advertisements of a repository, because its refs have been updated.
+     * @param repositoryDirectory the repository's directory.
+     */
+    public void refsUpdated( File repositoryDirectory ) {
+        final String path = repositoryDirectory.getAbsolutePath();
+        synchronized ( entries ) {
+            generations.put( path, generation( path ) + 1 );
+            for ( Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+                final Entry entry = it.next();
+                if ( entry.path.equals( path ) ) {
+                    totalBytes -= entry.advertisement.length;
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts a command which ended after the cached advertisement, because the client asked for nothing.
+     */
+    void commandSkipped() {
+        skipped.incrementAndGet();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return how many commands were answered from the cache alone, without {@code UploadPack} or
+     * {@code ReceivePack} building the advertisement.
+     */
+    public long getSkippedCount() {
+        return skipped.get();
+    }
+
+    /**
+     * @return how many bytes the cached advertisements currently use.
+     */
+    public long getSize() {
+        synchronized ( entries ) {
+            return totalBytes;
+        }
+    }
+
+    /** must hold the lock on {@link #entries}. */
+    private long generation( String path ) {
+        final Long generation = generations.get( path );
+        return generation == null ? 0 : generation;
+    }
+
+    private static String key( String path, String service ) {
+        return service + '\n' + path;
+    }
+
+    static class Stamp {
+        final String     path;
+        final long       generation;
+        final PackedRefs packedRefs;
+
+        Stamp( String path, long generation, PackedRefs packedRefs ) {
+            this.path = path;
+            this.generation = generation;
+            this.packedRefs = packedRefs;
+        }
+    }
+
+    /**
+     * What can be told about {@code packed-refs} without reading it, which changes whenever git packs refs.
+     */
+    private static class PackedRefs {
+        final long lastModified;
+        final long length;
+
+        PackedRefs( File repositoryDirectory ) {
+            final File file = new File( repositoryDirectory, "packed-refs" );
+            lastModified = file.lastModified();
+            length = file.length();
+        }
+
+        @Override
+        public boolean equals( Object o ) {
+            if ( !( o instanceof PackedRefs ) ) {
+                return false;
+            }
+            final PackedRefs other = (PackedRefs) o;
+            return lastModified == other.lastModified && length == other.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) ( lastModified ^ length );
+        }
+    }
+
+    private static class Entry {
+        final String     path;
+        final long       generation;
+        final PackedRefs packedRefs;
+        final byte[]     advertisement;
+
+        Entry( Stamp stamp, byte[] advertisement ) {
+            this.path = stamp.path;
+            this.generation = stamp.generation;
+            this.packedRefs = stamp.packedRefs;
+            this.advertisement = advertisement;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.sonatype.sshjgit.core.gitcommand;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+
+/**
+ * <p>Sits between {@code UploadPack} or {@code ReceivePack} and the client, and answers the start of the
+ * conversation from the {@link RefAdvertisementCache}:</p>
+ * <ul>
+ * <li>if an advertisement is cached, it is sent before {@code UploadPack} or {@code ReceivePack} runs. Clients
+ * which are up to date, or only list the refs, answer with a flush-pkt, and {@link #sendCached()} then tells that
+ * there is nothing left to do. Otherwise, {@code UploadPack} or {@code ReceivePack} still has to build the
+ * advertisement, because it keeps track of the advertised refs for what follows, but the copy it writes is
+ * dropped. If the refs have changed since the cached advertisement was built, the client answers refs which are
+ * no longer advertised, so the command is stopped with {@link AdvertisementChanged} before the answer is
+ * read;</li>
+ * <li>otherwise, the advertisement {@code UploadPack} or {@code ReceivePack} writes is recorded and cached.</li>
+ * </ul>
+ */
+class RefAdvertisementStreams {
+    private static final byte[] FLUSH_PKT = { '0', '0', '0', '0' };
+
+    private final RefAdvertisementCache cache;
+    private final File                  repositoryDirectory;
+    private final String                service;
+    private final OutputStream          out;
+    private       InputStream           in;
+
+    /** the advertisement sent from the cache, or {@code null} if the one being written is sent and cached. */
+    private byte[] sentCached;
+
+    RefAdvertisementStreams( RefAdvertisementCache cache, File repositoryDirectory, String service, InputStream in, OutputStream out ) {
+        this.cache = cache;
+        this.repositoryDirectory = repositoryDirectory;
+        this.service = service;
+        this.in = in;
+        this.out = out;
+    }
+
+    /**
+     * Sends the cached advertisement, if there is one, and waits for the client's answer to it.
+     * @return {@code true} if the client asked for nothing, so the command is done.
+     */
+    boolean sendCached() throws IOException {
+        final byte[] advertisement = cache.get( repositoryDirectory, service );
+        if ( advertisement == null ) {
+            return false;
+        }
+        out.write( advertisement );
+        out.flush();
+        sentCached = advertisement;
+
+        final byte[] first = new byte[FLUSH_PKT.length];
+        int read = 0;
+        while ( read < first.length ) {
+            final int n = in.read( first, read, first.length - read );
+            if ( n < 0 ) {
+                if ( read == 0 ) {
+                    // the client only wanted to see the refs, and hung up
+                    cache.commandSkipped();
+                    return true;
+                }
+                throw new EOFException( "client hung up in the middle of a pkt-line" );
+            }
+            read += n;
+        }
+        if ( Arrays.equals( first, FLUSH_PKT ) ) {
+            cache.commandSkipped();
+            return true;
+        }
+        in = new SequenceInputStream( new ByteArrayInputStream( first ), in );
+        return false;
+    }
+
+    InputStream getInputStream() {
+        return in;
+    }
+
+    /**
+     * Call after {@link #sendCached()}, before {@code UploadPack} or {@code ReceivePack} starts.
+     */
+    OutputStream getOutputStream() {
+        return new AdvertisementOutputStream( out );
+    }
+
+    /**
+     * Thrown when the advertisement {@code UploadPack} or {@code ReceivePack} builds differs from the cached one
+     * the client received, because refs were updated in between. Nothing has been written to the client then, so
+     * it can be told to try again.
+     */
+    static class AdvertisementChanged extends IOException {
+        AdvertisementChanged() {
+            super( "refs were updated while the request was being read, please try again" );
+        }
+    }
+
+    /**
+     * Follows the pkt-lines written until the flush-pkt which ends the advertisement, and drops or records them.
+     */
+    private class AdvertisementOutputStream extends FilterOutputStream {
+        private final RefAdvertisementCache.Stamp stamp;
+        private final ByteArrayOutputStream       recorded;
+
+        /** whether the advertisement is still being written. */
+        private boolean advertising = true;
+        /** the length header of the pkt-line being written, while incomplete. */
+        private final StringBuilder header = new StringBuilder();
+        /** how many bytes of the current pkt-line's payload are still to come. */
+        private int remaining;
+
+        AdvertisementOutputStream( OutputStream out ) {
+            super( out );
+            stamp = sentCached != null ? null : cache.stamp( repositoryDirectory );
+            recorded = new ByteArrayOutputStream();
+        }
+
+        @Override
+        public void write( int b ) throws IOException {
+            if ( advertising ) {
+                follow( new byte[]{ (byte) b }, 0, 1 );
+            } else {
+                out.write( b );
+            }
+        }
+
+        @Override
+        public void write( byte[] b, int off, int len ) throws IOException {
+            if ( !advertising ) {
+                out.write( b, off, len );
+                return;
+            }
+            final int end = off + len;
+            final int consumed = follow( b, off, len );
+            if ( consumed < end ) {
+                out.write( b, consumed, end - consumed );
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if ( !advertising || sentCached == null ) {
+                out.flush();
+            }
+        }
+
+        /**
+         * @return the offset after the advertisement's last byte, or {@code off + len} if it continues.
+         */
+        private int follow( byte[] b, int off, int len ) throws IOException {
+            final int end = off + len;
+            int i = off;
+            while ( advertising && i < end ) {
+                if ( remaining > 0 ) {
+                    final int n = Math.min( remaining, end - i );
+                    remaining -= n;
+                    i += n;
+                    continue;
+                }
+                header.append( (char) ( b[i++] & 0xff ) );
+                if ( header.length() < 4 ) {
+                    continue;
+                }
+                final int length;
+                try {
+                    length = Integer.parseInt( header.toString(), 16 );
+                } catch( NumberFormatException e ) {
+                    throw new IOException( "unexpected output while advertising refs: " + header );
+                }
+                header.setLength( 0 );
+                if ( length == 0 ) {
+                    advertising = false;
+                } else if ( length < 4 ) {
+                    throw new IOException( "unexpected output while advertising refs: " + length );
+                } else {
+                    remaining = length - 4;
+                }
+            }
+            recorded.write( b, off, i - off );
+            if ( sentCached == null ) {
+                out.write( b, off, i - off );
+                if ( !advertising ) {
+                    cache.put( stamp, service, recorded.toByteArray() );
+                }
+            } else if ( !advertising && !Arrays.equals( sentCached, recorded.toByteArray() ) ) {
+                throw new AdvertisementChanged();
+            }
+            return i;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.sonatype.sshjgit.core.gitcommand;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>{@link CommandExecutor} with two bounded pools: one for {@code git-receive-pack}, and one for everything else
+ * (i.e. {@code git-upload-pack}). That way a burst of fetches can never starve pushes of threads, and the other way
+ * around.</p>
+ *
+ * <p>Each pool has a fixed number of threads and a bounded queue. When the queue is full, the command is rejected
+ * instead of spawning yet another thread. With a queue of zero, a command is rejected as soon as all threads of its
+ * pool are busy.</p>
+ *
+ * <p>On runtimes which support virtual threads, the pools can be backed by those instead of platform threads. Each
+ * worker is then cheap, so the thread counts can be raised considerably. On runtimes without virtual threads,
+ * platform threads are used regardless.</p>
+ */
+public class ThreadPoolCommandExecutor implements CommandExecutor {
+    private static final Logger log = LoggerFactory.getLogger( ThreadPoolCommandExecutor.class );
+
+    public static final int DEFAULT_UPLOAD_THREADS  = 32;
+    public static final int DEFAULT_RECEIVE_THREADS = 8;
+    public static final int DEFAULT_MAX_QUEUED      = 256;
+
+    private static final String RECEIVE_PACK = "git-receive-pack";
+
+    private final ThreadPoolExecutor uploadPool;
+    private final ThreadPoolExecutor receivePool;
+    private final boolean            virtualThreads;
+
+    public ThreadPoolCommandExecutor() {
+        this( DEFAULT_UPLOAD_THREADS, DEFAULT_RECEIVE_THREADS, DEFAULT_MAX_QUEUED, false );
+    }
+
+    /**
+     * @param uploadThreads how many {@code git-upload-pack} commands may run at the same time.
+     * @param receiveThreads how many {@code git-receive-pack} commands may run at the same time.
+     * @param maxQueued how many commands may wait for a thread in each pool, before new ones are rejected. {@code 0}
+     * rejects commands right away when there is no idle thread.
+     * @param virtualThreads {@code true} to run commands on virtual threads, if the runtime supports them.
+     */
+    public ThreadPoolCommandExecutor( int uploadThreads, int receiveThreads, int maxQueued, boolean virtualThreads ) {
+        if ( uploadThreads < 1 || receiveThreads < 1 ) {
+            throw new IllegalArgumentException( "thread counts must be at least 1." );
+        }
+        if ( maxQueued < 0 ) {
+            throw new IllegalArgumentException( "maxQueued must not be negative." );
+        }
+        this.virtualThreads = virtualThreads && isVirtualThreadsSupported();
+        if ( virtualThreads && !this.virtualThreads ) {
+            log.info( "Virtual threads are not supported by this runtime, using platform threads." );
+        }
+        uploadPool = createPool( "upload", uploadThreads, maxQueued );
+        receivePool = createPool( "receive", receiveThreads, maxQueued );
+    }
+
+    @Override
+    public void execute( String commandName, final String threadName, final Runnable command ) throws RejectedExecutionException {
+        final ThreadPoolExecutor pool = RECEIVE_PACK.equals( commandName ) ? receivePool : uploadPool;
+        pool.execute( new Runnable() {
+            @Override
+            public void run() {
+                final Thread thread = Thread.currentThread();
+                final String poolThreadName = thread.getName();
+                thread.setName( threadName );
+                try {
+                    command.run();
+                } finally {
+                    thread.setName( poolThreadName );
+                }
+            }
+        } );
+    }
+
+    @Override
+    public void shutdown() {
+        uploadPool.shutdown();
+        receivePool.shutdown();
+    }
+
+    /**
+     * @return whether commands are run on virtual threads.
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * @return number of {@code git-upload-pack} commands waiting for a thread.
+     */
+    public int getQueuedUploads() {
+        return uploadPool.getQueue().size();
+    }
+
+    /**
+     * @return number of {@code git-receive-pack} commands waiting for a thread.
+     */
+    public int getQueuedReceives() {
+        return receivePool.getQueue().size();
+    }
+
+    /**
+     * @return number of commands currently running, in both pools.
+     */
+    public int getActiveCount() {
+        return uploadPool.getActiveCount() + receivePool.getActiveCount();
+    }
+
+    /**
+     * @return {@code true} if this runtime can create virtual threads.
+     */
+    public static boolean isVirtualThreadsSupported() {
+        try {
+            // invoked rather than just looked up, because preview runtimes have the method but may refuse to use it
+            Thread.class.getMethod( "ofVirtual" ).invoke( null );
+            return true;
+        } catch( Exception e ) {
+            return false;
+        }
+    }
+
+    private ThreadPoolExecutor createPool( String kind, int threads, int maxQueued ) {
+        // hands a command over only to an idle thread, which waits on the queue
+        final BlockingQueue<Runnable> queue = maxQueued == 0
+                ? new SynchronousQueue<Runnable>() : new LinkedBlockingQueue<Runnable>( maxQueued );
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                threads, threads, 60L, TimeUnit.SECONDS, queue,
+                createThreadFactory( "sshjgit-" + kind + "-" ),
+                new ThreadPoolExecutor.AbortPolicy() );
+        pool.allowCoreThreadTimeOut( true );
+        return pool;
+    }
+
+    private ThreadFactory createThreadFactory( final String prefix ) {
+        if ( virtualThreads ) {
+            return createVirtualThreadFactory( prefix );
+        }
+        final AtomicInteger counter = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread( Runnable r ) {
+                final Thread thread = new Thread( r, prefix + counter.incrementAndGet() );
+                thread.setDaemon( true );
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Equivalent of {@code Thread.ofVirtual().name(prefix, 1).factory()}, done reflectively so this class still
+     * loads on older runtimes.
+     */
+    private static ThreadFactory createVirtualThreadFactory( String prefix ) {
+        try {
+            final Object builder = Thread.class.getMethod( "ofVirtual" ).invoke( null );
+            final Class<?> builderType = Class.forName( "java.lang.Thread$Builder" );
+            final Method name = builderType.getMethod( "name", String.class, long.class );
+            final Object namedBuilder = name.invoke( builder, prefix, 1L );
+            return (ThreadFactory) builderType.getMethod( "factory" ).invoke( namedBuilder );
+        } catch( Exception e ) {
+            throw new IllegalStateException( "Could not create a virtual thread factory.", e );
+        }
+    }
+}
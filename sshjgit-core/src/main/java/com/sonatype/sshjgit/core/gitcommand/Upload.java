@@ -13,23 +13,95 @@
 // limitations under the License.
 package com.sonatype.sshjgit.core.gitcommand;
 
+import com.sonatype.sshjgit.core.repository.RepositoryCache;
 import org.apache.shiro.SecurityUtils;
 import org.eclipse.jgit.transport.UploadPack;
 
-import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
 
 /** Sends changes over SSH using the Git upload-pack protocol. */
 class Upload extends AbstractGitCommand {
-    Upload(File reposRootDir) {
-        super(reposRootDir);
+    private final PackCache packCache;
+    private final ClonePackWarmer clonePackWarmer;
+    private final RefAdvertisementCache advertisementCache;
+    private final boolean protocolV2;
+
+    /**
+     * @param repositoryCache opens the repository.
+     * @param packCache responses to reuse, or {@code null} to always run {@code UploadPack} in full.
+     * @param clonePackWarmer is told about the capabilities of clones, or {@code null}.
+     * @param advertisementCache ref advertisements to reuse, or {@code null} to always let {@code UploadPack}
+     * send it.
+     * @param protocolV2 whether clients which ask for git wire protocol version 2 get it.
+     */
+    Upload(RepositoryCache repositoryCache, PackCache packCache, ClonePackWarmer clonePackWarmer,
+           RefAdvertisementCache advertisementCache, boolean protocolV2) {
+        super(repositoryCache);
+        this.packCache = packCache;
+        this.clonePackWarmer = clonePackWarmer;
+        this.advertisementCache = advertisementCache;
+        this.protocolV2 = protocolV2;
     }
 
     @Override
     protected void runImpl() throws IOException, Failure {
-        SecurityUtils.getSubject().checkPermission("gitrepo:fetch:" + getRepoNameAsPermissionParts(repo));
+        checkPermission(SecurityUtils.getSubject(), "gitrepo:fetch:" + getRepoNameAsPermissionParts(repo));
+        if ( protocolV2 && UploadPackV2.isRequested( getEnvironmentVariable( "GIT_PROTOCOL" ) ) ) {
+            new UploadPackV2( repo, in, out, new UploadPackV2.Fetcher() {
+                @Override
+                public void fetch( InputStream request, OutputStream response ) throws IOException {
+                    upload( request, response );
+                }
+            }, getMetrics() ).serve();
+            return;
+        }
+        if ( advertisementCache != null ) {
+            final RefAdvertisementStreams advertisement = new RefAdvertisementStreams( advertisementCache,
+                    repo.getDirectory(), "git-upload-pack", in, out );
+            if ( advertisement.sendCached() ) {
+                return;
+            }
+            in = advertisement.getInputStream();
+            out = advertisement.getOutputStream();
+        }
+        try {
+            upload( in, out );
+        } catch( RefAdvertisementStreams.AdvertisementChanged e ) {
+            writeRemoteError( e.getMessage() );
+            throw new UnloggedFailure( 128, "fatal: " + e.getMessage() );
+        }
+    }
+
+    /**
+     * Runs version 0 {@code UploadPack}, or answers from the pack cache.
+     */
+    private void upload( InputStream in, OutputStream out ) throws IOException {
         UploadPack up = new UploadPack( repo );
-        up.upload( in, out, err );
+        if ( packCache == null ) {
+            up.upload( in, out, err );
+            return;
+        }
+
+        final PackCachingStreams streams = new PackCachingStreams( packCache, repo.getDirectory(), in, out );
+        if ( clonePackWarmer != null ) {
+            streams.setRequestListener( new PackCachingStreams.RequestListener() {
+                @Override
+                public void requestComplete( List<String> wants, List<String> haves, List<String> other ) {
+                    clonePackWarmer.observe( repo, wants, haves, other );
+                }
+            } );
+        }
+        try {
+            up.upload( streams.getInputStream(), streams.getOutputStream(), err );
+            streams.complete();
+        } catch( PackCachingStreams.CachedResponseSent sent ) {
+            // the client has received its pack already
+        } finally {
+            streams.abort();
+        }
     }
 
     @Override
@@ -0,0 +1,513 @@
+package com.sonatype.sshjgit.core.gitcommand;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+
+import com.sonatype.sshjgit.core.metrics.ServerMetrics;
+
+/**
+ * <p>Serves {@code git-upload-pack} in git wire protocol version 2, for clients which ask for it with
+ * {@code GIT_PROTOCOL=version=2}. Instead of advertising every ref up front, the server only lists its
+ * capabilities, and the client asks for the refs it needs with {@code ls-refs}, by prefix.</p>
+ *
+ * <p>{@code ls-refs} is answered here. JGit's {@code UploadPack} only speaks version 0, so {@code fetch} is
+ * answered in two parts: negotiation rounds, which don't end with {@code done}, are acknowledged here, by looking up
+ * the {@code have}s; the final request is turned into the version 0 request a client would send, with the common
+ * {@code have}s the client repeats, and handed to a {@link Fetcher}, whose response is turned into a version 2
+ * {@code packfile} section. Shallow fetches, partial clone filters and wants of objects which are not the tips of
+ * refs, which {@code UploadPack} can't serve, are packed by a {@link FilteredPackWriter} instead.</p>
+ */
+class UploadPackV2 {
+    /** value of {@code GIT_PROTOCOL} which asks for this protocol. */
+    static final String VERSION_2 = "version=2";
+
+    private static final String FLUSH = null;
+    private static final String DELIM = new String( "delim" );
+
+    private final Repository    repository;
+    private final InputStream   in;
+    private final OutputStream  out;
+    private final Fetcher       fetcher;
+    private final ServerMetrics metrics;
+
+    /**
+     * @param repository the repository to serve.
+     * @param in from the client.
+     * @param out to the client.
+     * @param fetcher runs version 0 {@code UploadPack}, for the final request of each {@code fetch}.
+     * @param metrics is told how much partial clone filters left out.
+     */
+    UploadPackV2( Repository repository, InputStream in, OutputStream out, Fetcher fetcher, ServerMetrics metrics ) {
+        this.repository = repository;
+        this.in = in;
+        this.out = out;
+        this.fetcher = fetcher;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param gitProtocol the value of the {@code GIT_PROTOCOL} environment variable, or {@code null}.
+     * @return whether the client asked for protocol version 2.
+     */
+    static boolean isRequested( String gitProtocol ) {
+        if ( gitProtocol == null ) {
+            return false;
+        }
+        for ( String parameter : gitProtocol.split( ":" ) ) {
+            if ( VERSION_2.equals( parameter ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Advertises the capabilities, and answers commands until the client hangs up.
+     */
+    void serve() throws IOException, AbstractCommand.Failure {
+        writeString( "version 2\n" );
+        writeString( "agent=sshjgit\n" );
+        writeString( "ls-refs\n" );
+        writeString( "fetch=shallow filter\n" );
+        writeFlush();
+        out.flush();
+
+        for ( ;; ) {
+            final String command;
+            try {
+                command = readString();
+            } catch( EOFException e ) {
+                return;
+            }
+            if ( command == FLUSH ) {
+                return;
+            }
+            // capabilities the client sends along, such as its agent, are not needed
+            String line = command;
+            while ( line != FLUSH && line != DELIM ) {
+                line = readString();
+            }
+            final List<String> arguments = new ArrayList<String>();
+            while ( line != FLUSH ) {
+                line = readString();
+                if ( line != FLUSH && line != DELIM ) {
+                    arguments.add( line );
+                }
+            }
+            if ( "command=ls-refs".equals( command ) ) {
+                lsRefs( arguments );
+            } else if ( "command=fetch".equals( command ) ) {
+                fetch( arguments );
+            } else {
+                fail( "unknown command " + command );
+            }
+            out.flush();
+        }
+    }
+
+    private void lsRefs( List<String> arguments ) throws IOException {
+        boolean symrefs = false;
+        boolean peel = false;
+        final List<String> prefixes = new ArrayList<String>();
+        for ( String argument : arguments ) {
+            if ( argument.equals( "symrefs" ) ) {
+                symrefs = true;
+            } else if ( argument.equals( "peel" ) ) {
+                peel = true;
+            } else if ( argument.startsWith( "ref-prefix " ) ) {
+                prefixes.add( argument.substring( "ref-prefix ".length() ) );
+            }
+        }
+
+        final Map<String, Ref> refs = new TreeMap<String, Ref>( repository.getAllRefs() );
+        final Ref head = refs.remove( "HEAD" );
+        if ( head != null && matches( "HEAD", prefixes ) ) {
+            writeRef( head, symrefs, peel );
+        }
+        for ( Ref ref : refs.values() ) {
+            if ( matches( ref.getName(), prefixes ) ) {
+                writeRef( ref, symrefs, peel );
+            }
+        }
+        writeFlush();
+    }
+
+    private static boolean matches( String name, List<String> prefixes ) {
+        if ( prefixes.isEmpty() ) {
+            return true;
+        }
+        for ( String prefix : prefixes ) {
+            if ( name.startsWith( prefix ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void writeRef( Ref ref, boolean symrefs, boolean peel ) throws IOException {
+        if ( ref.getObjectId() == null ) {
+            // unborn, such as HEAD of an empty repository
+            return;
+        }
+        final StringBuilder line = new StringBuilder( ref.getObjectId().name() ).append( ' ' ).append( ref.getName() );
+        if ( symrefs && ref.isSymbolic() ) {
+            line.append( " symref-target:" ).append( ref.getTarget().getName() );
+        }
+        if ( peel ) {
+            final Ref peeled = ref.isPeeled() ? ref : repository.peel( ref );
+            if ( peeled.getPeeledObjectId() != null ) {
+                line.append( " peeled:" ).append( peeled.getPeeledObjectId().name() );
+            }
+        }
+        writeString( line.append( '\n' ).toString() );
+    }
+
+    private void fetch( List<String> arguments ) throws IOException, AbstractCommand.Failure {
+        final List<String> wants = new ArrayList<String>();
+        final List<String> haves = new ArrayList<String>();
+        final List<String> clientShallow = new ArrayList<String>();
+        final List<String> capabilities = new ArrayList<String>();
+        capabilities.add( "side-band-64k" );
+        boolean done = false;
+        int depth = 0;
+        ObjectFilter filter = ObjectFilter.NONE;
+        for ( String argument : arguments ) {
+            if ( argument.startsWith( "want " ) ) {
+                wants.add( objectId( argument, "want " ) );
+            } else if ( argument.startsWith( "have " ) ) {
+                haves.add( objectId( argument, "have " ) );
+            } else if ( argument.equals( "done" ) ) {
+                done = true;
+            } else if ( argument.equals( "thin-pack" ) || argument.equals( "no-progress" )
+                        || argument.equals( "include-tag" ) || argument.equals( "ofs-delta" ) ) {
+                capabilities.add( argument );
+            } else if ( argument.startsWith( "shallow " ) ) {
+                clientShallow.add( objectId( argument, "shallow " ) );
+            } else if ( argument.startsWith( "deepen " ) ) {
+                try {
+                    depth = Integer.parseInt( argument.substring( "deepen ".length() ) );
+                } catch( NumberFormatException e ) {
+                    fail( "invalid depth: " + argument );
+                }
+                if ( depth <= 0 ) {
+                    fail( "invalid depth: " + argument );
+                }
+            } else if ( argument.startsWith( "filter " ) ) {
+                try {
+                    filter = ObjectFilter.parse( argument.substring( "filter ".length() ) );
+                } catch( IllegalArgumentException e ) {
+                    fail( e.getMessage() );
+                }
+            } else {
+                fail( "unsupported fetch argument " + argument );
+            }
+        }
+        if ( wants.isEmpty() ) {
+            fail( "fetch without want" );
+        }
+
+        if ( !done ) {
+            acknowledge( haves );
+            return;
+        }
+        if ( depth == 0 && filter.isNone() && isAdvertised( wants ) ) {
+            writeString( "packfile\n" );
+            final byte[] request = ClonePackWarmer.createFetchRequest( wants, capabilities, haves );
+            fetcher.fetch( new ByteArrayInputStream( request ), new PackfileSectionOutputStream( out ) );
+            return;
+        }
+
+        // JGit's UploadPack can not serve this, the objects are chosen here
+        final FilteredPackWriter writer = new FilteredPackWriter( repository, filter, depth );
+        writer.prepare( wants, haves, clientShallow, capabilities.contains( "include-tag" ) );
+        if ( depth > 0 ) {
+            writeString( "shallow-info\n" );
+            for ( String id : writer.getShallow() ) {
+                writeString( "shallow " + id + '\n' );
+            }
+            for ( String id : writer.getUnshallow() ) {
+                writeString( "unshallow " + id + '\n' );
+            }
+            writeDelim();
+        }
+        writeString( "packfile\n" );
+        final PackDataOutputStream pack = new PackDataOutputStream( out );
+        try {
+            writer.writePack( pack, capabilities.contains( "ofs-delta" ) );
+            pack.flush();
+        } finally {
+            pack.release();
+        }
+        writeFlush();
+        if ( !filter.isNone() ) {
+            metrics.fetchFiltered( filter.getSpec(), writer.getOmittedObjectCount(), writer.getOmittedBytes() );
+        }
+    }
+
+    /**
+     * @return whether all the object ids are those of refs, or tags peeled, which version 0 {@code UploadPack}
+     * requires.
+     */
+    private boolean isAdvertised( List<String> wants ) {
+        final Set<String> advertised = new HashSet<String>();
+        for ( Ref ref : repository.getAllRefs().values() ) {
+            if ( ref.getObjectId() != null ) {
+                advertised.add( ref.getObjectId().name() );
+            }
+            if ( ref.getPeeledObjectId() != null ) {
+                advertised.add( ref.getPeeledObjectId().name() );
+            }
+        }
+        return advertised.containsAll( wants );
+    }
+
+    /**
+     * @return the object id following {@code prefix} in the argument, which fails the command if it is not one.
+     */
+    private String objectId( String argument, String prefix ) throws IOException, AbstractCommand.Failure {
+        final String id = argument.substring( prefix.length() );
+        if ( !ObjectId.isId( id ) ) {
+            fail( "invalid object id: " + argument );
+        }
+        return id;
+    }
+
+    /**
+     * Tells the client why its request can't be served, and ends the command, with the exit code of git's own
+     * {@code fatal} errors.
+     */
+    private void fail( String message ) throws IOException, AbstractCommand.Failure {
+        writeString( "ERR " + message + '\n' );
+        out.flush();
+        throw new AbstractCommand.Failure( 128, "fatal: " + message );
+    }
+
+    /**
+     * Answers a negotiation round. The server never says it's ready, so the client goes on until it sends
+     * {@code done}.
+     */
+    private void acknowledge( List<String> haves ) throws IOException {
+        writeString( "acknowledgments\n" );
+        boolean common = false;
+        for ( String have : haves ) {
+            if ( repository.hasObject( ObjectId.fromString( have ) ) ) {
+                writeString( "ACK " + have + '\n' );
+                common = true;
+            }
+        }
+        if ( !common ) {
+            writeString( "NAK\n" );
+        }
+        writeFlush();
+    }
+
+    /**
+     * @return the payload of the next pkt-line, without its trailing newline, or {@link #FLUSH} or {@link #DELIM}.
+     */
+    private String readString() throws IOException {
+        final byte[] header = new byte[4];
+        readFully( header );
+        final int length;
+        try {
+            length = Integer.parseInt( new String( header, "UTF-8" ), 16 );
+        } catch( NumberFormatException e ) {
+            throw new IOException( "invalid pkt-line length: " + new String( header, "UTF-8" ) );
+        }
+        if ( length == 0 ) {
+            return FLUSH;
+        }
+        if ( length == 1 ) {
+            return DELIM;
+        }
+        if ( length < 4 ) {
+            throw new IOException( "invalid pkt-line length: " + length );
+        }
+        final byte[] payload = new byte[length - 4];
+        readFully( payload );
+        final String line = new String( payload, "UTF-8" );
+        return line.endsWith( "\n" ) ? line.substring( 0, line.length() - 1 ) : line;
+    }
+
+    private void readFully( byte[] buffer ) throws IOException {
+        int read = 0;
+        while ( read < buffer.length ) {
+            final int n = in.read( buffer, read, buffer.length - read );
+            if ( n < 0 ) {
+                throw new EOFException();
+            }
+            read += n;
+        }
+    }
+
+    private void writeString( String payload ) throws IOException {
+        final byte[] bytes = payload.getBytes( "UTF-8" );
+        final String length = Integer.toHexString( bytes.length + 4 );
+        out.write( ( "0000".substring( length.length() ) + length ).getBytes( "UTF-8" ) );
+        out.write( bytes );
+    }
+
+    private void writeFlush() throws IOException {
+        out.write( new byte[]{ '0', '0', '0', '0' } );
+    }
+
+    private void writeDelim() throws IOException {
+        out.write( new byte[]{ '0', '0', '0', '1' } );
+    }
+
+    /**
+     * Runs version 0 {@code UploadPack}.
+     */
+    interface Fetcher {
+        /**
+         * @param request the pkt-lines a version 0 client sends after the refs have been advertised.
+         * @param out where to write the response, including the ref advertisement.
+         */
+        void fetch( InputStream request, OutputStream out ) throws IOException;
+    }
+
+    /**
+     * Drops what version 0 {@code UploadPack} writes before the pack: the ref advertisement, up to its flush-pkt,
+     * and the {@code ACK} and {@code NAK} lines. The side band pkt-lines which follow are passed on, as they are
+     * what the {@code packfile} section consists of.
+     */
+    private static class PackfileSectionOutputStream extends FilterOutputStream {
+        private boolean advertising = true;
+        private boolean passing;
+        /** the pkt-line being followed, up to its first payload byte. */
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        /** how many more bytes of the current pkt-line are dropped. */
+        private int skipping;
+
+        PackfileSectionOutputStream( OutputStream out ) {
+            super( out );
+        }
+
+        @Override
+        public void write( int b ) throws IOException {
+            write( new byte[]{ (byte) b }, 0, 1 );
+        }
+
+        @Override
+        public void write( byte[] b, int off, int len ) throws IOException {
+            final int end = off + len;
+            int i = off;
+            while ( !passing && i < end ) {
+                if ( skipping > 0 ) {
+                    final int n = Math.min( skipping, end - i );
+                    skipping -= n;
+                    i += n;
+                    continue;
+                }
+                pending.write( b[i++] );
+                if ( pending.size() < 4 ) {
+                    continue;
+                }
+                final String header = pending.toString( "UTF-8" ).substring( 0, 4 );
+                final int length;
+                try {
+                    length = Integer.parseInt( header, 16 );
+                } catch( NumberFormatException e ) {
+                    throw new IOException( "unexpected output from upload-pack: " + header );
+                }
+                if ( length == 0 && advertising ) {
+                    advertising = false;
+                    pending.reset();
+                } else if ( advertising ) {
+                    pending.reset();
+                    skipping = length - 4;
+                } else if ( length == 0 ) {
+                    // no pack follows
+                    passing = true;
+                } else if ( pending.size() == 5 ) {
+                    final byte first = pending.toByteArray()[4];
+                    if ( first == 'A' || first == 'N' ) {
+                        pending.reset();
+                        skipping = length - 5;
+                    } else {
+                        passing = true;
+                    }
+                }
+            }
+            if ( passing ) {
+                if ( pending.size() > 0 ) {
+                    pending.writeTo( out );
+                    pending.reset();
+                }
+                if ( i < end ) {
+                    out.write( b, i, end - i );
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the pack as side band channel 1 pkt-lines, each filling one ssh packet, from a pooled buffer.
+     */
+    private static class PackDataOutputStream extends OutputStream {
+        /** pkt-line length header and side band channel number. */
+        private static final int HEADER = 5;
+
+        private final OutputStream out;
+        private final byte[]       buffer = BufferPool.SHARED.acquire();
+        private int                count = HEADER;
+
+        PackDataOutputStream( OutputStream out ) {
+            this.out = out;
+        }
+
+        @Override
+        public void write( int b ) throws IOException {
+            if ( count == buffer.length ) {
+                flush();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write( byte[] b, int off, int len ) throws IOException {
+            while ( len > 0 ) {
+                if ( count == buffer.length ) {
+                    flush();
+                }
+                final int n = Math.min( len, buffer.length - count );
+                System.arraycopy( b, off, buffer, count, n );
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if ( count == HEADER ) {
+                return;
+            }
+            final String length = Integer.toHexString( count );
+            for ( int i = 0; i < 4; i++ ) {
+                buffer[i] = (byte) ( i < 4 - length.length() ? '0' : length.charAt( i - ( 4 - length.length() ) ) );
+            }
+            buffer[4] = 1;
+            out.write( buffer, 0, count );
+            count = HEADER;
+        }
+
+        void release() {
+            BufferPool.SHARED.release( buffer );
+        }
+    }
+}
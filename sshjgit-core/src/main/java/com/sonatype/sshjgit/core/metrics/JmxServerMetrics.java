@@ -0,0 +1,340 @@
+package com.sonatype.sshjgit.core.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * <p>{@link ServerMetrics} which keeps counters and {@link LatencyHistogram}s in memory, and shows them as the
+ * attributes of an MBean once {@link #register()}ed.</p>
+ *
+ * <p>Commands other than {@code git-upload-pack} and {@code git-receive-pack} only count towards
+ * {@link #getQueuedCommands()} and the output counters.</p>
+ */
+public class JmxServerMetrics implements ServerMetrics, JmxServerMetricsMBean {
+    public static final String DEFAULT_OBJECT_NAME = "com.sonatype.sshjgit:type=ServerMetrics";
+
+    private final CommandStats upload = new CommandStats();
+    private final CommandStats receive = new CommandStats();
+
+    private final AtomicInteger activeSessions = new AtomicInteger();
+    private final AtomicLong sessionsOpened = new AtomicLong();
+    private final AtomicInteger queuedCommands = new AtomicInteger();
+
+    private final AtomicLong outputWrites = new AtomicLong();
+    private final AtomicLong outputPackets = new AtomicLong();
+
+    private final AtomicLong filteredFetches = new AtomicLong();
+    private final AtomicLong filterOmittedObjects = new AtomicLong();
+    private final AtomicLong filterOmittedBytes = new AtomicLong();
+
+    private final AtomicLong replicaUpdates = new AtomicLong();
+    private final AtomicLong replicaUpdateFailures = new AtomicLong();
+    private final LatencyHistogram replicationLags = new LatencyHistogram();
+
+    private final LatencyHistogram authentications = new LatencyHistogram();
+    private final AtomicLong authenticationFailures = new AtomicLong();
+    private final LatencyHistogram permissionChecks = new LatencyHistogram();
+    private final AtomicLong permissionDenials = new AtomicLong();
+
+    private MBeanServer registeredWith;
+    private ObjectName registeredAs;
+
+    /**
+     * Registers this as {@value #DEFAULT_OBJECT_NAME} with the platform MBean server.
+     */
+    public void register() throws JMException {
+        register( ManagementFactory.getPlatformMBeanServer(), new ObjectName( DEFAULT_OBJECT_NAME ) );
+    }
+
+    /**
+     * Registers this with the given MBean server. Use different names for several servers in one JVM.
+     */
+    public synchronized void register( MBeanServer mbeanServer, ObjectName objectName ) throws JMException {
+        unregister();
+        mbeanServer.registerMBean( this, objectName );
+        registeredWith = mbeanServer;
+        registeredAs = objectName;
+    }
+
+    /**
+     * Removes this from the MBean server, if it was registered. Measurements are still kept.
+     */
+    public synchronized void unregister() throws JMException {
+        if ( registeredWith != null ) {
+            try {
+                registeredWith.unregisterMBean( registeredAs );
+            } finally {
+                registeredWith = null;
+                registeredAs = null;
+            }
+        }
+    }
+
+    @Override
+    public void sessionOpened() {
+        activeSessions.incrementAndGet();
+        sessionsOpened.incrementAndGet();
+    }
+
+    @Override
+    public void sessionClosed() {
+        activeSessions.decrementAndGet();
+    }
+
+    @Override
+    public void commandQueued( String commandName ) {
+        queuedCommands.incrementAndGet();
+    }
+
+    @Override
+    public void commandDequeued( String commandName ) {
+        queuedCommands.decrementAndGet();
+    }
+
+    @Override
+    public void commandCompleted( String commandName, long durationNanos, long bytesIn, long bytesOut, boolean failed ) {
+        final CommandStats stats;
+        if ( "git-upload-pack".equals( commandName ) ) {
+            stats = upload;
+        } else if ( "git-receive-pack".equals( commandName ) ) {
+            stats = receive;
+        } else {
+            return;
+        }
+        stats.durations.record( durationNanos );
+        stats.bytesIn.addAndGet( bytesIn );
+        stats.bytesOut.addAndGet( bytesOut );
+        if ( failed ) {
+            stats.failures.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void outputSent( String commandName, long writes, long packets ) {
+        outputWrites.addAndGet( writes );
+        outputPackets.addAndGet( packets );
+    }
+
+    @Override
+    public void fetchFiltered( String filter, long omittedObjects, long omittedBytes ) {
+        filteredFetches.incrementAndGet();
+        filterOmittedObjects.addAndGet( omittedObjects );
+        filterOmittedBytes.addAndGet( omittedBytes );
+    }
+
+    @Override
+    public void replicaUpdated( String repository, long lagMillis, boolean failed ) {
+        replicaUpdates.incrementAndGet();
+        if ( failed ) {
+            replicaUpdateFailures.incrementAndGet();
+        }
+        if ( lagMillis >= 0 ) {
+            replicationLags.record( TimeUnit.MILLISECONDS.toNanos( lagMillis ) );
+        }
+    }
+
+    @Override
+    public void authenticationAttempted( String method, long durationNanos, boolean succeeded ) {
+        authentications.record( durationNanos );
+        if ( !succeeded ) {
+            authenticationFailures.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void permissionChecked( long durationNanos, boolean permitted ) {
+        permissionChecks.record( durationNanos );
+        if ( !permitted ) {
+            permissionDenials.incrementAndGet();
+        }
+    }
+
+    @Override
+    public int getActiveSessions() {
+        return activeSessions.get();
+    }
+
+    @Override
+    public long getSessionsOpened() {
+        return sessionsOpened.get();
+    }
+
+    @Override
+    public int getQueuedCommands() {
+        return queuedCommands.get();
+    }
+
+    @Override
+    public long getUploadCount() {
+        return upload.durations.getCount();
+    }
+
+    @Override
+    public long getUploadFailures() {
+        return upload.failures.get();
+    }
+
+    @Override
+    public double getUploadMeanMillis() {
+        return upload.durations.getMeanMillis();
+    }
+
+    @Override
+    public double getUploadP50Millis() {
+        return upload.durations.getPercentileMillis( 50 );
+    }
+
+    @Override
+    public double getUploadP99Millis() {
+        return upload.durations.getPercentileMillis( 99 );
+    }
+
+    @Override
+    public long getUploadBytesIn() {
+        return upload.bytesIn.get();
+    }
+
+    @Override
+    public long getUploadBytesOut() {
+        return upload.bytesOut.get();
+    }
+
+    @Override
+    public long getReceiveCount() {
+        return receive.durations.getCount();
+    }
+
+    @Override
+    public long getReceiveFailures() {
+        return receive.failures.get();
+    }
+
+    @Override
+    public double getReceiveMeanMillis() {
+        return receive.durations.getMeanMillis();
+    }
+
+    @Override
+    public double getReceiveP50Millis() {
+        return receive.durations.getPercentileMillis( 50 );
+    }
+
+    @Override
+    public double getReceiveP99Millis() {
+        return receive.durations.getPercentileMillis( 99 );
+    }
+
+    @Override
+    public long getReceiveBytesIn() {
+        return receive.bytesIn.get();
+    }
+
+    @Override
+    public long getReceiveBytesOut() {
+        return receive.bytesOut.get();
+    }
+
+    @Override
+    public long getOutputWrites() {
+        return outputWrites.get();
+    }
+
+    @Override
+    public long getOutputPackets() {
+        return outputPackets.get();
+    }
+
+    @Override
+    public double getOutputWritesPerPacket() {
+        final long packets = outputPackets.get();
+        return packets == 0 ? 0 : (double) outputWrites.get() / packets;
+    }
+
+    @Override
+    public long getFilteredFetches() {
+        return filteredFetches.get();
+    }
+
+    @Override
+    public long getFilterOmittedObjects() {
+        return filterOmittedObjects.get();
+    }
+
+    @Override
+    public long getFilterOmittedBytes() {
+        return filterOmittedBytes.get();
+    }
+
+    @Override
+    public long getReplicaUpdates() {
+        return replicaUpdates.get();
+    }
+
+    @Override
+    public long getReplicaUpdateFailures() {
+        return replicaUpdateFailures.get();
+    }
+
+    @Override
+    public double getReplicationLagP50Millis() {
+        return replicationLags.getPercentileMillis( 50 );
+    }
+
+    @Override
+    public double getReplicationLagP99Millis() {
+        return replicationLags.getPercentileMillis( 99 );
+    }
+
+    @Override
+    public long getAuthenticationAttempts() {
+        return authentications.getCount();
+    }
+
+    @Override
+    public long getAuthenticationFailures() {
+        return authenticationFailures.get();
+    }
+
+    @Override
+    public double getAuthenticationP50Millis() {
+        return authentications.getPercentileMillis( 50 );
+    }
+
+    @Override
+    public double getAuthenticationP99Millis() {
+        return authentications.getPercentileMillis( 99 );
+    }
+
+    @Override
+    public long getPermissionChecks() {
+        return permissionChecks.getCount();
+    }
+
+    @Override
+    public long getPermissionDenials() {
+        return permissionDenials.get();
+    }
+
+    @Override
+    public double getPermissionCheckP50Millis() {
+        return permissionChecks.getPercentileMillis( 50 );
+    }
+
+    @Override
+    public double getPermissionCheckP99Millis() {
+        return permissionChecks.getPercentileMillis( 99 );
+    }
+
+    private static class CommandStats {
+        final LatencyHistogram durations = new LatencyHistogram();
+        final AtomicLong failures = new AtomicLong();
+        final AtomicLong bytesIn = new AtomicLong();
+        final AtomicLong bytesOut = new AtomicLong();
+    }
+}
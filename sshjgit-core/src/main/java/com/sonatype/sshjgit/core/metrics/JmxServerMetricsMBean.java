@@ -0,0 +1,77 @@
+package com.sonatype.sshjgit.core.metrics;
+
+/**
+ * Management interface of {@link JmxServerMetrics}. Durations are in milliseconds, percentiles are approximate,
+ * see {@link LatencyHistogram}.
+ */
+public interface JmxServerMetricsMBean {
+    int getActiveSessions();
+
+    long getSessionsOpened();
+
+    int getQueuedCommands();
+
+    long getUploadCount();
+
+    long getUploadFailures();
+
+    double getUploadMeanMillis();
+
+    double getUploadP50Millis();
+
+    double getUploadP99Millis();
+
+    long getUploadBytesIn();
+
+    long getUploadBytesOut();
+
+    long getReceiveCount();
+
+    long getReceiveFailures();
+
+    double getReceiveMeanMillis();
+
+    double getReceiveP50Millis();
+
+    double getReceiveP99Millis();
+
+    long getReceiveBytesIn();
+
+    long getReceiveBytesOut();
+
+    long getOutputWrites();
+
+    long getOutputPackets();
+
+    double getOutputWritesPerPacket();
+
+    long getFilteredFetches();
+
+    long getFilterOmittedObjects();
+
+    long getFilterOmittedBytes();
+
+    long getReplicaUpdates();
+
+    long getReplicaUpdateFailures();
+
+    double getReplicationLagP50Millis();
+
+    double getReplicationLagP99Millis();
+
+    long getAuthenticationAttempts();
+
+    long getAuthenticationFailures();
+
+    double getAuthenticationP50Millis();
+
+    double getAuthenticationP99Millis();
+
+    long getPermissionChecks();
+
+    long getPermissionDenials();
+
+    double getPermissionCheckP50Millis();
+
+    double getPermissionCheckP99Millis();
+}
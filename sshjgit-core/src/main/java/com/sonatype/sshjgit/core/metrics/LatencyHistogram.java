@@ -0,0 +1,84 @@
+package com.sonatype.sshjgit.core.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Counts durations in buckets which grow exponentially, by a factor of about 1.19 (four buckets per doubling),
+ * from one microsecond to about an hour. Recording is lock free, and percentiles are accurate to within one
+ * bucket, which is less than 20 percent.</p>
+ *
+ * <p>Durations are counted since the histogram was created; there is no decay.</p>
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS_PER_DOUBLING = 4;
+    /** 2^32 microseconds is a bit over an hour, longer durations go in the last bucket. */
+    private static final int BUCKETS = 32 * BUCKETS_PER_DOUBLING + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray( BUCKETS );
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record( long durationNanos ) {
+        counts.incrementAndGet( bucket( durationNanos ) );
+        count.incrementAndGet();
+        totalNanos.addAndGet( durationNanos );
+        long max;
+        while ( durationNanos > ( max = maxNanos.get() ) && !maxNanos.compareAndSet( max, durationNanos ) ) {
+            // retry
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the mean duration, or 0 if nothing was recorded.
+     */
+    public double getMeanMillis() {
+        final long n = count.get();
+        return n == 0 ? 0 : totalNanos.get() / 1e6 / n;
+    }
+
+    public double getMaxMillis() {
+        return maxNanos.get() / 1e6;
+    }
+
+    /**
+     * @param percentile such as {@code 99} for the 99th percentile.
+     * @return the upper bound of the bucket which the percentile falls in, or 0 if nothing was recorded.
+     */
+    public double getPercentileMillis( double percentile ) {
+        long total = 0;
+        for ( int i = 0; i < BUCKETS; i++ ) {
+            total += counts.get( i );
+        }
+        if ( total == 0 ) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil( total * percentile / 100 );
+        long seen = 0;
+        for ( int i = 0; i < BUCKETS; i++ ) {
+            seen += counts.get( i );
+            if ( seen >= Math.max( 1, rank ) ) {
+                return Math.min( upperBoundMicros( i ) / 1e3, getMaxMillis() );
+            }
+        }
+        return getMaxMillis();
+    }
+
+    private static int bucket( long durationNanos ) {
+        final double micros = durationNanos / 1e3;
+        if ( micros <= 1 ) {
+            return 0;
+        }
+        final int bucket = (int) Math.ceil( Math.log( micros ) / Math.log( 2 ) * BUCKETS_PER_DOUBLING );
+        return Math.min( bucket, BUCKETS - 1 );
+    }
+
+    private static double upperBoundMicros( int bucket ) {
+        return Math.pow( 2, (double) bucket / BUCKETS_PER_DOUBLING );
+    }
+}
@@ -0,0 +1,116 @@
+package com.sonatype.sshjgit.core.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * <p>{@link ServerMetrics} which records into a Dropwizard Metrics {@link MetricRegistry}, for embedders which
+ * already report one to their monitoring system. The metrics-core library is an optional dependency of this
+ * module, so it must be added to the application to use this class.</p>
+ *
+ * <p>Metric names start with the given prefix, followed by:</p>
+ * <ul>
+ * <li>{@code sessions.active} (counter), {@code commands.queued} (counter);</li>
+ * <li>{@code <command>.duration} (timer), {@code <command>.failures}, {@code <command>.bytes-in} and
+ * {@code <command>.bytes-out} (meters), where {@code <command>} is such as {@code git-upload-pack};</li>
+ * <li>{@code <command>.output-writes} and {@code <command>.output-packets} (meters), whose ratio shows how well
+ * small writes are coalesced into ssh packets;</li>
+ * <li>{@code filter.fetches}, {@code filter.omitted-objects} and {@code filter.omitted-bytes} (meters), for fetches
+ * with partial clone filters, and the blobs the filters left out;</li>
+ * <li>{@code replica.updates} and {@code replica.failures} (meters), and {@code replica.lag} (timer), for the
+ * mirror fetches of a read replica;</li>
+ * <li>{@code auth.<method>.duration} (timer) and {@code auth.<method>.failures} (meter), where {@code <method>}
+ * is {@code publickey} or {@code password};</li>
+ * <li>{@code permissions.duration} (timer) and {@code permissions.denials} (meter).</li>
+ * </ul>
+ */
+public class MetricRegistryServerMetrics implements ServerMetrics {
+    public static final String DEFAULT_PREFIX = "sshjgit";
+
+    private final MetricRegistry registry;
+    private final String prefix;
+
+    public MetricRegistryServerMetrics( MetricRegistry registry ) {
+        this( registry, DEFAULT_PREFIX );
+    }
+
+    public MetricRegistryServerMetrics( MetricRegistry registry, String prefix ) {
+        this.registry = registry;
+        this.prefix = prefix;
+    }
+
+    @Override
+    public void sessionOpened() {
+        registry.counter( name( "sessions.active" ) ).inc();
+    }
+
+    @Override
+    public void sessionClosed() {
+        registry.counter( name( "sessions.active" ) ).dec();
+    }
+
+    @Override
+    public void commandQueued( String commandName ) {
+        registry.counter( name( "commands.queued" ) ).inc();
+    }
+
+    @Override
+    public void commandDequeued( String commandName ) {
+        registry.counter( name( "commands.queued" ) ).dec();
+    }
+
+    @Override
+    public void commandCompleted( String commandName, long durationNanos, long bytesIn, long bytesOut, boolean failed ) {
+        registry.timer( name( commandName + ".duration" ) ).update( durationNanos, TimeUnit.NANOSECONDS );
+        registry.meter( name( commandName + ".bytes-in" ) ).mark( bytesIn );
+        registry.meter( name( commandName + ".bytes-out" ) ).mark( bytesOut );
+        if ( failed ) {
+            registry.meter( name( commandName + ".failures" ) ).mark();
+        }
+    }
+
+    @Override
+    public void outputSent( String commandName, long writes, long packets ) {
+        registry.meter( name( commandName + ".output-writes" ) ).mark( writes );
+        registry.meter( name( commandName + ".output-packets" ) ).mark( packets );
+    }
+
+    @Override
+    public void fetchFiltered( String filter, long omittedObjects, long omittedBytes ) {
+        registry.meter( name( "filter.fetches" ) ).mark();
+        registry.meter( name( "filter.omitted-objects" ) ).mark( omittedObjects );
+        registry.meter( name( "filter.omitted-bytes" ) ).mark( omittedBytes );
+    }
+
+    @Override
+    public void replicaUpdated( String repository, long lagMillis, boolean failed ) {
+        registry.meter( name( "replica.updates" ) ).mark();
+        if ( failed ) {
+            registry.meter( name( "replica.failures" ) ).mark();
+        }
+        if ( lagMillis >= 0 ) {
+            registry.timer( name( "replica.lag" ) ).update( lagMillis, TimeUnit.MILLISECONDS );
+        }
+    }
+
+    @Override
+    public void authenticationAttempted( String method, long durationNanos, boolean succeeded ) {
+        registry.timer( name( "auth." + method + ".duration" ) ).update( durationNanos, TimeUnit.NANOSECONDS );
+        if ( !succeeded ) {
+            registry.meter( name( "auth." + method + ".failures" ) ).mark();
+        }
+    }
+
+    @Override
+    public void permissionChecked( long durationNanos, boolean permitted ) {
+        registry.timer( name( "permissions.duration" ) ).update( durationNanos, TimeUnit.NANOSECONDS );
+        if ( !permitted ) {
+            registry.meter( name( "permissions.denials" ) ).mark();
+        }
+    }
+
+    private String name( String name ) {
+        return prefix + '.' + name;
+    }
+}
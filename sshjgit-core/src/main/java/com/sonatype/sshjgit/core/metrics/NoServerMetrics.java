@@ -0,0 +1,46 @@
+package com.sonatype.sshjgit.core.metrics;
+
+/**
+ * {@link ServerMetrics} which ignores all measurements. This is what servers use unless told otherwise.
+ */
+public class NoServerMetrics implements ServerMetrics {
+    @Override
+    public void sessionOpened() {
+    }
+
+    @Override
+    public void sessionClosed() {
+    }
+
+    @Override
+    public void commandQueued( String commandName ) {
+    }
+
+    @Override
+    public void commandDequeued( String commandName ) {
+    }
+
+    @Override
+    public void commandCompleted( String commandName, long durationNanos, long bytesIn, long bytesOut, boolean failed ) {
+    }
+
+    @Override
+    public void outputSent( String commandName, long writes, long packets ) {
+    }
+
+    @Override
+    public void fetchFiltered( String filter, long omittedObjects, long omittedBytes ) {
+    }
+
+    @Override
+    public void replicaUpdated( String repository, long lagMillis, boolean failed ) {
+    }
+
+    @Override
+    public void authenticationAttempted( String method, long durationNanos, boolean succeeded ) {
+    }
+
+    @Override
+    public void permissionChecked( long durationNanos, boolean permitted ) {
+    }
+}
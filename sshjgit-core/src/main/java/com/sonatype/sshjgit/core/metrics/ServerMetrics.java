@@ -0,0 +1,89 @@
+package com.sonatype.sshjgit.core.metrics;
+
+/**
+ * <p>Receives measurements from a running server: sessions, git commands, logins, permission checks and
+ * replication. Register an implementation with
+ * {@link com.sonatype.sshjgit.core.ServerFactory#setMetrics(ServerMetrics)}.</p>
+ *
+ * <p>Methods are called on the threads doing the work being measured, often many at the same time, so
+ * implementations must be thread safe and should return quickly.</p>
+ *
+ * @see JmxServerMetrics
+ * @see MetricRegistryServerMetrics
+ * @see NoServerMetrics
+ */
+public interface ServerMetrics {
+    /**
+     * An ssh session was established.
+     */
+    void sessionOpened();
+
+    /**
+     * An ssh session, for which {@link #sessionOpened()} was called, was closed.
+     */
+    void sessionClosed();
+
+    /**
+     * A command was handed to the {@link com.sonatype.sshjgit.core.gitcommand.CommandExecutor}, and waits for a
+     * thread.
+     * @param commandName the name of the git command, such as {@code "git-upload-pack"}.
+     */
+    void commandQueued( String commandName );
+
+    /**
+     * A command for which {@link #commandQueued(String)} was called has started running, or was rejected.
+     * @param commandName the name of the git command, such as {@code "git-upload-pack"}.
+     */
+    void commandDequeued( String commandName );
+
+    /**
+     * A command has finished running.
+     * @param commandName the name of the git command, such as {@code "git-upload-pack"}.
+     * @param durationNanos how long it ran, not counting the time it was queued.
+     * @param bytesIn how many bytes it read from the client.
+     * @param bytesOut how many bytes it wrote to the client, on standard output.
+     * @param failed whether it exited with a non-zero exit code.
+     */
+    void commandCompleted( String commandName, long durationNanos, long bytesIn, long bytesOut, boolean failed );
+
+    /**
+     * A command has finished, and its output has been sent.
+     * @param commandName the name of the git command, such as {@code "git-upload-pack"}.
+     * @param writes how many times it wrote to standard output and standard error.
+     * @param packets how many ssh channel packets those writes were coalesced into.
+     */
+    void outputSent( String commandName, long writes, long packets );
+
+    /**
+     * A fetch with a partial clone filter has been packed.
+     * @param filter the filter, such as {@code "blob:none"}.
+     * @param omittedObjects how many blobs the filter left out of the pack.
+     * @param omittedBytes the uncompressed size of those blobs, if the filter had to read them to decide, as
+     * {@code blob:limit} does, or else {@code 0}.
+     */
+    void fetchFiltered( String filter, long omittedObjects, long omittedBytes );
+
+    /**
+     * A read replica has fetched a mirror from its primary, or failed to.
+     * @param repository the repository's name.
+     * @param lagMillis how long after the oldest push to the primary, which the mirror did not have yet, the fetch
+     * completed, or {@code -1} if not known.
+     * @param failed whether the fetch failed.
+     */
+    void replicaUpdated( String repository, long lagMillis, boolean failed );
+
+    /**
+     * A user tried to log in.
+     * @param method the ssh authentication method, {@code "publickey"} or {@code "password"}.
+     * @param durationNanos how long it took to decide.
+     * @param succeeded whether the user was logged in.
+     */
+    void authenticationAttempted( String method, long durationNanos, boolean succeeded );
+
+    /**
+     * A command checked whether the user has a permission.
+     * @param durationNanos how long the check took.
+     * @param permitted whether the user has the permission.
+     */
+    void permissionChecked( long durationNanos, boolean permitted );
+}
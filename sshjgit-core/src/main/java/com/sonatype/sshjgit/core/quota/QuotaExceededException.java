@@ -0,0 +1,29 @@
+package com.sonatype.sshjgit.core.quota;
+
+/**
+ * Thrown when a command would go over a quota, with a message for the user.
+ */
+public class QuotaExceededException extends Exception {
+    private final QuotaManager.Kind kind;
+    private final String key;
+
+    public QuotaExceededException( QuotaManager.Kind kind, String key, String message ) {
+        super( message );
+        this.kind = kind;
+        this.key = key;
+    }
+
+    /**
+     * @return what the quota is for.
+     */
+    public QuotaManager.Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return the principal, repository or address which is over its quota.
+     */
+    public String getKey() {
+        return key;
+    }
+}
@@ -0,0 +1,324 @@
+package com.sonatype.sshjgit.core.quota;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Limits how many git commands each principal, repository and client address may start per second, and how
+ * many of them may run at the same time, so that one busy client can't take the server from everyone else.</p>
+ *
+ * <p>Each kind has default {@link Limits}, which can be overridden for single principals, repositories or
+ * addresses. A command must be within the limits of all three, and holds a {@link Permit} until it ends.</p>
+ *
+ * <p>Rates are limited with token buckets, which are kept as the time at which the bucket will be full again, so
+ * that taking a token is one compare-and-set. The usage of each principal, repository and address is counted
+ * separately, so commands of different users and repositories don't contend on the same counters, and no locks are
+ * taken. Usage which is idle is forgotten now and then, so that the counters of past clients don't pile up.</p>
+ */
+public class QuotaManager {
+    /** how many permits are handed out between sweeps of idle usage. */
+    static final int SWEEP_INTERVAL = 4096;
+
+    /** What a quota is for. */
+    public enum Kind {
+        PRINCIPAL( "user" ),
+        REPOSITORY( "repository" ),
+        ADDRESS( "address" );
+
+        private final String description;
+
+        Kind( String description ) {
+            this.description = description;
+        }
+    }
+
+    /** never changed once published, only replaced by a changed copy, so that it can be read without a lock. */
+    private volatile Map<Kind, Limits> defaults;
+    private final Map<Kind, ConcurrentMap<String, Limits>> overrides =
+            new EnumMap<Kind, ConcurrentMap<String, Limits>>( Kind.class );
+    private final Map<Kind, ConcurrentMap<String, Usage>> usages =
+            new EnumMap<Kind, ConcurrentMap<String, Usage>>( Kind.class );
+
+    private final AtomicInteger untilSweep = new AtomicInteger( SWEEP_INTERVAL );
+    private final AtomicLong    rejected   = new AtomicLong();
+
+    public QuotaManager() {
+        final Map<Kind, Limits> noLimits = new EnumMap<Kind, Limits>( Kind.class );
+        for ( Kind kind : Kind.values() ) {
+            noLimits.put( kind, Limits.NONE );
+            overrides.put( kind, new ConcurrentHashMap<String, Limits>() );
+            usages.put( kind, new ConcurrentHashMap<String, Usage>() );
+        }
+        defaults = Collections.unmodifiableMap( noLimits );
+    }
+
+    /**
+     * @param kind what the limits are for.
+     * @param limits the limits of each principal, repository or address which has none of its own.
+     */
+    public synchronized void setDefaultLimits( Kind kind, Limits limits ) {
+        final Map<Kind, Limits> changed = new EnumMap<Kind, Limits>( defaults );
+        changed.put( kind, limits );
+        defaults = Collections.unmodifiableMap( changed );
+    }
+
+    /**
+     * @param kind what the limits are for.
+     * @param key the principal, repository (as in its permissions, such as {@code "subdir:project2"}) or address.
+     * @param limits its own limits, or {@code null} to use the default ones again.
+     */
+    public void setLimits( Kind kind, String key, Limits limits ) {
+        if ( limits == null ) {
+            overrides.get( kind ).remove( key );
+        } else {
+            overrides.get( kind ).put( key, limits );
+        }
+    }
+
+    /**
+     * Checks that a command is within all quotas, and counts it.
+     * @param principal the user who runs the command, or {@code null} if not known.
+     * @param repository the repository, as in its permissions, or {@code null} if not known.
+     * @param address the client's IP address, or {@code null} if not known.
+     * @return the permit, to {@link Permit#release() release} once the command ends.
+     * @throws QuotaExceededException if the command is over a quota. Nothing is counted then.
+     */
+    public Permit acquire( String principal, String repository, String address ) throws QuotaExceededException {
+        return acquire( principal, repository, address, System.nanoTime() );
+    }
+
+    Permit acquire( String principal, String repository, String address, long now ) throws QuotaExceededException {
+        if ( untilSweep.decrementAndGet() <= 0 ) {
+            untilSweep.set( SWEEP_INTERVAL );
+            sweep( now );
+        }
+        final Permit permit = new Permit();
+        try {
+            acquire( permit, Kind.PRINCIPAL, principal, now );
+            acquire( permit, Kind.REPOSITORY, repository, now );
+            acquire( permit, Kind.ADDRESS, address, now );
+        } catch( QuotaExceededException e ) {
+            // the command does not run, so it must not use up the rate of the quotas it was within
+            permit.returnTokens();
+            permit.release();
+            rejected.incrementAndGet();
+            throw e;
+        }
+        return permit;
+    }
+
+    /**
+     * Adds the usage, which then holds one more running command, to the permit, unless nothing is limited.
+     */
+    private void acquire( Permit permit, Kind kind, String key, long now ) throws QuotaExceededException {
+        if ( key == null ) {
+            return;
+        }
+        final Limits limits = getLimits( kind, key );
+        if ( limits == Limits.NONE ) {
+            return;
+        }
+        while ( true ) {
+            final Usage usage = getUsage( kind, key, now );
+            final int running = usage.running.get();
+            if ( running < 0 ) {
+                // swept meanwhile, take the new one
+                continue;
+            }
+            if ( limits.maxConcurrent > 0 && running >= limits.maxConcurrent ) {
+                throw new QuotaExceededException( kind, key, "too many commands running for " + kind.description
+                        + " " + key + " (at most " + limits.maxConcurrent + "), please try again later" );
+            }
+            if ( !usage.running.compareAndSet( running, running + 1 ) ) {
+                continue;
+            }
+            if ( !usage.takeToken( limits, now ) ) {
+                usage.running.decrementAndGet();
+                throw new QuotaExceededException( kind, key, "too many commands for " + kind.description + " "
+                        + key + " (at most " + limits.commandsPerSecond + " per second), please try again later" );
+            }
+            permit.add( usage, limits );
+            return;
+        }
+    }
+
+    private Limits getLimits( Kind kind, String key ) {
+        final Limits limits = overrides.get( kind ).get( key );
+        if ( limits != null ) {
+            return limits;
+        }
+        return defaults.get( kind );
+    }
+
+    private Usage getUsage( Kind kind, String key, long now ) {
+        final ConcurrentMap<String, Usage> map = usages.get( kind );
+        final Usage usage = map.get( key );
+        if ( usage != null ) {
+            return usage;
+        }
+        final Usage created = new Usage( now );
+        final Usage existing = map.putIfAbsent( key, created );
+        return existing == null ? created : existing;
+    }
+
+    /**
+     * Forgets usage without running commands and with a full bucket, which is the same as no usage.
+     */
+    void sweep( long now ) {
+        for ( ConcurrentMap<String, Usage> map : usages.values() ) {
+            for ( Iterator<Map.Entry<String, Usage>> it = map.entrySet().iterator(); it.hasNext(); ) {
+                final Map.Entry<String, Usage> entry = it.next();
+                final Usage usage = entry.getValue();
+                if ( usage.fullAt.get() - now <= 0 && usage.running.compareAndSet( 0, -1 ) ) {
+                    map.remove( entry.getKey(), usage );
+                }
+            }
+        }
+    }
+
+    /**
+     * @return how many principals, repositories and addresses usage is kept for.
+     */
+    int getTrackedCount() {
+        int count = 0;
+        for ( ConcurrentMap<String, Usage> map : usages.values() ) {
+            count += map.size();
+        }
+        return count;
+    }
+
+    /**
+     * @return how many running commands are counted for a principal, repository or address.
+     */
+    public int getRunningCount( Kind kind, String key ) {
+        final Usage usage = usages.get( kind ).get( key );
+        return usage == null ? 0 : Math.max( 0, usage.running.get() );
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * How many commands one principal, repository or address may start per second, how many more it may start at
+     * once after being idle, and how many may run at the same time.
+     */
+    public static class Limits {
+        /** no limits at all. */
+        public static final Limits NONE = new Limits( 0, 0, 0 );
+
+        private final double commandsPerSecond;
+        private final int    burst;
+        private final int    maxConcurrent;
+        /** nanoseconds per token. */
+        private final long   interval;
+
+        /**
+         * @param commandsPerSecond the rate at which commands may be started, or {@code 0} for no limit.
+         * @param burst how many commands may be started at once, after being idle. At least {@code 1}.
+         * @param maxConcurrent how many commands may run at the same time, or {@code 0} for no limit.
+         */
+        public Limits( double commandsPerSecond, int burst, int maxConcurrent ) {
+            this.commandsPerSecond = commandsPerSecond;
+            this.burst = Math.max( burst, 1 );
+            this.maxConcurrent = maxConcurrent;
+            this.interval = commandsPerSecond > 0 ? (long) ( 1000000000L / commandsPerSecond ) : 0;
+        }
+
+        public double getCommandsPerSecond() {
+            return commandsPerSecond;
+        }
+
+        public int getBurst() {
+            return burst;
+        }
+
+        public int getMaxConcurrent() {
+            return maxConcurrent;
+        }
+    }
+
+    /**
+     * The usage of one principal, repository or address.
+     */
+    private static class Usage {
+        /** commands running, or {@code -1} once this usage has been swept. */
+        final AtomicInteger running = new AtomicInteger();
+        /**
+         * the {@link System#nanoTime()} at which the token bucket will be full again, if no more tokens are taken.
+         */
+        final AtomicLong fullAt;
+
+        Usage( long now ) {
+            fullAt = new AtomicLong( now );
+        }
+
+        boolean takeToken( Limits limits, long now ) {
+            if ( limits.interval == 0 ) {
+                return true;
+            }
+            final long capacity = limits.interval * limits.burst;
+            while ( true ) {
+                final long full = fullAt.get();
+                final long next = ( full - now > 0 ? full : now ) + limits.interval;
+                if ( next - now > capacity ) {
+                    return false;
+                }
+                if ( fullAt.compareAndSet( full, next ) ) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Puts back a token taken by {@link #takeToken(Limits, long)}.
+         */
+        void returnToken( Limits limits ) {
+            if ( limits.interval != 0 ) {
+                fullAt.addAndGet( -limits.interval );
+            }
+        }
+    }
+
+    /**
+     * The right of a command to run, within the quotas.
+     */
+    public static class Permit {
+        private final Usage[]  usages = new Usage[Kind.values().length];
+        private final Limits[] limits = new Limits[Kind.values().length];
+        private int count;
+        private final AtomicInteger released = new AtomicInteger();
+
+        private void add( Usage usage, Limits limits ) {
+            usages[count] = usage;
+            this.limits[count] = limits;
+            count++;
+        }
+
+        /**
+         * Puts back the tokens taken for a command which is not run after all.
+         */
+        private void returnTokens() {
+            for ( int i = 0; i < count; i++ ) {
+                usages[i].returnToken( limits[i] );
+            }
+        }
+
+        /**
+         * Stops counting the command as running. Only the first call has an effect.
+         */
+        public void release() {
+            if ( released.compareAndSet( 0, 1 ) ) {
+                for ( int i = 0; i < count; i++ ) {
+                    usages[i].running.decrementAndGet();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,607 @@
+package com.sonatype.sshjgit.core.replica;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.FetchResult;
+import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.transport.ReceiveCommand;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.URIish;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sonatype.sshjgit.core.gitcommand.PackCache;
+import com.sonatype.sshjgit.core.gitcommand.RefAdvertisementCache;
+import com.sonatype.sshjgit.core.metrics.NoServerMetrics;
+import com.sonatype.sshjgit.core.metrics.ServerMetrics;
+import com.sonatype.sshjgit.core.repository.RepositoryCache;
+
+/**
+ * <p>Turns a server into a read replica of a primary server: its repositories are mirrors of the primary's, which
+ * fetches are served from, and pushes to it are forwarded to the primary.</p>
+ *
+ * <p>A mirror is brought up to date by fetching its branches and tags from the primary, and deleting the ones the
+ * primary no longer has. This happens whenever the primary notifies the replica of a push, see
+ * {@link ReplicaNotifier}, and for all mirrors on a regular sync, which catches up on notifications which were
+ * missed. Notifications for a repository which arrive while it's being fetched are coalesced into one more fetch.
+ * Fetches which fail are retried on the next sync, or the next notification.</p>
+ *
+ * <p>A push is received into the mirror, and checked there as usual. Then, instead of updating the mirror's refs,
+ * the updates are pushed on to the primary, which only accepts them if its refs are still where the mirror's were.
+ * The client is told what the primary did with each ref, and the mirror fetches the new refs right away.</p>
+ *
+ * <p>The primary is reached through JGit's transport, such as {@code ssh://replicator@primary:2222/}, so for ssh
+ * JGit's {@code SshSessionFactory} must be set up to log in as a user who may fetch from and push to all
+ * repositories. Notifications are plain lines on a socket, and not authenticated: all they can do is make the
+ * replica fetch from its primary.</p>
+ *
+ * <p>The replication lag, how long after a push to the primary it has reached the mirror, is reported to the
+ * {@link ServerMetrics} for each fetch, and {@link #getReplicationLagMillis()} is the lag of the repository which is
+ * furthest behind right now.</p>
+ */
+public class ReadReplica {
+    private static final Logger log = LoggerFactory.getLogger( ReadReplica.class );
+
+    public static final int  DEFAULT_THREADS              = 2;
+    public static final long DEFAULT_SYNC_INTERVAL_MILLIS = 5 * 60 * 1000L;
+    public static final int  DEFAULT_TIMEOUT_SECONDS      = 60;
+
+    /** the push time of a repository which is synchronized without a notification. */
+    static final long UNKNOWN = Long.MAX_VALUE;
+
+    /** the same names as the git commands accept. */
+    private static final Pattern VALID_PROJECTNAME = Pattern.compile(
+            "[a-zA-Z0-9_][a-zA-Z0-9_.-]*(/[a-zA-Z0-9_][a-zA-Z0-9_.-]*)*" );
+    private static final int MAX_NOTIFICATION_LENGTH = 1024;
+    private static final int NOTIFICATION_TIMEOUT_MILLIS = 5000;
+
+    private static final List<RefSpec> MIRROR_SPECS = Arrays.asList(
+            new RefSpec( "+" + Constants.R_HEADS + "*:" + Constants.R_HEADS + "*" ),
+            new RefSpec( "+" + Constants.R_TAGS + "*:" + Constants.R_TAGS + "*" ) );
+
+    private final RepositoryCache mirrors;
+    private final String primaryUri;
+    private final ThreadPoolExecutor workers;
+
+    /** the oldest push time not yet fetched, of each repository waiting for a fetch. */
+    private final ConcurrentMap<String, Long> pending = new ConcurrentHashMap<String, Long>();
+    /** the oldest push time being fetched, of each repository being fetched. */
+    private final ConcurrentMap<String, Long> fetching = new ConcurrentHashMap<String, Long>();
+    /** the oldest push time not fetched, of each repository whose last fetch failed. */
+    private final ConcurrentMap<String, Long> failed = new ConcurrentHashMap<String, Long>();
+    /** the repositories a worker has been given. */
+    private final Set<String> scheduled = Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+
+    private final AtomicLong notifications   = new AtomicLong();
+    private final AtomicLong updates         = new AtomicLong();
+    private final AtomicLong failures        = new AtomicLong();
+    private final AtomicLong forwardedPushes = new AtomicLong();
+
+    private PackCache packCache;
+    private RefAdvertisementCache advertisementCache;
+    private ServerMetrics metrics = new NoServerMetrics();
+    private InetSocketAddress notificationAddress;
+    private long syncIntervalMillis = DEFAULT_SYNC_INTERVAL_MILLIS;
+    private int timeoutSeconds = DEFAULT_TIMEOUT_SECONDS;
+
+    private ServerSocket notificationSocket;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param mirrors opens the mirrors, which are stored in its root directory, under the same names as on the
+     * primary.
+     * @param primaryUri where the primary's repositories are, such as {@code ssh://replicator@primary:2222/}. The
+     * name of a repository and {@code .git} are appended to it.
+     */
+    public ReadReplica( RepositoryCache mirrors, String primaryUri ) {
+        this( mirrors, primaryUri, DEFAULT_THREADS );
+    }
+
+    /**
+     * @param threads how many mirrors may be fetched at the same time.
+     */
+    public ReadReplica( RepositoryCache mirrors, String primaryUri, int threads ) {
+        this.mirrors = mirrors;
+        this.primaryUri = primaryUri.endsWith( "/" ) ? primaryUri : primaryUri + "/";
+        this.workers = new ThreadPoolExecutor( threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), createThreadFactory( "sshjgit-replica" ) );
+        this.workers.allowCoreThreadTimeOut( true );
+    }
+
+    /**
+     * @param notificationAddress where to listen for notifications from the primary, with port {@code 0} for any
+     * free port, or {@code null} to rely on the regular sync only (which is the default). Must be set before
+     * {@link #start()}.
+     */
+    public void setNotificationAddress( InetSocketAddress notificationAddress ) {
+        this.notificationAddress = notificationAddress;
+    }
+
+    /**
+     * @param syncIntervalMillis how often all mirrors are fetched. Must be set before {@link #start()}.
+     */
+    public void setSyncIntervalMillis( long syncIntervalMillis ) {
+        this.syncIntervalMillis = syncIntervalMillis;
+    }
+
+    /**
+     * @param timeoutSeconds how long to wait for the primary to respond, before a fetch or forwarded push fails.
+     */
+    public void setTimeoutSeconds( int timeoutSeconds ) {
+        this.timeoutSeconds = timeoutSeconds;
+    }
+
+    /**
+     * @param packCache the cache of the server's fetch responses, to invalidate when a mirror changes, or
+     * {@code null} if it has none.
+     */
+    public void setPackCache( PackCache packCache ) {
+        this.packCache = packCache;
+    }
+
+    /**
+     * @param advertisementCache the cache of the server's ref advertisements, to invalidate when a mirror changes,
+     * or {@code null} if it has none.
+     */
+    public void setRefAdvertisementCache( RefAdvertisementCache advertisementCache ) {
+        this.advertisementCache = advertisementCache;
+    }
+
+    /**
+     * @param metrics receives the replication lag of each fetch.
+     */
+    public void setMetrics( ServerMetrics metrics ) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Starts listening for notifications, if there is an address to listen on, and syncing all mirrors regularly,
+     * beginning with one sync right away.
+     * @throws IOException if the notification address could not be listened on.
+     */
+    public synchronized void start() throws IOException {
+        if ( scheduler != null ) {
+            return;
+        }
+        if ( notificationAddress != null ) {
+            notificationSocket = new ServerSocket();
+            notificationSocket.setReuseAddress( true );
+            notificationSocket.bind( notificationAddress );
+            final ServerSocket socket = notificationSocket;
+            createThreadFactory( "sshjgit-replica-notifications" ).newThread( new Runnable() {
+                @Override
+                public void run() {
+                    acceptNotifications( socket );
+                }
+            } ).start();
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor( createThreadFactory( "sshjgit-replica-sync" ) );
+        scheduler.scheduleWithFixedDelay( new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sync();
+                } catch( RuntimeException e ) {
+                    log.warn( "Could not sync the mirrors in " + mirrors.getReposRootDir(), e );
+                }
+            }
+        }, 0, syncIntervalMillis, TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * Stops listening for notifications, and stops syncing. Fetches which are running are interrupted.
+     */
+    public synchronized void shutdown() {
+        if ( notificationSocket != null ) {
+            try {
+                notificationSocket.close();
+            } catch( IOException ignored ) {
+            }
+            notificationSocket = null;
+        }
+        if ( scheduler != null ) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        workers.shutdownNow();
+    }
+
+    /**
+     * @return the port notifications are listened for on, or {@code -1} if they are not.
+     */
+    public synchronized int getNotificationPort() {
+        return notificationSocket == null ? -1 : notificationSocket.getLocalPort();
+    }
+
+    /**
+     * Fetches a mirror from the primary soon, after the primary has been pushed to.
+     * @param projectName the repository's name, which must be valid.
+     * @param pushTimeMillis when the push to the primary happened, or {@link #UNKNOWN}.
+     */
+    public void repositoryChanged( String projectName, long pushTimeMillis ) {
+        putOldest( pending, projectName, pushTimeMillis );
+        schedule( projectName );
+    }
+
+    /**
+     * Fetches all mirrors, and those which have never been fetched successfully, from the primary soon.
+     */
+    public void sync() {
+        for ( Map.Entry<String, Long> entry : failed.entrySet() ) {
+            repositoryChanged( entry.getKey(), entry.getValue() );
+        }
+        final File root = mirrors.getReposRootDir();
+        final List<File> directories = new ArrayList<File>();
+        directories.add( root );
+        while ( !directories.isEmpty() ) {
+            final File directory = directories.remove( directories.size() - 1 );
+            if ( new File( directory, "objects" ).isDirectory() && new File( directory, "refs" ).isDirectory() ) {
+                final String projectName = directory.getAbsolutePath().substring( root.getPath().length() + 1 )
+                        .replace( File.separatorChar, '/' );
+                if ( VALID_PROJECTNAME.matcher( projectName ).matches() ) {
+                    repositoryChanged( projectName, UNKNOWN );
+                }
+                continue;
+            }
+            final File[] children = directory.listFiles( new FileFilter() {
+                @Override
+                public boolean accept( File file ) {
+                    return file.isDirectory();
+                }
+            } );
+            if ( children != null ) {
+                Collections.addAll( directories, children );
+            }
+        }
+    }
+
+    /**
+     * Pushes the updates of a push, whose objects have been received into a mirror, on to the primary, and sets the
+     * result of each to what the primary did with it. To be called by the pre-receive hook, so that the mirror's
+     * refs are not updated; the mirror is fetched right after.
+     * @param mirror the mirror, which has all objects the updates need.
+     * @param projectName the repository's name.
+     * @param commands the updates which the mirror has accepted.
+     */
+    public void forwardPush( Repository mirror, String projectName, Collection<ReceiveCommand> commands ) {
+        forwardedPushes.incrementAndGet();
+        try {
+            final List<RemoteRefUpdate> refUpdates = new ArrayList<RemoteRefUpdate>();
+            for ( ReceiveCommand command : commands ) {
+                final boolean delete = ObjectId.zeroId().equals( command.getNewId() );
+                // forced, as the mirror has already checked fast forwards; the primary still checks that the old
+                // id is what it has
+                refUpdates.add( new RemoteRefUpdate( mirror, delete ? null : command.getNewId().name(),
+                        command.getRefName(), true, null, command.getOldId() ) );
+            }
+            final PushResult result;
+            final Transport transport = Transport.open( mirror, toPrimaryUri( projectName ) );
+            try {
+                transport.setTimeout( timeoutSeconds );
+                result = transport.push( NullProgressMonitor.INSTANCE, refUpdates );
+            } finally {
+                transport.close();
+            }
+            for ( ReceiveCommand command : commands ) {
+                setResult( command, result.getRemoteUpdate( command.getRefName() ) );
+            }
+        } catch( IOException e ) {
+            log.warn( "Could not forward push to " + projectName + " to the primary", e );
+            for ( ReceiveCommand command : commands ) {
+                command.setResult( ReceiveCommand.Result.REJECTED_OTHER_REASON, "primary not reachable" );
+            }
+        }
+        repositoryChanged( projectName, System.currentTimeMillis() );
+    }
+
+    private static void setResult( ReceiveCommand command, RemoteRefUpdate update ) {
+        if ( update == null ) {
+            command.setResult( ReceiveCommand.Result.REJECTED_OTHER_REASON, "not updated by the primary" );
+            return;
+        }
+        switch( update.getStatus() ) {
+            case OK:
+            case UP_TO_DATE:
+                command.setResult( ReceiveCommand.Result.OK );
+                break;
+            case REJECTED_NONFASTFORWARD:
+                command.setResult( ReceiveCommand.Result.REJECTED_NONFASTFORWARD );
+                break;
+            case REJECTED_NODELETE:
+                command.setResult( ReceiveCommand.Result.REJECTED_NODELETE );
+                break;
+            case REJECTED_REMOTE_CHANGED:
+                command.setResult( ReceiveCommand.Result.REJECTED_OTHER_REASON,
+                        "changed on the primary, fetch first" );
+                break;
+            default:
+                command.setResult( ReceiveCommand.Result.REJECTED_OTHER_REASON,
+                        update.getMessage() != null ? update.getMessage() : "not updated by the primary" );
+        }
+    }
+
+    private void schedule( final String projectName ) {
+        if ( !scheduled.add( projectName ) ) {
+            // the worker which has it picks up the new push time
+            return;
+        }
+        try {
+            workers.execute( new Runnable() {
+                @Override
+                public void run() {
+                    fetchPending( projectName );
+                }
+            } );
+        } catch( RejectedExecutionException e ) {
+            // shut down
+            scheduled.remove( projectName );
+        }
+    }
+
+    private void fetchPending( String projectName ) {
+        try {
+            Long since;
+            while ( ( since = pending.remove( projectName ) ) != null ) {
+                fetching.put( projectName, since );
+                if ( !fetch( projectName, since ) ) {
+                    break;
+                }
+            }
+        } finally {
+            scheduled.remove( projectName );
+            if ( pending.containsKey( projectName ) ) {
+                // notified after the last check above
+                schedule( projectName );
+            }
+        }
+    }
+
+    /**
+     * Fetches a mirror, which is in {@link #fetching}, and takes it out of there once it has counted the fetch.
+     * @return whether the fetch succeeded.
+     */
+    private boolean fetch( String projectName, long since ) {
+        try {
+            replicate( projectName );
+        } catch( IOException e ) {
+            fetchFailed( projectName, since, e );
+            return false;
+        } catch( RuntimeException e ) {
+            fetchFailed( projectName, since, e );
+            return false;
+        }
+        final Long failedSince = failed.remove( projectName );
+        fetching.remove( projectName );
+        final long oldest = failedSince == null ? since : Math.min( since, failedSince );
+        updates.incrementAndGet();
+        metrics.replicaUpdated( projectName,
+                oldest == UNKNOWN ? -1 : Math.max( 0, System.currentTimeMillis() - oldest ), false );
+        return true;
+    }
+
+    private void fetchFailed( String projectName, long since, Exception e ) {
+        log.warn( "Could not fetch " + projectName + " from the primary", e );
+        putOldest( failed, projectName, since );
+        fetching.remove( projectName );
+        failures.incrementAndGet();
+        metrics.replicaUpdated( projectName, -1, true );
+    }
+
+    /**
+     * Fetches the branches and tags of a mirror from the primary, and deletes those the primary no longer has.
+     */
+    void replicate( String projectName ) throws IOException {
+        final Repository mirror = mirrors.open( projectName );
+        try {
+            if ( !mirror.getConfig().getFile().exists() ) {
+                mirror.create();
+            }
+            final FetchResult result;
+            final Transport transport = Transport.open( mirror, toPrimaryUri( projectName ) );
+            try {
+                transport.setTimeout( timeoutSeconds );
+                result = transport.fetch( NullProgressMonitor.INSTANCE, MIRROR_SPECS );
+            } finally {
+                transport.close();
+            }
+            final boolean deleted = deleteRemoved( mirror, result.getAdvertisedRefs() );
+            if ( deleted || !result.getTrackingRefUpdates().isEmpty() ) {
+                if ( advertisementCache != null ) {
+                    advertisementCache.refsUpdated( mirror.getDirectory() );
+                }
+                if ( packCache != null ) {
+                    packCache.invalidate( mirror.getDirectory() );
+                }
+            }
+        } finally {
+            mirrors.release( mirror );
+        }
+    }
+
+    /**
+     * @return whether any ref was deleted.
+     */
+    private static boolean deleteRemoved( Repository mirror, Collection<Ref> advertised ) throws IOException {
+        final Set<String> names = new HashSet<String>();
+        for ( Ref ref : advertised ) {
+            names.add( ref.getName() );
+        }
+        boolean deleted = false;
+        for ( String name : mirror.getAllRefs().keySet() ) {
+            if ( ( name.startsWith( Constants.R_HEADS ) || name.startsWith( Constants.R_TAGS ) )
+                 && !names.contains( name ) ) {
+                final RefUpdate update = mirror.updateRef( name );
+                update.setForceUpdate( true );
+                final RefUpdate.Result result = update.delete();
+                if ( result == RefUpdate.Result.FORCED || result == RefUpdate.Result.FAST_FORWARD ) {
+                    deleted = true;
+                } else {
+                    log.warn( "Could not delete " + name + " from mirror " + mirror.getDirectory() + ": " + result );
+                }
+            }
+        }
+        return deleted;
+    }
+
+    private URIish toPrimaryUri( String projectName ) throws IOException {
+        try {
+            return new URIish( primaryUri + projectName + ".git" );
+        } catch( URISyntaxException e ) {
+            throw new IOException( "invalid primary URI " + primaryUri + ": " + e.getMessage() );
+        }
+    }
+
+    /**
+     * Reads notifications until the socket is closed. Each is a line {@code <push time millis> <project name>}.
+     */
+    private void acceptNotifications( ServerSocket socket ) {
+        while ( !socket.isClosed() ) {
+            final Socket connection;
+            try {
+                connection = socket.accept();
+            } catch( SocketException e ) {
+                // closed by shutdown
+                return;
+            } catch( IOException e ) {
+                log.warn( "Could not accept notification", e );
+                continue;
+            }
+            try {
+                connection.setSoTimeout( NOTIFICATION_TIMEOUT_MILLIS );
+                final InputStream in = connection.getInputStream();
+                String line;
+                while ( ( line = readLine( in ) ) != null ) {
+                    notified( line );
+                }
+            } catch( IOException e ) {
+                log.warn( "Could not read notification from " + connection.getRemoteSocketAddress(), e );
+            } finally {
+                try {
+                    connection.close();
+                } catch( IOException ignored ) {
+                }
+            }
+        }
+    }
+
+    private void notified( String line ) {
+        final int space = line.indexOf( ' ' );
+        if ( space > 0 ) {
+            final String projectName = line.substring( space + 1 );
+            try {
+                final long pushTimeMillis = Long.parseLong( line.substring( 0, space ) );
+                if ( VALID_PROJECTNAME.matcher( projectName ).matches() ) {
+                    notifications.incrementAndGet();
+                    repositoryChanged( projectName, pushTimeMillis );
+                    return;
+                }
+            } catch( NumberFormatException ignored ) {
+            }
+        }
+        log.warn( "Ignoring invalid notification: " + line );
+    }
+
+    /**
+     * @return the next line, without the line feed, or {@code null} at the end of the stream.
+     */
+    private static String readLine( InputStream in ) throws IOException {
+        final byte[] line = new byte[MAX_NOTIFICATION_LENGTH];
+        int length = 0;
+        int b;
+        while ( ( b = in.read() ) != '\n' ) {
+            if ( b < 0 ) {
+                return null;
+            }
+            if ( length == line.length ) {
+                throw new IOException( "notification too long" );
+            }
+            line[length++] = (byte) b;
+        }
+        return new String( line, 0, length, "UTF-8" );
+    }
+
+    private static void putOldest( ConcurrentMap<String, Long> map, String key, long time ) {
+        while ( true ) {
+            final Long current = map.putIfAbsent( key, time );
+            if ( current == null || current <= time || map.replace( key, current, time ) ) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return how long ago the oldest push to the primary happened which has not reached its mirror yet, or
+     * {@code 0} if all mirrors are up to date with all notifications.
+     */
+    public long getReplicationLagMillis() {
+        long oldest = UNKNOWN;
+        for ( ConcurrentMap<String, Long> times : Arrays.asList( pending, fetching, failed ) ) {
+            for ( Long time : times.values() ) {
+                oldest = Math.min( oldest, time );
+            }
+        }
+        return oldest == UNKNOWN ? 0 : Math.max( 0, System.currentTimeMillis() - oldest );
+    }
+
+    public long getNotificationCount() {
+        return notifications.get();
+    }
+
+    public long getUpdateCount() {
+        return updates.get();
+    }
+
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    public long getForwardedPushCount() {
+        return forwardedPushes.get();
+    }
+
+    private static ThreadFactory createThreadFactory( final String name ) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread( Runnable r ) {
+                final Thread thread = new Thread( r, name );
+                thread.setDaemon( true );
+                return thread;
+            }
+        };
+    }
+}
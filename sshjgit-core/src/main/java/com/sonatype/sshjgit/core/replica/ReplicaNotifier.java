@@ -0,0 +1,94 @@
+package com.sonatype.sshjgit.core.replica;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sonatype.sshjgit.core.event.RefUpdateEvent;
+import com.sonatype.sshjgit.core.event.RefUpdateListener;
+
+/**
+ * <p>Tells {@link ReadReplica}s that a repository of this primary has been pushed to, so that they fetch it. Add it
+ * to the primary's {@link com.sonatype.sshjgit.core.event.PostReceiveEventBus}.</p>
+ *
+ * <p>Each replica is sent a line {@code <push time millis> <repository>} over a new connection. A replica which
+ * can't be reached is skipped; it catches up on its next regular sync.</p>
+ */
+public class ReplicaNotifier implements RefUpdateListener {
+    private static final Logger log = LoggerFactory.getLogger( ReplicaNotifier.class );
+
+    public static final int DEFAULT_TIMEOUT_MILLIS = 5000;
+
+    private final List<InetSocketAddress> replicas = new CopyOnWriteArrayList<InetSocketAddress>();
+    private volatile int timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+
+    private final AtomicLong notifications = new AtomicLong();
+    private final AtomicLong failures      = new AtomicLong();
+
+    /**
+     * @param address where the replica listens for notifications, see
+     * {@link ReadReplica#setNotificationAddress(InetSocketAddress)}.
+     */
+    public void addReplica( InetSocketAddress address ) {
+        replicas.add( address );
+    }
+
+    public void removeReplica( InetSocketAddress address ) {
+        replicas.remove( address );
+    }
+
+    /**
+     * @param timeoutMillis how long to wait for a replica to accept a notification.
+     */
+    public void setTimeoutMillis( int timeoutMillis ) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public void refsUpdated( String repository, List<RefUpdateEvent> updates ) {
+        long oldest = Long.MAX_VALUE;
+        for ( RefUpdateEvent update : updates ) {
+            oldest = Math.min( oldest, update.getTimeMillis() );
+        }
+        final byte[] line;
+        try {
+            line = ( oldest + " " + repository + '\n' ).getBytes( "UTF-8" );
+        } catch( IOException e ) {
+            throw new IllegalStateException( e );
+        }
+        for ( InetSocketAddress replica : replicas ) {
+            final Socket socket = new Socket();
+            try {
+                socket.connect( replica, timeoutMillis );
+                socket.setSoTimeout( timeoutMillis );
+                final OutputStream out = socket.getOutputStream();
+                out.write( line );
+                out.flush();
+                notifications.incrementAndGet();
+            } catch( IOException e ) {
+                failures.incrementAndGet();
+                log.warn( "Could not notify replica " + replica + " of push to " + repository + ": " + e );
+            } finally {
+                try {
+                    socket.close();
+                } catch( IOException ignored ) {
+                }
+            }
+        }
+    }
+
+    public long getNotificationCount() {
+        return notifications.get();
+    }
+
+    public long getFailureCount() {
+        return failures.get();
+    }
+}
@@ -0,0 +1,360 @@
+package com.sonatype.sshjgit.core.repository;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Keeps {@link Repository} instances open between commands, so that pack indexes, the object database and the
+ * repository config don't have to be read again for every fetch or push of the same repository.</p>
+ *
+ * <p>Every {@link #open(String)} must be paired with a {@link #release(Repository)}. A repository is only closed when
+ * nobody holds it any more, and it has either been idle for longer than the configured time, is the least recently
+ * used one while the cache holds more than its maximum, or its packs have changed on disk.</p>
+ *
+ * <p>Repositories are keyed by their absolute path under the repositories root directory. Symbolic links are
+ * deliberately not resolved, because {@link Repository#getDirectory()} of the shared instance is what permission
+ * checks are based on.</p>
+ */
+public class RepositoryCache {
+    private static final Logger log = LoggerFactory.getLogger( RepositoryCache.class );
+
+    public static final int  DEFAULT_MAX_OPEN         = 128;
+    public static final long DEFAULT_MAX_IDLE_MILLIS  = 5 * 60 * 1000L;
+
+    private final File reposRootDir;
+    private final int  maxOpen;
+    private final long maxIdleMillis;
+
+    /** access ordered, so iteration starts with the least recently used entry. guarded by itself. */
+    private final LinkedHashMap<File, Entry> entries = new LinkedHashMap<File, Entry>( 16, 0.75f, true );
+
+    /** entries which have been replaced or evicted while still in use, closed on their last release. guarded by {@link #entries}. */
+    private final Map<Repository, Entry> retired = new IdentityHashMap<Repository, Entry>();
+
+    private final AtomicLong hits      = new AtomicLong();
+    private final AtomicLong misses    = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public RepositoryCache( File reposRootDir ) {
+        this( reposRootDir, DEFAULT_MAX_OPEN, DEFAULT_MAX_IDLE_MILLIS );
+    }
+
+    /**
+     * @param reposRootDir where the git repositories are stored.
+     * @param maxOpen how many repositories may be kept open while nobody uses them.
+     * @param maxIdleMillis how long an unused repository is kept open.
+     */
+    public RepositoryCache( File reposRootDir, int maxOpen, long maxIdleMillis ) {
+        this.reposRootDir = reposRootDir.getAbsoluteFile();
+        this.maxOpen = maxOpen;
+        this.maxIdleMillis = maxIdleMillis;
+    }
+
+    public File getReposRootDir() {
+        return reposRootDir;
+    }
+
+    /**
+     * Opens a repository, or reuses an already open instance of it. The repository does not need to exist on disk
+     * yet. Must be paired with a call to {@link #release(Repository)}.
+     *
+     * @param projectName the repository's path relative to the repositories root directory. Must already be
+     * validated, so that it can not point outside of it.
+     * @return the repository, which stays open at least until it's released.
+     * @throws IOException if the repository could not be opened.
+     */
+    public Repository open( String projectName ) throws IOException {
+        final File gitDir = new File( reposRootDir, projectName );
+        final long packsModified = packsLastModified( gitDir );
+
+        synchronized ( entries ) {
+            final Entry entry = entries.get( gitDir );
+            if ( entry != null ) {
+                if ( entry.packsModified == packsModified ) {
+                    hits.incrementAndGet();
+                    entry.references++;
+                    return entry.repository;
+                }
+                // packs have changed on disk since it was opened
+                entries.remove( gitDir );
+                retire( entry );
+            }
+        }
+
+        misses.incrementAndGet();
+        final Entry created = new Entry( new Repository( gitDir ), packsModified );
+        final List<Entry> evicted;
+        synchronized ( entries ) {
+            final Entry raced = entries.get( gitDir );
+            if ( raced != null && raced.packsModified == packsModified ) {
+                // someone else opened it while we did; use theirs
+                raced.references++;
+                created.repository.close();
+                return raced.repository;
+            } else if ( raced != null ) {
+                entries.remove( gitDir );
+                retire( raced );
+            }
+            entries.put( gitDir, created );
+            evicted = collectEvictable( System.currentTimeMillis() );
+        }
+        close( evicted );
+        return created.repository;
+    }
+
+    /**
+     * Hands back a repository which was obtained through {@link #open(String)}.
+     * @param repository the repository, which must not be used by the caller afterwards.
+     */
+    public void release( Repository repository ) {
+        final List<Entry> evicted;
+        synchronized ( entries ) {
+            final Entry retiredEntry = retired.get( repository );
+            if ( retiredEntry != null ) {
+                if ( --retiredEntry.references == 0 ) {
+                    retired.remove( repository );
+                    repository.close();
+                }
+                return;
+            }
+            final Entry entry = entries.get( repository.getDirectory().getAbsoluteFile() );
+            if ( entry == null || entry.repository != repository ) {
+                log.warn( "Released a repository which was not opened through the cache: " + repository.getDirectory() );
+                return;
+            }
+            entry.references--;
+            entry.lastReleased = System.currentTimeMillis();
+            evicted = collectEvictable( entry.lastReleased );
+        }
+        close( evicted );
+    }
+
+    /**
+     * Forgets a repository, for example after its packs have been rewritten. It is closed as soon as nobody uses it.
+     * @param projectName the repository's path relative to the repositories root directory.
+     */
+    public void invalidate( String projectName ) {
+        synchronized ( entries ) {
+            final Entry entry = entries.remove( new File( reposRootDir, projectName ) );
+            if ( entry != null ) {
+                retire( entry );
+            }
+        }
+    }
+
+    /**
+     * Closes repositories which have not been used for longer than the configured idle time. This also happens
+     * automatically whenever a repository is opened or released.
+     */
+    public void evictIdle() {
+        final List<Entry> evicted;
+        synchronized ( entries ) {
+            evicted = collectEvictable( System.currentTimeMillis() );
+        }
+        close( evicted );
+    }
+
+    /**
+     * Closes every repository which is not in use, and forgets about the rest so they are closed on release.
+     */
+    public void clear() {
+        synchronized ( entries ) {
+            for ( Entry entry : entries.values() ) {
+                retire( entry );
+            }
+            entries.clear();
+        }
+    }
+
+    /**
+     * @return the repositories the cache holds, as paths relative to the repositories root directory, the most
+     * recently used first.
+     */
+    public List<String> getRecentlyUsed() {
+        final List<String> projectNames = new ArrayList<String>();
+        final String root = reposRootDir.getPath() + File.separator;
+        synchronized ( entries ) {
+            for ( File gitDir : entries.keySet() ) {
+                final String path = gitDir.getPath();
+                if ( path.startsWith( root ) ) {
+                    projectNames.add( path.substring( root.length() ).replace( File.separatorChar, '/' ) );
+                }
+            }
+        }
+        Collections.reverse( projectNames );
+        return projectNames;
+    }
+
+    /**
+     * Opens repositories ahead of their first command, and reads their refs and pack indexes, so that the first
+     * fetches after a restart are as fast as later ones. Repositories which don't exist (any more) are skipped.
+     *
+     * @param projectNames paths relative to the repositories root directory, the most recently used first, as from
+     * {@link #getRecentlyUsed()}. At most as many as the cache keeps open are warmed.
+     * @return how many repositories were opened.
+     */
+    public int warm( List<String> projectNames ) {
+        final List<String> hottest = new ArrayList<String>();
+        for ( String projectName : projectNames ) {
+            final File gitDir = new File( reposRootDir, projectName );
+            if ( hottest.size() < maxOpen && !projectName.contains( ".." )
+                    && new File( gitDir, "objects" ).isDirectory() && new File( gitDir, "refs" ).isDirectory() ) {
+                hottest.add( projectName );
+            }
+        }
+        int warmed = 0;
+        // the least recently used first, so that the cache ends up in the same order
+        for ( int i = hottest.size() - 1; i >= 0; i-- ) {
+            final String projectName = hottest.get( i );
+            try {
+                final Repository repository = open( projectName );
+                try {
+                    final ObjectId head = repository.resolve( Constants.HEAD );
+                    if ( head != null ) {
+                        repository.hasObject( head );
+                    }
+                } finally {
+                    release( repository );
+                }
+                warmed++;
+            } catch( IOException e ) {
+                log.warn( "Could not warm repository " + projectName + ": " + e );
+            }
+        }
+        return warmed;
+    }
+
+    /**
+     * Writes {@link #getRecentlyUsed()} to a file, one repository per line, for {@link #warm(File)} on the next
+     * start.
+     */
+    public void writeRecentlyUsed( File file ) throws IOException {
+        final Writer writer = new OutputStreamWriter( new FileOutputStream( file ), "UTF-8" );
+        try {
+            for ( String projectName : getRecentlyUsed() ) {
+                writer.write( projectName );
+                writer.write( '\n' );
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Warms the repositories listed in a file written by {@link #writeRecentlyUsed(File)}.
+     * @return how many repositories were opened, {@code 0} if the file doesn't exist.
+     */
+    public int warm( File file ) throws IOException {
+        if ( !file.isFile() ) {
+            return 0;
+        }
+        final List<String> projectNames = new ArrayList<String>();
+        final BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( file ), "UTF-8" ) );
+        try {
+            String line;
+            while ( ( line = reader.readLine() ) != null ) {
+                if ( line.trim().length() > 0 ) {
+                    projectNames.add( line.trim() );
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return warm( projectNames );
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * @return number of repositories currently held open by the cache, whether in use or not.
+     */
+    public int getOpenCount() {
+        synchronized ( entries ) {
+            return entries.size() + retired.size();
+        }
+    }
+
+    /** must hold the lock on {@link #entries}. */
+    private List<Entry> collectEvictable( long now ) {
+        final List<Entry> evicted = new ArrayList<Entry>();
+        int excess = entries.size() - maxOpen;
+        for ( Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            final Entry entry = it.next();
+            if ( entry.references > 0 ) {
+                continue;
+            }
+            if ( excess > 0 || now - entry.lastReleased > maxIdleMillis ) {
+                it.remove();
+                excess--;
+                evicted.add( entry );
+            }
+        }
+        evictions.addAndGet( evicted.size() );
+        return evicted;
+    }
+
+    /** must hold the lock on {@link #entries}. */
+    private void retire( Entry entry ) {
+        evictions.incrementAndGet();
+        if ( entry.references == 0 ) {
+            entry.repository.close();
+        } else {
+            retired.put( entry.repository, entry );
+        }
+    }
+
+    private static void close( List<Entry> evicted ) {
+        for ( Entry entry : evicted ) {
+            entry.repository.close();
+        }
+    }
+
+    /**
+     * @return a value which changes whenever a pack is added to or removed from the repository.
+     */
+    private static long packsLastModified( File gitDir ) {
+        return new File( new File( gitDir, "objects" ), "pack" ).lastModified();
+    }
+
+    private static class Entry {
+        final Repository repository;
+        final long       packsModified;
+        int              references = 1;
+        long             lastReleased;
+
+        Entry( Repository repository, long packsModified ) {
+            this.repository = repository;
+            this.packsModified = packsModified;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.sonatype.sshjgit.core.repository;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Serializes the ref update phase of pushes to the same repository.</p>
+ *
+ * <p>Receiving and indexing a pack may happen for any number of pushes in parallel. Only when a push is about to
+ * update its refs does it take the repository's lock, which is fair, so that pushes update refs in the order in which
+ * they finished receiving their packs. Each push then sees the refs as left by the previous one, instead of racing
+ * it for the ref lock files.</p>
+ *
+ * <p>Fetches never take these locks.</p>
+ *
+ * <p>How long pushes have waited for each repository is available from {@link #getContention()}.</p>
+ */
+public class RepositoryLockManager {
+    public static final long DEFAULT_TIMEOUT_MILLIS = 5 * 60 * 1000L;
+
+    private final long timeoutMillis;
+
+    /** locks currently held or waited for, keyed by repository path. guarded by itself. */
+    private final Map<String, RepoLock> locks = new HashMap<String, RepoLock>();
+
+    private final ConcurrentHashMap<String, Contention> contention = new ConcurrentHashMap<String, Contention>();
+
+    public RepositoryLockManager() {
+        this( DEFAULT_TIMEOUT_MILLIS );
+    }
+
+    /**
+     * @param timeoutMillis how long a push waits for the pushes before it, before giving up.
+     */
+    public RepositoryLockManager( long timeoutMillis ) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Waits until no other push is updating refs in the repository, then takes the lock for the calling thread.
+     *
+     * @param repositoryDirectory the repository's directory.
+     * @return the held lock, which must be released by the same thread, or {@code null} if it could not be taken
+     * within the timeout.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    public RefUpdateLock lockRefUpdates( File repositoryDirectory ) throws InterruptedException {
+        final String path = repositoryDirectory.getAbsolutePath();
+        final RepoLock repoLock;
+        synchronized ( locks ) {
+            RepoLock existing = locks.get( path );
+            if ( existing == null ) {
+                existing = new RepoLock();
+                locks.put( path, existing );
+            }
+            existing.users++;
+            repoLock = existing;
+        }
+
+        final long start = System.nanoTime();
+        boolean locked = false;
+        try {
+            locked = repoLock.lock.tryLock( timeoutMillis, TimeUnit.MILLISECONDS );
+        } finally {
+            contentionFor( path ).recordWait( System.nanoTime() - start, locked );
+            if ( !locked ) {
+                forget( path, repoLock );
+            }
+        }
+        return locked ? new RefUpdateLock( path, repoLock ) : null;
+    }
+
+    /**
+     * @return how long pushes have waited for each repository, keyed by the repository's absolute path. The values
+     * are live, and keep counting.
+     */
+    public Map<String, Contention> getContention() {
+        return Collections.<String, Contention>unmodifiableMap( contention );
+    }
+
+    /**
+     * @return how many pushes are currently updating refs, or waiting to.
+     */
+    public int getLockedOrWaitingCount() {
+        synchronized ( locks ) {
+            int count = 0;
+            for ( RepoLock repoLock : locks.values() ) {
+                count += repoLock.users;
+            }
+            return count;
+        }
+    }
+
+    private Contention contentionFor( String path ) {
+        Contention c = contention.get( path );
+        if ( c == null ) {
+            final Contention created = new Contention();
+            c = contention.putIfAbsent( path, created );
+            if ( c == null ) {
+                c = created;
+            }
+        }
+        return c;
+    }
+
+    private void forget( String path, RepoLock repoLock ) {
+        synchronized ( locks ) {
+            if ( --repoLock.users == 0 ) {
+                locks.remove( path );
+            }
+        }
+    }
+
+    /**
+     * A held ref update lock. Releasing it more than once is harmless.
+     */
+    public class RefUpdateLock {
+        private final String   path;
+        private final RepoLock repoLock;
+        private boolean        released;
+
+        private RefUpdateLock( String path, RepoLock repoLock ) {
+            this.path = path;
+            this.repoLock = repoLock;
+        }
+
+        public void release() {
+            if ( released ) {
+                return;
+            }
+            released = true;
+            repoLock.lock.unlock();
+            forget( path, repoLock );
+        }
+    }
+
+    /**
+     * Wait statistics for one repository.
+     */
+    public static class Contention {
+        private final AtomicLong acquisitions   = new AtomicLong();
+        private final AtomicLong timeouts       = new AtomicLong();
+        private final AtomicLong totalWaitNanos = new AtomicLong();
+        private final AtomicLong maxWaitNanos   = new AtomicLong();
+
+        void recordWait( long nanos, boolean acquired ) {
+            if ( acquired ) {
+                acquisitions.incrementAndGet();
+            } else {
+                timeouts.incrementAndGet();
+            }
+            totalWaitNanos.addAndGet( nanos );
+            long max;
+            while ( nanos > ( max = maxWaitNanos.get() ) && !maxWaitNanos.compareAndSet( max, nanos ) ) {
+                // retry
+            }
+        }
+
+        public long getAcquisitions() {
+            return acquisitions.get();
+        }
+
+        public long getTimeouts() {
+            return timeouts.get();
+        }
+
+        public long getTotalWaitMillis() {
+            return TimeUnit.NANOSECONDS.toMillis( totalWaitNanos.get() );
+        }
+
+        public long getMaxWaitMillis() {
+            return TimeUnit.NANOSECONDS.toMillis( maxWaitNanos.get() );
+        }
+
+        @Override
+        public String toString() {
+            return "acquisitions=" + getAcquisitions() + ", timeouts=" + getTimeouts()
+                   + ", totalWaitMillis=" + getTotalWaitMillis() + ", maxWaitMillis=" + getMaxWaitMillis();
+        }
+    }
+
+    private static class RepoLock {
+        final ReentrantLock lock = new ReentrantLock( true );
+        /** how many threads hold or wait for the lock. guarded by {@link RepositoryLockManager#locks}. */
+        int users;
+    }
+}
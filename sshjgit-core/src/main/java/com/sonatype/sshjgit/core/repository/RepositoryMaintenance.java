@@ -0,0 +1,478 @@
+package com.sonatype.sshjgit.core.repository;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Repacks repositories in the background, once pushes have left them with too many packs or loose objects.</p>
+ *
+ * <p>Every push adds a pack, and fetches get slower with every pack they have to look through. So after each push,
+ * and on a regular scan of all repositories, the packs and loose objects of a repository are counted. Once either
+ * count is over its limit, {@code git gc} is run on the repository by a small pool of workers. JGit can't do this
+ * itself, so the {@code git} executable must be installed.</p>
+ *
+ * <p>Maintenance does not start on a repository while a push to it is in progress; it is retried a little later.
+ * Pushes which start while it runs are safe, as {@code git gc} does not delete recent objects. To keep maintenance
+ * from taking over the machine, each worker rests after a run, in proportion to how long the run took, so that it
+ * uses at most the configured share of its time. {@code git} itself is told to use one thread.</p>
+ *
+ * <p>Repacked repositories are reopened by the {@link RepositoryCache} on their next use, as it notices that the
+ * packs have changed.</p>
+ */
+public class RepositoryMaintenance {
+    private static final Logger log = LoggerFactory.getLogger( RepositoryMaintenance.class );
+
+    public static final int    DEFAULT_PACK_LIMIT           = 50;
+    public static final int    DEFAULT_LOOSE_OBJECT_LIMIT   = 6700;
+    public static final double DEFAULT_CPU_BUDGET           = 0.25;
+    public static final long   DEFAULT_SCAN_INTERVAL_MILLIS = 60 * 60 * 1000L;
+    public static final long   DEFAULT_RETRY_DELAY_MILLIS   = 30 * 1000L;
+
+    private final File reposRootDir;
+    private final ThreadPoolExecutor workers;
+    private ScheduledExecutorService scheduler;
+
+    private int    packLimit          = DEFAULT_PACK_LIMIT;
+    private int    looseObjectLimit   = DEFAULT_LOOSE_OBJECT_LIMIT;
+    private double cpuBudget          = DEFAULT_CPU_BUDGET;
+    private long   scanIntervalMillis = DEFAULT_SCAN_INTERVAL_MILLIS;
+    private long   retryDelayMillis   = DEFAULT_RETRY_DELAY_MILLIS;
+    private String gitExecutable      = "git";
+
+    /** pushes in progress, keyed by repository path. guarded by itself. */
+    private final Map<String, Integer> activeReceives = new HashMap<String, Integer>();
+    /** repositories waiting for a worker, or for pushes to finish. guarded by {@link #activeReceives}. */
+    private final Set<String> queued = new HashSet<String>();
+
+    private final ConcurrentHashMap<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+    private final AtomicInteger running = new AtomicInteger();
+
+    public RepositoryMaintenance( File reposRootDir ) {
+        this( reposRootDir, 1 );
+    }
+
+    /**
+     * @param reposRootDir where the git repositories are stored.
+     * @param threads how many repositories may be maintained at the same time.
+     */
+    public RepositoryMaintenance( File reposRootDir, int threads ) {
+        this.reposRootDir = reposRootDir.getAbsoluteFile();
+        this.workers = new ThreadPoolExecutor( threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), createThreadFactory( "sshjgit-maintenance" ) );
+        this.workers.allowCoreThreadTimeOut( true );
+    }
+
+    /**
+     * @param packLimit repositories with more packs than this are repacked.
+     */
+    public void setPackLimit( int packLimit ) {
+        this.packLimit = packLimit;
+    }
+
+    /**
+     * @param looseObjectLimit repositories with about this many loose objects or more are repacked.
+     */
+    public void setLooseObjectLimit( int looseObjectLimit ) {
+        this.looseObjectLimit = looseObjectLimit;
+    }
+
+    /**
+     * @param cpuBudget share of each worker's time which it may spend running maintenance, between 0 (exclusive)
+     * and 1.
+     */
+    public void setCpuBudget( double cpuBudget ) {
+        if ( cpuBudget <= 0 || cpuBudget > 1 ) {
+            throw new IllegalArgumentException( "cpu budget must be more than 0 and at most 1." );
+        }
+        this.cpuBudget = cpuBudget;
+    }
+
+    /**
+     * @param scanIntervalMillis how often all repositories are checked. Must be set before {@link #start()}.
+     */
+    public void setScanIntervalMillis( long scanIntervalMillis ) {
+        this.scanIntervalMillis = scanIntervalMillis;
+    }
+
+    /**
+     * @param retryDelayMillis how long to wait before trying again, when a push to the repository is in progress.
+     */
+    public void setRetryDelayMillis( long retryDelayMillis ) {
+        this.retryDelayMillis = retryDelayMillis;
+    }
+
+    /**
+     * @param gitExecutable the {@code git} command to run, by default found on the {@code PATH}.
+     */
+    public void setGitExecutable( String gitExecutable ) {
+        this.gitExecutable = gitExecutable;
+    }
+
+    /**
+     * Starts scanning all repositories regularly, beginning with one scan right away.
+     */
+    public synchronized void start() {
+        if ( scheduler != null ) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor( createThreadFactory( "sshjgit-maintenance-scan" ) );
+        scheduler.scheduleWithFixedDelay( new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    scan();
+                } catch( RuntimeException e ) {
+                    log.warn( "Could not scan " + reposRootDir + " for maintenance", e );
+                }
+            }
+        }, 0, scanIntervalMillis, TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * Stops scanning, and stops running maintenance. A {@code git gc} which is running is stopped, which leaves the
+     * repository as it was before, or repacked.
+     */
+    public synchronized void shutdown() {
+        if ( scheduler != null ) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        workers.shutdownNow();
+    }
+
+    /**
+     * Called when a push to the repository starts, so that maintenance waits for it.
+     */
+    public void receiveStarted( File repositoryDirectory ) {
+        final String path = repositoryDirectory.getAbsolutePath();
+        synchronized ( activeReceives ) {
+            final Integer count = activeReceives.get( path );
+            activeReceives.put( path, count == null ? 1 : count + 1 );
+        }
+    }
+
+    /**
+     * Called when a push to the repository has finished, successfully or not. Checks whether the repository needs
+     * maintenance now.
+     */
+    public void receiveFinished( File repositoryDirectory ) {
+        final String path = repositoryDirectory.getAbsolutePath();
+        synchronized ( activeReceives ) {
+            final Integer count = activeReceives.get( path );
+            if ( count == null || count <= 1 ) {
+                activeReceives.remove( path );
+            } else {
+                activeReceives.put( path, count - 1 );
+            }
+        }
+        check( repositoryDirectory );
+    }
+
+    /**
+     * Counts the packs and loose objects of a repository, and queues it for maintenance if either is over its
+     * limit.
+     * @return whether the repository was queued, now or before.
+     */
+    public boolean check( File repositoryDirectory ) {
+        final Stats repositoryStats = count( repositoryDirectory );
+        if ( repositoryStats != null
+             && ( repositoryStats.packCount > packLimit || repositoryStats.looseObjectCount >= looseObjectLimit ) ) {
+            enqueue( repositoryDirectory.getAbsolutePath() );
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks all repositories below the repositories root directory.
+     */
+    public void scan() {
+        final List<File> directories = new ArrayList<File>();
+        directories.add( reposRootDir );
+        while ( !directories.isEmpty() ) {
+            final File directory = directories.remove( directories.size() - 1 );
+            if ( new File( directory, "objects" ).isDirectory() && new File( directory, "refs" ).isDirectory() ) {
+                check( directory );
+                continue;
+            }
+            final File[] children = directory.listFiles( new FileFilter() {
+                @Override
+                public boolean accept( File file ) {
+                    return file.isDirectory();
+                }
+            } );
+            if ( children != null ) {
+                Collections.addAll( directories, children );
+            }
+        }
+    }
+
+    /**
+     * @return how many repositories are waiting to be maintained.
+     */
+    public int getQueuedCount() {
+        synchronized ( activeReceives ) {
+            return queued.size();
+        }
+    }
+
+    /**
+     * @return how many repositories are being maintained right now.
+     */
+    public int getRunningCount() {
+        return running.get();
+    }
+
+    /**
+     * @return the counts and last maintenance of each repository which has been checked, keyed by the
+     * repository's absolute path. The values are live.
+     */
+    public Map<String, Stats> getStats() {
+        return Collections.<String, Stats>unmodifiableMap( stats );
+    }
+
+    /**
+     * @return the repository's updated stats, or {@code null} if it is not a repository.
+     */
+    private Stats count( File repositoryDirectory ) {
+        final File objects = new File( repositoryDirectory, "objects" );
+        if ( !objects.isDirectory() ) {
+            return null;
+        }
+        final Stats repositoryStats = statsFor( repositoryDirectory.getAbsolutePath() );
+        repositoryStats.packCount = countPacks( objects );
+        repositoryStats.looseObjectCount = estimateLooseObjects( objects );
+        repositoryStats.lastCheckedMillis = System.currentTimeMillis();
+        return repositoryStats;
+    }
+
+    private void enqueue( final String path ) {
+        synchronized ( activeReceives ) {
+            if ( !queued.add( path ) ) {
+                return;
+            }
+        }
+        try {
+            workers.execute( new Runnable() {
+                @Override
+                public void run() {
+                    maintain( path );
+                }
+            } );
+        } catch( RuntimeException e ) {
+            // shut down
+            synchronized ( activeReceives ) {
+                queued.remove( path );
+            }
+        }
+    }
+
+    private void maintain( final String path ) {
+        synchronized ( activeReceives ) {
+            if ( activeReceives.containsKey( path ) ) {
+                retryLater( path );
+                return;
+            }
+            queued.remove( path );
+        }
+        running.incrementAndGet();
+        final Stats repositoryStats = statsFor( path );
+        final long start = System.currentTimeMillis();
+        int exitCode = -1;
+        try {
+            exitCode = runGc( new File( path ) );
+            if ( exitCode != 0 ) {
+                log.warn( "git gc exited with " + exitCode + " for " + path );
+            }
+        } catch( IOException e ) {
+            log.warn( "Could not run git gc for " + path + ": " + e.getMessage() );
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            return;
+        } finally {
+            running.decrementAndGet();
+        }
+        final long duration = System.currentTimeMillis() - start;
+        repositoryStats.recordRun( start, duration, exitCode );
+        // only counted, not queued again, so that a failing gc is not retried until the next push or scan
+        count( new File( path ) );
+        log.info( "Maintained {} in {} ms, {} packs left.", new Object[]{ path, duration, repositoryStats.packCount } );
+
+        // rest, so that this worker only spends its share of time on maintenance
+        try {
+            Thread.sleep( (long) ( duration * ( 1 - cpuBudget ) / cpuBudget ) );
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** must hold the lock on {@link #activeReceives}. */
+    private void retryLater( final String path ) {
+        final ScheduledExecutorService retryScheduler;
+        synchronized ( this ) {
+            retryScheduler = scheduler;
+        }
+        queued.remove( path );
+        if ( retryScheduler == null ) {
+            return;
+        }
+        retryScheduler.schedule( new Runnable() {
+            @Override
+            public void run() {
+                check( new File( path ) );
+            }
+        }, retryDelayMillis, TimeUnit.MILLISECONDS );
+    }
+
+    private int runGc( File repositoryDirectory ) throws IOException, InterruptedException {
+        final ProcessBuilder builder = new ProcessBuilder( gitExecutable,
+                "--git-dir=" + repositoryDirectory.getAbsolutePath(),
+                "-c", "pack.threads=1",
+                "gc", "--quiet" );
+        builder.redirectErrorStream( true );
+        final Process process = builder.start();
+        final InputStream output = process.getInputStream();
+        try {
+            final String text = IOUtils.toString( output );
+            if ( text.length() > 0 ) {
+                log.info( "git gc for " + repositoryDirectory + ": " + text.trim() );
+            }
+            return process.waitFor();
+        } finally {
+            IOUtils.closeQuietly( output );
+            IOUtils.closeQuietly( process.getOutputStream() );
+            process.destroy();
+        }
+    }
+
+    private Stats statsFor( String path ) {
+        Stats s = stats.get( path );
+        if ( s == null ) {
+            final Stats created = new Stats();
+            s = stats.putIfAbsent( path, created );
+            if ( s == null ) {
+                s = created;
+            }
+        }
+        return s;
+    }
+
+    private static int countPacks( File objects ) {
+        final String[] packs = new File( objects, "pack" ).list();
+        int count = 0;
+        if ( packs != null ) {
+            for ( String name : packs ) {
+                if ( name.endsWith( ".pack" ) ) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Estimates the number of loose objects the way {@code git gc --auto} does, from one of the 256 fan-out
+     * directories, which have about the same number of objects each.
+     */
+    private static int estimateLooseObjects( File objects ) {
+        final String[] sample = new File( objects, "17" ).list();
+        return sample == null ? 0 : sample.length * 256;
+    }
+
+    private static ThreadFactory createThreadFactory( final String name ) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread( Runnable r ) {
+                final Thread thread = new Thread( r, name );
+                thread.setDaemon( true );
+                thread.setPriority( Thread.MIN_PRIORITY );
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Counts and maintenance history of one repository.
+     */
+    public static class Stats {
+        private volatile int  packCount;
+        private volatile int  looseObjectCount;
+        private volatile long lastCheckedMillis;
+        private volatile long lastRunMillis;
+        private volatile long lastRunDurationMillis;
+        private volatile int  lastRunExitCode;
+        private final AtomicInteger runs = new AtomicInteger();
+
+        void recordRun( long startMillis, long durationMillis, int exitCode ) {
+            lastRunMillis = startMillis;
+            lastRunDurationMillis = durationMillis;
+            lastRunExitCode = exitCode;
+            runs.incrementAndGet();
+        }
+
+        public int getPackCount() {
+            return packCount;
+        }
+
+        /**
+         * @return about how many loose objects there are, estimated from a sample.
+         */
+        public int getLooseObjectCount() {
+            return looseObjectCount;
+        }
+
+        public long getLastCheckedMillis() {
+            return lastCheckedMillis;
+        }
+
+        /**
+         * @return when maintenance last started, or 0 if it never ran.
+         */
+        public long getLastRunMillis() {
+            return lastRunMillis;
+        }
+
+        public long getLastRunDurationMillis() {
+            return lastRunDurationMillis;
+        }
+
+        /**
+         * @return the exit code of the last {@code git gc}, or -1 if it could not be run.
+         */
+        public int getLastRunExitCode() {
+            return lastRunExitCode;
+        }
+
+        public int getRuns() {
+            return runs.get();
+        }
+
+        @Override
+        public String toString() {
+            return "packCount=" + packCount + ", looseObjectCount=" + looseObjectCount + ", runs=" + runs
+                   + ", lastRunMillis=" + lastRunMillis + ", lastRunDurationMillis=" + lastRunDurationMillis
+                   + ", lastRunExitCode=" + lastRunExitCode;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.sonatype.sshjgit.core.security;
+
+import com.sonatype.sshjgit.core.util.SshKeyUtils;
+import org.sonatype.security.realms.publickey.PublicKeyRepository;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <p>A {@link PublicKeyRepository} which, besides the keys of each principal, keeps the principals of each key, by
+ * the key's SHA-256 fingerprint (see {@link SshKeyUtils#getFingerprint(PublicKey)}).</p>
+ *
+ * <p>That lets {@link ShiroPublickeyAuthenticator} turn away keys which are not registered for the user with a hash
+ * lookup, before logging in through Shiro. For that to be correct, the realm which Shiro authenticates public keys
+ * with must use this same repository.</p>
+ */
+public class FingerprintPublicKeyRepository implements PublicKeyRepository {
+    /** keys of each principal. guarded by {@link #lock}. */
+    protected final Map<Object, Set<PublicKey>> accounts = new HashMap<Object, Set<PublicKey>>();
+    /** principals of each key fingerprint. guarded by {@link #lock}. */
+    protected final Map<String, Set<Object>> principalsByFingerprint = new HashMap<String, Set<Object>>();
+    protected final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile RejectedKeyCache rejectedKeys;
+
+    /**
+     * @param rejectedKeys the rejections to forget keys from once they are added, so that a key which was offered
+     * just before it was added is not turned away until its rejection expires. {@code null} for none.
+     */
+    public void setRejectedKeyCache(RejectedKeyCache rejectedKeys) {
+        this.rejectedKeys = rejectedKeys;
+    }
+
+    @Override
+    public void addPublicKey(Object principal, PublicKey publicKey) {
+        addPublicKeys(principal, Collections.singleton(publicKey));
+    }
+
+    @Override
+    public void addPublicKeys(Object principal, Set<PublicKey> publicKeys) {
+        final List<String> added = new ArrayList<String>(publicKeys.size());
+        lock.writeLock().lock();
+        try {
+            Set<PublicKey> keys = accounts.get(principal);
+            if (keys == null) {
+                keys = new HashSet<PublicKey>();
+                accounts.put(principal, keys);
+            }
+            for (PublicKey publicKey : publicKeys) {
+                if (keys.add(publicKey)) {
+                    added.add(index(principal, publicKey));
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        final RejectedKeyCache rejectedKeys = this.rejectedKeys;
+        if (rejectedKeys != null) {
+            for (String fingerprint : added) {
+                rejectedKeys.forget(String.valueOf(principal), fingerprint);
+            }
+        }
+    }
+
+    @Override
+    public void removePublicKey(Object principal, PublicKey publicKey) {
+        lock.writeLock().lock();
+        try {
+            final Set<PublicKey> keys = accounts.get(principal);
+            if (keys != null && keys.remove(publicKey)) {
+                unindex(principal, publicKey);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Set<PublicKey> getPublicKeys(Object principal) {
+        lock.readLock().lock();
+        try {
+            final Set<PublicKey> keys = accounts.get(principal);
+            return keys == null ? null : Collections.unmodifiableSet(new HashSet<PublicKey>(keys));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean hasAccount(Object principal) {
+        lock.readLock().lock();
+        try {
+            return accounts.containsKey(principal);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param publicKey the key to look for.
+     * @return the principals which have the key, or an empty set.
+     */
+    public Set<Object> getPrincipals(PublicKey publicKey) {
+        final String fingerprint = SshKeyUtils.getFingerprint(publicKey);
+        lock.readLock().lock();
+        try {
+            final Set<Object> principals = principalsByFingerprint.get(fingerprint);
+            return principals == null ? Collections.<Object>emptySet() : Collections.unmodifiableSet(new HashSet<Object>(principals));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param principal the principal.
+     * @param fingerprint a key fingerprint, as from {@link SshKeyUtils#getFingerprint(PublicKey)}.
+     * @return whether the principal has a key with the fingerprint.
+     */
+    public boolean hasPublicKey(Object principal, String fingerprint) {
+        lock.readLock().lock();
+        try {
+            final Set<Object> principals = principalsByFingerprint.get(fingerprint);
+            return principals != null && principals.contains(principal);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return how many keys are registered, counting a key once for each principal which has it.
+     */
+    public int getKeyCount() {
+        lock.readLock().lock();
+        try {
+            int count = 0;
+            for (Set<PublicKey> keys : accounts.values()) {
+                count += keys.size();
+            }
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces all accounts at once, such as after loading them from storage. Call with the write {@link #lock} held.
+     * @param replacement the keys of each principal.
+     */
+    protected void replaceAccounts(Map<Object, Set<PublicKey>> replacement) {
+        final RejectedKeyCache rejectedKeys = this.rejectedKeys;
+        if (rejectedKeys != null) {
+            // any key may have been added
+            rejectedKeys.clear();
+        }
+        accounts.clear();
+        principalsByFingerprint.clear();
+        for (Map.Entry<Object, Set<PublicKey>> entry : replacement.entrySet()) {
+            final Set<PublicKey> keys = new HashSet<PublicKey>(entry.getValue());
+            accounts.put(entry.getKey(), keys);
+            for (PublicKey key : keys) {
+                index(entry.getKey(), key);
+            }
+        }
+    }
+
+    /**
+     * @return the key's fingerprint.
+     */
+    private String index(Object principal, PublicKey publicKey) {
+        final String fingerprint = SshKeyUtils.getFingerprint(publicKey);
+        Set<Object> principals = principalsByFingerprint.get(fingerprint);
+        if (principals == null) {
+            principals = new HashSet<Object>(1);
+            principalsByFingerprint.put(fingerprint, principals);
+        }
+        principals.add(principal);
+        return fingerprint;
+    }
+
+    private void unindex(Object principal, PublicKey publicKey) {
+        final String fingerprint = SshKeyUtils.getFingerprint(publicKey);
+        final Set<Object> principals = principalsByFingerprint.get(fingerprint);
+        if (principals != null && principals.remove(principal) && principals.isEmpty()) {
+            principalsByFingerprint.remove(fingerprint);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.sonatype.sshjgit.core.security;
+
+import org.apache.shiro.authz.Permission;
+import org.apache.shiro.authz.permission.WildcardPermission;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>A set of held {@link Permission}s which answers {@link #implies(Permission)} by walking a trie of
+ * {@link WildcardPermission} parts, instead of asking every held permission in turn. For permissions such as
+ * {@code gitrepo:push:users:hugo:myrepo}, a check costs in the order of the number of parts, regardless of how many
+ * permissions are held.</p>
+ *
+ * <p>The outcome is the same as for {@link WildcardPermission#implies(Permission)}: a held permission implies a
+ * checked one if each of its parts is {@code *} or contains the checked part, where missing trailing parts of the
+ * held permission imply anything, and extra trailing parts of it must be {@code *}.</p>
+ *
+ * <p>Held permissions which are not {@code WildcardPermission}s, or whose parts have too many combinations of
+ * subparts, are kept aside and asked one by one, as are checked permissions with more than one subpart in a part.</p>
+ *
+ * <p>Instances are not thread safe while being built, but may be shared once all permissions have been added.</p>
+ */
+public class PermissionIndex {
+    private static final String WILDCARD_TOKEN = "*";
+    private static final int MAX_COMBINATIONS = 64;
+    private static final Method GET_PARTS = findGetParts();
+
+    private final Node root = new Node();
+    private final List<Permission> unindexed = new ArrayList<Permission>();
+    private final List<Permission> all = new ArrayList<Permission>();
+
+    public PermissionIndex() {
+    }
+
+    public PermissionIndex(Collection<? extends Permission> permissions) {
+        for (Permission permission : permissions) {
+            add(permission);
+        }
+    }
+
+    /**
+     * Adds a held permission.
+     * @param permission the permission.
+     */
+    public void add(Permission permission) {
+        all.add(permission);
+        final List<Set<String>> parts = partsOf(permission);
+        if (parts == null || combinations(parts) > MAX_COMBINATIONS) {
+            unindexed.add(permission);
+            return;
+        }
+        insert(root, parts, 0);
+    }
+
+    /**
+     * @param permission the permission being checked.
+     * @return {@code true} if any held permission implies it.
+     */
+    public boolean implies(Permission permission) {
+        final List<Set<String>> parts = partsOf(permission);
+        if (parts == null || hasMultipleSubparts(parts)) {
+            return impliesLinearly(all, permission);
+        }
+        final String[] tokens = new String[parts.size()];
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = parts.get(i).iterator().next();
+        }
+        return lookup(root, tokens, 0) || impliesLinearly(unindexed, permission);
+    }
+
+    /**
+     * @return the held permissions.
+     */
+    public List<Permission> getPermissions() {
+        return all;
+    }
+
+    private static boolean lookup(Node node, String[] tokens, int i) {
+        if (node.terminal) {
+            // a held permission ended here, so it implies anything longer
+            return true;
+        }
+        if (i == tokens.length) {
+            return node.impliesAtEnd;
+        }
+        final Node exact = node.children.get(tokens[i]);
+        if (exact != null && lookup(exact, tokens, i + 1)) {
+            return true;
+        }
+        final Node wildcard = node.wildcard;
+        return wildcard != null && wildcard != exact && lookup(wildcard, tokens, i + 1);
+    }
+
+    private static void insert(Node node, List<Set<String>> parts, int i) {
+        if (i == parts.size()) {
+            node.terminal = true;
+            node.impliesAtEnd = true;
+            return;
+        }
+        final Set<String> part = parts.get(i);
+        if (part.contains(WILDCARD_TOKEN)) {
+            if (node.wildcard == null) {
+                node.wildcard = new Node();
+            }
+            insert(node.wildcard, parts, i + 1);
+        } else {
+            for (String subpart : part) {
+                Node child = node.children.get(subpart);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(subpart, child);
+                }
+                insert(child, parts, i + 1);
+            }
+        }
+        node.impliesAtEnd = node.terminal || (node.wildcard != null && node.wildcard.impliesAtEnd);
+    }
+
+    private static boolean impliesLinearly(List<Permission> permissions, Permission permission) {
+        for (Permission held : permissions) {
+            if (held.implies(permission)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasMultipleSubparts(List<Set<String>> parts) {
+        for (Set<String> part : parts) {
+            if (part.size() != 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int combinations(List<Set<String>> parts) {
+        int combinations = 1;
+        for (Set<String> part : parts) {
+            if (!part.contains(WILDCARD_TOKEN)) {
+                combinations *= Math.max(1, part.size());
+                if (combinations > MAX_COMBINATIONS) {
+                    break;
+                }
+            }
+        }
+        return combinations;
+    }
+
+    /**
+     * @return the parts of a {@code WildcardPermission}, already lower cased unless it is case sensitive, or
+     * {@code null} if they are not available.
+     */
+    @SuppressWarnings("unchecked")
+    private static List<Set<String>> partsOf(Permission permission) {
+        if (GET_PARTS == null || !(permission instanceof WildcardPermission)) {
+            return null;
+        }
+        try {
+            return (List<Set<String>>) GET_PARTS.invoke(permission);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static Method findGetParts() {
+        try {
+            // protected in Shiro, and there is no other way to get at the parsed parts
+            final Method getParts = WildcardPermission.class.getDeclaredMethod("getParts");
+            getParts.setAccessible(true);
+            return getParts;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static class Node {
+        final Map<String, Node> children = new HashMap<String, Node>();
+        Node wildcard;
+        /** whether a held permission ends here. */
+        boolean terminal;
+        /** whether a checked permission which ends here is implied: a held one ends here, or continues with only wildcards. */
+        boolean impliesAtEnd;
+    }
+}
@@ -0,0 +1,116 @@
+package com.sonatype.sshjgit.core.security;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Remembers, for a while, which public keys were recently rejected for which users, so that clients which keep
+ * offering the same wrong key are turned away with a hash lookup instead of another login through Shiro.</p>
+ *
+ * <p>Keys are identified by their fingerprint. A key added for a user after it was rejected for them is still
+ * rejected until the entry expires, unless it is {@link #forget forgotten}, which a
+ * {@link FingerprintPublicKeyRepository} does for the keys added to it.</p>
+ */
+public class RejectedKeyCache {
+    public static final long DEFAULT_TTL_MILLIS = 30 * 1000L;
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    private final long ttlMillis;
+    private final int maxEntries;
+
+    /** expiry time of each rejection, keyed by fingerprint and username, least recently rejected first. guarded by itself. */
+    private final Map<String, Long> rejections;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    public RejectedKeyCache() {
+        this(DEFAULT_TTL_MILLIS, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param ttlMillis how long a rejection is remembered.
+     * @param maxEntries how many rejections are remembered at most.
+     */
+    public RejectedKeyCache(long ttlMillis, final int maxEntries) {
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = maxEntries;
+        this.rejections = new LinkedHashMap<String, Long>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return whether the key was rejected for the user, recently enough to still be remembered.
+     */
+    public boolean isRejected(String username, String fingerprint) {
+        final String key = key(username, fingerprint);
+        synchronized (rejections) {
+            final Long expires = rejections.get(key);
+            if (expires == null) {
+                return false;
+            }
+            if (expires.longValue() <= System.currentTimeMillis()) {
+                rejections.remove(key);
+                return false;
+            }
+        }
+        hits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Remembers that the key was rejected for the user.
+     */
+    public void reject(String username, String fingerprint) {
+        if (ttlMillis <= 0 || maxEntries <= 0) {
+            return;
+        }
+        final String key = key(username, fingerprint);
+        synchronized (rejections) {
+            // re-insert, so that the entry moves to the end of the eviction order
+            rejections.remove(key);
+            rejections.put(key, System.currentTimeMillis() + ttlMillis);
+        }
+    }
+
+    /**
+     * Forgets that the key was rejected for the user, such as after it was added for them.
+     */
+    public void forget(String username, String fingerprint) {
+        final String key = key(username, fingerprint);
+        synchronized (rejections) {
+            rejections.remove(key);
+        }
+    }
+
+    /**
+     * Forgets all rejections, such as after keys were added.
+     */
+    public void clear() {
+        synchronized (rejections) {
+            rejections.clear();
+        }
+    }
+
+    /**
+     * @return how many attempts were turned away because of a remembered rejection.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public int size() {
+        synchronized (rejections) {
+            return rejections.size();
+        }
+    }
+
+    private static String key(String username, String fingerprint) {
+        // fingerprints have no spaces, so this can't be ambiguous
+        return fingerprint + ' ' + username;
+    }
+}
@@ -5,13 +5,19 @@ import org.apache.shiro.authz.AuthorizationInfo;
 import org.apache.shiro.authz.Permission;
 import org.apache.shiro.authz.SimpleAuthorizationInfo;
 import org.apache.shiro.authz.SimpleRole;
+import org.apache.shiro.authz.UnauthorizedException;
+import org.apache.shiro.authz.permission.PermissionResolver;
 import org.apache.shiro.authz.permission.RolePermissionResolverAware;
 import org.apache.shiro.realm.SimpleAccountRealm;
 import org.apache.shiro.subject.PrincipalCollection;
+import org.apache.shiro.subject.SimplePrincipalCollection;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * <p>This {@code Realm} is like {@code SimpleAccountRealm}, but it allows
@@ -28,6 +34,17 @@ import java.util.Set;
  * <p>When an account is member of a group, it is considered to have all
  * {@code Permission}s of the group in addition to its own specific
  * {@code Permission}s.</p>
+ *
+ * <p>Each account's permissions, from its roles and of its own, are
+ * flattened into one set of resolved {@code Permission}s the first time they
+ * are needed, and reused from then on. They are kept in a
+ * {@link PermissionIndex}, so checking a permission does not ask each of
+ * them in turn. The outcome of each
+ * {@link #isPermitted(PrincipalCollection, String)} is also remembered per
+ * user and permission string, for {@link #setPermissionCacheTtlMillis(long)}.
+ * Both are forgotten whenever an account or role is added through this realm.
+ * If you modify a {@code SimpleAccount} or {@code SimpleRole} after adding
+ * it, call {@link #clearPermissionCaches()}.</p>
  * 
  * <p>
  * TODO: actually improve SimpleAccountRealm within the Apache Shiro project.  {@link RolePermissionResolverAware}
@@ -38,6 +55,16 @@ import java.util.Set;
  * @author hugo@josefson.org
  */
 public class RolePermissionsAwareSimpleAccountRealm extends SimpleAccountRealm {
+    public static final long DEFAULT_PERMISSION_CACHE_TTL_MILLIS = 60 * 1000L;
+    private static final int MAX_CACHED_DECISIONS = 100000;
+
+    /** flattened and resolved permissions, keyed by username. */
+    private final ConcurrentMap<String, CachedEntry<AuthorizationInfo>> compiledInfos = new ConcurrentHashMap<String, CachedEntry<AuthorizationInfo>>();
+    /** outcomes of isPermitted, keyed by username and permission string. */
+    private final ConcurrentMap<DecisionKey, CachedEntry<Boolean>> decisions = new ConcurrentHashMap<DecisionKey, CachedEntry<Boolean>>();
+    /** bumped whenever accounts or roles change, so that entries computed from older state are ignored. */
+    private volatile int generation;
+    private volatile long permissionCacheTtlMillis = DEFAULT_PERMISSION_CACHE_TTL_MILLIS;
 
     public RolePermissionsAwareSimpleAccountRealm() {
     }
@@ -49,11 +76,145 @@ public class RolePermissionsAwareSimpleAccountRealm extends SimpleAccountRealm {
     @Override
     public void add(SimpleRole role) {
         super.add(role);
+        clearPermissionCaches();
     }
 
     @Override
     public void add(SimpleAccount account) {
         super.add(account);
+        clearPermissionCaches();
+    }
+
+    /**
+     * Sets for how long the outcome of a permission check is reused.
+     * @param permissionCacheTtlMillis time to live in milliseconds, or {@code 0} to check every time.
+     */
+    public void setPermissionCacheTtlMillis(long permissionCacheTtlMillis) {
+        this.permissionCacheTtlMillis = permissionCacheTtlMillis;
+        decisions.clear();
+    }
+
+    /**
+     * Forgets all flattened permissions and remembered permission check outcomes. Needed after modifying an
+     * account or role which has already been added.
+     */
+    public void clearPermissionCaches() {
+        generation++;
+        compiledInfos.clear();
+        decisions.clear();
+    }
+
+    /**
+     * Flattens the permissions of every account ahead of its first permission check, so that the first commands
+     * after a start don't have to.
+     * @return how many accounts have permissions.
+     */
+    public int warmPermissionCaches() {
+        final Collection<String> usernames;
+        synchronized (users) {
+            usernames = new ArrayList<String>(users.keySet());
+        }
+        int warmed = 0;
+        for (String username : usernames) {
+            if (getAuthorizationInfo(new SimplePrincipalCollection(username, getName())) != null) {
+                warmed++;
+            }
+        }
+        return warmed;
+    }
+
+    @Override
+    public boolean isPermitted(PrincipalCollection principals, String permission) {
+        final long ttl = permissionCacheTtlMillis;
+        if (ttl <= 0 || principals == null) {
+            return super.isPermitted(principals, permission);
+        }
+        final int currentGeneration = generation;
+        final DecisionKey key = new DecisionKey(getUsername(principals), permission);
+        final long now = System.currentTimeMillis();
+        final CachedEntry<Boolean> cached = decisions.get(key);
+        if (cached != null && cached.generation == currentGeneration && cached.expires > now) {
+            return cached.value;
+        }
+        final boolean permitted = super.isPermitted(principals, permission);
+        if (decisions.size() >= MAX_CACHED_DECISIONS) {
+            decisions.clear();
+        }
+        decisions.put(key, new CachedEntry<Boolean>(permitted, currentGeneration, now + ttl));
+        return permitted;
+    }
+
+    @Override
+    public void checkPermission(PrincipalCollection principals, String permission) {
+        if (!isPermitted(principals, permission)) {
+            throw new UnauthorizedException("User is not permitted [" + permission + "]");
+        }
+    }
+
+    /**
+     * Looks the permission up in the account's {@link PermissionIndex}.
+     */
+    @Override
+    public boolean isPermitted(PrincipalCollection principals, Permission permission) {
+        final AuthorizationInfo info = getAuthorizationInfo(principals);
+        if (info instanceof IndexedAuthorizationInfo) {
+            return ((IndexedAuthorizationInfo) info).index.implies(permission);
+        }
+        return super.isPermitted(principals, permission);
+    }
+
+    @Override
+    public void checkPermission(PrincipalCollection principals, Permission permission) {
+        if (!isPermitted(principals, permission)) {
+            throw new UnauthorizedException("User is not permitted [" + permission + "]");
+        }
+    }
+
+    /**
+     * Returns the account's permissions flattened into resolved {@code Permission}s, which are computed once by
+     * {@link #doGetAuthorizationInfo(PrincipalCollection)} and then reused until accounts or roles change.
+     */
+    @Override
+    protected AuthorizationInfo getAuthorizationInfo(PrincipalCollection principals) {
+        if (principals == null) {
+            return null;
+        }
+        final int currentGeneration = generation;
+        final String username = getUsername(principals);
+        final CachedEntry<AuthorizationInfo> cached = compiledInfos.get(username);
+        if (cached != null && cached.generation == currentGeneration) {
+            return cached.value;
+        }
+        final AuthorizationInfo compiled = compile(doGetAuthorizationInfo(principals));
+        if (compiled != null) {
+            compiledInfos.put(username, new CachedEntry<AuthorizationInfo>(compiled, currentGeneration, Long.MAX_VALUE));
+        }
+        return compiled;
+    }
+
+    /**
+     * Resolves string permissions into {@code Permission}s once, instead of on every check, and indexes them.
+     */
+    private AuthorizationInfo compile(AuthorizationInfo info) {
+        if (info == null) {
+            return null;
+        }
+        final Set<Permission> permissions = new HashSet<Permission>();
+        if (info.getObjectPermissions() != null) {
+            permissions.addAll(info.getObjectPermissions());
+        }
+        if (info.getStringPermissions() != null) {
+            final PermissionResolver resolver = getPermissionResolver();
+            for (String stringPermission : info.getStringPermissions()) {
+                permissions.add(resolver.resolvePermission(stringPermission));
+            }
+        }
+        final SimpleAuthorizationInfo compiled = new IndexedAuthorizationInfo(new PermissionIndex(permissions));
+        if (info.getRoles() != null) {
+            compiled.setRoles(new HashSet<String>(info.getRoles()));
+        }
+        compiled.setObjectPermissions(permissions);
+        return compiled;
     }
 
     @Override
@@ -94,4 +255,48 @@ public class RolePermissionsAwareSimpleAccountRealm extends SimpleAccountRealm {
             return authorizationInfo;
         }
     }
+
+    private static class IndexedAuthorizationInfo extends SimpleAuthorizationInfo {
+        final PermissionIndex index;
+
+        IndexedAuthorizationInfo(PermissionIndex index) {
+            this.index = index;
+        }
+    }
+
+    private static class CachedEntry<T> {
+        final T    value;
+        final int  generation;
+        final long expires;
+
+        CachedEntry(T value, int generation, long expires) {
+            this.value = value;
+            this.generation = generation;
+            this.expires = expires;
+        }
+    }
+
+    private static class DecisionKey {
+        private final String username;
+        private final String permission;
+
+        DecisionKey(String username, String permission) {
+            this.username = username;
+            this.permission = permission;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof DecisionKey)) {
+                return false;
+            }
+            final DecisionKey other = (DecisionKey) o;
+            return username.equals(other.username) && permission.equals(other.permission);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * username.hashCode() + permission.hashCode();
+        }
+    }
 }
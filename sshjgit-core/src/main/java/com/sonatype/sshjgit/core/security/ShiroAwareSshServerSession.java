@@ -6,9 +6,13 @@ import org.apache.shiro.subject.Subject;
 import org.apache.shiro.subject.support.SubjectThreadState;
 import org.apache.shiro.util.ThreadState;
 import org.apache.sshd.SshServer;
+import org.apache.sshd.common.future.CloseFuture;
+import org.apache.sshd.common.future.SshFutureListener;
 import org.apache.sshd.common.util.Buffer;
 import org.apache.sshd.server.session.ServerSession;
 
+import com.sonatype.sshjgit.core.metrics.ServerMetrics;
+
 /**
  * This implementation of {@link ServerSession} allows Shiro aware security checks to function correctly.
  *
@@ -20,9 +24,16 @@ import org.apache.sshd.server.session.ServerSession;
 class ShiroAwareSshServerSession extends ServerSession {
     private final Subject subject;
 
-    public ShiroAwareSshServerSession(SecurityManager securityManager, SshServer sshServer, IoSession ioSession) throws Exception {
+    public ShiroAwareSshServerSession(SecurityManager securityManager, SshServer sshServer, IoSession ioSession, final ServerMetrics metrics) throws Exception {
         super(sshServer, ioSession);
         this.subject = new Subject.Builder(securityManager).buildSubject();
+        metrics.sessionOpened();
+        closeFuture.addListener(new SshFutureListener<CloseFuture>() {
+            @Override
+            public void operationComplete(CloseFuture future) {
+                metrics.sessionClosed();
+            }
+        });
     }
 
     @Override
@@ -6,6 +6,9 @@ import org.apache.sshd.SshServer;
 import org.apache.sshd.common.session.AbstractSession;
 import org.apache.sshd.server.session.SessionFactory;
 
+import com.sonatype.sshjgit.core.metrics.NoServerMetrics;
+import com.sonatype.sshjgit.core.metrics.ServerMetrics;
+
 /**
  * {@code SessionFactory} for using {@link ShiroAwareSshServerSession} in an
  * {@link SshServer}.
@@ -15,14 +18,62 @@ import org.apache.sshd.server.session.SessionFactory;
  */
 public class ShiroAwareSshServerSessionFactory extends SessionFactory {
     private final SecurityManager securityManager;
+    private final ServerMetrics metrics;
+    private volatile boolean draining;
 
     public ShiroAwareSshServerSessionFactory(SecurityManager securityManager, SshServer sshServer) {
+        this(securityManager, sshServer, new NoServerMetrics());
+    }
+
+    /**
+     * @param metrics is told when sessions are opened and closed.
+     */
+    public ShiroAwareSshServerSessionFactory(SecurityManager securityManager, SshServer sshServer, ServerMetrics metrics) {
         this.securityManager = securityManager;
+        this.metrics = metrics;
         setServer(sshServer);
     }
 
+    /**
+     * @param draining whether to close new connections right away, while the server waits for its running commands
+     * to finish before it stops. Sessions which are already open are not affected.
+     */
+    public void setDraining(boolean draining) {
+        this.draining = draining;
+    }
+
+    @Override
+    public void sessionCreated(IoSession ioSession) throws Exception {
+        if (draining) {
+            ioSession.close(true);
+            return;
+        }
+        super.sessionCreated(ioSession);
+    }
+
+    @Override
+    public void sessionClosed(IoSession ioSession) throws Exception {
+        if (AbstractSession.getSession(ioSession, true) != null) {
+            super.sessionClosed(ioSession);
+        }
+    }
+
+    @Override
+    public void exceptionCaught(IoSession ioSession, Throwable cause) throws Exception {
+        if (AbstractSession.getSession(ioSession, true) != null) {
+            super.exceptionCaught(ioSession, cause);
+        }
+    }
+
+    @Override
+    public void messageReceived(IoSession ioSession, Object message) throws Exception {
+        if (AbstractSession.getSession(ioSession, true) != null) {
+            super.messageReceived(ioSession, message);
+        }
+    }
+
     @Override
     protected AbstractSession createSession(IoSession ioSession) throws Exception {
-        return new ShiroAwareSshServerSession(securityManager, this.server, ioSession);
+        return new ShiroAwareSshServerSession(securityManager, this.server, ioSession, metrics);
     }
 }
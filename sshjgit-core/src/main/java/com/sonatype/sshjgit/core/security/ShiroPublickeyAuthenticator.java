@@ -2,6 +2,9 @@ package com.sonatype.sshjgit.core.security;
 
 import java.security.PublicKey;
 
+import com.sonatype.sshjgit.core.metrics.NoServerMetrics;
+import com.sonatype.sshjgit.core.metrics.ServerMetrics;
+import com.sonatype.sshjgit.core.util.SshKeyUtils;
 import org.apache.shiro.SecurityUtils;
 import org.apache.shiro.authc.AuthenticationException;
 import org.apache.shiro.subject.Subject;
@@ -10,23 +13,82 @@ import org.apache.sshd.server.session.ServerSession;
 import org.sonatype.security.realms.publickey.PublicKeyAuthenticationToken;
 
 /**
- * A {@link PublickeyAuthenticator} that delegates to Shiro for authentication by {@link PublicKey}.
+ * <p>A {@link PublickeyAuthenticator} that delegates to Shiro for authentication by {@link PublicKey}.</p>
+ *
+ * <p>Clients commonly offer several keys, each of which is otherwise a full Shiro login. Keys which were recently
+ * rejected for a user are turned away from a {@link RejectedKeyCache} instead. If constructed with a
+ * {@link FingerprintPublicKeyRepository}, keys which are not registered for the user there are turned away without
+ * logging in at all.</p>
  *
  * @author hugo@josefson.org
  */
 public class ShiroPublickeyAuthenticator implements PublickeyAuthenticator{
+    private final FingerprintPublicKeyRepository publicKeyRepository;
+    private RejectedKeyCache rejectedKeys = new RejectedKeyCache();
+    private ServerMetrics metrics = new NoServerMetrics();
+
+    public ShiroPublickeyAuthenticator() {
+        this( null );
+    }
+
+    /**
+     * @param publicKeyRepository the repository which the Shiro realm authenticates public keys with, or
+     * {@code null} to always ask Shiro. Keys added to it are forgotten by the {@link RejectedKeyCache}.
+     */
+    public ShiroPublickeyAuthenticator( FingerprintPublicKeyRepository publicKeyRepository ) {
+        this.publicKeyRepository = publicKeyRepository;
+        if ( publicKeyRepository != null ) {
+            publicKeyRepository.setRejectedKeyCache( rejectedKeys );
+        }
+    }
+
+    /**
+     * @param rejectedKeys remembers recently rejected keys. Must not be {@code null}.
+     */
+    public void setRejectedKeyCache( RejectedKeyCache rejectedKeys ) {
+        this.rejectedKeys = rejectedKeys;
+        if ( publicKeyRepository != null ) {
+            publicKeyRepository.setRejectedKeyCache( rejectedKeys );
+        }
+    }
+
+    public RejectedKeyCache getRejectedKeyCache() {
+        return rejectedKeys;
+    }
+
+    /**
+     * @param metrics receives the duration and outcome of each attempt.
+     */
+    public void setMetrics( ServerMetrics metrics ) {
+        this.metrics = metrics;
+    }
 
     @Override
     public boolean authenticate(String username, final PublicKey key, ServerSession session) {
+        final long start = System.nanoTime();
+        final boolean authenticated = doAuthenticate( username, key );
+        metrics.authenticationAttempted( "publickey", System.nanoTime() - start, authenticated );
+        return authenticated;
+    }
+
+    private boolean doAuthenticate(String username, final PublicKey key) {
+        final String fingerprint = SshKeyUtils.getFingerprint( key );
+        if ( publicKeyRepository != null && !publicKeyRepository.hasPublicKey( username, fingerprint ) ) {
+            return false;
+        }
+        if ( rejectedKeys.isRejected( username, fingerprint ) ) {
+            return false;
+        }
         try {
             final Subject subject = SecurityUtils.getSubject();
             subject.login( new PublicKeyAuthenticationToken( username, key ) );
             return true;
         } catch( AuthenticationException e ) {
+            rejectedKeys.reject( username, fingerprint );
             return false;
         }
 
     }
 
 
-}
\ No newline at end of file
+}
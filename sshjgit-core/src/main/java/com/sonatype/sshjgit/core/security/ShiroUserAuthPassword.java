@@ -9,6 +9,9 @@ import org.apache.sshd.common.util.Buffer;
 import org.apache.sshd.server.UserAuth;
 import org.apache.sshd.server.session.ServerSession;
 
+import com.sonatype.sshjgit.core.metrics.NoServerMetrics;
+import com.sonatype.sshjgit.core.metrics.ServerMetrics;
+
 /**
  * A {@link UserAuth} that delegates to Shiro for authentication by password.
  *
@@ -16,7 +19,32 @@ import org.apache.sshd.server.session.ServerSession;
  */
 public class ShiroUserAuthPassword implements UserAuth {
 
+    private final ServerMetrics metrics;
+
+    public ShiroUserAuthPassword() {
+        this( new NoServerMetrics() );
+    }
+
+    /**
+     * @param metrics receives the duration and outcome of each attempt.
+     */
+    public ShiroUserAuthPassword( ServerMetrics metrics ) {
+        this.metrics = metrics;
+    }
+
     public static class Factory implements NamedFactory<UserAuth> {
+        private final ServerMetrics metrics;
+
+        public Factory() {
+            this( new NoServerMetrics() );
+        }
+
+        /**
+         * @param metrics receives the duration and outcome of each attempt.
+         */
+        public Factory( ServerMetrics metrics ) {
+            this.metrics = metrics;
+        }
 
         @Override
         public String getName() {
@@ -25,7 +53,7 @@ public class ShiroUserAuthPassword implements UserAuth {
 
         @Override
         public UserAuth create() {
-            return new ShiroUserAuthPassword();
+            return new ShiroUserAuthPassword( metrics );
         }
     }
 
@@ -37,11 +65,14 @@ public class ShiroUserAuthPassword implements UserAuth {
         }
         String password = buffer.getString();
 
+        final long start = System.nanoTime();
         try {
             Subject subject = SecurityUtils.getSubject();
             subject.login( new UsernamePasswordToken( username, password ) );
+            metrics.authenticationAttempted( "password", System.nanoTime() - start, true );
             return true;
         } catch( AuthenticationException e ) {
+            metrics.authenticationAttempted( "password", System.nanoTime() - start, false );
             throw new Exception( "Authentication failed: bad username or password supplied", e );
         }
 
@@ -8,6 +8,7 @@ import org.apache.sshd.common.util.Buffer;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.PublicKey;
@@ -79,4 +80,26 @@ public class SshKeyUtils {
     public static String extractKeyPart(String idRsaPubLine) {
         return idRsaPubLine.split(" +")[1];
     }
+
+    /**
+     * Computes a key's SHA-256 fingerprint, in the same form as {@code ssh-keygen -l} prints it, such as
+     * {@code SHA256:nThbg6kXUpJWGl7E1IGOCspRomTxdCARLviKw6E5SY8}.
+     * @param publicKey the key
+     * @return the fingerprint
+     */
+    public static String getFingerprint(PublicKey publicKey) {
+        final Buffer buffer = new Buffer();
+        buffer.putPublicKey(publicKey);
+        final byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(buffer.getCompactData());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always supported", e);
+        }
+        String encoded = new String(Base64.encodeBase64(digest));
+        while (encoded.endsWith("=")) {
+            encoded = encoded.substring(0, encoded.length() - 1);
+        }
+        return "SHA256:" + encoded;
+    }
 }
@@ -0,0 +1,81 @@
+package com.sonatype.sshjgit.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.KeyPair;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.shiro.authc.SimpleAccount;
+import org.apache.shiro.mgt.DefaultSecurityManager;
+import org.apache.sshd.SshServer;
+import org.apache.sshd.common.KeyPairProvider;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sonatype.sshjgit.core.security.RolePermissionsAwareSimpleAccountRealm;
+
+public class ServerWarmUpTest {
+    protected File configDir;
+
+    @Before
+    public void setUp() throws IOException {
+        configDir = File.createTempFile( "sshjgit-config-", "" );
+        assertTrue( configDir.delete() );
+        assertTrue( configDir.mkdir() );
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly( configDir );
+    }
+
+    @Test
+    public void givenConfiguredServerThenHostKeysWrittenAndEveryPhaseTimed() {
+        final File hostKeys = new File( configDir, "sshjgit.hostkeys" );
+        final SshServer server = SshServer.setUpDefaultServer();
+        server.setKeyPairProvider( new SimpleGeneratorHostKeyProvider( hostKeys.getPath(), "RSA" ) );
+        final RolePermissionsAwareSimpleAccountRealm realm = new RolePermissionsAwareSimpleAccountRealm();
+        realm.add( new SimpleAccount( "user", "password", realm.getName() ) );
+
+        final ServerWarmUp warmUp = new ServerWarmUp( server );
+        warmUp.setSecurityManager( new DefaultSecurityManager( realm ) );
+        final Map<String, Long> timings = warmUp.run();
+
+        assertTrue( hostKeys.isFile() );
+        assertEquals( Collections.<String>emptyList(), warmUp.getFailedPhases() );
+        assertEquals( Arrays.asList( ServerWarmUp.HOST_KEYS, ServerWarmUp.RANDOM, ServerWarmUp.CIPHERS,
+                ServerWarmUp.MACS, ServerWarmUp.KEX, ServerWarmUp.SIGNATURES, ServerWarmUp.PUBLIC_KEYS,
+                ServerWarmUp.KEY_STORE, ServerWarmUp.PERMISSIONS, ServerWarmUp.TOTAL ),
+                Arrays.asList( timings.keySet().toArray() ) );
+    }
+
+    @Test
+    public void givenHostKeysCannotBeLoadedThenPhaseFailedAndOthersRun() {
+        final SshServer server = SshServer.setUpDefaultServer();
+        server.setKeyPairProvider( new KeyPairProvider() {
+            @Override
+            public KeyPair loadKey( String type ) {
+                throw new IllegalStateException( "unreadable" );
+            }
+
+            @Override
+            public String getKeyTypes() {
+                return SSH_RSA;
+            }
+        } );
+
+        final ServerWarmUp warmUp = new ServerWarmUp( server );
+        final Map<String, Long> timings = warmUp.run();
+
+        assertEquals( Arrays.asList( ServerWarmUp.HOST_KEYS ), warmUp.getFailedPhases() );
+        assertTrue( timings.containsKey( ServerWarmUp.PERMISSIONS ) );
+    }
+}
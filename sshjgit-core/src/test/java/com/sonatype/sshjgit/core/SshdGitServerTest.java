@@ -0,0 +1,150 @@
+package com.sonatype.sshjgit.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.shiro.authc.SimpleAccount;
+import org.apache.shiro.mgt.DefaultSecurityManager;
+import org.apache.sshd.ClientSession;
+import org.apache.sshd.SshClient;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sonatype.sshjgit.core.security.RolePermissionsAwareSimpleAccountRealm;
+
+/**
+ * Exercises the lifecycle of a {@link SshdGitServer} listening on localhost, with clients which connect over plain
+ * sockets and through {@link SshClient}.
+ */
+public class SshdGitServerTest {
+    protected File configDir;
+    protected File repositoriesDirectory;
+    protected int port;
+    protected SshdGitServer server;
+    protected SshClient client;
+    protected RolePermissionsAwareSimpleAccountRealm realm;
+
+    @Before
+    public void setUp() throws IOException {
+        configDir = File.createTempFile( "sshjgit-config-", "" );
+        assertTrue( configDir.delete() );
+        assertTrue( configDir.mkdir() );
+        repositoriesDirectory = new File( configDir, "repositories" );
+        assertTrue( repositoriesDirectory.mkdir() );
+        port = findFreePort();
+
+        realm = new RolePermissionsAwareSimpleAccountRealm();
+        realm.add( new SimpleAccount( "user", "password", realm.getName() ) );
+        server = new SshdGitServer( port, configDir, repositoriesDirectory, new DefaultSecurityManager( realm ) );
+        startWithRsaHostKey( server );
+        client = SshClient.setUpDefaultClient();
+        client.start();
+    }
+
+    @After
+    public void tearDown() {
+        client.stop();
+        server.stop( 0 );
+        FileUtils.deleteQuietly( configDir );
+    }
+
+    @Test
+    public void givenDrainedThenNewConnectionsResetAndOpenSessionsKept() throws Exception {
+        assertTrue( readsBanner() );
+        final ClientSession session = client.connect( "localhost", port ).await().getSession();
+        assertTrue( session.authPassword( "user", "password" ).await().isSuccess() );
+
+        assertTrue( server.drain( 5000 ) );
+
+        assertEquals( 0, server.getInFlightCommandCount() );
+        // accepted on the socket which is still bound, and then closed without a word
+        assertFalse( readsBanner() );
+        assertEquals( 0, session.waitFor( ClientSession.CLOSED, 200 ) & ClientSession.CLOSED );
+        session.close( true );
+    }
+
+    @Test
+    public void givenStoppedThenStopReturnsFirstResultAndStartFails() throws IOException {
+        assertTrue( server.stop( 5000 ) );
+        assertTrue( server.stop( 0 ) );
+        try {
+            server.start();
+            throw new AssertionError( "started a stopped server" );
+        } catch( IllegalStateException expected ) {
+        }
+    }
+
+    @Test
+    public void givenInterruptedWhileDrainingThenAcceptorClosedAndInterruptKept() throws IOException {
+        server.stop( 0 );
+        port = findFreePort();
+        server = new SshdGitServer( port, configDir, repositoriesDirectory, new DefaultSecurityManager( realm ) ) {
+            @Override
+            public boolean drain( long timeoutMillis ) throws InterruptedException {
+                throw new InterruptedException();
+            }
+        };
+        startWithRsaHostKey( server );
+        assertTrue( readsBanner() );
+
+        assertFalse( server.stop( 5000 ) );
+
+        assertTrue( Thread.interrupted() );
+        try {
+            new Socket( "localhost", port ).close();
+            throw new AssertionError( "still accepting connections" );
+        } catch( ConnectException expected ) {
+        }
+    }
+
+    /**
+     * Starts the server with an RSA host key, which every JDK can sign with.
+     */
+    private void startWithRsaHostKey( SshdGitServer server ) throws IOException {
+        server.createDefaultServer().setKeyPairProvider( new SimpleGeneratorHostKeyProvider(
+                new File( configDir, "sshjgit.hostkeys" ).getPath(), "RSA" ) );
+        server.start();
+    }
+
+    private static int findFreePort() throws IOException {
+        final ServerSocket free = new ServerSocket( 0 );
+        try {
+            return free.getLocalPort();
+        } finally {
+            free.close();
+        }
+    }
+
+    /**
+     * @return whether a new connection is greeted with the server's identification, {@code false} if it is closed
+     * or reset first.
+     */
+    private boolean readsBanner() throws IOException {
+        final Socket socket = new Socket( "localhost", port );
+        try {
+            socket.setSoTimeout( 5000 );
+            final InputStream in = socket.getInputStream();
+            final StringBuilder line = new StringBuilder();
+            int b;
+            while ( ( b = in.read() ) >= 0 && b != '\n' ) {
+                line.append( (char) b );
+            }
+            return line.toString().startsWith( "SSH-2.0-" );
+        } catch( IOException reset ) {
+            return false;
+        } finally {
+            socket.close();
+        }
+    }
+}
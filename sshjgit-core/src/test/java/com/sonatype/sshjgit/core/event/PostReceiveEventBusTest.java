@@ -0,0 +1,180 @@
+package com.sonatype.sshjgit.core.event;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PostReceiveEventBusTest {
+    protected static final String A = "1111111111111111111111111111111111111111";
+    protected static final String B = "2222222222222222222222222222222222222222";
+    protected static final String C = "3333333333333333333333333333333333333333";
+
+    protected File directory;
+    protected File spillFile;
+    protected PostReceiveEventBus bus;
+    protected RecordingListener listener;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile( "sshjgit-events-", "" );
+        assertTrue( directory.delete() );
+        assertTrue( directory.mkdir() );
+        spillFile = new File( directory, "events" );
+        bus = createBus( 4 );
+        listener = new RecordingListener();
+        bus.addListener( listener );
+    }
+
+    @After
+    public void tearDown() {
+        bus.shutdown();
+        FileUtils.deleteQuietly( directory );
+    }
+
+    @Test
+    public void givenSeveralUpdatesOfRefThenMergedPerRepository() throws InterruptedException {
+        bus.publish( event( "project1", "refs/heads/master", A, B ) );
+        bus.publish( event( "project2", "refs/heads/master", A, C ) );
+        bus.publish( event( "project1", "refs/heads/topic", RefUpdateEvent.ZERO_ID, A ) );
+        bus.publish( event( "project1", "refs/heads/master", B, C ) );
+        bus.start();
+
+        final Delivery first = listener.next();
+        assertEquals( "project1", first.repository );
+        assertEquals( 2, first.updates.size() );
+        assertEquals( "refs/heads/master", first.updates.get( 0 ).getRefName() );
+        assertEquals( A, first.updates.get( 0 ).getOldId() );
+        assertEquals( C, first.updates.get( 0 ).getNewId() );
+        assertTrue( first.updates.get( 1 ).isCreate() );
+        assertEquals( "project2", listener.next().repository );
+        bus.shutdown();
+        assertEquals( 3, bus.getDeliveredCount() );
+    }
+
+    @Test
+    public void givenRefMovedBackThenNotDelivered() throws InterruptedException {
+        bus.publish( event( "project1", "refs/heads/master", A, B ) );
+        bus.publish( event( "project1", "refs/heads/master", B, A ) );
+        bus.publish( event( "project2", "refs/heads/master", A, B ) );
+        bus.start();
+        assertEquals( "project2", listener.next().repository );
+    }
+
+    @Test
+    public void givenQueueFullThenSpilledAndDeliveredInOrder() throws InterruptedException {
+        for ( int i = 0; i < 10; i++ ) {
+            bus.publish( event( "project" + i, "refs/heads/master", A, B ) );
+        }
+        assertEquals( 4, bus.getQueueSize() );
+        assertEquals( 6, bus.getSpilledCount() );
+        bus.start();
+        for ( int i = 0; i < 10; i++ ) {
+            assertEquals( "project" + i, listener.next().repository );
+        }
+        assertEquals( 0, spillFile.length() );
+
+        // caught up, so the queue is used again
+        bus.publish( event( "project10", "refs/heads/master", A, B ) );
+        assertEquals( "project10", listener.next().repository );
+        assertEquals( 6, bus.getSpilledCount() );
+    }
+
+    @Test
+    public void givenShutdownThenUndeliveredEventsKeptForNextBus() throws InterruptedException {
+        for ( int i = 0; i < 6; i++ ) {
+            bus.publish( event( "project" + i, "refs/heads/master", A, B ) );
+        }
+        bus.shutdown();
+        bus.publish( event( "project6", "refs/heads/master", A, B ) );
+
+        final PostReceiveEventBus next = createBus( 4 );
+        next.addListener( listener );
+        next.start();
+        try {
+            for ( int i = 0; i < 7; i++ ) {
+                assertEquals( "project" + i, listener.next().repository );
+            }
+        } finally {
+            next.shutdown();
+        }
+    }
+
+    @Test
+    public void givenListenerFailsThenOthersStillTold() throws InterruptedException {
+        bus.addListener( new RefUpdateListener() {
+            @Override
+            public void refsUpdated( String repository, List<RefUpdateEvent> updates ) {
+                throw new IllegalStateException( "down" );
+            }
+        } );
+        final RecordingListener last = new RecordingListener();
+        bus.addListener( last );
+        bus.publish( event( "project1", "refs/heads/master", A, B ) );
+        bus.start();
+        assertNotNull( last.next() );
+        assertEquals( 1, bus.getListenerFailureCount() );
+    }
+
+    @Test
+    public void givenOddCharactersThenEncodedOnOneLine() {
+        final RefUpdateEvent event = new RefUpdateEvent( "project", "refs/heads/f\u00f6\tr", A, B, "user\\name\n",
+                42 );
+        final String line = PostReceiveEventBus.encode( event );
+        assertEquals( line.length() - 1, line.indexOf( '\n' ) );
+        final RefUpdateEvent decoded = PostReceiveEventBus.decode( line.substring( 0, line.length() - 1 ) );
+        assertEquals( event.getRefName(), decoded.getRefName() );
+        assertEquals( event.getPrincipal(), decoded.getPrincipal() );
+        assertEquals( 42, decoded.getTimeMillis() );
+        assertNull( PostReceiveEventBus.decode( "garbage" ) );
+    }
+
+    protected PostReceiveEventBus createBus( int queueCapacity ) {
+        final PostReceiveEventBus created = new PostReceiveEventBus( spillFile, queueCapacity );
+        created.setBatchDelayMillis( 20 );
+        created.setMaxBatchSize( 100 );
+        return created;
+    }
+
+    protected static RefUpdateEvent event( String repository, String refName, String oldId, String newId ) {
+        return new RefUpdateEvent( repository, refName, oldId, newId, "user", System.currentTimeMillis() );
+    }
+
+    protected static class Delivery {
+        final String repository;
+        final List<RefUpdateEvent> updates;
+
+        Delivery( String repository, List<RefUpdateEvent> updates ) {
+            this.repository = repository;
+            this.updates = new ArrayList<RefUpdateEvent>( updates );
+        }
+    }
+
+    protected static class RecordingListener implements RefUpdateListener {
+        private final BlockingQueue<Delivery> deliveries = new LinkedBlockingQueue<Delivery>();
+
+        @Override
+        public void refsUpdated( String repository, List<RefUpdateEvent> updates ) {
+            deliveries.add( new Delivery( repository, updates ) );
+        }
+
+        Delivery next() throws InterruptedException {
+            final Delivery delivery = deliveries.poll( 5, TimeUnit.SECONDS );
+            assertNotNull( "nothing delivered", delivery );
+            return delivery;
+        }
+    }
+}
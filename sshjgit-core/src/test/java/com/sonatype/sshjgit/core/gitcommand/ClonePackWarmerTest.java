@@ -0,0 +1,228 @@
+package com.sonatype.sshjgit.core.gitcommand;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jgit.lib.Repository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sonatype.sshjgit.core.repository.RepositoryCache;
+
+/**
+ * Exercises the {@link ClonePackWarmer}, with a fake {@code UploadPack} which reads the whole request and then
+ * answers with a fixed response, and clients which clone through {@link PackCachingStreams}.
+ */
+public class ClonePackWarmerTest {
+    protected static final String BEFORE_PUSH = "1111111111111111111111111111111111111111";
+    protected static final String AFTER_PUSH  = "2222222222222222222222222222222222222222";
+    protected static final String RESPONSE    = "0008NAK\nPACK...";
+
+    protected static final List<String> OFS_DELTA = Arrays.asList( "ofs-delta" );
+    protected static final List<String> SIDE_BAND = Arrays.asList( "ofs-delta", "side-band-64k" );
+    protected static final List<String> THIN_PACK = Arrays.asList( "ofs-delta", "thin-pack" );
+
+    protected File reposRootDir;
+    protected File cacheDirectory;
+    protected File repositoryDirectory;
+    protected RepositoryCache repositoryCache;
+    protected PackCache packCache;
+    protected RecordingWarmer warmer;
+
+    @Before
+    public void setUp() throws IOException {
+        reposRootDir = File.createTempFile( "sshjgit-repos-", "" );
+        assertTrue( reposRootDir.delete() );
+        assertTrue( reposRootDir.mkdir() );
+        cacheDirectory = new File( reposRootDir.getPath() + "-packcache" );
+        repositoryDirectory = new File( reposRootDir, "project" ).getAbsoluteFile();
+        new Repository( repositoryDirectory ).create();
+        setMaster( BEFORE_PUSH );
+        repositoryCache = new RepositoryCache( reposRootDir );
+        packCache = new PackCache( cacheDirectory, 1024, 1024 );
+        warmer = new RecordingWarmer( ClonePackWarmer.DEFAULT_MAX_PROFILES_PER_REPOSITORY );
+    }
+
+    @After
+    public void tearDown() {
+        warmer.shutdown();
+        repositoryCache.clear();
+        FileUtils.deleteQuietly( reposRootDir );
+        FileUtils.deleteQuietly( cacheDirectory );
+    }
+
+    @Test
+    public void givenClonedBeforeThenPushRegeneratesEachProfileAndClientIsServedFromCache() throws Exception {
+        observeClone( OFS_DELTA );
+        observeClone( SIDE_BAND );
+
+        push( AFTER_PUSH );
+        warmer.repositoryChanged( repositoryDirectory );
+        waitForWarmed( 2 );
+
+        assertEquals( 2, warmer.requests.size() );
+        assertTrue( warmer.requests.contains( request( SIDE_BAND ) ) );
+        assertTrue( warmer.requests.contains( request( OFS_DELTA ) ) );
+        assertTrue( clone( SIDE_BAND ) );
+        assertEquals( 1, packCache.getHitCount() );
+    }
+
+    @Test
+    public void givenNeverClonedThenPushDoesNotWarm() throws Exception {
+        push( AFTER_PUSH );
+        warmer.warm( repositoryDirectory );
+        assertEquals( 0, warmer.getWarmedCount() );
+        assertEquals( 0, packCache.getSize() );
+    }
+
+    @Test
+    public void givenFetchOfSomeObjectsThenNotRemembered() throws Exception {
+        final Repository repository = repositoryCache.open( "project" );
+        try {
+            warmer.observe( repository, Arrays.asList( BEFORE_PUSH ), Arrays.asList( AFTER_PUSH ), OFS_DELTA );
+        } finally {
+            repositoryCache.release( repository );
+        }
+        push( AFTER_PUSH );
+        warmer.warm( repositoryDirectory );
+        assertEquals( 0, warmer.getWarmedCount() );
+    }
+
+    @Test
+    public void givenMoreProfilesThanMaxThenLeastRecentlySeenIsNotWarmed() throws Exception {
+        warmer = new RecordingWarmer( 2 );
+        observeClone( OFS_DELTA );
+        observeClone( SIDE_BAND );
+        observeClone( THIN_PACK );
+        // seen again, so SIDE_BAND becomes the oldest
+        observeClone( OFS_DELTA );
+
+        push( AFTER_PUSH );
+        warmer.warm( repositoryDirectory );
+
+        assertEquals( 2, warmer.getWarmedCount() );
+        assertEquals( Arrays.asList( request( THIN_PACK ), request( OFS_DELTA ) ), warmer.requests );
+        assertFalse( clone( SIDE_BAND ) );
+    }
+
+    @Test
+    public void givenResponseStillCachedThenNotGeneratedAgain() throws Exception {
+        observeClone( OFS_DELTA );
+        push( AFTER_PUSH );
+        warmer.warm( repositoryDirectory );
+        warmer.warm( repositoryDirectory );
+        assertEquals( 1, warmer.getWarmedCount() );
+        assertEquals( 1, warmer.requests.size() );
+    }
+
+    @Test
+    public void givenWarmFailsThenNothingIsCached() throws Exception {
+        observeClone( OFS_DELTA );
+        warmer.failing = true;
+
+        push( AFTER_PUSH );
+        warmer.repositoryChanged( repositoryDirectory );
+        final long deadline = System.currentTimeMillis() + 10000;
+        while ( warmer.getFailureCount() == 0 && System.currentTimeMillis() < deadline ) {
+            Thread.sleep( 10 );
+        }
+
+        assertEquals( 1, warmer.getFailureCount() );
+        assertEquals( 0, warmer.getWarmedCount() );
+        assertEquals( 0, packCache.getSize() );
+        assertFalse( clone( OFS_DELTA ) );
+    }
+
+    /**
+     * Tells the warmer about a client which cloned the repository with the given capabilities.
+     */
+    private void observeClone( List<String> capabilities ) throws IOException {
+        final Repository repository = repositoryCache.open( "project" );
+        try {
+            warmer.observe( repository, new ArrayList<String>( ClonePackWarmer.getCloneWants( repository ) ),
+                    Collections.<String>emptyList(), capabilities );
+        } finally {
+            repositoryCache.release( repository );
+        }
+    }
+
+    /**
+     * Moves master, and drops the repository's responses as {@link Receive} does after a push.
+     */
+    private void push( String newId ) throws IOException {
+        setMaster( newId );
+        packCache.invalidate( repositoryDirectory );
+    }
+
+    private void setMaster( String id ) throws IOException {
+        final File master = new File( repositoryDirectory, "refs/heads/master" );
+        FileUtils.writeStringToFile( master, id + "\n" );
+        // so that a changed ref is noticed even within the file system's timestamp resolution
+        master.setLastModified( System.currentTimeMillis() + ( BEFORE_PUSH.equals( id ) ? 0 : 2000 ) );
+    }
+
+    private void waitForWarmed( long count ) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while ( warmer.getWarmedCount() < count && System.currentTimeMillis() < deadline ) {
+            Thread.sleep( 10 );
+        }
+        assertEquals( count, warmer.getWarmedCount() );
+    }
+
+    /**
+     * Clones the pushed master as a client would.
+     * @return whether the response was sent from the cache.
+     */
+    private boolean clone( List<String> capabilities ) throws IOException {
+        final PackCachingStreams streams = new PackCachingStreams( packCache, repositoryDirectory,
+                new ByteArrayInputStream( request( capabilities ).getBytes( "UTF-8" ) ), new ByteArrayOutputStream() );
+        try {
+            IOUtils.toByteArray( streams.getInputStream() );
+            streams.getOutputStream().write( RESPONSE.getBytes( "UTF-8" ) );
+            streams.complete();
+            return false;
+        } catch( PackCachingStreams.CachedResponseSent sent ) {
+            return true;
+        } finally {
+            streams.abort();
+        }
+    }
+
+    private static String request( List<String> capabilities ) throws IOException {
+        return new String( ClonePackWarmer.createCloneRequest( Arrays.asList( AFTER_PUSH ), capabilities ), "UTF-8" );
+    }
+
+    protected class RecordingWarmer extends ClonePackWarmer {
+        protected final List<String> requests = Collections.synchronizedList( new ArrayList<String>() );
+        protected volatile boolean failing;
+
+        RecordingWarmer( int maxProfilesPerRepository ) {
+            super( packCache, repositoryCache, 1, maxProfilesPerRepository );
+        }
+
+        @Override
+        void upload( Repository repository, InputStream in, OutputStream out ) throws IOException {
+            requests.add( new String( IOUtils.toByteArray( in ), "UTF-8" ) );
+            if ( failing ) {
+                out.write( RESPONSE.getBytes( "UTF-8" ), 0, 8 );
+                throw new IOException( "packing failed" );
+            }
+            out.write( RESPONSE.getBytes( "UTF-8" ) );
+        }
+    }
+}
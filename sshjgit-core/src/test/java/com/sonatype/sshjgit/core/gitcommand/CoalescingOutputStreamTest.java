@@ -0,0 +1,91 @@
+package com.sonatype.sshjgit.core.gitcommand;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Exercises the {@link CoalescingOutputStream}, against a channel which counts how often it is flushed.
+ */
+public class CoalescingOutputStreamTest {
+    protected FlushCountingOutputStream channel;
+    protected BufferPool pool;
+    protected CoalescingOutputStream stream;
+
+    @Before
+    public void setUp() {
+        channel = new FlushCountingOutputStream();
+        pool = new BufferPool( 16, 1 );
+        stream = new CoalescingOutputStream( channel, pool );
+    }
+
+    @Test
+    public void givenSmallWritesThenNothingSentUntilFlushed() throws IOException {
+        stream.write( "0008abc\n".getBytes( "UTF-8" ) );
+        stream.write( '0' );
+        assertEquals( 0, channel.size() );
+        stream.flush();
+        assertEquals( "0008abc\n0", channel.toString( "UTF-8" ) );
+        assertEquals( 1, channel.flushes );
+        assertEquals( 2, stream.getWriteCount() );
+        assertEquals( 1, stream.getPacketCount() );
+    }
+
+    @Test
+    public void givenWritesFillingTheBufferThenSentWithoutFlush() throws IOException {
+        for ( int i = 0; i < 20; i++ ) {
+            stream.write( new byte[]{ (byte) i, (byte) i } );
+        }
+        assertEquals( 32, channel.size() );
+        assertEquals( 2, channel.flushes );
+        stream.flush();
+        assertEquals( 40, channel.size() );
+        assertEquals( 3, channel.flushes );
+    }
+
+    @Test
+    public void givenLargeWriteThenSentAfterWhatIsBuffered() throws IOException {
+        final byte[] large = new byte[40];
+        large[39] = 7;
+        stream.write( 1 );
+        stream.write( large );
+        assertEquals( 41, channel.size() );
+        assertEquals( 1, channel.toByteArray()[0] );
+        assertEquals( 7, channel.toByteArray()[40] );
+        assertEquals( 2, channel.flushes );
+    }
+
+    @Test
+    public void givenReleasedThenBufferedSentAndBufferReused() throws IOException {
+        stream.write( new byte[]{ 1, 2, 3 } );
+        stream.release();
+        assertArrayEquals( new byte[]{ 1, 2, 3 }, channel.toByteArray() );
+
+        stream.write( 4 );
+        stream.release();
+        assertEquals( 1, pool.getAllocationCount() );
+        assertEquals( 1, pool.getReuseCount() );
+    }
+
+    @Test
+    public void givenNothingWrittenThenNoBufferTaken() throws IOException {
+        stream.flush();
+        stream.release();
+        assertEquals( 0, pool.getAllocationCount() );
+        assertEquals( 0, channel.flushes );
+    }
+
+    protected static class FlushCountingOutputStream extends ByteArrayOutputStream {
+        int flushes;
+
+        @Override
+        public void flush() {
+            flushes++;
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package com.sonatype.sshjgit.core.gitcommand;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Commit;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectWriter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.Tag;
+import org.eclipse.jgit.lib.Tree;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sonatype.sshjgit.core.metrics.NoServerMetrics;
+
+/**
+ * Exercises the {@link FilteredPackWriter}, directly and through {@link UploadPackV2}, on a history of three commits
+ * of a small and a large file, with an annotated tag of the second commit. The objects sent are those the
+ * {@link PackIndexer} finds in the written pack.
+ */
+public class FilteredPackWriterTest {
+    protected static final PersonIdent IDENT = new PersonIdent( "sshjgit test", "test@localhost" );
+    protected static final int LARGE_SIZE = 2048;
+
+    protected File repositoryDirectory;
+    protected File clientDirectory;
+    protected Repository repository;
+    protected Repository client;
+    protected PackIndexer indexer;
+    /** ids of blobs opened through {@link Repository#openObject(AnyObjectId)}. */
+    protected final List<AnyObjectId> opened = Collections.synchronizedList( new ArrayList<AnyObjectId>() );
+
+    /** per commit, oldest first. */
+    protected final List<ObjectId> commits = new ArrayList<ObjectId>();
+    protected final List<ObjectId> trees = new ArrayList<ObjectId>();
+    protected final List<ObjectId> smallBlobs = new ArrayList<ObjectId>();
+    protected final List<ObjectId> largeBlobs = new ArrayList<ObjectId>();
+    /** the annotated tag v1.0, of the second commit. */
+    protected ObjectId tag;
+
+    @Before
+    public void setUp() throws IOException {
+        repositoryDirectory = File.createTempFile( "sshjgit-filtered-", "" );
+        assertTrue( repositoryDirectory.delete() );
+        clientDirectory = new File( repositoryDirectory.getPath() + "-client" );
+        repository = new Repository( repositoryDirectory ) {
+            @Override
+            public ObjectLoader openObject( AnyObjectId id ) throws IOException {
+                final ObjectLoader loader = super.openObject( id );
+                if ( loader != null && loader.getType() == Constants.OBJ_BLOB ) {
+                    opened.add( id.copy() );
+                }
+                return loader;
+            }
+        };
+        repository.create();
+        client = new Repository( clientDirectory );
+        client.create();
+        indexer = new PackIndexer( 1 );
+
+        for ( int i = 0; i < 3; i++ ) {
+            commit( i );
+        }
+        updateRef( "refs/heads/master", commits.get( 2 ) );
+        final Tag annotated = new Tag( repository );
+        annotated.setObjId( commits.get( 1 ) );
+        annotated.setType( Constants.TYPE_COMMIT );
+        annotated.setTag( "v1.0" );
+        annotated.setAuthor( IDENT );
+        annotated.setMessage( "version 1.0\n" );
+        tag = new ObjectWriter( repository ).writeTag( annotated );
+        updateRef( "refs/tags/v1.0", tag );
+        opened.clear();
+    }
+
+    @After
+    public void tearDown() {
+        indexer.shutdown();
+        repository.close();
+        client.close();
+        FileUtils.deleteQuietly( repositoryDirectory );
+        FileUtils.deleteQuietly( clientDirectory );
+    }
+
+    @Test
+    public void givenDepthThenCommitsUpToDepthWithCompleteTreesAndOldestIsShallow() throws IOException {
+        final FilteredPackWriter writer = new FilteredPackWriter( repository, ObjectFilter.NONE, 2 );
+        writer.prepare( wants( commits.get( 2 ) ), none(), none(), false );
+
+        assertEquals( objects( commits.get( 2 ), trees.get( 2 ), smallBlobs.get( 2 ), largeBlobs.get( 2 ),
+                               commits.get( 1 ), trees.get( 1 ), smallBlobs.get( 1 ), largeBlobs.get( 1 ) ),
+                      pack( writer ) );
+        assertEquals( Arrays.asList( commits.get( 1 ).name() ), writer.getShallow() );
+        assertEquals( none(), writer.getUnshallow() );
+    }
+
+    @Test
+    public void givenDeepenPastClientsShallowCommitThenUnshallowed() throws IOException {
+        final FilteredPackWriter writer = new FilteredPackWriter( repository, ObjectFilter.NONE, 3 );
+        writer.prepare( wants( commits.get( 2 ) ), none(), wants( commits.get( 1 ) ), false );
+
+        assertEquals( 12, pack( writer ).size() );
+        // the root commit has no parents to leave out
+        assertEquals( none(), writer.getShallow() );
+        assertEquals( Arrays.asList( commits.get( 1 ).name() ), writer.getUnshallow() );
+    }
+
+    @Test
+    public void givenHavesThenOnlyNewObjectsSent() throws IOException {
+        final FilteredPackWriter writer = new FilteredPackWriter( repository, ObjectFilter.NONE, 0 );
+        writer.prepare( wants( commits.get( 2 ) ), wants( commits.get( 1 ) ), none(), false );
+
+        assertEquals( objects( commits.get( 2 ), trees.get( 2 ), smallBlobs.get( 2 ), largeBlobs.get( 2 ) ),
+                      pack( writer ) );
+    }
+
+    @Test
+    public void givenBlobNoneThenCommitsAndTreesWithoutOpeningBlobs() throws IOException {
+        final FilteredPackWriter writer = new FilteredPackWriter( repository, ObjectFilter.parse( "blob:none" ), 0 );
+        writer.prepare( wants( commits.get( 2 ) ), none(), none(), false );
+
+        final Set<ObjectId> expected = objects();
+        expected.addAll( commits );
+        expected.addAll( trees );
+        assertEquals( expected, pack( writer ) );
+        assertEquals( 6, writer.getOmittedObjectCount() );
+        assertEquals( 0, writer.getOmittedBytes() );
+        assertEquals( Collections.<AnyObjectId>emptyList(), opened );
+    }
+
+    @Test
+    public void givenBlobNoneAndBlobWantedByIdThenThatBlobSent() throws IOException {
+        final FilteredPackWriter writer = new FilteredPackWriter( repository, ObjectFilter.parse( "blob:none" ), 0 );
+        writer.prepare( wants( commits.get( 2 ), largeBlobs.get( 2 ) ), none(), none(), false );
+
+        final Set<ObjectId> expected = objects( largeBlobs.get( 2 ) );
+        expected.addAll( commits );
+        expected.addAll( trees );
+        assertEquals( expected, pack( writer ) );
+        assertEquals( 5, writer.getOmittedObjectCount() );
+    }
+
+    @Test
+    public void givenBlobLimitThenOnlySmallerBlobsSent() throws IOException {
+        final FilteredPackWriter writer = new FilteredPackWriter( repository, ObjectFilter.parse( "blob:limit=1k" ),
+                0 );
+        writer.prepare( wants( commits.get( 2 ) ), none(), none(), false );
+
+        final Set<ObjectId> expected = objects();
+        expected.addAll( commits );
+        expected.addAll( trees );
+        expected.addAll( smallBlobs );
+        assertEquals( expected, pack( writer ) );
+        assertEquals( 3, writer.getOmittedObjectCount() );
+        assertEquals( 3 * LARGE_SIZE, writer.getOmittedBytes() );
+    }
+
+    @Test
+    public void givenTreeZeroThenOnlyCommitsSent() throws IOException {
+        final FilteredPackWriter writer = new FilteredPackWriter( repository, ObjectFilter.parse( "tree:0" ), 0 );
+        writer.prepare( wants( commits.get( 2 ) ), none(), none(), false );
+
+        assertEquals( new HashSet<ObjectId>( commits ), pack( writer ) );
+        assertEquals( Collections.<AnyObjectId>emptyList(), opened );
+    }
+
+    @Test
+    public void givenIncludeTagThenAnnotatedTagOfSentCommitIncluded() throws IOException {
+        FilteredPackWriter writer = new FilteredPackWriter( repository, ObjectFilter.parse( "tree:0" ), 0 );
+        writer.prepare( wants( commits.get( 2 ) ), none(), none(), true );
+        final Set<ObjectId> expected = objects( tag );
+        expected.addAll( commits );
+        assertEquals( expected, pack( writer ) );
+
+        writer = new FilteredPackWriter( repository, ObjectFilter.parse( "tree:0" ), 0 );
+        writer.prepare( wants( commits.get( 2 ) ), none(), none(), false );
+        assertFalse( pack( writer ).contains( tag ) );
+    }
+
+    @Test
+    public void givenIncludeTagAndTaggedCommitBeyondDepthThenTagNotIncluded() throws IOException {
+        final FilteredPackWriter writer = new FilteredPackWriter( repository, ObjectFilter.parse( "tree:0" ), 1 );
+        writer.prepare( wants( commits.get( 2 ) ), none(), none(), true );
+
+        assertEquals( objects( commits.get( 2 ) ), pack( writer ) );
+    }
+
+    @Test
+    public void givenDeepenThroughUploadPackV2ThenShallowInfoAndDelimBeforePackfile() throws Exception {
+        final String want = commits.get( 2 ).name();
+        final ByteArrayOutputStream response = new ByteArrayOutputStream();
+        new UploadPackV2( repository, new ByteArrayInputStream( ( "0012command=fetch\n"
+                                                                + "0001"
+                                                                + "000dofs-delta\n"
+                                                                + "0032want " + want + "\n"
+                                                                + "000ddeepen 1\n"
+                                                                + "0009done\n"
+                                                                + "0000" ).getBytes( "UTF-8" ) ), response,
+                new UploadPackV2.Fetcher() {
+                    @Override
+                    public void fetch( InputStream request, OutputStream out ) throws IOException {
+                        throw new AssertionError( "shallow fetches can't be served by UploadPack" );
+                    }
+                }, new NoServerMetrics() ).serve();
+
+        final String expectedStart = UploadPackV2Test.CAPABILITIES
+                                   + "0011shallow-info\n"
+                                   + "0035shallow " + want + "\n"
+                                   + "0001"
+                                   + "000dpackfile\n";
+        final byte[] bytes = response.toByteArray();
+        assertEquals( expectedStart, new String( bytes, 0, expectedStart.length(), "UTF-8" ) );
+        assertEquals( objects( commits.get( 2 ), trees.get( 2 ), smallBlobs.get( 2 ), largeBlobs.get( 2 ) ),
+                      index( sideBandData( bytes, expectedStart.length() ) ) );
+    }
+
+    /**
+     * Writes a commit of {@code small.txt} and {@code large.txt}, with contents of its own, on top of the last one.
+     */
+    private void commit( int i ) throws IOException {
+        final ObjectWriter writer = new ObjectWriter( repository );
+        final byte[] large = new byte[LARGE_SIZE];
+        Arrays.fill( large, (byte) ( 'a' + i ) );
+        smallBlobs.add( writer.writeBlob( ( "version " + i + "\n" ).getBytes( "UTF-8" ) ) );
+        largeBlobs.add( writer.writeBlob( large ) );
+
+        final Tree tree = new Tree( repository );
+        tree.addFile( "large.txt" ).setId( largeBlobs.get( i ) );
+        tree.addFile( "small.txt" ).setId( smallBlobs.get( i ) );
+        trees.add( writer.writeTree( tree ) );
+
+        final Commit commit = new Commit( repository );
+        commit.setTreeId( trees.get( i ) );
+        commit.setParentIds( i == 0 ? new ObjectId[0] : new ObjectId[]{ commits.get( i - 1 ) } );
+        commit.setAuthor( IDENT );
+        commit.setCommitter( IDENT );
+        commit.setMessage( "commit " + i + "\n" );
+        commits.add( writer.writeCommit( commit ) );
+    }
+
+    private void updateRef( String name, ObjectId id ) throws IOException {
+        final RefUpdate update = repository.updateRef( name );
+        update.setNewObjectId( id );
+        update.forceUpdate();
+    }
+
+    private static List<String> wants( ObjectId... ids ) {
+        final List<String> names = new ArrayList<String>();
+        for ( ObjectId id : ids ) {
+            names.add( id.name() );
+        }
+        return names;
+    }
+
+    private static List<String> none() {
+        return Collections.emptyList();
+    }
+
+    private static Set<ObjectId> objects( ObjectId... ids ) {
+        return new HashSet<ObjectId>( Arrays.asList( ids ) );
+    }
+
+    /**
+     * @return the ids of the objects in the pack the writer writes.
+     */
+    private Set<ObjectId> pack( FilteredPackWriter writer ) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.writePack( out, true );
+        return index( out.toByteArray() );
+    }
+
+    private Set<ObjectId> index( byte[] pack ) throws IOException {
+        final PackIndexer.IndexedPack indexed = indexer.index( client, new PushbackInputStream(
+                new ByteArrayInputStream( pack ), PackIndexer.BUFFER_SIZE ), false );
+        return indexed == null ? objects() : new HashSet<ObjectId>( indexed.getObjectIds() );
+    }
+
+    /**
+     * @return the payloads of the side band channel 1 pkt-lines from {@code offset} up to the flush-pkt.
+     */
+    private static byte[] sideBandData( byte[] response, int offset ) throws IOException {
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for ( ;; ) {
+            final int length = Integer.parseInt( new String( response, offset, 4, "UTF-8" ), 16 );
+            if ( length == 0 ) {
+                assertEquals( offset + 4, response.length );
+                return data.toByteArray();
+            }
+            assertEquals( 1, response[offset + 4] );
+            data.write( response, offset + 5, length - 5 );
+            offset += length;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.sonatype.sshjgit.core.gitcommand;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class InFlightCommandsTest {
+    protected final InFlightCommands inFlight = new InFlightCommands();
+
+    @Test
+    public void givenDrainingThenNewCommandsRefusedAndRunningOnesAwaited() throws InterruptedException {
+        assertTrue( inFlight.enter() );
+        assertTrue( inFlight.enter() );
+        inFlight.drain();
+        assertFalse( inFlight.enter() );
+        assertEquals( 2, inFlight.getCount() );
+        assertFalse( inFlight.awaitIdle( 20 ) );
+
+        inFlight.exit();
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep( 50 );
+                } catch( InterruptedException ignored ) {
+                }
+                inFlight.exit();
+            }
+        }.start();
+        assertTrue( inFlight.awaitIdle( 5000 ) );
+        assertEquals( 0, inFlight.getCount() );
+    }
+
+    @Test
+    public void givenIdleThenAwaitReturnsRightAway() throws InterruptedException {
+        assertTrue( inFlight.awaitIdle( 0 ) );
+    }
+}
@@ -0,0 +1,52 @@
+package com.sonatype.sshjgit.core.gitcommand;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ObjectFilterTest {
+    @Test
+    public void givenBlobNoneThenAllBlobsOmitted() {
+        final ObjectFilter filter = ObjectFilter.parse( "blob:none" );
+        assertTrue( filter.omitsAllBlobs() );
+        assertTrue( filter.omitsBlob( 0 ) );
+        assertFalse( filter.omitsTrees() );
+        assertEquals( "blob:none", filter.getSpec() );
+    }
+
+    @Test
+    public void givenBlobLimitThenOnlyLargeBlobsOmitted() {
+        final ObjectFilter filter = ObjectFilter.parse( "blob:limit=1k" );
+        assertFalse( filter.omitsAllBlobs() );
+        assertFalse( filter.omitsBlob( 1023 ) );
+        assertTrue( filter.omitsBlob( 1024 ) );
+        assertFalse( filter.omitsTrees() );
+    }
+
+    @Test
+    public void givenTreeZeroThenTreesOmitted() {
+        final ObjectFilter filter = ObjectFilter.parse( "tree:0" );
+        assertTrue( filter.omitsTrees() );
+        assertTrue( filter.omitsAllBlobs() );
+    }
+
+    @Test
+    public void givenNoneThenNothingOmitted() {
+        assertTrue( ObjectFilter.NONE.isNone() );
+        assertFalse( ObjectFilter.NONE.omitsAllBlobs() );
+        assertFalse( ObjectFilter.NONE.omitsBlob( Integer.MAX_VALUE ) );
+        assertFalse( ObjectFilter.parse( "blob:none" ).isNone() );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void givenUnsupportedFilterThenRejected() {
+        ObjectFilter.parse( "sparse:oid=master:.gitfilter" );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void givenInvalidLimitThenRejected() {
+        ObjectFilter.parse( "blob:limit=lots" );
+    }
+}
@@ -0,0 +1,149 @@
+package com.sonatype.sshjgit.core.gitcommand;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Exercises the {@link PackCache} through {@link PackCachingStreams}, with a fake {@code UploadPack} which reads the
+ * whole request and then answers with a fixed response.
+ */
+public class PackCacheTest {
+    protected static final String REQUEST =
+            "003cwant 1111111111111111111111111111111111111111 ofs-delta\n"
+          + "0032want 2222222222222222222222222222222222222222\n"
+          + "0000"
+          + "0009done\n";
+    protected static final String RESPONSE = "0008NAK\nPACK...";
+
+    protected File cacheDirectory;
+    protected File repositoryDirectory;
+    protected PackCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        cacheDirectory = File.createTempFile( "sshjgit-packcache-", "" );
+        cacheDirectory.delete();
+        repositoryDirectory = new File( "project" );
+        cache = new PackCache( cacheDirectory, 1024, 1024 );
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly( cacheDirectory );
+    }
+
+    @Test
+    public void givenIdenticalRequestThenSecondIsSentFromCache() throws IOException {
+        assertEquals( RESPONSE, upload( REQUEST ) );
+        assertEquals( 0, cache.getHitCount() );
+        assertEquals( RESPONSE, upload( REQUEST ) );
+        assertEquals( 1, cache.getHitCount() );
+        assertEquals( RESPONSE.length(), cache.getSize() );
+    }
+
+    @Test
+    public void givenWantsInOtherOrderThenSentFromCache() throws IOException {
+        upload( REQUEST );
+        upload( "003cwant 2222222222222222222222222222222222222222 ofs-delta\n"
+              + "0032want 1111111111111111111111111111111111111111\n"
+              + "0000"
+              + "0009done\n" );
+        assertEquals( 1, cache.getHitCount() );
+    }
+
+    @Test
+    public void givenResponseToGeneratedCloneRequestThenClientsCloneIsSentFromCache() throws IOException {
+        final byte[] generated = ClonePackWarmer.createCloneRequest(
+                Arrays.asList( "2222222222222222222222222222222222222222", "1111111111111111111111111111111111111111" ),
+                Arrays.asList( "ofs-delta" ) );
+        upload( new String( generated, "UTF-8" ) );
+        assertEquals( RESPONSE, upload( REQUEST ) );
+        assertEquals( 1, cache.getHitCount() );
+    }
+
+    @Test
+    public void givenCachedResponseLargerThanPacketThenFlushedOncePerPacket() throws IOException {
+        final byte[] response = new byte[BufferPool.PACKET_SIZE * 2 + 1];
+        final File file = new File( cacheDirectory, "response" );
+        FileUtils.writeByteArrayToFile( file, response );
+        final int[] flushes = new int[1];
+        final ByteArrayOutputStream client = new ByteArrayOutputStream() {
+            @Override
+            public void flush() {
+                flushes[0]++;
+            }
+        };
+        final FileInputStream in = new FileInputStream( file );
+        try {
+            PackCache.sendChunked( in.getChannel(), new byte[BufferPool.PACKET_SIZE], client );
+        } finally {
+            in.close();
+        }
+        assertEquals( response.length, client.size() );
+        assertEquals( 3, flushes[0] );
+    }
+
+    @Test
+    public void givenInvalidatedThenNotSentFromCache() throws IOException {
+        upload( REQUEST );
+        cache.invalidate( repositoryDirectory );
+        upload( REQUEST );
+        assertEquals( 0, cache.getHitCount() );
+        assertEquals( 1, cache.getEvictionCount() );
+    }
+
+    @Test
+    public void givenInvalidatedWhileRecordingThenNotCached() throws IOException {
+        final PackCachingStreams streams = new PackCachingStreams( cache, repositoryDirectory,
+                new ByteArrayInputStream( REQUEST.getBytes( "UTF-8" ) ), new ByteArrayOutputStream() );
+        IOUtils.toByteArray( streams.getInputStream() );
+        cache.invalidate( repositoryDirectory );
+        streams.getOutputStream().write( RESPONSE.getBytes( "UTF-8" ) );
+        streams.complete();
+        assertEquals( 0, cache.getSize() );
+    }
+
+    @Test
+    public void givenResponseLargerThanMaxEntryThenNotCached() throws IOException {
+        cache = new PackCache( cacheDirectory, 1024, 4 );
+        upload( REQUEST );
+        upload( REQUEST );
+        assertEquals( 0, cache.getHitCount() );
+        assertEquals( 0, cache.getSize() );
+    }
+
+    private String upload( String request ) throws IOException {
+        final ByteArrayOutputStream client = new ByteArrayOutputStream();
+        final PackCachingStreams streams = new PackCachingStreams( cache, repositoryDirectory,
+                new ByteArrayInputStream( request.getBytes( "UTF-8" ) ), client );
+        try {
+            final InputStream in = streams.getInputStream();
+            final OutputStream out = streams.getOutputStream();
+            IOUtils.toByteArray( in );
+            out.write( RESPONSE.getBytes( "UTF-8" ) );
+            streams.complete();
+        } catch( PackCachingStreams.CachedResponseSent sent ) {
+            // expected on a hit
+        } catch( IOException e ) {
+            fail( e.toString() );
+        } finally {
+            streams.abort();
+        }
+        return client.toString( "UTF-8" );
+    }
+}
@@ -0,0 +1,369 @@
+package com.sonatype.sshjgit.core.gitcommand;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PushbackInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectWriter;
+import org.eclipse.jgit.lib.Repository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Exercises the {@link PackIndexer}, directly and through {@link PackIndexingInputStream}, with packs built by hand.
+ */
+public class PackIndexerTest {
+    protected static final byte[] FIRST = "first version of the file\n".getBytes();
+    protected static final byte[] SECOND = "first version of the file\nand a second line\n".getBytes();
+    protected static final byte[] THIRD = "first version of the file\nand a second line\nand a third\n".getBytes();
+    protected static final String ZERO = "0000000000000000000000000000000000000000";
+    /** the order of a pack index, which {@link ObjectId} only has as a raw {@code Comparable}. */
+    protected static final Comparator<ObjectId> ID_ORDER = new Comparator<ObjectId>() {
+        @Override
+        public int compare( ObjectId a, ObjectId b ) {
+            return a.compareTo( b );
+        }
+    };
+
+    protected File repositoryDirectory;
+    protected Repository repository;
+    protected PackIndexer indexer;
+
+    @Before
+    public void setUp() throws IOException {
+        repositoryDirectory = File.createTempFile( "sshjgit-packindexer-", "" );
+        assertTrue( repositoryDirectory.delete() );
+        assertTrue( repositoryDirectory.mkdir() );
+        repository = new Repository( repositoryDirectory );
+        repository.create();
+        indexer = new PackIndexer( 4 );
+    }
+
+    @After
+    public void tearDown() {
+        indexer.shutdown();
+        repository.close();
+        FileUtils.deleteQuietly( repositoryDirectory );
+    }
+
+    @Test
+    public void givenDeltaChainThenAllObjectsIndexed() throws IOException {
+        final PackBuilder pack = new PackBuilder();
+        final long first = pack.whole( Constants.OBJ_BLOB, FIRST );
+        pack.ofsDelta( first, delta( FIRST, SECOND ) );
+        pack.refDelta( blobId( SECOND ), delta( SECOND, THIRD ) );
+
+        final PackIndexer.IndexedPack indexed = index( pack.build() );
+        final List<ObjectId> expected = Arrays.asList( blobId( FIRST ), blobId( SECOND ), blobId( THIRD ) );
+        Collections.sort( expected, ID_ORDER );
+        assertEquals( expected, indexed.getObjectIds() );
+        assertEquals( 2, indexed.getDeltaCount() );
+        assertEquals( 0, indexed.getThinBaseCount() );
+        assertEquals( 3, indexer.getIndexedObjectCount() );
+
+        assertTrue( indexed.getPackFile().isFile() );
+        final byte[] index = FileUtils.readFileToByteArray( indexed.getIndexFile() );
+        assertArrayEquals( new byte[]{ (byte) 0xff, 't', 'O', 'c', 0, 0, 0, 2 }, Arrays.copyOf( index, 8 ) );
+        // the last fanout entry counts all objects
+        assertEquals( 3, index[8 + 255 * 4 + 3] );
+        assertEquals( 2, new File( repositoryDirectory, "objects/pack" ).list().length );
+    }
+
+    @Test
+    public void givenManyObjectsThenIndexedInBatches() throws IOException {
+        final PackBuilder pack = new PackBuilder();
+        final List<ObjectId> expected = new ArrayList<ObjectId>();
+        for ( int i = 0; i < PackIndexer.BATCH_SIZE * 3 + 7; i++ ) {
+            final byte[] base = ( "object " + i + "\n" ).getBytes();
+            final byte[] derived = ( "object " + i + "\nchanged\n" ).getBytes();
+            pack.ofsDelta( pack.whole( Constants.OBJ_BLOB, base ), delta( base, derived ) );
+            expected.add( blobId( base ) );
+            expected.add( blobId( derived ) );
+        }
+        Collections.sort( expected, ID_ORDER );
+        assertEquals( expected, index( pack.build() ).getObjectIds() );
+    }
+
+    @Test
+    public void givenLongDeltaChainThenAllObjectsIndexed() throws IOException {
+        final PackBuilder pack = new PackBuilder();
+        final List<ObjectId> expected = new ArrayList<ObjectId>();
+        byte[] previous = String.format( "version %05d\n", 0 ).getBytes();
+        long offset = pack.whole( Constants.OBJ_BLOB, previous );
+        expected.add( blobId( previous ) );
+        for ( int i = 1; i < 20000; i++ ) {
+            final byte[] next = String.format( "version %05d\n", i ).getBytes();
+            offset = pack.ofsDelta( offset, insertDelta( previous, next ) );
+            expected.add( blobId( next ) );
+            previous = next;
+        }
+        Collections.sort( expected, ID_ORDER );
+        final PackIndexer.IndexedPack indexed = index( pack.build() );
+        assertEquals( expected, indexed.getObjectIds() );
+        assertEquals( 19999, indexed.getDeltaCount() );
+    }
+
+    @Test
+    public void givenThinPackThenBaseFromRepositoryAppended() throws IOException {
+        new ObjectWriter( repository ).writeBlob( FIRST );
+        final PackBuilder pack = new PackBuilder();
+        final long second = pack.refDelta( blobId( FIRST ), delta( FIRST, SECOND ) );
+        pack.ofsDelta( second, delta( SECOND, THIRD ) );
+
+        final PackIndexer.IndexedPack indexed = index( pack.build() );
+        assertEquals( 2, indexed.getDeltaCount() );
+        assertEquals( 1, indexed.getThinBaseCount() );
+        assertThinBaseAppended( indexed, FIRST );
+    }
+
+    @Test
+    public void givenRefDeltaOnDeltaOfRepositoryBaseThenResolved() throws IOException {
+        new ObjectWriter( repository ).writeBlob( FIRST );
+        final PackBuilder pack = new PackBuilder();
+        // SECOND is not in the repository, but in the pack, as a delta on FIRST, which is
+        pack.refDelta( blobId( SECOND ), delta( SECOND, THIRD ) );
+        pack.refDelta( blobId( FIRST ), delta( FIRST, SECOND ) );
+
+        final PackIndexer.IndexedPack indexed = index( pack.build() );
+        assertEquals( 2, indexed.getDeltaCount() );
+        assertEquals( 1, indexed.getThinBaseCount() );
+        assertThinBaseAppended( indexed, FIRST );
+    }
+
+    @Test
+    public void givenBaseInRepositoryAndInPackThenNotAppended() throws IOException {
+        final ObjectWriter writer = new ObjectWriter( repository );
+        writer.writeBlob( FIRST );
+        writer.writeBlob( SECOND );
+        final PackBuilder pack = new PackBuilder();
+        pack.refDelta( blobId( FIRST ), delta( FIRST, SECOND ) );
+        pack.refDelta( blobId( SECOND ), delta( SECOND, THIRD ) );
+
+        final PackIndexer.IndexedPack indexed = index( pack.build() );
+        assertEquals( 1, indexed.getThinBaseCount() );
+        assertThinBaseAppended( indexed, FIRST );
+    }
+
+    @Test
+    public void givenCorruptChecksumThenFailsAndNothingAdded() throws IOException {
+        final PackBuilder pack = new PackBuilder();
+        pack.whole( Constants.OBJ_BLOB, FIRST );
+        final byte[] bytes = pack.build();
+        bytes[bytes.length - 1] ^= 1;
+        assertIndexFails( bytes, "checksum" );
+    }
+
+    @Test
+    public void givenMissingDeltaBaseThenFails() throws IOException {
+        final PackBuilder pack = new PackBuilder();
+        pack.refDelta( blobId( FIRST ), delta( FIRST, SECOND ) );
+        assertIndexFails( pack.build(), "missing delta base" );
+    }
+
+    @Test
+    public void givenCorruptTreeThenFails() throws IOException {
+        final PackBuilder pack = new PackBuilder();
+        pack.whole( Constants.OBJ_TREE, "not a tree".getBytes() );
+        assertIndexFails( pack.build(), "invalid object" );
+    }
+
+    @Test
+    public void givenBytesAfterPackThenPushedBack() throws IOException {
+        final PackBuilder pack = new PackBuilder();
+        pack.whole( Constants.OBJ_BLOB, FIRST );
+        final byte[] bytes = pack.build();
+        final PushbackInputStream in = new PushbackInputStream( new ByteArrayInputStream(
+                concat( bytes, "after".getBytes() ) ), PackIndexer.BUFFER_SIZE );
+        indexer.index( repository, in, true );
+        assertEquals( "after", IOUtils.toString( in ) );
+    }
+
+    @Test
+    public void givenPushThenReceivePackGetsCommandsAndEmptyPack() throws IOException {
+        final PackBuilder pack = new PackBuilder();
+        pack.whole( Constants.OBJ_BLOB, FIRST );
+        final String command = pktLine( ZERO + " " + blobId( FIRST ).name() + " refs/heads/master\0report-status\n" )
+                               + "0000";
+        final PackIndexingInputStream in = new PackIndexingInputStream( new ByteArrayInputStream(
+                concat( command.getBytes( "UTF-8" ), pack.build() ) ), indexer, repository, true );
+        final byte[] received = IOUtils.toByteArray( in );
+        assertArrayEquals( concat( command.getBytes( "UTF-8" ), PackIndexingInputStream.EMPTY_PACK ), received );
+        assertEquals( Arrays.asList( blobId( FIRST ) ), in.getIndexedPack().getObjectIds() );
+    }
+
+    @Test
+    public void givenOnlyDeletesThenNothingIndexed() throws IOException {
+        final String request = pktLine( blobId( FIRST ).name() + " " + ZERO + " refs/heads/old\0report-status\n" )
+                               + "0000";
+        final PackIndexingInputStream in = new PackIndexingInputStream( new ByteArrayInputStream(
+                request.getBytes( "UTF-8" ) ), indexer, repository, true );
+        assertEquals( request, IOUtils.toString( in, "UTF-8" ) );
+        assertNull( in.getIndexedPack() );
+    }
+
+    protected PackIndexer.IndexedPack index( byte[] pack ) throws IOException {
+        return indexer.index( repository, new PushbackInputStream( new ByteArrayInputStream( pack ),
+                PackIndexer.BUFFER_SIZE ), true );
+    }
+
+    protected void assertIndexFails( byte[] pack, String message ) throws IOException {
+        try {
+            index( pack );
+            fail( "should have failed" );
+        } catch( IOException expected ) {
+            assertTrue( expected.getMessage(), expected.getMessage().contains( message ) );
+        }
+        assertEquals( 0, new File( repositoryDirectory, "objects/pack" ).list().length );
+    }
+
+    /**
+     * Checks that the written pack and index hold {@link #FIRST}, {@link #SECOND} and {@link #THIRD}, with the base
+     * appended as a whole object, and that the pack's object count and checksums were rewritten to match.
+     */
+    protected void assertThinBaseAppended( PackIndexer.IndexedPack indexed, byte[] base ) throws IOException {
+        final List<ObjectId> expected = Arrays.asList( blobId( FIRST ), blobId( SECOND ), blobId( THIRD ) );
+        Collections.sort( expected, ID_ORDER );
+        assertEquals( expected, indexed.getObjectIds() );
+
+        final byte[] pack = FileUtils.readFileToByteArray( indexed.getPackFile() );
+        assertEquals( 3, readInt( pack, 8 ) );
+        final MessageDigest digest = Constants.newMessageDigest();
+        digest.update( pack, 0, pack.length - 20 );
+        final byte[] packChecksum = Arrays.copyOfRange( pack, pack.length - 20, pack.length );
+        assertArrayEquals( digest.digest(), packChecksum );
+
+        final byte[] index = FileUtils.readFileToByteArray( indexed.getIndexFile() );
+        assertEquals( 3, readInt( index, 8 + 255 * 4 ) );
+        assertArrayEquals( packChecksum, Arrays.copyOfRange( index, index.length - 40, index.length - 20 ) );
+        digest.update( index, 0, index.length - 20 );
+        assertArrayEquals( digest.digest(), Arrays.copyOfRange( index, index.length - 20, index.length ) );
+
+        // names, then CRCs, then offsets, in the order of the names
+        final int names = 8 + 256 * 4;
+        final int position = expected.indexOf( blobId( base ) );
+        final int offset = readInt( index, names + 3 * 20 + 3 * 4 + position * 4 );
+        assertEquals( Constants.OBJ_BLOB, ( pack[offset] >> 4 ) & 7 );
+        int header = offset;
+        while ( ( pack[header] & 0x80 ) != 0 ) {
+            header++;
+        }
+        final InflaterInputStream data = new InflaterInputStream( new ByteArrayInputStream( pack, header + 1,
+                pack.length - header - 1 ) );
+        assertArrayEquals( base, IOUtils.toByteArray( data ) );
+    }
+
+    protected static int readInt( byte[] b, int offset ) {
+        return ( b[offset] & 0xff ) << 24 | ( b[offset + 1] & 0xff ) << 16 | ( b[offset + 2] & 0xff ) << 8
+               | ( b[offset + 3] & 0xff );
+    }
+
+    protected static ObjectId blobId( byte[] data ) {
+        final MessageDigest digest = Constants.newMessageDigest();
+        digest.update( Constants.encodedTypeString( Constants.OBJ_BLOB ) );
+        digest.update( (byte) ' ' );
+        digest.update( Constants.encodeASCII( data.length ) );
+        digest.update( (byte) 0 );
+        digest.update( data );
+        return ObjectId.fromRaw( digest.digest() );
+    }
+
+    /**
+     * @return a delta which copies the start of the base, and inserts the rest of the result.
+     */
+    protected static byte[] delta( byte[] base, byte[] result ) {
+        final ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        delta.write( base.length );
+        delta.write( result.length );
+        delta.write( 0x80 | 0x10 );
+        delta.write( base.length );
+        delta.write( result.length - base.length );
+        delta.write( result, base.length, result.length - base.length );
+        return delta.toByteArray();
+    }
+
+    /**
+     * @return a delta which copies nothing from the base, and inserts all of the result.
+     */
+    protected static byte[] insertDelta( byte[] base, byte[] result ) {
+        final ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        delta.write( base.length );
+        delta.write( result.length );
+        delta.write( result.length );
+        delta.write( result, 0, result.length );
+        return delta.toByteArray();
+    }
+
+    protected static String pktLine( String line ) {
+        return String.format( "%04x", line.length() + 4 ) + line;
+    }
+
+    protected static byte[] concat( byte[] a, byte[] b ) {
+        final byte[] both = Arrays.copyOf( a, a.length + b.length );
+        System.arraycopy( b, 0, both, a.length, b.length );
+        return both;
+    }
+
+    /**
+     * Writes packs with objects small enough for single byte sizes and offsets.
+     */
+    protected static class PackBuilder {
+        private final ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        private int count;
+
+        long whole( int type, byte[] data ) throws IOException {
+            return add( type, new byte[0], data );
+        }
+
+        long ofsDelta( long baseOffset, byte[] delta ) throws IOException {
+            return add( 6, new byte[]{ (byte) ( 12 + entries.size() - baseOffset ) }, delta );
+        }
+
+        long refDelta( ObjectId base, byte[] delta ) throws IOException {
+            final byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+            base.copyRawTo( raw, 0 );
+            return add( 7, raw, delta );
+        }
+
+        private long add( int type, byte[] base, byte[] data ) throws IOException {
+            final long offset = 12 + entries.size();
+            entries.write( PackIndexer.entryHeader( type, data.length ) );
+            entries.write( base );
+            final DeflaterOutputStream deflate = new DeflaterOutputStream( entries );
+            deflate.write( data );
+            deflate.finish();
+            count++;
+            return offset;
+        }
+
+        byte[] build() throws IOException {
+            final ByteArrayOutputStream pack = new ByteArrayOutputStream();
+            pack.write( new byte[]{ 'P', 'A', 'C', 'K', 0, 0, 0, 2, 0, 0, (byte) ( count >> 8 ), (byte) count } );
+            entries.writeTo( pack );
+            final MessageDigest digest = Constants.newMessageDigest();
+            digest.update( pack.toByteArray() );
+            pack.write( digest.digest() );
+            return pack.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.sonatype.sshjgit.core.gitcommand;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.shiro.authc.SimpleAccount;
+import org.apache.shiro.mgt.DefaultSecurityManager;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.apache.shiro.subject.Subject;
+import org.apache.shiro.subject.support.SubjectThreadState;
+import org.apache.shiro.util.ThreadState;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sonatype.sshjgit.core.repository.RepositoryCache;
+import com.sonatype.sshjgit.core.repository.RepositoryLockManager;
+import com.sonatype.sshjgit.core.security.RolePermissionsAwareSimpleAccountRealm;
+
+/**
+ * Exercises {@link Receive} with a {@link PackIndexer}, so that JGit's {@code ReceivePack} gets the commands and an
+ * empty pack through {@link PackIndexingInputStream}, and updates the refs.
+ */
+public class ReceiveTest {
+    protected static final byte[] FIRST = PackIndexerTest.FIRST;
+    protected static final byte[] SECOND = PackIndexerTest.SECOND;
+    protected static final byte[] THIRD = PackIndexerTest.THIRD;
+
+    protected File reposRootDir;
+    protected RepositoryCache repositoryCache;
+    protected PackIndexer indexer;
+    protected ThreadState threadState;
+
+    @Before
+    public void setUp() throws IOException {
+        reposRootDir = File.createTempFile( "sshjgit-receive-", "" );
+        assertTrue( reposRootDir.delete() );
+        assertTrue( reposRootDir.mkdir() );
+        repositoryCache = new RepositoryCache( reposRootDir );
+        final Repository repository = repositoryCache.open( "project" );
+        try {
+            repository.create();
+        } finally {
+            repositoryCache.release( repository );
+        }
+        indexer = new PackIndexer( 2 );
+
+        final RolePermissionsAwareSimpleAccountRealm realm = new RolePermissionsAwareSimpleAccountRealm();
+        final SimpleAccount account = new SimpleAccount( "user", "password", realm.getName() );
+        account.addStringPermission( "gitrepo:*" );
+        realm.add( account );
+        final Subject subject = new Subject.Builder( new DefaultSecurityManager( realm ) )
+                .principals( new SimplePrincipalCollection( "user", realm.getName() ) )
+                .authenticated( true )
+                .buildSubject();
+        threadState = new SubjectThreadState( subject );
+        threadState.bind();
+    }
+
+    @After
+    public void tearDown() {
+        threadState.clear();
+        indexer.shutdown();
+        repositoryCache.clear();
+        FileUtils.deleteQuietly( reposRootDir );
+    }
+
+    @Test
+    public void givenPushOfDeltaChainThenIndexedAndRefUpdated() throws Exception {
+        final PackIndexerTest.PackBuilder pack = new PackIndexerTest.PackBuilder();
+        final long first = pack.whole( Constants.OBJ_BLOB, FIRST );
+        pack.ofsDelta( first, PackIndexerTest.delta( FIRST, SECOND ) );
+        pack.refDelta( PackIndexerTest.blobId( SECOND ), PackIndexerTest.delta( SECOND, THIRD ) );
+        final ByteArrayOutputStream tree = new ByteArrayOutputStream();
+        tree.write( "100644 file.txt\0".getBytes( "UTF-8" ) );
+        final byte[] blob = new byte[Constants.OBJECT_ID_LENGTH];
+        PackIndexerTest.blobId( THIRD ).copyRawTo( blob, 0 );
+        tree.write( blob );
+        pack.whole( Constants.OBJ_TREE, tree.toByteArray() );
+        final ObjectId treeId = objectId( Constants.OBJ_TREE, tree.toByteArray() );
+        final byte[] commit = ( "tree " + treeId.name() + "\n"
+                              + "author sshjgit test <test@localhost> 1234567890 +0000\n"
+                              + "committer sshjgit test <test@localhost> 1234567890 +0000\n"
+                              + "\n"
+                              + "third version\n" ).getBytes( "UTF-8" );
+        pack.whole( Constants.OBJ_COMMIT, commit );
+        final ObjectId commitId = objectId( Constants.OBJ_COMMIT, commit );
+
+        final String commands = PackIndexerTest.pktLine( PackIndexerTest.ZERO + " " + commitId.name()
+                + " refs/heads/master\0report-status\n" ) + "0000";
+        final String response = receive( PackIndexerTest.concat( commands.getBytes( "UTF-8" ), pack.build() ) );
+
+        assertTrue( response, response.contains( "unpack ok\n" ) );
+        assertTrue( response, response.contains( "ok refs/heads/master\n" ) );
+        assertEquals( 1, indexer.getIndexedPackCount() );
+        assertEquals( 2, indexer.getResolvedDeltaCount() );
+        final Repository repository = repositoryCache.open( "project" );
+        try {
+            assertEquals( commitId, repository.resolve( "refs/heads/master" ) );
+            for ( byte[] data : new byte[][]{ FIRST, SECOND, THIRD } ) {
+                assertTrue( repository.hasObject( PackIndexerTest.blobId( data ) ) );
+            }
+            assertTrue( repository.hasObject( treeId ) );
+        } finally {
+            repositoryCache.release( repository );
+        }
+    }
+
+    /**
+     * Runs a push of {@code project}, which sends {@code request}, with no ref advertisement cache.
+     * @return what the client received.
+     */
+    protected String receive( byte[] request ) throws IOException, AbstractCommand.Failure {
+        final Receive receive = new Receive( repositoryCache, null, null, new RepositoryLockManager(), null, null,
+                indexer, null, null );
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        receive.setInputStream( new ByteArrayInputStream( request ) );
+        receive.setOutputStream( out );
+        receive.setErrorStream( new ByteArrayOutputStream() );
+        receive.run( new String[]{ "/project.git" } );
+        return out.toString( "UTF-8" );
+    }
+
+    protected static ObjectId objectId( int type, byte[] data ) {
+        final MessageDigest digest = Constants.newMessageDigest();
+        digest.update( Constants.encodedTypeString( type ) );
+        digest.update( (byte) ' ' );
+        digest.update( Constants.encodeASCII( data.length ) );
+        digest.update( (byte) 0 );
+        digest.update( data );
+        return ObjectId.fromRaw( digest.digest() );
+    }
+}
@@ -0,0 +1,166 @@
+package com.sonatype.sshjgit.core.gitcommand;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Exercises the {@link RefAdvertisementCache} through {@link RefAdvertisementStreams}, with a fake
+ * {@code UploadPack} which advertises fixed refs, and then echoes the rest of the request.
+ */
+public class RefAdvertisementCacheTest {
+    protected static final String ADVERTISEMENT =
+            "003f1111111111111111111111111111111111111111 refs/heads/master\n"
+          + "003c2222222222222222222222222222222222222222 refs/tags/v1.0\n"
+          + "0000";
+    /** the advertisement after a push to master. */
+    protected static final String PUSHED =
+            "003f3333333333333333333333333333333333333333 refs/heads/master\n"
+          + "003c2222222222222222222222222222222222222222 refs/tags/v1.0\n"
+          + "0000";
+    protected static final String REQUEST =
+            "0032want 1111111111111111111111111111111111111111\n"
+          + "0000"
+          + "0009done\n";
+
+    protected File repositoryDirectory;
+    protected RefAdvertisementCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        repositoryDirectory = File.createTempFile( "sshjgit-advertisement-", "" );
+        assertTrue( repositoryDirectory.delete() );
+        assertTrue( repositoryDirectory.mkdir() );
+        cache = new RefAdvertisementCache();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly( repositoryDirectory );
+    }
+
+    @Test
+    public void givenFirstFetchThenAdvertisementRecorded() throws IOException {
+        assertEquals( ADVERTISEMENT + REQUEST, fetch( REQUEST ) );
+        assertEquals( ADVERTISEMENT.length(), cache.getSize() );
+        assertEquals( 1, cache.getMissCount() );
+    }
+
+    @Test
+    public void givenCachedAndClientUpToDateThenAnsweredWithoutUploadPack() throws IOException {
+        fetch( REQUEST );
+        final ByteArrayOutputStream client = new ByteArrayOutputStream();
+        final RefAdvertisementStreams streams = new RefAdvertisementStreams( cache, repositoryDirectory,
+                "git-upload-pack", new ByteArrayInputStream( "0000".getBytes( "UTF-8" ) ), client );
+        assertTrue( streams.sendCached() );
+        assertEquals( ADVERTISEMENT, client.toString( "UTF-8" ) );
+        assertEquals( 1, cache.getSkippedCount() );
+    }
+
+    @Test
+    public void givenCachedAndClientWantsObjectsThenAdvertisementNotSentTwice() throws IOException {
+        fetch( REQUEST );
+        assertEquals( ADVERTISEMENT + REQUEST, fetch( REQUEST ) );
+        assertEquals( 1, cache.getHitCount() );
+        assertEquals( 0, cache.getSkippedCount() );
+    }
+
+    @Test
+    public void givenRefsUpdatedThenAdvertisementNotReused() throws IOException {
+        fetch( REQUEST );
+        cache.refsUpdated( repositoryDirectory );
+        assertNull( cache.get( repositoryDirectory, "git-upload-pack" ) );
+        assertEquals( 0, cache.getSize() );
+    }
+
+    @Test
+    public void givenPackedRefsRewrittenThenAdvertisementNotReused() throws IOException {
+        fetch( REQUEST );
+        FileUtils.writeStringToFile( new File( repositoryDirectory, "packed-refs" ), "# pack-refs with: peeled \n" );
+        assertNull( cache.get( repositoryDirectory, "git-upload-pack" ) );
+    }
+
+    @Test
+    public void givenRefsUpdatedWhileAdvertisingThenNotRecorded() throws IOException {
+        final RefAdvertisementStreams streams = new RefAdvertisementStreams( cache, repositoryDirectory,
+                "git-upload-pack", new ByteArrayInputStream( new byte[0] ), new ByteArrayOutputStream() );
+        assertFalse( streams.sendCached() );
+        final OutputStream out = streams.getOutputStream();
+        cache.refsUpdated( repositoryDirectory );
+        out.write( ADVERTISEMENT.getBytes( "UTF-8" ) );
+        assertEquals( 0, cache.getSize() );
+    }
+
+    @Test
+    public void givenRefUpdatedAfterCachedAdvertisementWasSentThenClientIsToldToRetry() throws IOException {
+        fetch( REQUEST );
+        final ByteArrayOutputStream client = new ByteArrayOutputStream();
+        final RefAdvertisementStreams streams = new RefAdvertisementStreams( cache, repositoryDirectory,
+                "git-upload-pack", new ByteArrayInputStream( REQUEST.getBytes( "UTF-8" ) ), client );
+        assertFalse( streams.sendCached() );
+        // master is pushed before UploadPack builds its own advertisement, so it would not know the client's want
+        cache.refsUpdated( repositoryDirectory );
+        try {
+            fakeUploadPack( PUSHED, streams.getInputStream(), streams.getOutputStream() );
+            fail( "the request was answered against refs the client has not seen" );
+        } catch( RefAdvertisementStreams.AdvertisementChanged expected ) {
+        }
+        assertEquals( ADVERTISEMENT, client.toString( "UTF-8" ) );
+    }
+
+    @Test
+    public void givenRefsUnchangedAfterCachedAdvertisementWasSentThenRequestIsAnswered() throws IOException {
+        fetch( REQUEST );
+        final ByteArrayOutputStream client = new ByteArrayOutputStream();
+        final RefAdvertisementStreams streams = new RefAdvertisementStreams( cache, repositoryDirectory,
+                "git-upload-pack", new ByteArrayInputStream( REQUEST.getBytes( "UTF-8" ) ), client );
+        assertFalse( streams.sendCached() );
+        fakeUploadPack( ADVERTISEMENT, streams.getInputStream(), streams.getOutputStream() );
+        assertEquals( ADVERTISEMENT + REQUEST, client.toString( "UTF-8" ) );
+    }
+
+    /**
+     * @return everything the client received.
+     */
+    protected String fetch( String request ) throws IOException {
+        final ByteArrayOutputStream client = new ByteArrayOutputStream();
+        final RefAdvertisementStreams streams = new RefAdvertisementStreams( cache, repositoryDirectory,
+                "git-upload-pack", new ByteArrayInputStream( request.getBytes( "UTF-8" ) ), client );
+        assertFalse( streams.sendCached() );
+        fakeUploadPack( streams.getInputStream(), streams.getOutputStream() );
+        return client.toString( "UTF-8" );
+    }
+
+    protected static void fakeUploadPack( InputStream in, OutputStream out ) throws IOException {
+        fakeUploadPack( ADVERTISEMENT, in, out );
+    }
+
+    protected static void fakeUploadPack( String refs, InputStream in, OutputStream out ) throws IOException {
+        // written in pieces which don't line up with the pkt-lines, as PacketLineOut may
+        final byte[] advertisement = refs.getBytes( "UTF-8" );
+        out.write( advertisement, 0, 2 );
+        out.write( advertisement, 2, 70 );
+        for ( int i = 72; i < advertisement.length - 2; i++ ) {
+            out.write( advertisement[i] );
+        }
+        out.write( advertisement, advertisement.length - 2, 2 );
+        out.flush();
+        out.write( IOUtils.toByteArray( in ) );
+        out.flush();
+    }
+}
@@ -0,0 +1,98 @@
+package com.sonatype.sshjgit.core.gitcommand;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Exercises the {@link ThreadPoolCommandExecutor}.
+ */
+public class ThreadPoolCommandExecutorTest {
+    protected ThreadPoolCommandExecutor executor;
+    protected CountDownLatch release;
+
+    @Before
+    public void setUp() {
+        executor = new ThreadPoolCommandExecutor( 1, 1, 1, false );
+        release = new CountDownLatch( 1 );
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        executor.shutdown();
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void givenFullUploadPoolAndQueueThenUploadIsRejected() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch( 1 );
+        executor.execute( "git-upload-pack", "running", blocking( started ) );
+        assertTrue( started.await( 5, TimeUnit.SECONDS ) );
+        executor.execute( "git-upload-pack", "queued", blocking( new CountDownLatch( 1 ) ) );
+        executor.execute( "git-upload-pack", "rejected", blocking( new CountDownLatch( 1 ) ) );
+    }
+
+    @Test
+    public void givenFullUploadPoolAndQueueThenReceiveStillRuns() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch( 1 );
+        executor.execute( "git-upload-pack", "running", blocking( started ) );
+        assertTrue( started.await( 5, TimeUnit.SECONDS ) );
+        executor.execute( "git-upload-pack", "queued", blocking( new CountDownLatch( 1 ) ) );
+        assertEquals( 1, executor.getQueuedUploads() );
+
+        final CountDownLatch received = new CountDownLatch( 1 );
+        executor.execute( "git-receive-pack", "receiving", blocking( received ) );
+        assertTrue( received.await( 5, TimeUnit.SECONDS ) );
+    }
+
+    @Test
+    public void givenNoQueueThenUploadRejectedWhileThreadBusy() throws InterruptedException {
+        executor.shutdown();
+        executor = new ThreadPoolCommandExecutor( 1, 1, 0, false );
+        final CountDownLatch started = new CountDownLatch( 1 );
+        executor.execute( "git-upload-pack", "running", blocking( started ) );
+        assertTrue( started.await( 5, TimeUnit.SECONDS ) );
+        try {
+            executor.execute( "git-upload-pack", "rejected", blocking( new CountDownLatch( 1 ) ) );
+            fail( "should have been rejected" );
+        } catch( RejectedExecutionException expected ) {
+        }
+        assertEquals( 0, executor.getQueuedUploads() );
+    }
+
+    @Test
+    public void givenRunningCommandThenThreadHasCommandName() throws InterruptedException {
+        final String[] threadName = new String[1];
+        final CountDownLatch done = new CountDownLatch( 1 );
+        executor.execute( "git-upload-pack", "Execute git-upload-pack [username]", new Runnable() {
+            @Override
+            public void run() {
+                threadName[0] = Thread.currentThread().getName();
+                done.countDown();
+            }
+        } );
+        assertTrue( done.await( 5, TimeUnit.SECONDS ) );
+        assertEquals( "Execute git-upload-pack [username]", threadName[0] );
+    }
+
+    private Runnable blocking( final CountDownLatch started ) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch( InterruptedException ignored ) {
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,249 @@
+package com.sonatype.sshjgit.core.gitcommand;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jgit.lib.Repository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sonatype.sshjgit.core.metrics.NoServerMetrics;
+
+/**
+ * Exercises {@link UploadPackV2}, with a fake version 0 {@code UploadPack} which answers with a fixed response.
+ */
+public class UploadPackV2Test {
+    protected static final String CAPABILITIES =
+            "000eversion 2\n"
+          + "0012agent=sshjgit\n"
+          + "000cls-refs\n"
+          + "0019fetch=shallow filter\n"
+          + "0000";
+    protected static final String WANT = "1111111111111111111111111111111111111111";
+    protected static final String HAVE = "2222222222222222222222222222222222222222";
+    /** annotated tag refs/tags/v1.0, of {@link #WANT}. */
+    protected static final String TAG  = "3333333333333333333333333333333333333333";
+
+    protected File repositoryDirectory;
+    protected Repository repository;
+    protected String fetchedRequest;
+
+    @Before
+    public void setUp() throws IOException {
+        repositoryDirectory = File.createTempFile( "sshjgit-repository-", "" );
+        assertTrue( repositoryDirectory.delete() );
+        assertTrue( repositoryDirectory.mkdir() );
+        repository = new Repository( repositoryDirectory );
+        FileUtils.writeStringToFile( new File( repositoryDirectory, "refs/heads/master" ), WANT + "\n" );
+    }
+
+    @After
+    public void tearDown() {
+        repository.close();
+        FileUtils.deleteQuietly( repositoryDirectory );
+    }
+
+    @Test
+    public void givenGitProtocolThenVersion2RequestedOnlyIfListed() {
+        assertTrue( UploadPackV2.isRequested( "version=2" ) );
+        assertTrue( UploadPackV2.isRequested( "foo=bar:version=2" ) );
+        assertFalse( UploadPackV2.isRequested( "version=1" ) );
+        assertFalse( UploadPackV2.isRequested( null ) );
+    }
+
+    @Test
+    public void givenClientHangsUpThenOnlyCapabilitiesSent() throws Exception {
+        assertEquals( CAPABILITIES, serve( "0000" ) );
+    }
+
+    @Test
+    public void givenLsRefsWithoutArgumentsThenAllRefsListedHeadFirst() throws Exception {
+        packRefs();
+        final String response = serve( "0014command=ls-refs\n"
+                                     + "0001"
+                                     + "0000" );
+        assertEquals( CAPABILITIES
+                    + "0032" + WANT + " HEAD\n"
+                    + "003f" + WANT + " refs/heads/master\n"
+                    + "003c" + WANT + " refs/tags/v0.9\n"
+                    + "003c" + TAG + " refs/tags/v1.0\n"
+                    + "0000", response );
+    }
+
+    @Test
+    public void givenLsRefsWithRefPrefixThenOnlyMatchingRefsListed() throws Exception {
+        packRefs();
+        final String response = serve( "0014command=ls-refs\n"
+                                     + "0001"
+                                     + "001aref-prefix refs/tags/\n"
+                                     + "0000" );
+        assertEquals( CAPABILITIES
+                    + "003c" + WANT + " refs/tags/v0.9\n"
+                    + "003c" + TAG + " refs/tags/v1.0\n"
+                    + "0000", response );
+    }
+
+    @Test
+    public void givenLsRefsWithSymrefsThenHeadNamesItsTarget() throws Exception {
+        packRefs();
+        final String response = serve( "0014command=ls-refs\n"
+                                     + "0001"
+                                     + "000csymrefs\n"
+                                     + "0014ref-prefix HEAD\n"
+                                     + "0021ref-prefix refs/heads/master\n"
+                                     + "0000" );
+        assertEquals( CAPABILITIES
+                    + "0052" + WANT + " HEAD symref-target:refs/heads/master\n"
+                    + "003f" + WANT + " refs/heads/master\n"
+                    + "0000", response );
+    }
+
+    @Test
+    public void givenLsRefsWithPeelThenAnnotatedTagsPeeled() throws Exception {
+        packRefs();
+        final String response = serve( "0014command=ls-refs\n"
+                                     + "0001"
+                                     + "0009peel\n"
+                                     + "001aref-prefix refs/tags/\n"
+                                     + "0000" );
+        assertEquals( CAPABILITIES
+                    + "003c" + WANT + " refs/tags/v0.9\n"
+                    + "006c" + TAG + " refs/tags/v1.0 peeled:" + WANT + "\n"
+                    + "0000", response );
+    }
+
+    @Test
+    public void givenLsRefsWithoutSymrefsOrPeelThenNeitherListed() throws Exception {
+        packRefs();
+        final String response = serve( "0014command=ls-refs\n"
+                                     + "0001"
+                                     + "0014ref-prefix HEAD\n"
+                                     + "001cref-prefix refs/tags/v1\n"
+                                     + "0000" );
+        assertEquals( CAPABILITIES
+                    + "0032" + WANT + " HEAD\n"
+                    + "003c" + TAG + " refs/tags/v1.0\n"
+                    + "0000", response );
+    }
+
+    @Test
+    public void givenFetchWithDoneThenVersion0ResponseSentAsPackfileSection() throws Exception {
+        final String response = serve( "0012command=fetch\n"
+                                     + "0015agent=git/2.30.0\n"
+                                     + "0001"
+                                     + "000ethin-pack\n"
+                                     + "0032want " + WANT + "\n"
+                                     + "0032have " + HAVE + "\n"
+                                     + "0009done\n"
+                                     + "0000" );
+        assertEquals( new String( ClonePackWarmer.createFetchRequest( Arrays.asList( WANT ),
+                Arrays.asList( "side-band-64k", "thin-pack" ), Arrays.asList( HAVE ) ), "UTF-8" ), fetchedRequest );
+        assertEquals( CAPABILITIES + "000dpackfile\n" + "0009\u0001PACK" + "0000", response );
+    }
+
+    @Test
+    public void givenFetchWithoutDoneThenAcknowledgedWithoutUploadPack() throws Exception {
+        final String response = serve( "0012command=fetch\n"
+                                     + "0001"
+                                     + "0032want " + WANT + "\n"
+                                     + "0032have " + HAVE + "\n"
+                                     + "0000" );
+        assertEquals( null, fetchedRequest );
+        assertEquals( CAPABILITIES + "0014acknowledgments\n" + "0008NAK\n" + "0000", response );
+    }
+
+    @Test
+    public void givenUnsupportedFilterThenFails() throws Exception {
+        try {
+            serve( "0012command=fetch\n"
+                 + "0001"
+                 + "0032want " + WANT + "\n"
+                 + "0016filter sparse:oid\n"
+                 + "0009done\n"
+                 + "0000" );
+            fail( "should have failed" );
+        } catch( AbstractCommand.Failure expected ) {
+        }
+        assertEquals( null, fetchedRequest );
+    }
+
+    @Test
+    public void givenUnknownCommandThenFails() throws Exception {
+        try {
+            serve( "0017command=bundle-uri\n0000" );
+            fail( "should have failed" );
+        } catch( AbstractCommand.Failure expected ) {
+        }
+    }
+
+    @Test
+    public void givenMalformedWantThenErrorSentAndFailsLikeGit() throws Exception {
+        final ByteArrayOutputStream client = new ByteArrayOutputStream();
+        try {
+            serve( "0012command=fetch\n"
+                 + "0001"
+                 + "0013want not-an-id\n"
+                 + "0009done\n"
+                 + "0000", client );
+            fail( "should have failed" );
+        } catch( AbstractCommand.Failure expected ) {
+            assertEquals( 128, expected.exitCode );
+        }
+        assertEquals( CAPABILITIES + "002aERR invalid object id: want not-an-id\n", client.toString( "UTF-8" ) );
+        assertEquals( null, fetchedRequest );
+    }
+
+    /**
+     * Moves master into packed-refs, next to a lightweight and an annotated tag, and points HEAD at it. The
+     * packed-refs are marked as peeled, so the tag's commit is known without the objects.
+     */
+    protected void packRefs() throws IOException {
+        FileUtils.forceDelete( new File( repositoryDirectory, "refs/heads/master" ) );
+        FileUtils.writeStringToFile( new File( repositoryDirectory, "packed-refs" ),
+                "# pack-refs with: peeled \n"
+              + WANT + " refs/heads/master\n"
+              + WANT + " refs/tags/v0.9\n"
+              + TAG + " refs/tags/v1.0\n"
+              + "^" + WANT + "\n" );
+        FileUtils.writeStringToFile( new File( repositoryDirectory, "HEAD" ), "ref: refs/heads/master\n" );
+    }
+
+    /**
+     * @return everything the client received.
+     */
+    protected String serve( String request ) throws IOException, AbstractCommand.Failure {
+        final ByteArrayOutputStream client = new ByteArrayOutputStream();
+        serve( request, client );
+        return client.toString( "UTF-8" );
+    }
+
+    /**
+     * Serves the request, writing what the client receives to {@code client}, which keeps it if serving fails.
+     */
+    protected void serve( String request, ByteArrayOutputStream client ) throws IOException, AbstractCommand.Failure {
+        new UploadPackV2( repository, new ByteArrayInputStream( request.getBytes( "UTF-8" ) ), client,
+                new UploadPackV2.Fetcher() {
+                    @Override
+                    public void fetch( InputStream request, OutputStream out ) throws IOException {
+                        fetchedRequest = IOUtils.toString( request, "UTF-8" );
+                        out.write( ( "003f" + WANT + " refs/heads/master\n" + "0000"
+                                   + "0008NAK\n"
+                                   + "0009\u0001PACK"
+                                   + "0000" ).getBytes( "UTF-8" ) );
+                    }
+                }, new NoServerMetrics() ).serve();
+    }
+}
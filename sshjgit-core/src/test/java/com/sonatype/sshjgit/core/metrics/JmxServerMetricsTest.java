@@ -0,0 +1,80 @@
+package com.sonatype.sshjgit.core.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+/**
+ * Exercises the {@link JmxServerMetrics} and its {@link LatencyHistogram}s.
+ */
+public class JmxServerMetricsTest {
+    private static final long MILLIS = 1000 * 1000;
+
+    @Test
+    public void givenDurationsThenPercentilesAreWithinOneBucket() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for ( int i = 1; i <= 100; i++ ) {
+            histogram.record( i * MILLIS );
+        }
+        assertEquals( 100, histogram.getCount() );
+        assertEquals( 50.5, histogram.getMeanMillis(), 0.001 );
+        assertEquals( 100, histogram.getMaxMillis(), 0.001 );
+        assertWithinOneBucket( 50, histogram.getPercentileMillis( 50 ) );
+        assertWithinOneBucket( 99, histogram.getPercentileMillis( 99 ) );
+        assertEquals( 100, histogram.getPercentileMillis( 100 ), 0.001 );
+    }
+
+    @Test
+    public void givenNothingRecordedThenPercentilesAreZero() {
+        assertEquals( 0, new LatencyHistogram().getPercentileMillis( 99 ), 0 );
+    }
+
+    @Test
+    public void givenCommandsThenTheyAreCountedPerCommand() {
+        final JmxServerMetrics metrics = new JmxServerMetrics();
+        metrics.commandQueued( "git-upload-pack" );
+        metrics.commandQueued( "git-receive-pack" );
+        assertEquals( 2, metrics.getQueuedCommands() );
+        metrics.commandDequeued( "git-upload-pack" );
+        metrics.commandCompleted( "git-upload-pack", 3 * MILLIS, 100, 5000, false );
+        metrics.commandDequeued( "git-receive-pack" );
+        metrics.commandCompleted( "git-receive-pack", 7 * MILLIS, 9000, 50, true );
+
+        assertEquals( 0, metrics.getQueuedCommands() );
+        assertEquals( 1, metrics.getUploadCount() );
+        assertEquals( 0, metrics.getUploadFailures() );
+        assertEquals( 5000, metrics.getUploadBytesOut() );
+        assertEquals( 1, metrics.getReceiveCount() );
+        assertEquals( 1, metrics.getReceiveFailures() );
+        assertEquals( 9000, metrics.getReceiveBytesIn() );
+    }
+
+    @Test
+    public void givenRegisteredThenAttributesAreVisibleThroughJmx() throws Exception {
+        final MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName( "com.sonatype.sshjgit:type=ServerMetrics,name=test" );
+        final JmxServerMetrics metrics = new JmxServerMetrics();
+        metrics.register( mbeanServer, name );
+        try {
+            metrics.sessionOpened();
+            metrics.authenticationAttempted( "publickey", MILLIS, false );
+            assertEquals( 1, mbeanServer.getAttribute( name, "ActiveSessions" ) );
+            assertEquals( 1L, mbeanServer.getAttribute( name, "AuthenticationFailures" ) );
+        } finally {
+            metrics.unregister();
+        }
+        assertFalse( mbeanServer.isRegistered( name ) );
+    }
+
+    private static void assertWithinOneBucket( double expected, double actual ) {
+        assertTrue( "expected about " + expected + " but was " + actual,
+                    actual >= expected && actual <= expected * 1.2 );
+    }
+}
@@ -0,0 +1,129 @@
+package com.sonatype.sshjgit.core.quota;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class QuotaManagerTest {
+    protected static final long SECOND = 1000000000L;
+
+    protected QuotaManager quotas;
+
+    @Before
+    public void setUp() {
+        quotas = new QuotaManager();
+    }
+
+    @Test
+    public void givenNoLimitsThenNothingTracked() throws QuotaExceededException {
+        for ( int i = 0; i < 100; i++ ) {
+            quotas.acquire( "user", "project", "10.0.0.1", 0 );
+        }
+        assertEquals( 0, quotas.getTrackedCount() );
+    }
+
+    @Test
+    public void givenMaxConcurrentThenRejectedUntilReleased() throws QuotaExceededException {
+        quotas.setDefaultLimits( QuotaManager.Kind.PRINCIPAL, new QuotaManager.Limits( 0, 0, 2 ) );
+        final QuotaManager.Permit first = quotas.acquire( "user", "project", null, 0 );
+        quotas.acquire( "user", "project", null, 0 );
+        assertRejected( "user", "project", null, 0, QuotaManager.Kind.PRINCIPAL );
+        // others are not affected
+        quotas.acquire( "other", "project", null, 0 );
+
+        first.release();
+        first.release();
+        assertEquals( 1, quotas.getRunningCount( QuotaManager.Kind.PRINCIPAL, "user" ) );
+        quotas.acquire( "user", "project", null, 0 );
+        assertEquals( 1, quotas.getRejectedCount() );
+    }
+
+    @Test
+    public void givenLaterQuotaExceededThenEarlierSlotsReleased() throws QuotaExceededException {
+        quotas.setDefaultLimits( QuotaManager.Kind.PRINCIPAL, new QuotaManager.Limits( 0, 0, 1 ) );
+        quotas.setDefaultLimits( QuotaManager.Kind.ADDRESS, new QuotaManager.Limits( 0, 0, 1 ) );
+        quotas.acquire( "user1", "project", "10.0.0.1", 0 );
+        assertRejected( "user2", "project", "10.0.0.1", 0, QuotaManager.Kind.ADDRESS );
+        assertEquals( 0, quotas.getRunningCount( QuotaManager.Kind.PRINCIPAL, "user2" ) );
+    }
+
+    @Test
+    public void givenLaterQuotaExceededThenEarlierTokensReturned() throws QuotaExceededException {
+        quotas.setDefaultLimits( QuotaManager.Kind.PRINCIPAL, new QuotaManager.Limits( 1, 2, 0 ) );
+        quotas.setDefaultLimits( QuotaManager.Kind.REPOSITORY, new QuotaManager.Limits( 0, 0, 1 ) );
+        quotas.acquire( "user", "busy", null, 0 );
+        for ( int i = 0; i < 5; i++ ) {
+            assertRejected( "user", "busy", null, 0, QuotaManager.Kind.REPOSITORY );
+        }
+        // the user's rate is not used up by the commands which did not run
+        quotas.acquire( "user", "project", null, 0 ).release();
+        assertRejected( "user", "project", null, 0, QuotaManager.Kind.PRINCIPAL );
+    }
+
+    @Test
+    public void givenRateThenBurstAllowedAndRefilledOverTime() throws QuotaExceededException {
+        quotas.setDefaultLimits( QuotaManager.Kind.REPOSITORY, new QuotaManager.Limits( 2, 3, 0 ) );
+        final long start = 5 * SECOND;
+        for ( int i = 0; i < 3; i++ ) {
+            quotas.acquire( "user", "project", null, start ).release();
+        }
+        assertRejected( "user", "project", null, start, QuotaManager.Kind.REPOSITORY );
+        // half a second gives one more
+        quotas.acquire( "user", "project", null, start + SECOND / 2 ).release();
+        assertRejected( "user", "project", null, start + SECOND / 2, QuotaManager.Kind.REPOSITORY );
+        // however long it's idle, at most the burst
+        final long later = start + 60 * SECOND;
+        for ( int i = 0; i < 3; i++ ) {
+            quotas.acquire( "user", "project", null, later ).release();
+        }
+        assertRejected( "user", "project", null, later, QuotaManager.Kind.REPOSITORY );
+    }
+
+    @Test
+    public void givenOverrideThenUsedInsteadOfDefault() throws QuotaExceededException {
+        quotas.setDefaultLimits( QuotaManager.Kind.REPOSITORY, new QuotaManager.Limits( 0, 0, 1 ) );
+        quotas.setLimits( QuotaManager.Kind.REPOSITORY, "subdir:big", QuotaManager.Limits.NONE );
+        quotas.acquire( "user", "subdir:big", null, 0 );
+        quotas.acquire( "user", "subdir:big", null, 0 );
+        quotas.acquire( "user", "project", null, 0 );
+        assertRejected( "user", "project", null, 0, QuotaManager.Kind.REPOSITORY );
+
+        quotas.setLimits( QuotaManager.Kind.REPOSITORY, "subdir:big", null );
+        quotas.acquire( "user", "subdir:big", null, 0 );
+        assertRejected( "user", "subdir:big", null, 0, QuotaManager.Kind.REPOSITORY );
+    }
+
+    @Test
+    public void givenIdleUsageThenSwept() throws QuotaExceededException {
+        quotas.setDefaultLimits( QuotaManager.Kind.ADDRESS, new QuotaManager.Limits( 10, 1, 1 ) );
+        final QuotaManager.Permit running = quotas.acquire( null, null, "10.0.0.1", 0 );
+        quotas.acquire( null, null, "10.0.0.2", 0 ).release();
+        assertEquals( 2, quotas.getTrackedCount() );
+
+        // the bucket of 10.0.0.2 isn't full yet
+        quotas.sweep( 0 );
+        assertEquals( 2, quotas.getTrackedCount() );
+        quotas.sweep( SECOND );
+        assertEquals( 1, quotas.getTrackedCount() );
+
+        running.release();
+        quotas.sweep( SECOND );
+        assertEquals( 0, quotas.getTrackedCount() );
+        quotas.acquire( null, null, "10.0.0.1", SECOND );
+        assertRejected( null, null, "10.0.0.1", SECOND, QuotaManager.Kind.ADDRESS );
+    }
+
+    protected void assertRejected( String principal, String repository, String address, long now,
+                                   QuotaManager.Kind kind ) {
+        try {
+            quotas.acquire( principal, repository, address, now );
+            fail( "should have been rejected" );
+        } catch( QuotaExceededException expected ) {
+            assertEquals( kind, expected.getKind() );
+            assertTrue( expected.getMessage(), expected.getMessage().contains( "try again later" ) );
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.sonatype.sshjgit.core.replica;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.lib.Commit;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectWriter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.Tree;
+import org.eclipse.jgit.transport.ReceiveCommand;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sonatype.sshjgit.core.gitcommand.PackCache;
+import com.sonatype.sshjgit.core.gitcommand.RefAdvertisementCache;
+import com.sonatype.sshjgit.core.repository.RepositoryCache;
+
+/**
+ * Exercises the fetches and forwarded pushes of a {@link ReadReplica}, against a primary whose repositories are
+ * reached through {@code file://}.
+ */
+public class ReadReplicaPrimaryTest {
+    protected static final PersonIdent IDENT = new PersonIdent( "sshjgit test", "test@localhost" );
+
+    protected File primaryDirectory;
+    protected File mirrorsDirectory;
+    protected File cacheDirectory;
+    protected Repository primary;
+    protected RepositoryCache mirrors;
+    protected RecordingPackCache packCache;
+    protected RecordingAdvertisementCache advertisementCache;
+    protected ReadReplica replica;
+
+    @Before
+    public void setUp() throws IOException {
+        primaryDirectory = File.createTempFile( "sshjgit-primary-", "" );
+        assertTrue( primaryDirectory.delete() );
+        assertTrue( primaryDirectory.mkdir() );
+        mirrorsDirectory = new File( primaryDirectory.getPath() + "-mirrors" );
+        assertTrue( mirrorsDirectory.mkdir() );
+        cacheDirectory = new File( primaryDirectory.getPath() + "-packcache" );
+        primary = new Repository( new File( primaryDirectory, "project.git" ) );
+        primary.create();
+
+        mirrors = new RepositoryCache( mirrorsDirectory );
+        packCache = new RecordingPackCache( cacheDirectory );
+        advertisementCache = new RecordingAdvertisementCache();
+        replica = new ReadReplica( mirrors, "file://" + primaryDirectory.getAbsolutePath() );
+        replica.setPackCache( packCache );
+        replica.setRefAdvertisementCache( advertisementCache );
+    }
+
+    @After
+    public void tearDown() {
+        replica.shutdown();
+        mirrors.clear();
+        primary.close();
+        FileUtils.deleteQuietly( primaryDirectory );
+        FileUtils.deleteQuietly( mirrorsDirectory );
+        FileUtils.deleteQuietly( cacheDirectory );
+    }
+
+    @Test
+    public void givenNewRefsOnPrimaryThenFetchedAndCachesInvalidated() throws IOException {
+        final ObjectId first = commit( primary, null, "first" );
+        updateRef( primary, "refs/heads/master", first );
+        updateRef( primary, "refs/tags/v1.0", first );
+
+        replica.replicate( "project" );
+
+        assertEquals( first, resolveInMirror( "refs/heads/master" ) );
+        assertEquals( first, resolveInMirror( "refs/tags/v1.0" ) );
+        assertEquals( Arrays.asList( mirrorDirectory() ), packCache.invalidated );
+        assertEquals( Arrays.asList( mirrorDirectory() ), advertisementCache.updated );
+    }
+
+    @Test
+    public void givenRefRemovedOnPrimaryThenDeletedFromMirror() throws IOException {
+        final ObjectId first = commit( primary, null, "first" );
+        updateRef( primary, "refs/heads/master", first );
+        updateRef( primary, "refs/heads/topic", first );
+        replica.replicate( "project" );
+        assertEquals( first, resolveInMirror( "refs/heads/topic" ) );
+
+        final RefUpdate delete = primary.updateRef( "refs/heads/topic" );
+        delete.setForceUpdate( true );
+        delete.delete();
+        replica.replicate( "project" );
+
+        assertNull( resolveInMirror( "refs/heads/topic" ) );
+        assertEquals( first, resolveInMirror( "refs/heads/master" ) );
+        assertEquals( 2, packCache.invalidated.size() );
+        assertEquals( 2, advertisementCache.updated.size() );
+    }
+
+    @Test
+    public void givenNothingChangedOnPrimaryThenCachesKept() throws IOException {
+        updateRef( primary, "refs/heads/master", commit( primary, null, "first" ) );
+        replica.replicate( "project" );
+        replica.replicate( "project" );
+
+        assertEquals( 1, packCache.invalidated.size() );
+        assertEquals( 1, advertisementCache.updated.size() );
+    }
+
+    @Test
+    public void givenPushToMirrorThenForwardedToPrimary() throws IOException {
+        final ObjectId first = commit( primary, null, "first" );
+        updateRef( primary, "refs/heads/master", first );
+        replica.replicate( "project" );
+
+        final ReceiveCommand command = forwardPush( first, "pushed" );
+
+        assertEquals( ReceiveCommand.Result.OK, command.getResult() );
+        assertEquals( command.getNewId(), primary.resolve( "refs/heads/master" ) );
+        assertEquals( 1, replica.getForwardedPushCount() );
+    }
+
+    @Test
+    public void givenPrimaryChangedSinceFetchThenForwardedPushRejected() throws IOException {
+        final ObjectId first = commit( primary, null, "first" );
+        updateRef( primary, "refs/heads/master", first );
+        replica.replicate( "project" );
+        final ObjectId second = commit( primary, first, "pushed to the primary" );
+        updateRef( primary, "refs/heads/master", second );
+
+        final ReceiveCommand command = forwardPush( first, "pushed to the mirror" );
+
+        assertEquals( ReceiveCommand.Result.REJECTED_OTHER_REASON, command.getResult() );
+        assertEquals( "changed on the primary, fetch first", command.getMessage() );
+        assertEquals( second, primary.resolve( "refs/heads/master" ) );
+    }
+
+    /**
+     * Commits on top of {@code parent} in the mirror, as a push received into it would, and forwards the update of
+     * master from {@code parent} to that commit.
+     */
+    private ReceiveCommand forwardPush( ObjectId parent, String content ) throws IOException {
+        final Repository mirror = mirrors.open( "project" );
+        try {
+            final ReceiveCommand command = new ReceiveCommand( parent, commit( mirror, parent, content ),
+                    "refs/heads/master" );
+            replica.forwardPush( mirror, "project", Collections.singletonList( command ) );
+            return command;
+        } finally {
+            mirrors.release( mirror );
+        }
+    }
+
+    private ObjectId resolveInMirror( String refName ) throws IOException {
+        final Repository mirror = mirrors.open( "project" );
+        try {
+            return mirror.resolve( refName );
+        } finally {
+            mirrors.release( mirror );
+        }
+    }
+
+    private File mirrorDirectory() throws IOException {
+        final Repository mirror = mirrors.open( "project" );
+        try {
+            return mirror.getDirectory();
+        } finally {
+            mirrors.release( mirror );
+        }
+    }
+
+    /**
+     * Writes a commit of {@code file.txt} with the given content.
+     * @param parent the commit's parent, or {@code null} for a root commit.
+     */
+    private static ObjectId commit( Repository repository, ObjectId parent, String content ) throws IOException {
+        final ObjectWriter writer = new ObjectWriter( repository );
+        final Tree tree = new Tree( repository );
+        tree.addFile( "file.txt" ).setId( writer.writeBlob( ( content + "\n" ).getBytes( "UTF-8" ) ) );
+
+        final Commit commit = new Commit( repository );
+        commit.setTreeId( writer.writeTree( tree ) );
+        commit.setParentIds( parent == null ? new ObjectId[0] : new ObjectId[]{ parent } );
+        commit.setAuthor( IDENT );
+        commit.setCommitter( IDENT );
+        commit.setMessage( content + "\n" );
+        return writer.writeCommit( commit );
+    }
+
+    private static void updateRef( Repository repository, String name, ObjectId id ) throws IOException {
+        final RefUpdate update = repository.updateRef( name );
+        update.setNewObjectId( id );
+        update.forceUpdate();
+    }
+
+    protected static class RecordingPackCache extends PackCache {
+        final List<File> invalidated = Collections.synchronizedList( new ArrayList<File>() );
+
+        RecordingPackCache( File directory ) {
+            super( directory );
+        }
+
+        @Override
+        public void invalidate( File repositoryDirectory ) {
+            invalidated.add( repositoryDirectory );
+            super.invalidate( repositoryDirectory );
+        }
+    }
+
+    protected static class RecordingAdvertisementCache extends RefAdvertisementCache {
+        final List<File> updated = Collections.synchronizedList( new ArrayList<File>() );
+
+        @Override
+        public void refsUpdated( File repositoryDirectory ) {
+            updated.add( repositoryDirectory );
+            super.refsUpdated( repositoryDirectory );
+        }
+    }
+}
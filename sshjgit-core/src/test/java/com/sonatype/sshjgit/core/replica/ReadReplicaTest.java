@@ -0,0 +1,196 @@
+package com.sonatype.sshjgit.core.replica;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sonatype.sshjgit.core.event.RefUpdateEvent;
+import com.sonatype.sshjgit.core.metrics.JmxServerMetrics;
+import com.sonatype.sshjgit.core.repository.RepositoryCache;
+
+/**
+ * Exercises the notifications and fetch scheduling of a {@link ReadReplica}, with a primary's
+ * {@link ReplicaNotifier} on localhost, and fetches which are only recorded.
+ */
+public class ReadReplicaTest {
+    protected File mirrorsDirectory;
+    protected RecordingReplica replica;
+    protected ReplicaNotifier notifier;
+    protected JmxServerMetrics metrics;
+
+    @Before
+    public void setUp() throws IOException {
+        mirrorsDirectory = File.createTempFile( "sshjgit-mirrors-", "" );
+        assertTrue( mirrorsDirectory.delete() );
+        assertTrue( mirrorsDirectory.mkdir() );
+        replica = new RecordingReplica( new RepositoryCache( mirrorsDirectory ) );
+        replica.setNotificationAddress( new InetSocketAddress( InetAddress.getByName( "localhost" ), 0 ) );
+        metrics = new JmxServerMetrics();
+        replica.setMetrics( metrics );
+        replica.start();
+        notifier = new ReplicaNotifier();
+        notifier.addReplica( new InetSocketAddress( InetAddress.getByName( "localhost" ),
+                replica.getNotificationPort() ) );
+    }
+
+    @After
+    public void tearDown() {
+        replica.shutdown();
+        FileUtils.deleteQuietly( mirrorsDirectory );
+    }
+
+    @Test
+    public void givenPushNotifiedThenMirrorFetched() throws InterruptedException {
+        notifier.refsUpdated( "subdir/project1", Arrays.asList( event( "subdir/project1", 0 ) ) );
+        assertEquals( "subdir/project1", replica.next() );
+        assertEquals( 1, notifier.getNotificationCount() );
+        assertEquals( 1, replica.getNotificationCount() );
+        waitForUpdates( 1 );
+        assertEquals( 1, metrics.getReplicaUpdates() );
+        assertEquals( 0, replica.getReplicationLagMillis() );
+    }
+
+    @Test
+    public void givenFetchFailsThenLagKeptUntilSynced() throws InterruptedException {
+        replica.failures = 1;
+        notifier.refsUpdated( "project1", Arrays.asList( event( "project1", 60000 ) ) );
+        assertEquals( "project1", replica.next() );
+        waitForUpdates( 1 );
+        assertEquals( 1, replica.getFailureCount() );
+        assertEquals( 1, metrics.getReplicaUpdateFailures() );
+        assertTrue( replica.getReplicationLagMillis() >= 60000 );
+
+        replica.sync();
+        assertEquals( "project1", replica.next() );
+        waitForUpdates( 2 );
+        assertEquals( 0, replica.getReplicationLagMillis() );
+        assertTrue( metrics.getReplicationLagP50Millis() >= 50000 );
+    }
+
+    @Test
+    public void givenNotificationsWhileFetchingThenCoalesced() throws InterruptedException {
+        replica.blocked = new CountDownLatch( 1 );
+        replica.repositoryChanged( "project1", System.currentTimeMillis() );
+        assertEquals( "project1", replica.next() );
+        for ( int i = 0; i < 5; i++ ) {
+            replica.repositoryChanged( "project1", System.currentTimeMillis() );
+        }
+        replica.blocked.countDown();
+        assertEquals( "project1", replica.next() );
+        waitForUpdates( 2 );
+        assertNull( replica.fetched.poll( 200, TimeUnit.MILLISECONDS ) );
+    }
+
+    @Test
+    public void givenInvalidNotificationsThenIgnored() throws IOException, InterruptedException {
+        final Socket socket = new Socket( "localhost", replica.getNotificationPort() );
+        try {
+            socket.getOutputStream().write( "1 ../outside\nnonsense\nx project1\n5 project2\n".getBytes( "UTF-8" ) );
+        } finally {
+            socket.close();
+        }
+        assertEquals( "project2", replica.next() );
+        assertEquals( 1, replica.getNotificationCount() );
+    }
+
+    @Test
+    public void givenMirrorsOnDiskThenSyncFetchesThem() throws InterruptedException {
+        new File( mirrorsDirectory, "subdir/project3/objects" ).mkdirs();
+        new File( mirrorsDirectory, "subdir/project3/refs" ).mkdirs();
+        replica.sync();
+        assertEquals( "subdir/project3", replica.next() );
+        waitForUpdates( 1 );
+        // no push time to measure the lag from
+        assertEquals( 0, metrics.getReplicationLagP50Millis(), 0 );
+    }
+
+    @Test
+    public void givenReplicaDownThenNotifierCarriesOn() throws InterruptedException {
+        final int port = replica.getNotificationPort();
+        replica.shutdown();
+        waitUntilRefused( port );
+        notifier.refsUpdated( "project1", Arrays.asList( event( "project1", 0 ) ) );
+        assertEquals( 1, notifier.getFailureCount() );
+    }
+
+    protected void waitForUpdates( long count ) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while ( replica.getUpdateCount() + replica.getFailureCount() < count
+                && System.currentTimeMillis() < deadline ) {
+            Thread.sleep( 10 );
+        }
+        assertEquals( count, replica.getUpdateCount() + replica.getFailureCount() );
+    }
+
+    /**
+     * The listening socket is only released once the thread which accepts on it has noticed the close.
+     */
+    protected static void waitUntilRefused( int port ) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while ( System.currentTimeMillis() < deadline ) {
+            try {
+                new Socket( "localhost", port ).close();
+            } catch( IOException refused ) {
+                return;
+            }
+            Thread.sleep( 10 );
+        }
+    }
+
+    protected static RefUpdateEvent event( String repository, long agoMillis ) {
+        return new RefUpdateEvent( repository, "refs/heads/master", RefUpdateEvent.ZERO_ID,
+                "1111111111111111111111111111111111111111", "user", System.currentTimeMillis() - agoMillis );
+    }
+
+    /**
+     * Records fetches instead of fetching from a primary.
+     */
+    protected static class RecordingReplica extends ReadReplica {
+        final BlockingQueue<String> fetched = new LinkedBlockingQueue<String>();
+        volatile int failures;
+        volatile CountDownLatch blocked;
+
+        RecordingReplica( RepositoryCache mirrors ) {
+            super( mirrors, "ssh://replicator@localhost:1/" );
+        }
+
+        @Override
+        void replicate( String projectName ) throws IOException {
+            fetched.add( projectName );
+            if ( blocked != null ) {
+                try {
+                    blocked.await( 5, TimeUnit.SECONDS );
+                } catch( InterruptedException e ) {
+                    throw new IOException( "interrupted" );
+                }
+            }
+            if ( failures > 0 ) {
+                failures--;
+                throw new IOException( "primary down" );
+            }
+        }
+
+        String next() throws InterruptedException {
+            final String projectName = fetched.poll( 5, TimeUnit.SECONDS );
+            assertNotNull( "nothing fetched", projectName );
+            return projectName;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.sonatype.sshjgit.core.repository;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.lib.Repository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Exercises the {@link RepositoryCache}.
+ */
+public class RepositoryCacheTest {
+    protected File reposRootDir;
+    protected RepositoryCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        reposRootDir = File.createTempFile( "sshjgit-repos-", "" );
+        assertTrue( reposRootDir.delete() );
+        assertTrue( reposRootDir.mkdir() );
+        cache = new RepositoryCache( reposRootDir, 1, 60 * 1000L );
+    }
+
+    @After
+    public void tearDown() {
+        cache.clear();
+        FileUtils.deleteQuietly( reposRootDir );
+    }
+
+    @Test
+    public void givenOpenedTwiceThenSameInstanceAndOneHit() throws IOException {
+        final Repository first = cache.open( "project" );
+        final Repository second = cache.open( "project" );
+        assertSame( first, second );
+        assertEquals( 1, cache.getMissCount() );
+        assertEquals( 1, cache.getHitCount() );
+        assertEquals( new File( reposRootDir, "project" ).getAbsoluteFile(), first.getDirectory() );
+        cache.release( first );
+        cache.release( second );
+    }
+
+    @Test
+    public void givenReleasedAndReopenedThenSameInstance() throws IOException {
+        final Repository first = cache.open( "project" );
+        cache.release( first );
+        final Repository second = cache.open( "project" );
+        assertSame( first, second );
+        cache.release( second );
+    }
+
+    @Test
+    public void givenMoreUnusedThanMaxOpenThenLeastRecentlyUsedIsEvicted() throws IOException {
+        final Repository first = cache.open( "first" );
+        cache.release( first );
+        cache.release( cache.open( "second" ) );
+        assertEquals( 1, cache.getEvictionCount() );
+        assertEquals( 1, cache.getOpenCount() );
+        assertNotSame( first, cache.open( "first" ) );
+    }
+
+    @Test
+    public void givenInUseThenNotEvictedEvenAboveMaxOpen() throws IOException {
+        final Repository first = cache.open( "first" );
+        final Repository second = cache.open( "second" );
+        assertEquals( 0, cache.getEvictionCount() );
+        assertEquals( 2, cache.getOpenCount() );
+        assertSame( first, cache.open( "first" ) );
+        cache.release( first );
+        cache.release( first );
+        cache.release( second );
+    }
+
+    @Test
+    public void givenInvalidatedWhileInUseThenNextOpenGetsNewInstance() throws IOException {
+        final Repository first = cache.open( "project" );
+        cache.invalidate( "project" );
+        final Repository second = cache.open( "project" );
+        assertNotSame( first, second );
+        cache.release( first );
+        cache.release( second );
+        assertEquals( 1, cache.getOpenCount() );
+    }
+
+    @Test
+    public void givenRecentlyUsedWrittenThenWarmedInSameOrder() throws IOException {
+        final RepositoryCache previous = new RepositoryCache( reposRootDir, 2, 60 * 1000L );
+        for ( String projectName : Arrays.asList( "subdir/project1", "project2", "project3" ) ) {
+            new File( reposRootDir, projectName + "/objects" ).mkdirs();
+            new File( reposRootDir, projectName + "/refs" ).mkdirs();
+            previous.release( previous.open( projectName ) );
+        }
+        previous.release( previous.open( "project2" ) );
+        assertEquals( Arrays.asList( "project2", "project3" ), previous.getRecentlyUsed() );
+        final File file = new File( reposRootDir, "hot-repositories" );
+        previous.writeRecentlyUsed( file );
+        previous.clear();
+
+        final RepositoryCache restarted = new RepositoryCache( reposRootDir, 2, 60 * 1000L );
+        assertEquals( 2, restarted.warm( file ) );
+        assertEquals( Arrays.asList( "project2", "project3" ), restarted.getRecentlyUsed() );
+        restarted.clear();
+    }
+
+    @Test
+    public void givenMissingOrOutsideRepositoriesThenNotWarmed() throws IOException {
+        new File( reposRootDir, "project/objects" ).mkdirs();
+        new File( reposRootDir, "project/refs" ).mkdirs();
+        assertEquals( 1, cache.warm( Arrays.asList( "../outside", "gone", "project" ) ) );
+        assertEquals( 0, cache.warm( new File( reposRootDir, "no-such-file" ) ) );
+        assertEquals( Arrays.asList( "project" ), cache.getRecentlyUsed() );
+    }
+}
@@ -0,0 +1,75 @@
+package com.sonatype.sshjgit.core.repository;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Exercises the {@link RepositoryLockManager}.
+ */
+public class RepositoryLockManagerTest {
+    protected static final File REPO1 = new File( "repo1" );
+    protected static final File REPO2 = new File( "repo2" );
+
+    @Test
+    public void givenLockedRepoThenOtherRepoCanBeLocked() throws InterruptedException {
+        final RepositoryLockManager manager = new RepositoryLockManager( 100 );
+        final RepositoryLockManager.RefUpdateLock lock1 = manager.lockRefUpdates( REPO1 );
+        final RepositoryLockManager.RefUpdateLock lock2 = lockFromOtherThread( manager, REPO2 );
+        assertNotNull( lock1 );
+        assertNotNull( lock2 );
+        lock1.release();
+    }
+
+    @Test
+    public void givenLockedRepoThenSameRepoTimesOut() throws InterruptedException {
+        final RepositoryLockManager manager = new RepositoryLockManager( 100 );
+        final RepositoryLockManager.RefUpdateLock lock = manager.lockRefUpdates( REPO1 );
+        assertNull( lockFromOtherThread( manager, REPO1 ) );
+        lock.release();
+
+        final RepositoryLockManager.Contention contention = manager.getContention().get( REPO1.getAbsolutePath() );
+        assertEquals( 1, contention.getAcquisitions() );
+        assertEquals( 1, contention.getTimeouts() );
+        assertTrue( contention.getMaxWaitMillis() >= 100 );
+        assertEquals( 0, manager.getLockedOrWaitingCount() );
+    }
+
+    @Test
+    public void givenReleasedTwiceThenStillUsable() throws InterruptedException {
+        final RepositoryLockManager manager = new RepositoryLockManager( 100 );
+        final RepositoryLockManager.RefUpdateLock lock = manager.lockRefUpdates( REPO1 );
+        lock.release();
+        lock.release();
+        assertNotNull( lockFromOtherThread( manager, REPO1 ) );
+    }
+
+    private RepositoryLockManager.RefUpdateLock lockFromOtherThread( final RepositoryLockManager manager, final File repo )
+            throws InterruptedException {
+        final RepositoryLockManager.RefUpdateLock[] result = new RepositoryLockManager.RefUpdateLock[1];
+        final CountDownLatch done = new CountDownLatch( 1 );
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    result[0] = manager.lockRefUpdates( repo );
+                    if ( result[0] != null ) {
+                        result[0].release();
+                    }
+                } catch( InterruptedException ignored ) {
+                } finally {
+                    done.countDown();
+                }
+            }
+        }.start();
+        assertTrue( done.await( 5, TimeUnit.SECONDS ) );
+        return result[0];
+    }
+}
@@ -0,0 +1,86 @@
+package com.sonatype.sshjgit.core.repository;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Exercises the {@link RepositoryMaintenance}, on directories which look like repositories to it, with
+ * {@code true} instead of {@code git}.
+ */
+public class RepositoryMaintenanceTest {
+    protected File reposRootDir;
+    protected File repo;
+    protected RepositoryMaintenance maintenance;
+
+    @Before
+    public void setUp() throws IOException {
+        reposRootDir = File.createTempFile( "sshjgit-maintenance-", "" );
+        reposRootDir.delete();
+        repo = new File( reposRootDir, "subdir/project1" );
+        FileUtils.forceMkdir( new File( repo, "objects/pack" ) );
+        FileUtils.forceMkdir( new File( repo, "refs" ) );
+        maintenance = new RepositoryMaintenance( reposRootDir );
+        maintenance.setPackLimit( 2 );
+        maintenance.setCpuBudget( 1 );
+        maintenance.setGitExecutable( "true" );
+    }
+
+    @After
+    public void tearDown() {
+        maintenance.shutdown();
+        FileUtils.deleteQuietly( reposRootDir );
+    }
+
+    @Test
+    public void givenFewPacksThenNotQueued() throws IOException {
+        addPacks( 2 );
+        assertFalse( maintenance.check( repo ) );
+        assertEquals( 2, maintenance.getStats().get( repo.getAbsolutePath() ).getPackCount() );
+    }
+
+    @Test
+    public void givenTooManyPacksThenScanFindsAndMaintainsRepo() throws IOException, InterruptedException {
+        addPacks( 3 );
+        maintenance.scan();
+        final RepositoryMaintenance.Stats stats = awaitRuns( 1 );
+        assertEquals( 0, stats.getLastRunExitCode() );
+        assertEquals( 0, maintenance.getQueuedCount() );
+    }
+
+    @Test
+    public void givenReceiveInProgressThenMaintainedAfterItFinishes() throws IOException, InterruptedException {
+        addPacks( 3 );
+        maintenance.start();
+        maintenance.receiveStarted( repo );
+        assertTrue( maintenance.check( repo ) );
+        Thread.sleep( 200 );
+        assertEquals( 0, maintenance.getStats().get( repo.getAbsolutePath() ).getRuns() );
+
+        maintenance.receiveFinished( repo );
+        awaitRuns( 1 );
+    }
+
+    private void addPacks( int count ) throws IOException {
+        for ( int i = 0; i < count; i++ ) {
+            FileUtils.touch( new File( repo, "objects/pack/pack-" + i + ".pack" ) );
+        }
+    }
+
+    private RepositoryMaintenance.Stats awaitRuns( int runs ) throws InterruptedException {
+        final RepositoryMaintenance.Stats stats = maintenance.getStats().get( repo.getAbsolutePath() );
+        for ( int i = 0; i < 100 && stats.getRuns() < runs; i++ ) {
+            Thread.sleep( 50 );
+        }
+        assertEquals( runs, stats.getRuns() );
+        return stats;
+    }
+}
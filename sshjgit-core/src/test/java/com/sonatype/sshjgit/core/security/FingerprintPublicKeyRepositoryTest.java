@@ -0,0 +1,98 @@
+package com.sonatype.sshjgit.core.security;
+
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.sonatype.sshjgit.core.util.SshKeyUtils;
+
+/**
+ * Exercises the fingerprint index of {@link FingerprintPublicKeyRepository}.
+ */
+public class FingerprintPublicKeyRepositoryTest {
+    protected static PublicKey KEY1;
+    protected static PublicKey KEY2;
+    protected FingerprintPublicKeyRepository repository;
+
+    @BeforeClass
+    public static void generateKeys() throws NoSuchAlgorithmException {
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        KEY1 = generator.generateKeyPair().getPublic();
+        KEY2 = generator.generateKeyPair().getPublic();
+    }
+
+    @Before
+    public void setUp() {
+        repository = new FingerprintPublicKeyRepository();
+    }
+
+    @Test
+    public void givenKeyAddedThenFoundByFingerprint() {
+        repository.addPublicKey("hugo", KEY1);
+        repository.addPublicKey("anna", KEY1);
+        Assert.assertTrue(repository.hasPublicKey("hugo", SshKeyUtils.getFingerprint(KEY1)));
+        Assert.assertFalse(repository.hasPublicKey("hugo", SshKeyUtils.getFingerprint(KEY2)));
+        Assert.assertEquals(2, repository.getPrincipals(KEY1).size());
+        Assert.assertEquals(2, repository.getKeyCount());
+    }
+
+    @Test
+    public void givenKeyRemovedThenNotFoundByFingerprint() {
+        repository.addPublicKeys("hugo", Collections.singleton(KEY1));
+        repository.removePublicKey("hugo", KEY1);
+        Assert.assertFalse(repository.hasPublicKey("hugo", SshKeyUtils.getFingerprint(KEY1)));
+        Assert.assertTrue(repository.getPrincipals(KEY1).isEmpty());
+        Assert.assertTrue(repository.hasAccount("hugo"));
+        Assert.assertTrue(repository.getPublicKeys("hugo").isEmpty());
+    }
+
+    @Test
+    public void givenKeyThenFingerprintIsSha256Base64() {
+        final String fingerprint = SshKeyUtils.getFingerprint(KEY1);
+        Assert.assertTrue(fingerprint, fingerprint.matches("SHA256:[A-Za-z0-9+/]{43}"));
+        Assert.assertFalse(fingerprint.equals(SshKeyUtils.getFingerprint(KEY2)));
+    }
+
+    @Test
+    public void givenRejectedKeyThenRememberedUntilExpired() throws InterruptedException {
+        final RejectedKeyCache cache = new RejectedKeyCache(50, 10);
+        cache.reject("hugo", "SHA256:x");
+        Assert.assertTrue(cache.isRejected("hugo", "SHA256:x"));
+        Assert.assertFalse(cache.isRejected("anna", "SHA256:x"));
+        Thread.sleep(100);
+        Assert.assertFalse(cache.isRejected("hugo", "SHA256:x"));
+        Assert.assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void givenMoreRejectionsThanMaxThenOldestForgotten() {
+        final RejectedKeyCache cache = new RejectedKeyCache(60000, 2);
+        cache.reject("a", "SHA256:x");
+        cache.reject("b", "SHA256:x");
+        cache.reject("c", "SHA256:x");
+        Assert.assertEquals(2, cache.size());
+        Assert.assertFalse(cache.isRejected("a", "SHA256:x"));
+        Assert.assertTrue(cache.isRejected("c", "SHA256:x"));
+    }
+
+    @Test
+    public void givenRejectedKeyAddedThenNoLongerRejectedForThatPrincipal() {
+        final RejectedKeyCache cache = new RejectedKeyCache(60000, 10);
+        new ShiroPublickeyAuthenticator(repository).setRejectedKeyCache(cache);
+        final String fingerprint = SshKeyUtils.getFingerprint(KEY1);
+        cache.reject("hugo", fingerprint);
+        cache.reject("anna", fingerprint);
+
+        repository.addPublicKey("hugo", KEY1);
+
+        Assert.assertFalse(cache.isRejected("hugo", fingerprint));
+        Assert.assertTrue(cache.isRejected("anna", fingerprint));
+    }
+}
@@ -0,0 +1,92 @@
+package com.sonatype.sshjgit.core.security;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.shiro.authz.Permission;
+import org.apache.shiro.authz.permission.WildcardPermission;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that {@link PermissionIndex} agrees with {@link WildcardPermission#implies(Permission)}.
+ */
+public class PermissionIndexTest {
+    protected static final List<String> HELD = Arrays.asList(
+            "gitrepo:push:projects",
+            "gitrepo:fetch:users:hugo",
+            "gitrepo:fetch,push:users:anna:*",
+            "gitrepo:*:shared:*:*",
+            "gitrepo:fetch:*:public",
+            "other");
+    protected static final List<String> CHECKED = Arrays.asList(
+            "gitrepo",
+            "gitrepo:push",
+            "gitrepo:push:projects",
+            "gitrepo:push:projects:project1",
+            "gitrepo:fetch:projects:project1",
+            "gitrepo:fetch:users:hugo:repo",
+            "gitrepo:push:users:hugo:repo",
+            "gitrepo:push:users:anna",
+            "gitrepo:push:users:anna:repo",
+            "gitrepo:create:users:anna:repo",
+            "gitrepo:create:shared",
+            "gitrepo:create:shared:x:y",
+            "gitrepo:create:shared:x:y:z",
+            "gitrepo:fetch:users:public",
+            "gitrepo:fetch:users:public:repo",
+            "gitrepo:*:projects",
+            "gitrepo:fetch,push:projects",
+            "gitrepo:fetch,push:users:anna:repo",
+            "GITREPO:PUSH:PROJECTS:X",
+            "other:anything",
+            "unrelated");
+
+    @Test
+    public void givenEachHeldPermissionAloneThenSameAsWildcardPermission() {
+        for (String held : HELD) {
+            assertSameAsLinear(Arrays.asList(held));
+        }
+    }
+
+    @Test
+    public void givenAllHeldPermissionsThenSameAsWildcardPermission() {
+        assertSameAsLinear(HELD);
+    }
+
+    @Test
+    public void givenNoHeldPermissionsThenNothingImplied() {
+        final PermissionIndex index = new PermissionIndex();
+        Assert.assertFalse(index.implies(new WildcardPermission("gitrepo:fetch:projects")));
+    }
+
+    @Test
+    public void givenManyCombinationsThenStillSameAsWildcardPermission() {
+        final StringBuilder many = new StringBuilder("gitrepo:");
+        for (int i = 0; i < 100; i++) {
+            many.append(i == 0 ? "" : ",").append("action").append(i);
+        }
+        many.append(":projects");
+        final PermissionIndex index = new PermissionIndex();
+        index.add(new WildcardPermission(many.toString()));
+        Assert.assertTrue(index.implies(new WildcardPermission("gitrepo:action42:projects:repo")));
+        Assert.assertFalse(index.implies(new WildcardPermission("gitrepo:action100:projects:repo")));
+    }
+
+    private void assertSameAsLinear(List<String> held) {
+        final List<Permission> permissions = new ArrayList<Permission>();
+        for (String permission : held) {
+            permissions.add(new WildcardPermission(permission));
+        }
+        final PermissionIndex index = new PermissionIndex(permissions);
+        for (String checked : CHECKED) {
+            final Permission permission = new WildcardPermission(checked);
+            boolean expected = false;
+            for (Permission p : permissions) {
+                expected |= p.implies(permission);
+            }
+            Assert.assertEquals(held + " implies " + checked, expected, index.implies(permission));
+        }
+    }
+}
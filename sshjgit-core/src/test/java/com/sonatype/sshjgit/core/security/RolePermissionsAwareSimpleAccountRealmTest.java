@@ -8,6 +8,8 @@ import java.util.Set;
 import org.apache.shiro.authc.SimpleAccount;
 import org.apache.shiro.authz.AuthorizationInfo;
 import org.apache.shiro.authz.Permission;
+import org.apache.shiro.authz.SimpleRole;
+import org.apache.shiro.authz.permission.WildcardPermission;
 import org.apache.shiro.subject.SimplePrincipalCollection;
 import org.junit.Assert;
 import org.junit.Before;
@@ -51,6 +53,56 @@ public class RolePermissionsAwareSimpleAccountRealmTest {
         Assert.assertArrayEquals(stringPermissions.toArray(), info.getStringPermissions().toArray());
     }
 
+    @Test
+    public void givenRoleWithPermissionThenMemberIsPermitted() {
+        realm.add(new SimpleRole("developer", Collections.<Permission>singleton(new WildcardPermission("gitrepo:push:projects"))));
+        realm.add(new SimpleAccount(USERNAME, PASSWORD, REALM_NAME, Collections.singleton("developer"), NO_PERMISSIONS));
+        Assert.assertTrue(realm.isPermitted(PRINCIPALS, "gitrepo:push:projects:project1"));
+        Assert.assertFalse(realm.isPermitted(PRINCIPALS, "gitrepo:non-fast-forward:projects:project1"));
+    }
+
+    @Test
+    public void givenStringPermissionThenResolvedAndPermitted() {
+        final SimpleAccount account = new SimpleAccount(USERNAME, PASSWORD, REALM_NAME);
+        account.addStringPermissions(createStringPermissions(USERNAME));
+        realm.add(account);
+        Assert.assertTrue(realm.isPermitted(PRINCIPALS, "gitrepo:fetch:users:" + USERNAME + ":myrepo"));
+        Assert.assertFalse(realm.isPermitted(PRINCIPALS, "gitrepo:fetch:users:someoneelse:myrepo"));
+    }
+
+    @Test
+    public void givenAccountsThenWarmedPermissionsSameAsCompiledOnDemand() {
+        realm.add(new SimpleRole("developer", Collections.<Permission>singleton(new WildcardPermission("gitrepo:push:projects"))));
+        realm.add(new SimpleAccount(USERNAME, PASSWORD, REALM_NAME, Collections.singleton("developer"), NO_PERMISSIONS));
+        realm.add(new SimpleAccount("other", PASSWORD, REALM_NAME, NO_STRINGS, NO_PERMISSIONS));
+        Assert.assertEquals(2, realm.warmPermissionCaches());
+        Assert.assertTrue(realm.isPermitted(PRINCIPALS, "gitrepo:push:projects:project1"));
+        Assert.assertFalse(realm.isPermitted(new SimplePrincipalCollection("other", REALM_NAME), "gitrepo:push:projects:project1"));
+    }
+
+    @Test
+    public void givenModifiedRoleThenOldDecisionUntilCachesCleared() {
+        final SimpleRole role = new SimpleRole("developer", new HashSet<Permission>());
+        realm.add(role);
+        realm.add(new SimpleAccount(USERNAME, PASSWORD, REALM_NAME, Collections.singleton("developer"), NO_PERMISSIONS));
+        Assert.assertFalse(realm.isPermitted(PRINCIPALS, "gitrepo:push:projects:project1"));
+
+        role.add(new WildcardPermission("gitrepo:push:projects"));
+        Assert.assertFalse(realm.isPermitted(PRINCIPALS, "gitrepo:push:projects:project1"));
+
+        realm.clearPermissionCaches();
+        Assert.assertTrue(realm.isPermitted(PRINCIPALS, "gitrepo:push:projects:project1"));
+    }
+
+    @Test
+    public void givenAddedRoleThenCachesAreCleared() {
+        realm.add(new SimpleAccount(USERNAME, PASSWORD, REALM_NAME, Collections.singleton("developer"), NO_PERMISSIONS));
+        Assert.assertFalse(realm.isPermitted(PRINCIPALS, "gitrepo:push:projects:project1"));
+
+        realm.add(new SimpleRole("developer", Collections.<Permission>singleton(new WildcardPermission("gitrepo:push:projects"))));
+        Assert.assertTrue(realm.isPermitted(PRINCIPALS, "gitrepo:push:projects:project1"));
+    }
+
     protected Collection<String> createStringPermissions(String username) {
         final HashSet<String> strings = new HashSet<String>();
         strings.add("gitrepo:push:project");
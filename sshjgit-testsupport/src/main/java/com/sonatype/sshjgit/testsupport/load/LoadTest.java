@@ -0,0 +1,277 @@
+package com.sonatype.sshjgit.testsupport.load;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.transport.SshSessionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sonatype.sshjgit.core.gitcommand.ThreadPoolCommandExecutor;
+import com.sonatype.sshjgit.testsupport.TestUtils;
+
+/**
+ * <p>Starts a server on localhost with synthetic repositories, and lets a number of concurrent clients clone, fetch
+ * from and push to them over ssh, in a given mix, with the test keys of this module. Then reports latency
+ * percentiles per operation, throughput, and the process's peak threads and heap.</p>
+ *
+ * <p>Run from the command line with {@code name=value} arguments for the setters, such as:</p>
+ * <pre>
+ *     java com.sonatype.sshjgit.testsupport.load.LoadTest clients=200 operations=5000 mix=clone:1,fetch:6,push:3
+ * </pre>
+ */
+public class LoadTest {
+    private static final Logger log = LoggerFactory.getLogger(LoadTest.class);
+
+    private static final String[] KEYS = { "/id_rsa", "/id_rsa2", "/id_rsa3" };
+
+    private int clients = 50;
+    private int operations = 1000;
+    private final Map<String, Integer> mix = new LinkedHashMap<String, Integer>();
+    private int repositories = 4;
+    private int commits = 20;
+    private int filesPerCommit = 10;
+    private int fileSize = 4096;
+    private int users = 10;
+    private int serverUploadThreads = ThreadPoolCommandExecutor.DEFAULT_UPLOAD_THREADS;
+    private int serverReceiveThreads = ThreadPoolCommandExecutor.DEFAULT_RECEIVE_THREADS;
+
+    public LoadTest() {
+        setMix("clone:1,fetch:6,push:3");
+    }
+
+    /** @param clients how many clients work concurrently. */
+    public void setClients(int clients) {
+        this.clients = clients;
+    }
+
+    /** @param operations how many operations all clients do together, before the test ends. */
+    public void setOperations(int operations) {
+        this.operations = operations;
+    }
+
+    /**
+     * @param mix relative weights of the operations, such as {@code clone:1,fetch:6,push:3}. Each operation of
+     * each client is picked at random with these weights.
+     */
+    public void setMix(String mix) {
+        this.mix.clear();
+        for (String part : mix.split(",")) {
+            final String[] operationAndWeight = part.trim().split(":");
+            final String operation = operationAndWeight[0];
+            if (!operation.equals("clone") && !operation.equals("fetch") && !operation.equals("push")) {
+                throw new IllegalArgumentException("unknown operation " + operation);
+            }
+            this.mix.put(operation, Integer.parseInt(operationAndWeight[1]));
+        }
+    }
+
+    /** @param repositories how many repositories the clients are spread over. */
+    public void setRepositories(int repositories) {
+        this.repositories = repositories;
+    }
+
+    /** @param commits how many commits each repository starts with. */
+    public void setCommits(int commits) {
+        this.commits = commits;
+    }
+
+    /** @param filesPerCommit how many files each commit has. Every commit rewrites all of them. */
+    public void setFilesPerCommit(int filesPerCommit) {
+        this.filesPerCommit = filesPerCommit;
+    }
+
+    /** @param fileSize how many bytes each file has. */
+    public void setFileSize(int fileSize) {
+        this.fileSize = fileSize;
+    }
+
+    /** @param users how many users the clients log in as, in turn. */
+    public void setUsers(int users) {
+        this.users = users;
+    }
+
+    /** @param serverUploadThreads how many fetches the server runs at once. */
+    public void setServerUploadThreads(int serverUploadThreads) {
+        this.serverUploadThreads = serverUploadThreads;
+    }
+
+    /** @param serverReceiveThreads how many pushes the server runs at once. */
+    public void setServerReceiveThreads(int serverReceiveThreads) {
+        this.serverReceiveThreads = serverReceiveThreads;
+    }
+
+    public LoadTestReport run() throws Exception {
+        final File reposRootDirectory = TestUtils.createNewTempDirectory();
+        final SyntheticRepositories content = new SyntheticRepositories(filesPerCommit, fileSize, 42);
+        for (int i = 0; i < repositories; i++) {
+            content.create(new File(reposRootDirectory, projectName(i)), commits).close();
+        }
+        final List<String> usernames = new ArrayList<String>();
+        for (int i = 0; i < users; i++) {
+            usernames.add("loadtest" + i);
+        }
+
+        final LoadTestServer server = new LoadTestServer(reposRootDirectory, new ThreadPoolCommandExecutor(
+                serverUploadThreads, serverReceiveThreads, Math.max(clients, ThreadPoolCommandExecutor.DEFAULT_MAX_QUEUED), false));
+        final SshSessionFactory previousSessionFactory = SshSessionFactory.getInstance();
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        final AtomicLong peakHeap = new AtomicLong();
+        final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        final LoadTestReport report = new LoadTestReport();
+        try {
+            server.start(usernames, publicKeys());
+            SshSessionFactory.setInstance(new TestKeySessionFactory(KEYS));
+            threads.resetPeakThreadCount();
+            sampler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    final long used = memory.getHeapMemoryUsage().getUsed();
+                    long peak;
+                    while (used > (peak = peakHeap.get()) && !peakHeap.compareAndSet(peak, used)) {
+                        // retry
+                    }
+                }
+            }, 0, 100, TimeUnit.MILLISECONDS);
+
+            final long start = System.nanoTime();
+            runClients(server.getPort(), usernames, content, report);
+            report.finish(System.nanoTime() - start, threads.getPeakThreadCount(), peakHeap.get());
+        } finally {
+            sampler.shutdownNow();
+            SshSessionFactory.setInstance(previousSessionFactory);
+            server.stop();
+            FileUtils.deleteQuietly(reposRootDirectory);
+        }
+        return report;
+    }
+
+    private void runClients(final int port, final List<String> usernames, final SyntheticRepositories content,
+                            final LoadTestReport report) throws InterruptedException {
+        final AtomicInteger remaining = new AtomicInteger(operations);
+        final CountDownLatch done = new CountDownLatch(clients);
+        for (int c = 0; c < clients; c++) {
+            final int clientNumber = c;
+            final Thread thread = new Thread("loadtest-client-" + c) {
+                @Override
+                public void run() {
+                    LoadTestClient client = null;
+                    try {
+                        client = new LoadTestClient(usernames.get(clientNumber % usernames.size()), port,
+                                projectName(clientNumber % repositories), "client" + clientNumber, content);
+                        final Random random = new Random(clientNumber);
+                        while (remaining.getAndDecrement() > 0) {
+                            final String operation = client.hasClone() ? pickOperation(random) : "clone";
+                            final long operationStart = System.nanoTime();
+                            try {
+                                perform(client, operation);
+                                report.record(operation, System.nanoTime() - operationStart);
+                            } catch (Exception e) {
+                                report.recordFailure(operation);
+                                log.warn(getName() + ": " + operation + " failed", e);
+                            }
+                        }
+                    } catch (Exception e) {
+                        report.recordFailure("setup");
+                        log.warn(getName() + ": could not set up the client", e);
+                    } finally {
+                        if (client != null) {
+                            client.close();
+                        }
+                        done.countDown();
+                    }
+                }
+            };
+            thread.start();
+        }
+        done.await();
+    }
+
+    private static void perform(LoadTestClient client, String operation) throws Exception {
+        if (operation.equals("clone")) {
+            client.cloneRepository();
+        } else if (operation.equals("fetch")) {
+            client.fetch();
+        } else {
+            client.push();
+        }
+    }
+
+    private String pickOperation(Random random) {
+        int total = 0;
+        for (int weight : mix.values()) {
+            total += weight;
+        }
+        int pick = random.nextInt(total);
+        for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+            pick -= entry.getValue();
+            if (pick < 0) {
+                return entry.getKey();
+            }
+        }
+        throw new IllegalStateException("weights changed while picking");
+    }
+
+    private static String projectName(int repository) {
+        return "projects/load" + repository;
+    }
+
+    private static String[] publicKeys() {
+        final String[] publicKeys = new String[KEYS.length];
+        for (int i = 0; i < KEYS.length; i++) {
+            publicKeys[i] = KEYS[i] + ".pub";
+        }
+        return publicKeys;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final LoadTest loadTest = new LoadTest();
+        for (String arg : args) {
+            final int equals = arg.indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("expected name=value, got " + arg);
+            }
+            final String name = arg.substring(0, equals);
+            final String value = arg.substring(equals + 1);
+            if (name.equals("mix")) {
+                loadTest.setMix(value);
+            } else if (name.equals("clients")) {
+                loadTest.setClients(Integer.parseInt(value));
+            } else if (name.equals("operations")) {
+                loadTest.setOperations(Integer.parseInt(value));
+            } else if (name.equals("repositories")) {
+                loadTest.setRepositories(Integer.parseInt(value));
+            } else if (name.equals("commits")) {
+                loadTest.setCommits(Integer.parseInt(value));
+            } else if (name.equals("filesPerCommit")) {
+                loadTest.setFilesPerCommit(Integer.parseInt(value));
+            } else if (name.equals("fileSize")) {
+                loadTest.setFileSize(Integer.parseInt(value));
+            } else if (name.equals("users")) {
+                loadTest.setUsers(Integer.parseInt(value));
+            } else if (name.equals("serverUploadThreads")) {
+                loadTest.setServerUploadThreads(Integer.parseInt(value));
+            } else if (name.equals("serverReceiveThreads")) {
+                loadTest.setServerReceiveThreads(Integer.parseInt(value));
+            } else {
+                throw new IllegalArgumentException("unknown setting " + name);
+            }
+        }
+        System.out.print(loadTest.run());
+    }
+}
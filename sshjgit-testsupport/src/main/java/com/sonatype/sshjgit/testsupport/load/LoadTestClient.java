@@ -0,0 +1,112 @@
+package com.sonatype.sshjgit.testsupport.load;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.Collections;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.URIish;
+
+import com.sonatype.sshjgit.testsupport.TestUtils;
+
+/**
+ * <p>One simulated user of a {@link LoadTest}, which clones, fetches from and pushes to one repository over ssh,
+ * through JGit's transport. Not thread safe; each client thread has its own.</p>
+ *
+ * <p>Pushes go to a branch of this client's own, so that clients don't reject each other's pushes.</p>
+ */
+class LoadTestClient {
+    private static final RefSpec FETCH_ALL = new RefSpec("+refs/heads/*:refs/remotes/origin/*");
+
+    private final URIish uri;
+    private final String branch;
+    private final SyntheticRepositories content;
+    private File localDirectory;
+    private Repository local;
+    private int pushes;
+
+    LoadTestClient(String username, int port, String projectName, String clientName, SyntheticRepositories content)
+            throws URISyntaxException {
+        this.uri = new URIish("ssh://" + username + "@localhost:" + port + "/" + projectName + ".git");
+        this.branch = "refs/heads/load/" + clientName;
+        this.content = content;
+    }
+
+    /**
+     * Clones into a new directory, and from then on uses that clone.
+     */
+    void cloneRepository() throws IOException {
+        close();
+        localDirectory = TestUtils.createNewTempDirectory();
+        local = new Repository(new File(localDirectory, ".git"));
+        local.create();
+        fetch();
+    }
+
+    void fetch() throws IOException {
+        final Transport transport = Transport.open(local, uri);
+        try {
+            transport.fetch(NullProgressMonitor.INSTANCE, Collections.singleton(FETCH_ALL));
+        } finally {
+            transport.close();
+        }
+    }
+
+    /**
+     * Commits on top of the fetched {@code master}, and force pushes that to this client's branch.
+     * @return the commit pushed.
+     */
+    ObjectId push() throws IOException {
+        final ObjectId parent = local.resolve("refs/remotes/origin/master");
+        final ObjectId commit = content.commit(local, parent, "push " + ++pushes);
+        final RemoteRefUpdate update = new RemoteRefUpdate(local, commit.name(), branch, true, null, null);
+        final Transport transport = Transport.open(local, uri);
+        try {
+            final PushResult result = transport.push(NullProgressMonitor.INSTANCE, Collections.singleton(update));
+            final RemoteRefUpdate.Status status = result.getRemoteUpdate(branch).getStatus();
+            if (status != RemoteRefUpdate.Status.OK && status != RemoteRefUpdate.Status.UP_TO_DATE) {
+                throw new IOException("push to " + branch + " failed: " + status);
+            }
+        } finally {
+            transport.close();
+        }
+        return commit;
+    }
+
+    /**
+     * @return the name of the branch this client pushes to, such as {@code "refs/heads/load/client1"}.
+     */
+    String getBranch() {
+        return branch;
+    }
+
+    /**
+     * @param branch a branch of the server, such as {@code "refs/heads/master"}.
+     * @return where the branch was at the last clone or fetch, or {@code null} if it was not there.
+     */
+    ObjectId getFetched(String branch) throws IOException {
+        return local.resolve("refs/remotes/origin/" + branch.substring(Constants.R_HEADS.length()));
+    }
+
+    boolean hasClone() {
+        return local != null;
+    }
+
+    void close() {
+        if (local != null) {
+            local.close();
+            local = null;
+        }
+        FileUtils.deleteQuietly(localDirectory);
+        localDirectory = null;
+    }
+}
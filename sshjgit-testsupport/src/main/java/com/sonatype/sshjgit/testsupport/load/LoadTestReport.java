@@ -0,0 +1,132 @@
+package com.sonatype.sshjgit.testsupport.load;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latencies of each kind of operation of a {@link LoadTest}, plus throughput and the server process's threads and
+ * heap while it ran.
+ */
+public class LoadTestReport {
+    /** latencies in nanoseconds, keyed by operation. guarded by itself. */
+    private final Map<String, List<Long>> latencies = new TreeMap<String, List<Long>>();
+    private final Map<String, Integer> failures = new TreeMap<String, Integer>();
+    private long elapsedNanos;
+    private int peakThreads;
+    private long peakHeapBytes;
+
+    void record(String operation, long nanos) {
+        synchronized (latencies) {
+            List<Long> list = latencies.get(operation);
+            if (list == null) {
+                list = new ArrayList<Long>();
+                latencies.put(operation, list);
+            }
+            list.add(nanos);
+        }
+    }
+
+    void recordFailure(String operation) {
+        synchronized (latencies) {
+            final Integer count = failures.get(operation);
+            failures.put(operation, count == null ? 1 : count + 1);
+        }
+    }
+
+    void finish(long elapsedNanos, int peakThreads, long peakHeapBytes) {
+        this.elapsedNanos = elapsedNanos;
+        this.peakThreads = peakThreads;
+        this.peakHeapBytes = peakHeapBytes;
+    }
+
+    /**
+     * @param operation such as {@code "clone"}, or {@code null} for all operations.
+     * @param percentile such as {@code 50} or {@code 99}.
+     * @return the latency in milliseconds, or {@code -1} if there were no such operations.
+     */
+    public double getLatencyMillis(String operation, double percentile) {
+        final List<Long> sorted = new ArrayList<Long>();
+        synchronized (latencies) {
+            for (Map.Entry<String, List<Long>> entry : latencies.entrySet()) {
+                if (operation == null || operation.equals(entry.getKey())) {
+                    sorted.addAll(entry.getValue());
+                }
+            }
+        }
+        if (sorted.isEmpty()) {
+            return -1;
+        }
+        Collections.sort(sorted);
+        final int index = (int) Math.ceil(percentile / 100 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index)) / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @return completed operations per second, failed ones not included.
+     */
+    public double getThroughput() {
+        return getCount(null) / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1));
+    }
+
+    public int getCount(String operation) {
+        synchronized (latencies) {
+            int count = 0;
+            for (Map.Entry<String, List<Long>> entry : latencies.entrySet()) {
+                if (operation == null || operation.equals(entry.getKey())) {
+                    count += entry.getValue().size();
+                }
+            }
+            return count;
+        }
+    }
+
+    public int getFailureCount() {
+        synchronized (latencies) {
+            int count = 0;
+            for (Integer failed : failures.values()) {
+                count += failed;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * @return the most threads the process had. Clients run in the same process, so their threads are included.
+     */
+    public int getPeakThreads() {
+        return peakThreads;
+    }
+
+    /**
+     * @return the most heap the process used, as sampled while running. Includes the clients' heap.
+     */
+    public long getPeakHeapBytes() {
+        return peakHeapBytes;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder s = new StringBuilder();
+        synchronized (latencies) {
+            for (String operation : latencies.keySet()) {
+                appendLine(s, operation);
+            }
+            for (Map.Entry<String, Integer> entry : failures.entrySet()) {
+                s.append(String.format("%-8s %6d failed%n", entry.getKey(), entry.getValue()));
+            }
+        }
+        appendLine(s, null);
+        s.append(String.format("throughput %.1f ops/s, peak threads %d, peak heap %d MB%n",
+                getThroughput(), peakThreads, peakHeapBytes / (1024 * 1024)));
+        return s.toString();
+    }
+
+    private void appendLine(StringBuilder s, String operation) {
+        s.append(String.format("%-8s %6d ops, p50 %8.1f ms, p99 %8.1f ms%n", operation == null ? "all" : operation,
+                getCount(operation), getLatencyMillis(operation, 50), getLatencyMillis(operation, 99)));
+    }
+}
@@ -0,0 +1,110 @@
+package com.sonatype.sshjgit.testsupport.load;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.apache.shiro.authc.SimpleAccount;
+import org.apache.shiro.authz.Permission;
+import org.apache.shiro.authz.permission.WildcardPermission;
+import org.apache.shiro.mgt.DefaultSecurityManager;
+import org.apache.shiro.realm.Realm;
+import org.apache.sshd.SshServer;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.sonatype.security.realms.publickey.PublicKeyAuthenticatingRealm;
+
+import com.sonatype.sshjgit.core.ServerFactory;
+import com.sonatype.sshjgit.core.gitcommand.ThreadPoolCommandExecutor;
+import com.sonatype.sshjgit.core.replica.ReadReplica;
+import com.sonatype.sshjgit.core.security.FingerprintPublicKeyRepository;
+import com.sonatype.sshjgit.core.security.RolePermissionsAwareSimpleAccountRealm;
+import com.sonatype.sshjgit.testsupport.TestUtils;
+
+/**
+ * <p>A server built by {@link ServerFactory#createDefaultServer}, on a free port on localhost, which lets each of
+ * the given users log in with any of the test keys of this module, and do anything with any repository.</p>
+ */
+public class LoadTestServer {
+    private static final String REALM_NAME = "loadTestRealm";
+
+    private final File reposRootDirectory;
+    private final ThreadPoolCommandExecutor commandExecutor;
+    private final int port;
+    private ReadReplica readReplica;
+    private SshServer server;
+
+    public LoadTestServer(File reposRootDirectory, ThreadPoolCommandExecutor commandExecutor) throws IOException {
+        this.reposRootDirectory = reposRootDirectory;
+        this.commandExecutor = commandExecutor;
+        this.port = findFreePort();
+    }
+
+    /**
+     * Makes this server a read replica, once started. The replica's mirrors should be this server's repositories
+     * root directory; it is started and shut down with the server.
+     * @param readReplica the replica, or {@code null} for a server of its own repositories.
+     */
+    public void setReadReplica(ReadReplica readReplica) {
+        this.readReplica = readReplica;
+    }
+
+    /**
+     * @param usernames users which may log in.
+     * @param publicKeyResources classpath resources of the public keys which each user may log in with.
+     */
+    public void start(Iterable<String> usernames, String... publicKeyResources)
+            throws IOException, NoSuchAlgorithmException, InvalidKeySpecException, NoSuchProviderException {
+        final RolePermissionsAwareSimpleAccountRealm accountRealm = new RolePermissionsAwareSimpleAccountRealm(REALM_NAME);
+        accountRealm.init();
+        final FingerprintPublicKeyRepository keys = new FingerprintPublicKeyRepository();
+        for (String username : usernames) {
+            accountRealm.add(new SimpleAccount(username, "not used", REALM_NAME, Collections.<String>emptySet(),
+                    new HashSet<Permission>(Arrays.<Permission>asList(new WildcardPermission("gitrepo:*")))));
+            for (String resource : publicKeyResources) {
+                keys.addPublicKey(username, TestUtils.loadPublicKey(resource));
+            }
+        }
+        final DefaultSecurityManager securityManager = new DefaultSecurityManager();
+        securityManager.setRealms(Arrays.<Realm>asList(accountRealm, new PublicKeyAuthenticatingRealm(keys)));
+
+        final ServerFactory factory = new ServerFactory();
+        factory.setCommandExecutor(commandExecutor);
+        factory.setPublicKeyRepository(keys);
+        factory.setReadReplica(readReplica);
+        server = factory.createDefaultServer(port, reposRootDirectory, securityManager, new SimpleGeneratorHostKeyProvider(null));
+        server.start();
+        if (readReplica != null) {
+            readReplica.start();
+        }
+    }
+
+    public void stop() throws InterruptedException {
+        if (readReplica != null) {
+            readReplica.shutdown();
+        }
+        if (server != null) {
+            server.stop();
+            server = null;
+        }
+        commandExecutor.shutdown();
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    private static int findFreePort() throws IOException {
+        final ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+}
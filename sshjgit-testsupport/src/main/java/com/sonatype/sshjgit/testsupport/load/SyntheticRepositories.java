@@ -0,0 +1,89 @@
+package com.sonatype.sshjgit.testsupport.load;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.eclipse.jgit.lib.Commit;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectWriter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.Tree;
+
+/**
+ * Creates repositories and commits filled with generated content, of a given size.
+ */
+public class SyntheticRepositories {
+    private static final PersonIdent IDENT = new PersonIdent("sshjgit load test", "loadtest@localhost");
+    private static final byte[] ALPHABET = "abcdefghijklmnopqrstuvwxyz0123456789 \n".getBytes();
+
+    private final int  filesPerCommit;
+    private final int  fileSize;
+    private final Random random;
+
+    /**
+     * @param filesPerCommit how many files each commit has. Every commit rewrites all of them.
+     * @param fileSize how many bytes each file has.
+     * @param seed for the generated content, so that runs with the same settings create the same repositories.
+     */
+    public SyntheticRepositories(int filesPerCommit, int fileSize, long seed) {
+        this.filesPerCommit = filesPerCommit;
+        this.fileSize = fileSize;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Creates a repository in {@code directory}, with {@code commits} commits on {@code master}.
+     * @return the created repository, which the caller must close.
+     */
+    public Repository create(File directory, int commits) throws IOException {
+        final Repository repository = new Repository(directory);
+        repository.create();
+        ObjectId head = null;
+        for (int i = 0; i < commits; i++) {
+            head = commit(repository, head, "commit " + i);
+        }
+        if (head != null) {
+            updateRef(repository, "refs/heads/master", head);
+        }
+        return repository;
+    }
+
+    /**
+     * Writes a commit with newly generated content for all files, without updating any ref.
+     * @param parent the parent commit, or {@code null} for a root commit.
+     * @return the commit's id.
+     */
+    public ObjectId commit(Repository repository, ObjectId parent, String message) throws IOException {
+        final ObjectWriter writer = new ObjectWriter(repository);
+        final Tree tree = new Tree(repository);
+        for (int f = 0; f < filesPerCommit; f++) {
+            tree.addFile("file" + f + ".txt").setId(writer.writeBlob(content()));
+        }
+        final Commit commit = new Commit(repository);
+        commit.setTreeId(writer.writeTree(tree));
+        commit.setParentIds(parent == null ? new ObjectId[0] : new ObjectId[]{ parent });
+        commit.setAuthor(IDENT);
+        commit.setCommitter(IDENT);
+        commit.setMessage(message);
+        return writer.writeCommit(commit);
+    }
+
+    public static void updateRef(Repository repository, String ref, ObjectId id) throws IOException {
+        final RefUpdate update = repository.updateRef(ref);
+        update.setNewObjectId(id);
+        update.forceUpdate();
+    }
+
+    private byte[] content() {
+        final byte[] content = new byte[fileSize];
+        synchronized (random) {
+            for (int i = 0; i < content.length; i++) {
+                content[i] = ALPHABET[random.nextInt(ALPHABET.length)];
+            }
+        }
+        return content;
+    }
+}
@@ -0,0 +1,56 @@
+package com.sonatype.sshjgit.testsupport.load;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jgit.transport.OpenSshConfig;
+import org.eclipse.jgit.transport.SshConfigSessionFactory;
+import org.eclipse.jgit.util.FS;
+
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+/**
+ * <p>Makes JGit's ssh transport log in with the test keys of this module, instead of the user's own keys and
+ * {@code known_hosts}. The keys are offered in the order given, so the server should accept the first one.</p>
+ *
+ * <p>Install it with {@code SshSessionFactory.setInstance}. Host keys are not checked, so it must never be used
+ * against anything but a local test server.</p>
+ */
+public class TestKeySessionFactory extends SshConfigSessionFactory {
+    private final JSch jsch = new JSch();
+
+    /**
+     * @param privateKeyResources classpath resources of private keys, such as {@code "/id_rsa"}. Each public key
+     * must be next to its private key, with {@code .pub} appended.
+     */
+    public TestKeySessionFactory(String... privateKeyResources) throws IOException, JSchException {
+        for (String resource : privateKeyResources) {
+            jsch.addIdentity(resource, readResource(resource), readResource(resource + ".pub"), null);
+        }
+    }
+
+    @Override
+    protected void configure(OpenSshConfig.Host host, Session session) {
+        session.setConfig("StrictHostKeyChecking", "no");
+    }
+
+    @Override
+    protected JSch getJSch(OpenSshConfig.Host host, FS fs) throws JSchException {
+        return jsch;
+    }
+
+    private static byte[] readResource(String resource) throws IOException {
+        final InputStream in = TestKeySessionFactory.class.getResourceAsStream(resource);
+        if (in == null) {
+            throw new IOException("missing resource " + resource);
+        }
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.sonatype.sshjgit.testsupport.load;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Runs a {@link LoadTest} small enough for every build, against its in-process server.
+ */
+public class LoadTestSmokeTest {
+    @Test
+    public void givenFewClientsThenEveryOperationCompletes() throws Exception {
+        final LoadTest loadTest = new LoadTest();
+        loadTest.setClients(2);
+        loadTest.setOperations(6);
+        loadTest.setRepositories(1);
+        loadTest.setCommits(2);
+        loadTest.setFilesPerCommit(2);
+        loadTest.setFileSize(256);
+        loadTest.setUsers(2);
+
+        final LoadTestReport report = loadTest.run();
+
+        assertEquals(report.toString(), 0, report.getFailureCount());
+        assertEquals(report.toString(), 6, report.getCount(null));
+        // each client clones before it fetches or pushes
+        assertTrue(report.toString(), report.getCount("clone") >= 1);
+    }
+}
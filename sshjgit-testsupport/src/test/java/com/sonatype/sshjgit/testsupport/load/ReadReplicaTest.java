@@ -0,0 +1,112 @@
+package com.sonatype.sshjgit.testsupport.load;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.SshSessionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sonatype.sshjgit.core.gitcommand.ThreadPoolCommandExecutor;
+import com.sonatype.sshjgit.core.replica.ReadReplica;
+import com.sonatype.sshjgit.core.repository.RepositoryCache;
+import com.sonatype.sshjgit.testsupport.TestUtils;
+
+/**
+ * Runs a primary and a read replica of it as two servers on localhost, and pushes and fetches through the replica
+ * over ssh, as a git client would.
+ */
+public class ReadReplicaTest {
+    private static final String PROJECT = "projects/replicated";
+    private static final long TIMEOUT_MILLIS = 30000;
+
+    protected File primaryDirectory;
+    protected File mirrorsDirectory;
+    protected SyntheticRepositories content;
+    protected LoadTestServer primary;
+    protected LoadTestServer replicaServer;
+    protected ReadReplica replica;
+    protected SshSessionFactory previousSessionFactory;
+    protected LoadTestClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        primaryDirectory = TestUtils.createNewTempDirectory();
+        mirrorsDirectory = TestUtils.createNewTempDirectory();
+        content = new SyntheticRepositories(2, 256, 42);
+        content.create(new File(primaryDirectory, PROJECT), 2).close();
+
+        previousSessionFactory = SshSessionFactory.getInstance();
+        SshSessionFactory.setInstance(new TestKeySessionFactory("/id_rsa"));
+        primary = new LoadTestServer(primaryDirectory, new ThreadPoolCommandExecutor());
+        primary.start(Arrays.asList("developer", "replicator"), "/id_rsa.pub");
+
+        replica = new ReadReplica(new RepositoryCache(mirrorsDirectory),
+                "ssh://replicator@localhost:" + primary.getPort() + "/");
+        replicaServer = new LoadTestServer(mirrorsDirectory, new ThreadPoolCommandExecutor());
+        replicaServer.setReadReplica(replica);
+        replicaServer.start(Collections.singleton("developer"), "/id_rsa.pub");
+        replica.repositoryChanged(PROJECT, System.currentTimeMillis());
+        awaitUpdates(1);
+
+        client = new LoadTestClient("developer", replicaServer.getPort(), PROJECT, "through-replica", content);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (client != null) {
+            client.close();
+        }
+        if (replicaServer != null) {
+            replicaServer.stop();
+        }
+        if (primary != null) {
+            primary.stop();
+        }
+        SshSessionFactory.setInstance(previousSessionFactory);
+        FileUtils.deleteQuietly(primaryDirectory);
+        FileUtils.deleteQuietly(mirrorsDirectory);
+    }
+
+    @Test
+    public void givenPushToReplicaThenForwardedToPrimaryAndFetchedBack() throws Exception {
+        client.cloneRepository();
+        assertEquals(resolveOnPrimary("refs/heads/master"), client.getFetched("refs/heads/master"));
+        final long updates = replica.getUpdateCount();
+
+        final ObjectId pushed = client.push();
+
+        assertEquals(1, replica.getForwardedPushCount());
+        assertEquals(pushed, resolveOnPrimary(client.getBranch()));
+        // the replica fetches the mirror right after forwarding, and then serves the push
+        awaitUpdates(updates + 1);
+        client.fetch();
+        assertEquals(pushed, client.getFetched(client.getBranch()));
+    }
+
+    private ObjectId resolveOnPrimary(String ref) throws Exception {
+        final Repository repository = new Repository(new File(primaryDirectory, PROJECT));
+        try {
+            return repository.resolve(ref);
+        } finally {
+            repository.close();
+        }
+    }
+
+    private void awaitUpdates(long count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (replica.getUpdateCount() < count) {
+            assertEquals("the replica could not fetch from the primary", 0, replica.getFailureCount());
+            assertTrue("the replica did not fetch in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+    }
+}
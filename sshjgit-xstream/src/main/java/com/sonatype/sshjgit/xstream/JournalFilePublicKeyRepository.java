@@ -0,0 +1,319 @@
+package com.sonatype.sshjgit.xstream;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.security.PublicKey;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.mina.util.Base64;
+import org.apache.sshd.common.util.Buffer;
+
+import com.sonatype.sshjgit.core.security.FingerprintPublicKeyRepository;
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.io.xml.CompactWriter;
+
+/**
+ * <p>Stores keys in a snapshot file plus an append-only journal next to it, so that adding or removing a key only
+ * appends a line to the journal, instead of rewriting all keys.</p>
+ *
+ * <p>The snapshot has the same format as the file of {@link XStreamFilePublicKeyRepository}, so such a file can be
+ * used as the snapshot. The journal is the snapshot's file name with {@code .journal} appended. Each of its lines is
+ * {@code +} or {@code -}, the principal as XStream XML, and the key in ssh wire format, the latter two base64
+ * encoded.</p>
+ *
+ * <p>Once the journal has more lines than there are keys (and at least {@code compactAfterRecords}), all keys are
+ * written to a new snapshot, which replaces the old one by renaming, and the journal is emptied. Replaying a journal
+ * on top of a snapshot which already contains its changes leaves the keys the same, so a crash between the two steps
+ * loses nothing. A line which was only partly written when the process died is dropped on loading.</p>
+ */
+public class JournalFilePublicKeyRepository extends FingerprintPublicKeyRepository {
+    public static final int DEFAULT_COMPACT_AFTER_RECORDS = 10000;
+
+    private static final String ENCODING = "UTF-8";
+
+    /** configured once, and then safe to share between threads. */
+    private final XStream xstream = new XStream();
+
+    private final File snapshotFile;
+    private final File journalFile;
+    private final int  compactAfterRecords;
+    private boolean    syncWrites = true;
+
+    /** guarded by the write lock. */
+    private FileOutputStream journalOut;
+    private int              journalRecords;
+
+    public JournalFilePublicKeyRepository(File snapshotFile) {
+        this(snapshotFile, DEFAULT_COMPACT_AFTER_RECORDS);
+    }
+
+    /**
+     * @param snapshotFile where all keys are written on compaction.
+     * @param compactAfterRecords how many journal lines there must be at least, before compacting.
+     */
+    public JournalFilePublicKeyRepository(File snapshotFile, int compactAfterRecords) {
+        if (snapshotFile.exists() && !snapshotFile.isFile()){
+            throw new IllegalArgumentException("storage file must be a file.");
+        }
+        this.snapshotFile = snapshotFile;
+        this.journalFile = new File(snapshotFile.getPath() + ".journal");
+        this.compactAfterRecords = compactAfterRecords;
+        lock.writeLock().lock();
+        try {
+            load();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param syncWrites whether each journal line is forced to disk before a change returns. On by default.
+     */
+    public void setSyncWrites(boolean syncWrites) {
+        this.syncWrites = syncWrites;
+    }
+
+    @Override
+    public void addPublicKeys(Object principal, Set<PublicKey> publicKeys) {
+        lock.writeLock().lock();
+        try {
+            final Set<PublicKey> existing = accounts.get(principal);
+            final StringBuilder records = new StringBuilder();
+            int count = 0;
+            for (PublicKey publicKey : publicKeys) {
+                if (existing == null || !existing.contains(publicKey)) {
+                    appendRecord(records, '+', principal, publicKey);
+                    count++;
+                }
+            }
+            if (existing == null && count == 0) {
+                // an account without keys is recorded too, as a "+" line without key
+                appendRecord(records, '+', principal, null);
+                count++;
+            }
+            if (count > 0) {
+                writeJournal(records, count);
+            }
+            super.addPublicKeys(principal, publicKeys);
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void removePublicKey(Object principal, PublicKey publicKey) {
+        lock.writeLock().lock();
+        try {
+            final Set<PublicKey> existing = accounts.get(principal);
+            if (existing == null || !existing.contains(publicKey)) {
+                return;
+            }
+            final StringBuilder records = new StringBuilder();
+            appendRecord(records, '-', principal, publicKey);
+            writeJournal(records, 1);
+            super.removePublicKey(principal, publicKey);
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes all keys to a new snapshot, and empties the journal.
+     */
+    public void compact() {
+        lock.writeLock().lock();
+        try {
+            writeSnapshot();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Closes the journal. Changes made after this reopen it.
+     */
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            IOUtils.closeQuietly(journalOut);
+            journalOut = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return how many lines the journal has, since the last compaction.
+     */
+    public int getJournalRecords() {
+        lock.readLock().lock();
+        try {
+            return journalRecords;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void load() throws IOException {
+        final Map<Object, Set<PublicKey>> loaded = new HashMap<Object, Set<PublicKey>>();
+        final File tempFile = getTempFile();
+        if (!snapshotFile.exists() && tempFile.exists()) {
+            // died between deleting the old snapshot and renaming the new one
+            if (!tempFile.renameTo(snapshotFile)) {
+                throw new IOException("could not rename " + tempFile + " to " + snapshotFile);
+            }
+        }
+        if (snapshotFile.exists() && snapshotFile.length() > 0) {
+            final String xml = FileUtils.readFileToString(snapshotFile, ENCODING);
+            loaded.putAll((Map<Object, Set<PublicKey>>) xstream.fromXML(xml));
+        }
+        journalRecords = 0;
+        if (journalFile.exists()) {
+            final byte[] journal = FileUtils.readFileToByteArray(journalFile);
+            int start = 0;
+            for (int i = 0; i < journal.length; i++) {
+                if (journal[i] == '\n') {
+                    replay(loaded, new String(journal, start, i - start, ENCODING));
+                    journalRecords++;
+                    start = i + 1;
+                }
+            }
+            if (start < journal.length) {
+                // the last line was not written completely
+                final RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+                try {
+                    file.setLength(start);
+                } finally {
+                    file.close();
+                }
+            }
+        }
+        replaceAccounts(loaded);
+        if (!snapshotFile.exists()) {
+            writeSnapshot();
+        }
+    }
+
+    private void replay(Map<Object, Set<PublicKey>> accounts, String line) {
+        final String[] fields = line.split(" ");
+        if (fields.length < 2 || fields.length > 3 || fields[0].length() != 1) {
+            throw new IllegalStateException("corrupt line in " + journalFile + ": " + line);
+        }
+        final Object principal = xstream.fromXML(decode(fields[1]));
+        Set<PublicKey> keys = accounts.get(principal);
+        if (keys == null && fields[0].charAt(0) == '+') {
+            keys = new HashSet<PublicKey>();
+            accounts.put(principal, keys);
+        }
+        if (fields.length == 3 && keys != null) {
+            final PublicKey key;
+            try {
+                key = new Buffer(Base64.decodeBase64(fields[2].getBytes(ENCODING))).getPublicKey();
+            } catch (Exception e) {
+                throw new IllegalStateException("corrupt key in " + journalFile + ": " + line, e);
+            }
+            if (fields[0].charAt(0) == '+') {
+                keys.add(key);
+            } else {
+                keys.remove(key);
+            }
+        }
+    }
+
+    private void appendRecord(StringBuilder records, char operation, Object principal, PublicKey publicKey) {
+        final StringWriter xml = new StringWriter();
+        xstream.marshal(principal, new CompactWriter(xml));
+        records.append(operation).append(' ').append(encode(xml.toString()));
+        if (publicKey != null) {
+            final Buffer buffer = new Buffer();
+            buffer.putPublicKey(publicKey);
+            records.append(' ').append(new String(Base64.encodeBase64(buffer.getCompactData())));
+        }
+        records.append('\n');
+    }
+
+    private void writeJournal(CharSequence records, int count) {
+        try {
+            if (journalOut == null) {
+                journalOut = new FileOutputStream(journalFile, true);
+            }
+            journalOut.write(records.toString().getBytes(ENCODING));
+            journalOut.flush();
+            if (syncWrites) {
+                journalOut.getFD().sync();
+            }
+            journalRecords += count;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void compactIfNeeded() {
+        if (journalRecords >= compactAfterRecords && journalRecords >= getKeyCount()) {
+            compact();
+        }
+    }
+
+    private void writeSnapshot() throws IOException {
+        final Map<Object, Set<PublicKey>> copy = new HashMap<Object, Set<PublicKey>>();
+        for (Map.Entry<Object, Set<PublicKey>> entry : accounts.entrySet()) {
+            copy.put(entry.getKey(), new HashSet<PublicKey>(entry.getValue()));
+        }
+        final File tempFile = getTempFile();
+        final FileOutputStream out = new FileOutputStream(tempFile);
+        try {
+            out.write(xstream.toXML(copy).getBytes(ENCODING));
+            out.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(snapshotFile)) {
+            // renaming over an existing file is not possible on some platforms
+            if (!snapshotFile.delete() || !tempFile.renameTo(snapshotFile)) {
+                throw new IOException("could not rename " + tempFile + " to " + snapshotFile);
+            }
+        }
+
+        IOUtils.closeQuietly(journalOut);
+        journalOut = null;
+        final FileOutputStream truncate = new FileOutputStream(journalFile);
+        truncate.close();
+        journalRecords = 0;
+    }
+
+    private File getTempFile() {
+        return new File(snapshotFile.getPath() + ".tmp");
+    }
+
+    private static String encode(String s) {
+        try {
+            return new String(Base64.encodeBase64(s.getBytes(ENCODING)), ENCODING);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decode(String s) {
+        try {
+            return new String(Base64.decodeBase64(s.getBytes(ENCODING)), ENCODING);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
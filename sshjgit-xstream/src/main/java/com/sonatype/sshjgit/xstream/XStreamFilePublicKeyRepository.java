@@ -3,24 +3,56 @@ package com.sonatype.sshjgit.xstream;
 import java.io.File;
 import java.io.IOException;
 import java.security.PublicKey;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.sonatype.security.realms.publickey.SimplePublicKeyRepository;
 
 import com.thoughtworks.xstream.XStream;
 
 /**
- * Stores and loads keys crudely in a file, using XStream.
+ * <p>Stores and loads keys crudely in a file, using XStream. Every change rewrites the whole file; for many keys, use
+ * {@link JournalFilePublicKeyRepository}, which can take over this file as its snapshot.</p>
+ *
+ * <p>Changes which other programs make to the file can be picked up while running, with {@link #reload()} or by
+ * {@link #startWatching(long)}. Only the keys which differ are applied. Lookups read an immutable copy of all keys,
+ * which is swapped for a new one after each change, so they never wait for a reload or for changes being saved.</p>
  *
  * @author hugo@josefson.org
  */
 public class XStreamFilePublicKeyRepository extends SimplePublicKeyRepository {
+    private static final Logger log = LoggerFactory.getLogger( XStreamFilePublicKeyRepository.class );
+
     private static final String                 ENCODING = "UTF-8";
     private        final File                   storageFile;
     private        final ReentrantReadWriteLock storageFileLock = new ReentrantReadWriteLock();
+    /** held while changing keys and saving them, or while reloading, so that neither undoes the other. */
+    private        final ReentrantLock          mutationLock = new ReentrantLock();
+
+    /** immutable copy of {@code accounts}, for lookups. */
+    private volatile Map<Object, Set<PublicKey>> published = Collections.emptyMap();
+
+    /** last modification time and length of the file, as last loaded or saved. guarded by {@link #mutationLock}. */
+    private long storageFileLastModified;
+    private long storageFileLength;
+
+    private ScheduledExecutorService watcher;
+    private final AtomicLong reloadCount = new AtomicLong();
+    private volatile long lastReloadMillis;
+    private volatile int  lastReloadChangedKeys;
 
     public XStreamFilePublicKeyRepository(File storageFile) {
         this.storageFile = storageFile;
@@ -36,37 +68,225 @@ public class XStreamFilePublicKeyRepository extends SimplePublicKeyRepository {
 
     @Override
     public void addPublicKeys(Object principal, Set<PublicKey> publicKeys) {
-        super.addPublicKeys(principal, publicKeys);
-        saveToFile();
+        mutationLock.lock();
+        try {
+            super.addPublicKeys(principal, publicKeys);
+            publish();
+            saveToFile();
+        } finally {
+            mutationLock.unlock();
+        }
     }
 
     @Override
     public void removePublicKey(Object principal, PublicKey publicKey) {
-        super.removePublicKey(principal, publicKey);
-        saveToFile();
+        mutationLock.lock();
+        try {
+            super.removePublicKey(principal, publicKey);
+            publish();
+            saveToFile();
+        } finally {
+            mutationLock.unlock();
+        }
+    }
+
+    @Override
+    public Set<PublicKey> getPublicKeys(Object principal) {
+        return published.get(principal);
+    }
+
+    @Override
+    public boolean hasAccount(Object principal) {
+        return published.containsKey(principal);
+    }
+
+    /**
+     * Reads the file again if it has changed since it was last loaded or saved, and applies the keys which differ.
+     * @return whether the file had changed.
+     */
+    public boolean reload() {
+        mutationLock.lock();
+        try {
+            if (storageFile.lastModified() == storageFileLastModified && storageFile.length() == storageFileLength) {
+                return false;
+            }
+            final long start = System.currentTimeMillis();
+            final Map<Object, Set<PublicKey>> loaded = readFile();
+            final int changedKeys = applyDifferences(loaded);
+            publish();
+            lastReloadMillis = System.currentTimeMillis() - start;
+            lastReloadChangedKeys = changedKeys;
+            reloadCount.incrementAndGet();
+            log.info("Reloaded {} in {} ms, {} keys changed.",
+                     new Object[]{ storageFile, lastReloadMillis, changedKeys });
+            return true;
+        } finally {
+            mutationLock.unlock();
+        }
+    }
+
+    /**
+     * Starts checking the file for changes by other programs, in a background thread.
+     * @param intervalMillis how often to check.
+     */
+    public synchronized void startWatching(long intervalMillis) {
+        if (watcher != null) {
+            return;
+        }
+        watcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "sshjgit-keyfile-watcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        watcher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reload();
+                } catch (RuntimeException e) {
+                    // keep the keys we have, and try again next time, the file may be halfway written
+                    log.warn("Could not reload " + storageFile, e);
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopWatching() {
+        if (watcher != null) {
+            watcher.shutdownNow();
+            watcher = null;
+        }
+    }
+
+    /**
+     * @return how many times the file was reloaded after changing.
+     */
+    public long getReloadCount() {
+        return reloadCount.get();
+    }
+
+    /**
+     * @return how long the last reload took, including reading the file.
+     */
+    public long getLastReloadMillis() {
+        return lastReloadMillis;
+    }
+
+    /**
+     * @return how many keys the last reload added or removed.
+     */
+    public int getLastReloadChangedKeys() {
+        return lastReloadChangedKeys;
+    }
+
+    /**
+     * @return how many keys there are, counting a key once for each principal which has it.
+     */
+    public int getKeyCount() {
+        int count = 0;
+        for (Set<PublicKey> keys : published.values()) {
+            count += keys.size();
+        }
+        return count;
     }
 
     private void loadFromFile() {
-        accountsLock.writeLock().lock();
+        mutationLock.lock();
         try {
-            final String xml;
-            // using the file's writelock on purpose here, because we never want to mess with the file from two angles at the same time at all.
-            storageFileLock.writeLock().lock();
+            final Map<Object, Set<PublicKey>> loadedAccounts = readFile();
+
+            accountsLock.writeLock().lock();
             try {
-                xml = FileUtils.readFileToString(storageFile, ENCODING);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+                accounts.clear();
+                accounts.putAll(loadedAccounts);
             } finally {
-                storageFileLock.writeLock().unlock();
+                accountsLock.writeLock().unlock();
             }
+            publish();
+        } finally {
+            mutationLock.unlock();
+        }
+    }
 
-            final Map<Object, Set<PublicKey>> loadedAccounts = (Map<Object, Set<PublicKey>>) new XStream().fromXML(xml);
+    @SuppressWarnings("unchecked")
+    private Map<Object, Set<PublicKey>> readFile() {
+        final String xml;
+        // using the file's writelock on purpose here, because we never want to mess with the file from two angles at the same time at all.
+        storageFileLock.writeLock().lock();
+        try {
+            storageFileLastModified = storageFile.lastModified();
+            storageFileLength = storageFile.length();
+            xml = FileUtils.readFileToString(storageFile, ENCODING);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            storageFileLock.writeLock().unlock();
+        }
+
+        return (Map<Object, Set<PublicKey>>) new XStream().fromXML(xml);
+    }
 
-            accounts.clear();
-            accounts.putAll(loadedAccounts);
+    /**
+     * Makes {@code accounts} equal to the loaded keys, touching only the accounts which differ.
+     * @return how many keys were added or removed.
+     */
+    private int applyDifferences(Map<Object, Set<PublicKey>> loaded) {
+        int changedKeys = 0;
+        accountsLock.writeLock().lock();
+        try {
+            for (Map.Entry<Object, Set<PublicKey>> entry : loaded.entrySet()) {
+                final Set<PublicKey> existing = accounts.get(entry.getKey());
+                if (existing == null || !existing.equals(entry.getValue())) {
+                    changedKeys += differenceSize(existing, entry.getValue());
+                    accounts.put(entry.getKey(), entry.getValue());
+                }
+            }
+            for (Object principal : new HashSet<Object>(accounts.keySet())) {
+                if (!loaded.containsKey(principal)) {
+                    changedKeys += accounts.remove(principal).size();
+                }
+            }
         } finally {
             accountsLock.writeLock().unlock();
         }
+        return changedKeys;
+    }
+
+    private static int differenceSize(Set<PublicKey> before, Set<PublicKey> after) {
+        if (before == null) {
+            return after.size();
+        }
+        int count = 0;
+        for (PublicKey key : after) {
+            if (!before.contains(key)) {
+                count++;
+            }
+        }
+        for (PublicKey key : before) {
+            if (!after.contains(key)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Replaces the copy of {@code accounts} which lookups read.
+     */
+    private void publish() {
+        final Map<Object, Set<PublicKey>> copy = new HashMap<Object, Set<PublicKey>>();
+        accountsLock.readLock().lock();
+        try {
+            for (Map.Entry<Object, Set<PublicKey>> entry : accounts.entrySet()) {
+                copy.put(entry.getKey(), Collections.unmodifiableSet(new HashSet<PublicKey>(entry.getValue())));
+            }
+        } finally {
+            accountsLock.readLock().unlock();
+        }
+        published = Collections.unmodifiableMap(copy);
     }
 
     private void saveToFile() {
@@ -82,6 +302,8 @@ public class XStreamFilePublicKeyRepository extends SimplePublicKeyRepository {
         storageFileLock.writeLock().lock();
         try {
             FileUtils.writeStringToFile(storageFile, xml, ENCODING);
+            storageFileLastModified = storageFile.lastModified();
+            storageFileLength = storageFile.length();
         } catch (IOException e) {
             throw new RuntimeException(e);
         } finally {
@@ -0,0 +1,101 @@
+package com.sonatype.sshjgit.xstream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.PublicKey;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sonatype.sshjgit.testsupport.TestUtils;
+
+/**
+ * Exercises the {@link JournalFilePublicKeyRepository}.
+ */
+public class JournalFilePublicKeyRepositoryTest {
+    protected File snapshotFile;
+    protected File journalFile;
+    protected JournalFilePublicKeyRepository repo;
+    protected PublicKey key1;
+    protected PublicKey key2;
+
+    @Before
+    public void setUp() throws Exception {
+        snapshotFile = TestUtils.createNewTempFile("publickeys");
+        FileUtils.deleteQuietly(snapshotFile);
+        journalFile = new File(snapshotFile.getPath() + ".journal");
+        key1 = TestUtils.loadPublicKey("/id_rsa.pub");
+        key2 = TestUtils.loadPublicKey("/id_rsa2.pub");
+        repo = new JournalFilePublicKeyRepository(snapshotFile, 4);
+    }
+
+    @After
+    public void tearDown() {
+        repo.close();
+        FileUtils.deleteQuietly(snapshotFile);
+        FileUtils.deleteQuietly(journalFile);
+    }
+
+    @Test
+    public void givenAddedKeysThenOnlyJournalIsWritten() throws IOException {
+        final String snapshot = FileUtils.readFileToString(snapshotFile, "UTF-8");
+        repo.addPublicKey("username1", key1);
+        repo.addPublicKey("username2", key2);
+        assertEquals(snapshot, FileUtils.readFileToString(snapshotFile, "UTF-8"));
+        assertEquals(2, FileUtils.readLines(journalFile).size());
+    }
+
+    @Test
+    public void givenAddedAndRemovedKeysAndReloadedThenSameKeys() {
+        repo.addPublicKey("username1", key1);
+        repo.addPublicKey("username1", key2);
+        repo.removePublicKey("username1", key1);
+        repo.close();
+        repo = new JournalFilePublicKeyRepository(snapshotFile, 4);
+        assertFalse(repo.getPublicKeys("username1").contains(key1));
+        assertTrue(repo.getPublicKeys("username1").contains(key2));
+        assertEquals(3, repo.getJournalRecords());
+    }
+
+    @Test
+    public void givenJournalLongerThanCompactionThresholdThenCompacted() {
+        for (int i = 0; i < 4; i++) {
+            repo.addPublicKey("username" + i, key1);
+        }
+        assertEquals(0, repo.getJournalRecords());
+        assertEquals(0, journalFile.length());
+        repo.close();
+        repo = new JournalFilePublicKeyRepository(snapshotFile, 4);
+        assertEquals(4, repo.getKeyCount());
+    }
+
+    @Test
+    public void givenPartlyWrittenLastLineThenDroppedOnLoad() throws IOException {
+        repo.addPublicKey("username1", key1);
+        repo.close();
+        final FileOutputStream out = new FileOutputStream(journalFile, true);
+        out.write("+ PG".getBytes("UTF-8"));
+        out.close();
+        repo = new JournalFilePublicKeyRepository(snapshotFile, 4);
+        assertTrue(repo.getPublicKeys("username1").contains(key1));
+        repo.addPublicKey("username2", key2);
+        repo.close();
+        repo = new JournalFilePublicKeyRepository(snapshotFile, 4);
+        assertTrue(repo.getPublicKeys("username2").contains(key2));
+    }
+
+    @Test
+    public void givenXStreamFileThenUsableAsSnapshot() {
+        repo.close();
+        new XStreamFilePublicKeyRepository(snapshotFile).addPublicKey("username1", key1);
+        repo = new JournalFilePublicKeyRepository(snapshotFile, 4);
+        assertTrue(repo.getPublicKeys("username1").contains(key1));
+    }
+}
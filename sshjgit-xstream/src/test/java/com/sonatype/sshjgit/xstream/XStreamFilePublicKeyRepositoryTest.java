@@ -10,6 +10,10 @@ import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 import junit.framework.Assert;
 
@@ -20,6 +24,7 @@ import org.sonatype.security.realms.publickey.PublicKeyRepository;
 import org.sonatype.security.realms.publickey.PublicKeyRepositoryTest;
 
 import com.sonatype.sshjgit.testsupport.TestUtils;
+import com.thoughtworks.xstream.XStream;
 
 /**
  * Exercises the {@link XStreamFilePublicKeyRepository}.
@@ -129,4 +134,20 @@ public class XStreamFilePublicKeyRepositoryTest extends PublicKeyRepositoryTest
         assertFalse(repo.getPublicKeys("username2").contains(key3));
     }
 
+    @Test
+    public void givenFileChangedByOtherProgramThenReloadAppliesChanges() throws IOException {
+        givenEmptyFileThenFileHasEmptyMap();
+        assertFalse(repo.reload());
+
+        final Map<Object, Set<PublicKey>> accounts = new HashMap<Object, Set<PublicKey>>();
+        accounts.put("username", new HashSet<PublicKey>());
+        FileUtils.writeStringToFile(xmlFile, new XStream().toXML(accounts), UTF_8);
+        xmlFile.setLastModified(xmlFile.lastModified() + 2000);
+
+        assertTrue(repo.reload());
+        assertTrue(repo.hasAccount("username"));
+        assertEquals(1, repo.getReloadCount());
+        assertFalse(repo.reload());
+    }
+
 }